@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Parses the data change notifications pushed by the controller over the web socket.
+ *
+ * Only the path and operation of every data change event are extracted - the data
+ * itself is skipped, since it may contain the complete subtree.
+ */
+public class DataChangeNotificationParser {
+
+    private static final Pattern TOPOLOGY_ID_PATTERN = Pattern.compile("topology-id='([^']*)'");
+    private static final Pattern NODE_ID_PATTERN = Pattern.compile("node-id='([^']*)'");
+    private static final Pattern LINK_ID_PATTERN = Pattern.compile("link-id='([^']*)'");
+    // Nodes and connectors in the inventory are keyed by "id" instead of "node-id"
+    private static final Pattern INVENTORY_NODE_ID_PATTERN = Pattern.compile("[/:]node\\[(?:[\\w-]+:)?id='([^']*)'\\]");
+    private static final Pattern NODE_CONNECTOR_ID_PATTERN = Pattern.compile("[/:]node-connector\\[(?:[\\w-]+:)?id='([^']*)'\\]");
+    private static final String PORT_STATISTICS_CONTAINER = "flow-capable-node-connector-statistics";
+    // The byte and packet counters within the statistics, other leaves such as the duration change on every update
+    private static final Pattern PORT_COUNTERS_PATTERN = Pattern.compile(PORT_STATISTICS_CONTAINER + "/(?:[\\w-]+:)?(?:bytes|packets)(?:/|$)");
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    public enum Operation {
+        CREATED,
+        UPDATED,
+        DELETED;
+
+        private static Operation fromString(String operation) {
+            return Operation.valueOf(operation.trim().toUpperCase());
+        }
+    }
+
+    public static class DataChangeEvent {
+        private final String path;
+        private final Operation operation;
+        private final String topologyId;
+        private final String nodeId;
+        private final String linkId;
+        private final String inventoryNodeId;
+        private final String nodeConnectorId;
+
+        public DataChangeEvent(String path, Operation operation) {
+            this.path = Objects.requireNonNull(path);
+            this.operation = Objects.requireNonNull(operation);
+            topologyId = extract(TOPOLOGY_ID_PATTERN, path);
+            nodeId = extract(NODE_ID_PATTERN, path);
+            linkId = extract(LINK_ID_PATTERN, path);
+            inventoryNodeId = extract(INVENTORY_NODE_ID_PATTERN, path);
+            nodeConnectorId = extract(NODE_CONNECTOR_ID_PATTERN, path);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return the id of the topology referenced in the path, or null if none
+         */
+        public String getTopologyId() {
+            return topologyId;
+        }
+
+        /**
+         * @return the id of the node referenced in the path, or null if none
+         */
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        /**
+         * @return the id of the link referenced in the path, or null if none
+         */
+        public String getLinkId() {
+            return linkId;
+        }
+
+        /**
+         * @return the id of the inventory node referenced in the path, or null if none
+         */
+        public String getInventoryNodeId() {
+            return inventoryNodeId;
+        }
+
+        /**
+         * @return the id of the inventory node connector referenced in the path, or null if none
+         */
+        public String getNodeConnectorId() {
+            return nodeConnectorId;
+        }
+
+        /**
+         * @return true if the path references the statistics of a node connector
+         */
+        public boolean isPortStatisticsEvent() {
+            return nodeConnectorId != null && path.contains(PORT_STATISTICS_CONTAINER);
+        }
+
+        /**
+         * @return true if the path references the byte or packet counters within the statistics of a node connector
+         */
+        public boolean isPortCountersEvent() {
+            return nodeConnectorId != null && PORT_COUNTERS_PATTERN.matcher(path).find();
+        }
+
+        /**
+         * @return true if the path references the topology itself and is not scoped to any element within it
+         */
+        public boolean isTopologyEvent() {
+            return topologyId != null && nodeId == null && linkId == null
+                    && path.endsWith("topology-id='" + topologyId + "']");
+        }
+
+        @Override
+        public String toString() {
+            return String.format("DataChangeEvent[operation=%s, path=%s]", operation, path);
+        }
+
+        private static String extract(Pattern pattern, String path) {
+            final Matcher m = pattern.matcher(path);
+            return m.find() ? m.group(1) : null;
+        }
+    }
+
+    public List<DataChangeEvent> parse(String notificationXml) throws XMLStreamException {
+        final List<DataChangeEvent> events = new ArrayList<>();
+        final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new StringReader(notificationXml));
+        try {
+            String path = null;
+            String operation = null;
+            while (reader.hasNext()) {
+                final int eventType = reader.next();
+                if (eventType != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                switch (reader.getLocalName()) {
+                    case "data-change-event":
+                        path = null;
+                        operation = null;
+                        break;
+                    case "path":
+                        path = reader.getElementText();
+                        break;
+                    case "operation":
+                        operation = reader.getElementText();
+                        break;
+                    case "data":
+                        skipElement(reader);
+                        break;
+                    default:
+                        continue;
+                }
+                if (path != null && operation != null) {
+                    events.add(new DataChangeEvent(path.trim(), Operation.fromString(operation)));
+                    path = null;
+                    operation = null;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return events;
+    }
+
+    /**
+     * Gathers the ids of the nodes referenced by the given events.
+     */
+    public static Set<String> getNodeIds(List<DataChangeEvent> events) {
+        if (events.isEmpty()) {
+            return Collections.emptySet();
+        }
+        final Set<String> nodeIds = new LinkedHashSet<>();
+        for (DataChangeEvent event : events) {
+            if (event.getNodeId() != null) {
+                nodeIds.add(event.getNodeId());
+            }
+        }
+        return nodeIds;
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            final int eventType = reader.next();
+            if (eventType == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (eventType == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opennms.integration.api.v1.events.EventForwarder;
+import org.opennms.integration.api.v1.model.InMemoryEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Accumulates events and forwards them in batches, once the batch is full or
+ * once the window which started with the first event of the batch has elapsed.
+ *
+ * Batches are forwarded synchronously, so when eventd is slow the queue fills up
+ * and callers of {@link #send(InMemoryEvent)} block until there is room again.
+ * Batches which fail to be forwarded are retried, and handed to the {@link DropListener}
+ * once all of the attempts have failed.
+ */
+public class EventBatcher implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(EventBatcher.class);
+
+    private static final int DEFAULT_MAX_FORWARD_ATTEMPTS = 3;
+    private static final long DEFAULT_FORWARD_RETRY_DELAY_MS = 1000;
+
+    /**
+     * Receives the events which could not be forwarded.
+     */
+    @FunctionalInterface
+    public interface DropListener {
+        void dropped(List<InMemoryEvent> events);
+    }
+
+    private final EventForwarder eventForwarder;
+    private final long windowMs;
+    private final int maxBatchSize;
+    private final BlockingQueue<PendingEvent> queue;
+
+    private int maxForwardAttempts = DEFAULT_MAX_FORWARD_ATTEMPTS;
+    private long forwardRetryDelayMs = DEFAULT_FORWARD_RETRY_DELAY_MS;
+    private DropListener dropListener = events -> {};
+
+    private final AtomicBoolean exiting = new AtomicBoolean(false);
+    private Thread thread;
+
+    private final AtomicLong eventsSent = new AtomicLong();
+    private final AtomicLong batchesSent = new AtomicLong();
+    private final AtomicLong eventsDropped = new AtomicLong();
+    private final AtomicLong maxBatchSizeSent = new AtomicLong();
+    private final AtomicLong totalLatencyMs = new AtomicLong();
+    private final AtomicLong maxLatencyMs = new AtomicLong();
+
+    public EventBatcher(EventForwarder eventForwarder, long windowMs, int maxBatchSize, int queueCapacity) {
+        this.eventForwarder = Objects.requireNonNull(eventForwarder);
+        this.windowMs = windowMs;
+        this.maxBatchSize = maxBatchSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    public void init() {
+        thread = new Thread(this);
+        thread.setName("ODL-EventBatcher");
+        thread.start();
+    }
+
+    /**
+     * Stops the batcher, forwarding any events which are still queued.
+     */
+    public void destroy() throws InterruptedException {
+        if (thread != null) {
+            exiting.set(true);
+            thread.interrupt();
+            thread.join();
+        }
+        final List<PendingEvent> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            forward(remaining);
+        }
+    }
+
+    /**
+     * Queues the event for forwarding, blocking while the queue is full.
+     *
+     * @return true if the event was queued, false if interrupted while waiting for room in the queue
+     */
+    public boolean send(InMemoryEvent event) {
+        try {
+            queue.put(new PendingEvent(event));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            eventsDropped.incrementAndGet();
+            LOG.warn("Interrupted while queueing event with UEI: {}. The event was dropped.", event.getUei());
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        final List<PendingEvent> batch = new ArrayList<>(maxBatchSize);
+        while (!exiting.get()) {
+            try {
+                // Wait for the first event of the batch
+                batch.add(queue.take());
+
+                // Collect more events until the batch is full or the window has elapsed
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+                while (batch.size() < maxBatchSize) {
+                    if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    final long remainingNanos = deadline - System.nanoTime();
+                    if (remainingNanos <= 0) {
+                        break;
+                    }
+                    final PendingEvent event = queue.poll(remainingNanos, TimeUnit.NANOSECONDS);
+                    if (event == null) {
+                        break;
+                    }
+                    batch.add(event);
+                }
+            } catch (InterruptedException e) {
+                LOG.info("Interrupted. Exiting.");
+                // Forward what we have collected so far, anything still queued is forwarded by destroy()
+                forward(batch);
+                return;
+            }
+
+            forward(batch);
+            batch.clear();
+        }
+    }
+
+    private void forward(List<PendingEvent> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final List<InMemoryEvent> events = new ArrayList<>(batch.size());
+        for (PendingEvent pendingEvent : batch) {
+            events.add(pendingEvent.event);
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                eventForwarder.sendSync(events);
+                break;
+            } catch (Exception e) {
+                // Don't hold up shutdown with retries
+                if (attempt >= maxForwardAttempts || exiting.get()) {
+                    eventsDropped.addAndGet(events.size());
+                    LOG.error("Failed to forward batch of {} events after {} attempt(s). Dropping the batch.", events.size(), attempt, e);
+                    dropListener.dropped(events);
+                    return;
+                }
+                LOG.warn("Failed to forward batch of {} events on attempt {} of {}. Retrying in {} ms.",
+                        events.size(), attempt, maxForwardAttempts, forwardRetryDelayMs * attempt, e);
+            }
+            try {
+                Thread.sleep(forwardRetryDelayMs * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                eventsDropped.addAndGet(events.size());
+                LOG.warn("Interrupted while retrying to forward batch of {} events. Dropping the batch.", events.size());
+                dropListener.dropped(events);
+                return;
+            }
+        }
+
+        // Latency is measured from the time the oldest event in the batch was queued
+        final long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batch.get(0).queuedAtNanos);
+        eventsSent.addAndGet(events.size());
+        batchesSent.incrementAndGet();
+        maxBatchSizeSent.accumulateAndGet(events.size(), Math::max);
+        totalLatencyMs.addAndGet(latencyMs);
+        maxLatencyMs.accumulateAndGet(latencyMs, Math::max);
+        LOG.debug("Forwarded batch of {} events after {} ms.", events.size(), latencyMs);
+    }
+
+    /**
+     * Number of times a batch is offered to the forwarder before it is dropped.
+     */
+    public void setMaxForwardAttempts(int maxForwardAttempts) {
+        this.maxForwardAttempts = maxForwardAttempts;
+    }
+
+    /**
+     * Delay before the first retry of a batch which failed to be forwarded, which grows linearly with every attempt.
+     */
+    public void setForwardRetryDelayMs(long forwardRetryDelayMs) {
+        this.forwardRetryDelayMs = forwardRetryDelayMs;
+    }
+
+    public void setDropListener(DropListener dropListener) {
+        this.dropListener = Objects.requireNonNull(dropListener);
+    }
+
+    public long getEventsSent() {
+        return eventsSent.get();
+    }
+
+    public long getBatchesSent() {
+        return batchesSent.get();
+    }
+
+    /**
+     * @return the number of events which could not be queued or forwarded
+     */
+    public long getEventsDropped() {
+        return eventsDropped.get();
+    }
+
+    public long getMaxBatchSize() {
+        return maxBatchSizeSent.get();
+    }
+
+    public double getAverageBatchSize() {
+        final long batches = batchesSent.get();
+        return batches == 0 ? 0 : (double)eventsSent.get() / batches;
+    }
+
+    public double getAverageLatencyMs() {
+        final long batches = batchesSent.get();
+        return batches == 0 ? 0 : (double)totalLatencyMs.get() / batches;
+    }
+
+    public long getMaxLatencyMs() {
+        return maxLatencyMs.get();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EventBatcher[sent=%d, batches=%d, dropped=%d, avgBatchSize=%.1f, maxBatchSize=%d, avgLatencyMs=%.1f, maxLatencyMs=%d, queueDepth=%d]",
+                getEventsSent(), getBatchesSent(), getEventsDropped(), getAverageBatchSize(), getMaxBatchSize(),
+                getAverageLatencyMs(), getMaxLatencyMs(), getQueueDepth());
+    }
+
+    private static class PendingEvent {
+        private final InMemoryEvent event;
+        private final long queuedAtNanos = System.nanoTime();
+
+        private PendingEvent(InMemoryEvent event) {
+            this.event = event;
+        }
+    }
+}
@@ -33,5 +33,24 @@ public class EventConstants {
     public static final String SOURCE = "odl-plugin";
     public static final String NODE_OFFLINE_UEI = "uei.opennms.org/opendaylight/nodeOfflineInOperationalTopology";
     public static final String NODE_ONLINE_UEI = "uei.opennms.org/opendaylight/nodeOnlineInOperationalTopology";
+    public static final String NODE_FLAPPING_UEI = "uei.opennms.org/opendaylight/nodeFlappingInOperationalTopology";
+    public static final String NODE_STOPPED_FLAPPING_UEI = "uei.opennms.org/opendaylight/nodeStoppedFlappingInOperationalTopology";
+
+    public static final String SUPPRESSED_COUNT_PARM = "suppressedCount";
+
+    // Defined by OpenNMS, and used when thresholds are evaluated inline
+    public static final String HIGH_THRESHOLD_EXCEEDED_UEI = "uei.opennms.org/threshold/highThresholdExceeded";
+    public static final String HIGH_THRESHOLD_REARMED_UEI = "uei.opennms.org/threshold/highThresholdRearmed";
+    public static final String LOW_THRESHOLD_EXCEEDED_UEI = "uei.opennms.org/threshold/lowThresholdExceeded";
+    public static final String LOW_THRESHOLD_REARMED_UEI = "uei.opennms.org/threshold/lowThresholdRearmed";
+
+    public static final String THRESHOLD_LABEL_PARM = "label";
+    public static final String THRESHOLD_DS_PARM = "ds";
+    public static final String THRESHOLD_DESCRIPTION_PARM = "description";
+    public static final String THRESHOLD_VALUE_PARM = "value";
+    public static final String THRESHOLD_INSTANCE_PARM = "instance";
+    public static final String THRESHOLD_THRESHOLD_PARM = "threshold";
+    public static final String THRESHOLD_TRIGGER_PARM = "trigger";
+    public static final String THRESHOLD_REARM_PARM = "rearm";
 
 }
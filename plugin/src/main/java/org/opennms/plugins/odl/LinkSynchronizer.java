@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.integration.api.v1.topology.UserDefinedLink;
+import org.opennms.integration.api.v1.topology.UserDefinedLinkDao;
+import org.opennms.integration.api.v1.topology.immutables.ImmutableUserDefinedLink;
+import org.opennms.plugins.odl.topo.Link;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Synchronizes the user defined links owned by the plugin with the links of the operational topology.
+ *
+ * All of the links owned by the plugin are loaded with a single query and diffed against the
+ * expected links in memory. Deletes are applied in batches. The links of every source node are
+ * fingerprinted, and nodes whose fingerprint has not changed since the last successful sync are
+ * skipped. When no node has changed, the links are not loaded at all.
+ *
+ * The links owned by the plugin are also indexed by id, so that individual changes to the
+ * topology can be applied directly once a sync has loaded them.
+ */
+public class LinkSynchronizer {
+    private static final Logger LOG = LoggerFactory.getLogger(LinkSynchronizer.class);
+
+    public static final String LINK_LABEL = "Opendaylight Topology";
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final UserDefinedLinkDao userDefinedLinkDao;
+    private final NodeRegistry nodeRegistry;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    // Fingerprint of the expected links of every source node, as of the last successful sync
+    private final Map<Integer, Long> fingerprintsByNodeId = new HashMap<>();
+    // Links owned by the plugin, as of the last time they were loaded and including the changes applied since
+    private final Map<String, UserDefinedLink> linksById = new HashMap<>();
+    private boolean linksLoaded = false;
+
+    public LinkSynchronizer(UserDefinedLinkDao userDefinedLinkDao, NodeRegistry nodeRegistry) {
+        this.userDefinedLinkDao = Objects.requireNonNull(userDefinedLinkDao);
+        this.nodeRegistry = Objects.requireNonNull(nodeRegistry);
+    }
+
+    /**
+     * Makes the links owned by the plugin match the given links.
+     *
+     * @param expectedLinks all of the links in the topology
+     * @param force when true, the links of every node are diffed, regardless of their fingerprint
+     */
+    public synchronized SyncReport sync(Collection<Link> expectedLinks, boolean force) {
+        final long start = System.currentTimeMillis();
+
+        // Index the links by source node
+        final Map<String, List<Link>> linksBySourceId = new HashMap<>();
+        for (Link link : expectedLinks) {
+            linksBySourceId.computeIfAbsent(link.getSourceNode(), k -> new ArrayList<>()).add(link);
+        }
+
+        // Determine which nodes have changed since the last sync
+        final List<Node> nodes = nodeRegistry.getNodes();
+        final Map<Integer, Long> newFingerprints = new HashMap<>();
+        final Set<Integer> changedNodeIds = new HashSet<>();
+        for (Node node : nodes) {
+            final long fingerprint = fingerprint(linksBySourceId.getOrDefault(node.getLabel(), Collections.emptyList()));
+            newFingerprints.put(node.getId(), fingerprint);
+            if (force || !Objects.equals(fingerprintsByNodeId.get(node.getId()), fingerprint)) {
+                changedNodeIds.add(node.getId());
+            }
+        }
+        // Forget the nodes which are gone
+        fingerprintsByNodeId.keySet().retainAll(newFingerprints.keySet());
+
+        if (changedNodeIds.isEmpty()) {
+            return new SyncReport(nodes.size(), 0, 0, 0, 0, 0, System.currentTimeMillis() - start);
+        }
+
+        // Load all of the links owned by the plugin in one pass
+        final Map<Integer, Map<String, UserDefinedLink>> existingLinksByNodeId = new HashMap<>();
+        int numExistingLinks = 0;
+        linksById.clear();
+        linksLoaded = false;
+        for (UserDefinedLink udl : userDefinedLinkDao.getLinksWithLabel(LINK_LABEL)) {
+            if (!Objects.equals(EventConstants.SOURCE, udl.getOwner())) {
+                continue;
+            }
+            existingLinksByNodeId.computeIfAbsent(udl.getNodeIdA(), k -> new HashMap<>()).put(udl.getLinkId(), udl);
+            linksById.put(udl.getLinkId(), udl);
+            numExistingLinks++;
+        }
+
+        // Compute the diff for the nodes which changed
+        final List<UserDefinedLink> linksToInsert = new ArrayList<>();
+        final List<UserDefinedLink> linksToDelete = new ArrayList<>();
+        int unresolved = 0;
+        for (Node node : nodes) {
+            if (!changedNodeIds.contains(node.getId())) {
+                continue;
+            }
+            final Map<String, UserDefinedLink> existingLinksById = existingLinksByNodeId.getOrDefault(node.getId(), Collections.emptyMap());
+            final Set<String> expectedLinkIds = new HashSet<>();
+            for (Link link : linksBySourceId.getOrDefault(node.getLabel(), Collections.emptyList())) {
+                final UserDefinedLink udl = toUserDefinedLink(node, link);
+                if (udl == null) {
+                    LOG.warn("Link refers to node which was not found!: {}", link.getId());
+                    unresolved++;
+                    continue;
+                }
+                expectedLinkIds.add(udl.getLinkId());
+                final UserDefinedLink existingLink = existingLinksById.get(udl.getLinkId());
+                if (existingLink == null) {
+                    linksToInsert.add(udl);
+                } else if (!isSameLink(existingLink, udl)) {
+                    // The end points have changed, replace the link
+                    linksToDelete.add(existingLink);
+                    linksToInsert.add(udl);
+                }
+            }
+            for (UserDefinedLink existingLink : existingLinksById.values()) {
+                if (!expectedLinkIds.contains(existingLink.getLinkId())) {
+                    linksToDelete.add(existingLink);
+                }
+            }
+        }
+
+        apply(linksToInsert, linksToDelete);
+        linksLoaded = true;
+
+        // Only remember the fingerprints once the changes were applied successfully
+        for (Integer nodeId : changedNodeIds) {
+            fingerprintsByNodeId.put(nodeId, newFingerprints.get(nodeId));
+        }
+        return new SyncReport(nodes.size(), changedNodeIds.size(), numExistingLinks,
+                linksToInsert.size(), linksToDelete.size(), unresolved, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Applies individual changes to the topology.
+     *
+     * The nodes whose links were changed are diffed again on the next sync.
+     *
+     * @param updatedLinks links which were added or updated
+     * @param removedLinkIds ids of the links which were removed
+     * @throws IllegalStateException if the links were not loaded by a previous sync
+     */
+    public synchronized SyncReport applyChanges(Collection<Link> updatedLinks, Collection<String> removedLinkIds) {
+        if (!linksLoaded) {
+            throw new IllegalStateException("The links must be synchronized before applying changes.");
+        }
+        final long start = System.currentTimeMillis();
+        final List<UserDefinedLink> linksToInsert = new ArrayList<>();
+        final List<UserDefinedLink> linksToDelete = new ArrayList<>();
+        int unresolved = 0;
+        for (String linkId : removedLinkIds) {
+            final UserDefinedLink existingLink = linksById.get(linkId);
+            if (existingLink != null) {
+                linksToDelete.add(existingLink);
+            }
+        }
+        for (Link link : updatedLinks) {
+            final Node sourceNode = nodeRegistry.getNodeByLabel(link.getSourceNode());
+            final UserDefinedLink udl = sourceNode != null ? toUserDefinedLink(sourceNode, link) : null;
+            final UserDefinedLink existingLink = linksById.get(link.getId());
+            if (udl == null) {
+                LOG.warn("Link refers to node which was not found!: {}", link.getId());
+                unresolved++;
+                // The link no longer points to a known node
+                if (existingLink != null) {
+                    linksToDelete.add(existingLink);
+                }
+            } else if (existingLink == null) {
+                linksToInsert.add(udl);
+            } else if (!isSameLink(existingLink, udl) || !Objects.equals(existingLink.getNodeIdA(), udl.getNodeIdA())) {
+                linksToDelete.add(existingLink);
+                linksToInsert.add(udl);
+            }
+        }
+
+        final Set<Integer> changedNodeIds = new HashSet<>();
+        try {
+            apply(linksToInsert, linksToDelete);
+        } catch (RuntimeException e) {
+            // The index may no longer reflect what was persisted, reload it on the next sync
+            linksLoaded = false;
+            throw e;
+        } finally {
+            // Whatever the outcome, make sure the next sync takes another look at these nodes
+            for (UserDefinedLink udl : linksToInsert) {
+                changedNodeIds.add(udl.getNodeIdA());
+            }
+            for (UserDefinedLink udl : linksToDelete) {
+                changedNodeIds.add(udl.getNodeIdA());
+            }
+            fingerprintsByNodeId.keySet().removeAll(changedNodeIds);
+        }
+        return new SyncReport(changedNodeIds.size(), changedNodeIds.size(), linksById.size(),
+                linksToInsert.size(), linksToDelete.size(), unresolved, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return true once a sync has loaded the links, after which changes can be applied directly
+     */
+    public synchronized boolean isLinksLoaded() {
+        return linksLoaded;
+    }
+
+    /**
+     * Forgets all of the fingerprints, causing the links of every node to be diffed on the next sync.
+     */
+    public synchronized void invalidate() {
+        fingerprintsByNodeId.clear();
+    }
+
+    /**
+     * Maximum number of links deleted at once.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Deletes and inserts the given links, deletes first so that replaced links don't collide.
+     */
+    private void apply(List<UserDefinedLink> linksToInsert, List<UserDefinedLink> linksToDelete) {
+        for (int i = 0; i < linksToDelete.size(); i += batchSize) {
+            final List<UserDefinedLink> batch = linksToDelete.subList(i, Math.min(i + batchSize, linksToDelete.size()));
+            LOG.debug("Deleting {} link(s).", batch.size());
+            userDefinedLinkDao.delete(batch);
+            for (UserDefinedLink udl : batch) {
+                linksById.remove(udl.getLinkId(), udl);
+            }
+        }
+        // The DAO has no bulk insert, so inserts are only grouped for logging
+        for (int i = 0; i < linksToInsert.size(); i += batchSize) {
+            final List<UserDefinedLink> batch = linksToInsert.subList(i, Math.min(i + batchSize, linksToInsert.size()));
+            LOG.debug("Inserting {} link(s).", batch.size());
+            for (UserDefinedLink udl : batch) {
+                final UserDefinedLink savedLink = userDefinedLinkDao.saveOrUpdate(udl);
+                // Keep the saved copy, which carries the database id required to delete it later on
+                linksById.put(udl.getLinkId(), savedLink != null ? savedLink : udl);
+            }
+        }
+    }
+
+    private UserDefinedLink toUserDefinedLink(Node sourceNode, Link link) {
+        final Node targetNode = nodeRegistry.getNodeByLabel(link.getDestinationNode());
+        if (targetNode == null) {
+            return null;
+        }
+        return ImmutableUserDefinedLink.newBuilder()
+                .setNodeIdA(sourceNode.getId())
+                .setComponentLabelA(link.getSourceTerminationPoint())
+                .setNodeIdZ(targetNode.getId())
+                .setComponentLabelZ(link.getDestinationTerminationPoint())
+                .setLinkId(link.getId())
+                .setLinkLabel(LINK_LABEL)
+                .setOwner(EventConstants.SOURCE)
+                .build();
+    }
+
+    private static boolean isSameLink(UserDefinedLink a, UserDefinedLink b) {
+        return Objects.equals(a.getNodeIdZ(), b.getNodeIdZ())
+                && Objects.equals(a.getComponentLabelA(), b.getComponentLabelA())
+                && Objects.equals(a.getComponentLabelZ(), b.getComponentLabelZ());
+    }
+
+    /**
+     * Order independent fingerprint of the given links, including the node they point to
+     * so that links which could not be resolved are retried once their target appears.
+     */
+    private long fingerprint(List<Link> links) {
+        long fingerprint = links.size();
+        for (Link link : links) {
+            final Node targetNode = nodeRegistry.getNodeByLabel(link.getDestinationNode());
+            long hash = Objects.hash(link.getId(), link.getSourceTerminationPoint(),
+                    link.getDestinationNode(), link.getDestinationTerminationPoint());
+            hash = hash * 31 + (targetNode != null ? targetNode.getId() : -1);
+            fingerprint += mix(hash);
+        }
+        return fingerprint;
+    }
+
+    private static long mix(long h) {
+        // Finalizer from MurmurHash3, spreads the bits so that sums of hashes rarely collide
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static class SyncReport {
+        private final int nodes;
+        private final int nodesChanged;
+        private final int existingLinks;
+        private final int inserted;
+        private final int deleted;
+        private final int unresolved;
+        private final long durationMs;
+
+        public SyncReport(int nodes, int nodesChanged, int existingLinks, int inserted, int deleted, int unresolved, long durationMs) {
+            this.nodes = nodes;
+            this.nodesChanged = nodesChanged;
+            this.existingLinks = existingLinks;
+            this.inserted = inserted;
+            this.deleted = deleted;
+            this.unresolved = unresolved;
+            this.durationMs = durationMs;
+        }
+
+        public int getNodes() {
+            return nodes;
+        }
+
+        /**
+         * @return the number of nodes whose links were diffed, the others were skipped
+         */
+        public int getNodesChanged() {
+            return nodesChanged;
+        }
+
+        public int getExistingLinks() {
+            return existingLinks;
+        }
+
+        public int getInserted() {
+            return inserted;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * @return the number of links which refer to a node which was not found
+         */
+        public int getUnresolved() {
+            return unresolved;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("SyncReport[nodes=%d, changed=%d, skipped=%d, existingLinks=%d, inserted=%d, deleted=%d, unresolved=%d, durationMs=%d]",
+                    nodes, nodesChanged, nodes - nodesChanged, existingLinks, inserted, deleted, unresolved, durationMs);
+        }
+    }
+}
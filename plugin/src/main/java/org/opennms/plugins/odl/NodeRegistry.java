@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import static org.opennms.plugins.odl.OpendaylightRequisitionProvider.DEFAULT_FOREIGN_SOURCE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.opennms.integration.api.v1.dao.NodeDao;
+import org.opennms.integration.api.v1.events.EventListener;
+import org.opennms.integration.api.v1.events.EventSubscriptionService;
+import org.opennms.integration.api.v1.model.InMemoryEvent;
+import org.opennms.integration.api.v1.model.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the nodes in the ODL requisition, indexed by OpenNMS node id, ODL node id,
+ * node id index and label, so that they can be looked up without querying the DAO.
+ *
+ * All of the nodes are reloaded when the requisition is imported, and individual nodes are
+ * reloaded when they are added, updated or deleted. As a safety net, all of the nodes are also
+ * reloaded when they are requested after the reload interval has elapsed.
+ */
+public class NodeRegistry implements EventListener {
+    private static final Logger LOG = LoggerFactory.getLogger(NodeRegistry.class);
+
+    public static final String NODE_ADDED_UEI = "uei.opennms.org/nodes/nodeAdded";
+    public static final String NODE_UPDATED_UEI = "uei.opennms.org/nodes/nodeUpdated";
+    public static final String NODE_DELETED_UEI = "uei.opennms.org/nodes/nodeDeleted";
+
+    private static final List<String> UEIS = Arrays.asList(OpendaylightTopologyHandler.IMPORT_SUCCESSFUL_UEI,
+            NODE_ADDED_UEI, NODE_UPDATED_UEI, NODE_DELETED_UEI);
+
+    private static final long DEFAULT_RELOAD_INTERVAL_MS = 10 * 60 * 1000;
+
+    /**
+     * Notified after all of the nodes were reloaded following an import of the requisition.
+     */
+    @FunctionalInterface
+    public interface ReloadListener {
+        void onNodesReloaded(NodeRegistry registry);
+    }
+
+    private final NodeDao nodeDao;
+    private final EventSubscriptionService eventSubscriptionService;
+    private final LongSupplier clock;
+    private final List<ReloadListener> reloadListeners = new CopyOnWriteArrayList<>();
+
+    private long reloadIntervalMs = DEFAULT_RELOAD_INTERVAL_MS;
+
+    // Replaced on every full reload, and updated in place when individual nodes change
+    private volatile Indexes indexes = new Indexes();
+    private volatile long lastReloadMs = -1;
+
+    private final AtomicLong fullReloads = new AtomicLong();
+    private final AtomicLong nodeReloads = new AtomicLong();
+
+    public NodeRegistry(NodeDao nodeDao, EventSubscriptionService eventSubscriptionService) {
+        this(nodeDao, eventSubscriptionService, System::currentTimeMillis);
+    }
+
+    NodeRegistry(NodeDao nodeDao, EventSubscriptionService eventSubscriptionService, LongSupplier clock) {
+        this.nodeDao = Objects.requireNonNull(nodeDao);
+        this.eventSubscriptionService = Objects.requireNonNull(eventSubscriptionService);
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    public void init() {
+        // Subscribe first so that no changes are missed while loading
+        eventSubscriptionService.addEventListener(this, UEIS);
+        try {
+            reload();
+        } catch (Exception e) {
+            LOG.warn("Failed to load the nodes in the {} requisition. They will be loaded when first requested.", DEFAULT_FOREIGN_SOURCE, e);
+        }
+    }
+
+    public void destroy() {
+        eventSubscriptionService.removeEventListener(this, UEIS);
+    }
+
+    @Override
+    public String getName() {
+        return NodeRegistry.class.getName();
+    }
+
+    @Override
+    public int getNumThreads() {
+        return 1;
+    }
+
+    @Override
+    public void onEvent(InMemoryEvent event) {
+        if (event == null) {
+            return;
+        }
+        if (OpendaylightTopologyHandler.IMPORT_SUCCESSFUL_UEI.equals(event.getUei())) {
+            final String foreignSource = event.getParameterValue(OpendaylightTopologyHandler.PARM_FOREIGN_SOURCE).orElse(null);
+            if (!DEFAULT_FOREIGN_SOURCE.equals(foreignSource)) {
+                return;
+            }
+            reload();
+            for (ReloadListener listener : reloadListeners) {
+                try {
+                    listener.onNodesReloaded(this);
+                } catch (Exception e) {
+                    LOG.error("Reload listener failed: {}", listener, e);
+                }
+            }
+        } else if (event.getNodeId() != null) {
+            reloadNode(event.getNodeId(), NODE_DELETED_UEI.equals(event.getUei()));
+        }
+    }
+
+    /**
+     * Reloads all of the nodes from the DAO.
+     */
+    public synchronized void reload() {
+        final List<Node> nodes = nodeDao.getNodesInForeignSource(DEFAULT_FOREIGN_SOURCE);
+        final Indexes newIndexes = new Indexes();
+        for (Node node : nodes) {
+            newIndexes.put(node);
+        }
+        indexes = newIndexes;
+        lastReloadMs = clock.getAsLong();
+        fullReloads.incrementAndGet();
+        LOG.debug("Loaded {} node(s) in the {} requisition.", nodes.size(), DEFAULT_FOREIGN_SOURCE);
+    }
+
+    private synchronized void reloadNode(int nodeId, boolean deleted) {
+        final Node node = deleted ? null : nodeDao.getNodeById(nodeId);
+        if (node != null && DEFAULT_FOREIGN_SOURCE.equals(node.getForeignSource())) {
+            indexes.put(node);
+        } else {
+            indexes.remove(nodeId);
+        }
+        nodeReloads.incrementAndGet();
+    }
+
+    private Indexes getIndexes() {
+        final long now = clock.getAsLong();
+        if (lastReloadMs < 0 || (reloadIntervalMs > 0 && now - lastReloadMs >= reloadIntervalMs)) {
+            synchronized (this) {
+                // Another thread may have reloaded while we were waiting
+                if (lastReloadMs < 0 || (reloadIntervalMs > 0 && now - lastReloadMs >= reloadIntervalMs)) {
+                    reload();
+                }
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * @return all of the nodes in the ODL requisition
+     */
+    public List<Node> getNodes() {
+        return new ArrayList<>(getIndexes().nodesById.values());
+    }
+
+    public Node getNodeById(int nodeId) {
+        final Entry entry = getIndexes().nodesById.get(nodeId);
+        return entry != null ? entry.node : null;
+    }
+
+    public Node getNodeByOdlNodeId(String odlNodeId) {
+        final Entry entry = getIndexes().nodesByOdlNodeId.get(odlNodeId);
+        return entry != null ? entry.node : null;
+    }
+
+    public Node getNodeByNodeIdIndex(int nodeIdIndex) {
+        final Entry entry = getIndexes().nodesByNodeIdIndex.get(nodeIdIndex);
+        return entry != null ? entry.node : null;
+    }
+
+    public Node getNodeByLabel(String label) {
+        final Entry entry = getIndexes().nodesByLabel.get(label);
+        return entry != null ? entry.node : null;
+    }
+
+    /**
+     * @return the ODL metadata of the node with the given id, or null if the node is not known
+     */
+    public OdlMetadata getMetadata(int nodeId) {
+        final Entry entry = getIndexes().nodesById.get(nodeId);
+        return entry != null ? entry.metadata : null;
+    }
+
+    /**
+     * @return the ODL metadata of the given node, reusing the one indexed for it when available
+     */
+    public OdlMetadata getMetadata(Node node) {
+        final Entry entry = indexes.nodesById.get(node.getId());
+        return entry != null && entry.node == node ? entry.metadata : new OdlMetadata(node);
+    }
+
+    public void addReloadListener(ReloadListener listener) {
+        reloadListeners.add(Objects.requireNonNull(listener));
+    }
+
+    public void removeReloadListener(ReloadListener listener) {
+        reloadListeners.remove(listener);
+    }
+
+    /**
+     * All of the nodes are reloaded when they are requested after this interval,
+     * in case any events were missed. Set to 0 to only reload on import.
+     */
+    public void setReloadIntervalMs(long reloadIntervalMs) {
+        this.reloadIntervalMs = reloadIntervalMs;
+    }
+
+    public int size() {
+        return indexes.nodesById.size();
+    }
+
+    public long getFullReloads() {
+        return fullReloads.get();
+    }
+
+    public long getNodeReloads() {
+        return nodeReloads.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NodeRegistry[nodes=%d, fullReloads=%d, nodeReloads=%d]", size(), getFullReloads(), getNodeReloads());
+    }
+
+    private static class Entry {
+        private final Node node;
+        private final OdlMetadata metadata;
+        private final Integer nodeIdIndex;
+
+        private Entry(Node node) {
+            this.node = node;
+            this.metadata = new OdlMetadata(node);
+            this.nodeIdIndex = parseNodeIdIndex(metadata.getNodeIdIndex());
+        }
+
+        private static Integer parseNodeIdIndex(String nodeIdIndex) {
+            if (nodeIdIndex == null) {
+                return null;
+            }
+            try {
+                return Integer.parseInt(nodeIdIndex.trim());
+            } catch (NumberFormatException e) {
+                LOG.debug("Ignoring invalid node id index: {}", nodeIdIndex);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Writes are serialized by the registry, reads may happen concurrently.
+     */
+    private static class Indexes {
+        private final Map<Integer, Entry> nodesById = new ConcurrentHashMap<>();
+        private final Map<String, Entry> nodesByOdlNodeId = new ConcurrentHashMap<>();
+        private final Map<Integer, Entry> nodesByNodeIdIndex = new ConcurrentHashMap<>();
+        private final Map<String, Entry> nodesByLabel = new ConcurrentHashMap<>();
+
+        private void put(Node node) {
+            remove(node.getId());
+            final Entry entry = new Entry(node);
+            nodesById.put(node.getId(), entry);
+            if (entry.metadata.getNodeId() != null) {
+                nodesByOdlNodeId.put(entry.metadata.getNodeId(), entry);
+            }
+            if (entry.nodeIdIndex != null) {
+                nodesByNodeIdIndex.put(entry.nodeIdIndex, entry);
+            }
+            if (node.getLabel() != null) {
+                nodesByLabel.put(node.getLabel(), entry);
+            }
+        }
+
+        private void remove(int nodeId) {
+            final Entry entry = nodesById.remove(nodeId);
+            if (entry == null) {
+                return;
+            }
+            // Only remove the secondary keys if they still point to this node
+            if (entry.metadata.getNodeId() != null) {
+                nodesByOdlNodeId.remove(entry.metadata.getNodeId(), entry);
+            }
+            if (entry.nodeIdIndex != null) {
+                nodesByNodeIdIndex.remove(entry.nodeIdIndex, entry);
+            }
+            if (entry.node.getLabel() != null) {
+                nodesByLabel.remove(entry.node.getLabel(), entry);
+            }
+        }
+    }
+}
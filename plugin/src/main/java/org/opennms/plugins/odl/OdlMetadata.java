@@ -51,6 +51,10 @@ public class OdlMetadata {
         return metadata.get(NODE_ID_KEY);
     }
 
+    public String getNodeIdIndex() {
+        return metadata.get(NODE_ID_INDEX_KEY);
+    }
+
     public String getTopologyId() {
         return metadata.get(TOPOLOGY_ID_KEY);
     }
@@ -29,16 +29,28 @@
 package org.opennms.plugins.odl;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.Topology;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Node;
-import org.opennms.integration.api.v1.dao.NodeDao;
 import org.opennms.integration.api.v1.events.EventForwarder;
 import org.opennms.integration.api.v1.model.InMemoryEvent;
+import org.opennms.integration.api.v1.model.immutables.ImmutableEventParameter;
 import org.opennms.integration.api.v1.model.immutables.ImmutableInMemoryEvent;
+import org.opennms.plugins.odl.DataChangeNotificationParser.DataChangeEvent;
+import org.opennms.plugins.odl.state.FlapDampener;
+import org.opennms.plugins.odl.state.NodeStatusCache;
+import org.opennms.plugins.odl.state.NodeStatusStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,37 +60,81 @@ public class OpendaylightEventGenerator implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(OpendaylightEventGenerator.class);
 
     private static final int REFRESH_PERIOD_MS = 30000;
-    private static final int MIN_REFRESH_DELAY_MS = 5000;
-
-    // TODO: Use cache instead - entries should eventually expire
-    private final Map<Integer,Boolean> lastStatusByNodeId = new HashMap<>();
+    private static final int DEFAULT_NOTIFICATION_QUIET_PERIOD_MS = 1000;
+    private static final int DEFAULT_NOTIFICATION_MAX_DELAY_MS = 5000;
+    private static final long DEFAULT_STATUS_CACHE_TTL_MS = 10 * REFRESH_PERIOD_MS;
+    private static final int DEFAULT_STATUS_CACHE_MAX_SIZE = 100000;
+    private static final String DEFAULT_STATUS_FILE_NAME = "node-status.dat";
+    private static final int DEFAULT_REFRESH_THREADS = 4;
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    private static final long DEFAULT_EVENT_BATCH_WINDOW_MS = 250;
+    private static final int DEFAULT_EVENT_BATCH_MAX_SIZE = 500;
+    private static final int DEFAULT_EVENT_QUEUE_CAPACITY = 10000;
 
     private final OpendaylightRestconfClient client;
     private final EventForwarder eventForwarder;
-    private final NodeDao nodeDao;
+    private final NodeRegistry nodeRegistry;
     private final OpendaylightServicePollerFactory opendaylightServicePollerFactory;
 
     private final AtomicBoolean exiting = new AtomicBoolean(false);
-    private final Object triggerNextPoll = new Object();
     private Thread thread;
 
+    private final DataChangeNotificationParser notificationParser = new DataChangeNotificationParser();
+    private RefreshCoalescer refreshCoalescer;
+
     private WebSocket webSocket;
-    private Long lastRefreshMs;
 
-    public OpendaylightEventGenerator(OpendaylightRestconfClient client, EventForwarder eventForwarder, NodeDao nodeDao, OpendaylightServicePollerFactory opendaylightServicePollerFactory) {
+    private boolean snapshotRefresh = true;
+    private long notificationQuietPeriodMs = DEFAULT_NOTIFICATION_QUIET_PERIOD_MS;
+    private long notificationMaxDelayMs = DEFAULT_NOTIFICATION_MAX_DELAY_MS;
+    private long statusCacheTtlMs = DEFAULT_STATUS_CACHE_TTL_MS;
+    private int statusCacheMaxSize = DEFAULT_STATUS_CACHE_MAX_SIZE;
+
+    private NodeStatusCache lastStatusByNodeId;
+    private String statusFile;
+    private NodeStatusStore statusStore;
+
+    private int refreshThreads = DEFAULT_REFRESH_THREADS;
+    private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+    private long refreshCycleDeadlineMs = REFRESH_PERIOD_MS;
+    private RefreshWorkerPool refreshWorkerPool;
+    private volatile RefreshWorkerPool.CycleReport lastCycleReport;
+
+    private long eventBatchWindowMs = DEFAULT_EVENT_BATCH_WINDOW_MS;
+    private int eventBatchMaxSize = DEFAULT_EVENT_BATCH_MAX_SIZE;
+    private int eventQueueCapacity = DEFAULT_EVENT_QUEUE_CAPACITY;
+    private EventBatcher eventBatcher;
+
+    private boolean flapDampeningEnabled = true;
+    private long flapHalfLifeMs = FlapDampener.DEFAULT_HALF_LIFE_MS;
+    private double flapSuppressThreshold = FlapDampener.DEFAULT_SUPPRESS_THRESHOLD;
+    private double flapReuseThreshold = FlapDampener.DEFAULT_REUSE_THRESHOLD;
+    private double flapMaxPenalty = FlapDampener.DEFAULT_MAX_PENALTY;
+    private FlapDampener flapDampener;
+
+    public OpendaylightEventGenerator(OpendaylightRestconfClient client, EventForwarder eventForwarder, NodeRegistry nodeRegistry, OpendaylightServicePollerFactory opendaylightServicePollerFactory) {
         this.client = Objects.requireNonNull(client);
         this.eventForwarder = Objects.requireNonNull(eventForwarder);
-        this.nodeDao = Objects.requireNonNull(nodeDao);
+        this.nodeRegistry = Objects.requireNonNull(nodeRegistry);
         this.opendaylightServicePollerFactory = Objects.requireNonNull(opendaylightServicePollerFactory);
     }
 
     public void init() {
+        lastStatusByNodeId = new NodeStatusCache(statusCacheTtlMs, statusCacheMaxSize);
+        // Restore the last known states so that we only forward genuine changes after a restart
+        statusStore = new NodeStatusStore(getStatusFilePath());
+        statusStore.load(lastStatusByNodeId);
+        refreshWorkerPool = new RefreshWorkerPool(refreshThreads, maxConcurrentRequests, refreshCycleDeadlineMs);
+        eventBatcher = new EventBatcher(eventForwarder, eventBatchWindowMs, eventBatchMaxSize, eventQueueCapacity);
+        eventBatcher.setDropListener(this::onEventsDropped);
+        eventBatcher.init();
+        if (flapDampeningEnabled) {
+            flapDampener = new FlapDampener(FlapDampener.DEFAULT_PENALTY_PER_FLAP, flapSuppressThreshold,
+                    flapReuseThreshold, flapMaxPenalty, flapHalfLifeMs);
+        }
+        refreshCoalescer = new RefreshCoalescer(REFRESH_PERIOD_MS, notificationQuietPeriodMs, notificationMaxDelayMs);
         try {
-            this.webSocket = client.streamChangesForTopology("flow:1", notificationXml -> {
-                synchronized (triggerNextPoll) {
-                    triggerNextPoll.notifyAll();
-                }
-            });
+            this.webSocket = client.streamChangesForTopology("flow:1", this::onNotification);
         } catch (IOException e) {
             LOG.warn("Failed to stream changes for topology.", e);
         }
@@ -97,25 +153,62 @@ public class OpendaylightEventGenerator implements Runnable {
             thread.interrupt();
             thread.join();
         }
+        if (refreshWorkerPool != null) {
+            refreshWorkerPool.destroy();
+        }
+        if (eventBatcher != null) {
+            eventBatcher.destroy();
+        }
+        saveNodeStates();
+    }
+
+    /**
+     * Handles data change notifications for the topology by scheduling a refresh
+     * of only the nodes referenced by the changes.
+     */
+    private void onNotification(String notificationXml) {
+        List<DataChangeEvent> events;
+        try {
+            events = notificationParser.parse(notificationXml);
+        } catch (Exception e) {
+            LOG.warn("Failed to parse data change notification. Scheduling a full refresh.", e);
+            events = null;
+        }
+
+        if (events == null || requiresFullRefresh(events)) {
+            refreshCoalescer.onFullRefreshNotification();
+        } else {
+            refreshCoalescer.onNotification(DataChangeNotificationParser.getNodeIds(events));
+        }
+    }
+
+    private static boolean requiresFullRefresh(List<DataChangeEvent> events) {
+        // The topology itself was added or removed
+        return events.stream().anyMatch(e -> e.isTopologyEvent()
+                && e.getOperation() != DataChangeNotificationParser.Operation.UPDATED);
     }
 
     @Override
     public void run() {
         while (!exiting.get()) {
             try {
-                synchronized (triggerNextPoll) {
-                    triggerNextPoll.wait(REFRESH_PERIOD_MS);
+                final RefreshCoalescer.Refresh refresh = refreshCoalescer.awaitNextRefresh();
+                if (!refresh.isFull()) {
+                    refreshNodeStates(refresh.getNodeIds());
+                    onRefreshCompleted();
+                    continue;
                 }
 
-                LOG.debug("Refreshing the operational topology.");
-                for (org.opennms.integration.api.v1.model.Node node : nodeDao.getNodesInForeignSource("ODL")) {
-                    try {
-                        LOG.debug("Refreshing node state for: {}", node.getLabel());
-                        refreshNodeState(node);
-                    } catch (Exception e) {
-                        LOG.error("Failed to refresh state for node: {}", node.getLabel(), e);
-                    }
+                LOG.debug("Refreshing the operational topology. {} notifications received, {} refreshes run ({} full) so far.",
+                        refreshCoalescer.getNotificationsReceived(), refreshCoalescer.getRefreshesRun(), refreshCoalescer.getFullRefreshesRun());
+                final List<org.opennms.integration.api.v1.model.Node> nodes = nodeRegistry.getNodes();
+                pruneStatusCache(nodes);
+                if (snapshotRefresh) {
+                    refreshNodeStatesFromSnapshot(nodes);
+                } else {
+                    refreshNodeStatesInParallel(nodes, "full refresh");
                 }
+                onRefreshCompleted();
             } catch (InterruptedException e) {
                 LOG.info("Interrupted. Exiting.");
                 return;
@@ -123,42 +216,373 @@ public class OpendaylightEventGenerator implements Runnable {
         }
     }
 
-    private void refreshNodeState(org.opennms.integration.api.v1.model.Node node) throws Exception {
+    private void onRefreshCompleted() {
+        releaseDampenedNodes();
+        saveNodeStates();
+    }
+
+    /**
+     * Forwards an event clearing the flapping alarm, along with the current status,
+     * for every node which is no longer being dampened.
+     */
+    private void releaseDampenedNodes() {
+        if (flapDampener == null) {
+            return;
+        }
+        flapDampener.release((nodeId, suppressedCount) -> {
+            LOG.info("Node with id: {} stopped flapping. {} status change(s) were suppressed.", nodeId, suppressedCount);
+            sendStoppedFlappingEvent(nodeId, suppressedCount);
+            final byte status = lastStatusByNodeId.get(nodeId);
+            if (status == NodeStatusCache.ONLINE) {
+                sendOnlineEvent(nodeId);
+            } else if (status == NodeStatusCache.OFFLINE) {
+                sendOfflineEvent(nodeId);
+            }
+        });
+        LOG.debug("Flap dampening: {}", flapDampener);
+    }
+
+    private void saveNodeStates() {
+        if (statusStore == null) {
+            return;
+        }
+        try {
+            if (statusStore.saveIfChanged(lastStatusByNodeId)) {
+                LOG.debug("Saved the status of {} node(s) to: {}", lastStatusByNodeId.size(), statusStore.getFile());
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to save node states to: {}", statusStore.getFile(), e);
+        }
+    }
+
+    private Path getStatusFilePath() {
+        if (statusFile != null && !statusFile.trim().isEmpty()) {
+            return Paths.get(statusFile.trim());
+        }
+        final String dataDir = System.getProperty("karaf.data", System.getProperty("java.io.tmpdir"));
+        return Paths.get(dataDir, "opendaylight", DEFAULT_STATUS_FILE_NAME);
+    }
+
+    /**
+     * Drops the status of the nodes which are no longer part of the requisition,
+     * along with any entries which have expired.
+     */
+    private void pruneStatusCache(List<org.opennms.integration.api.v1.model.Node> nodes) {
+        final BitSet nodeIds = new BitSet();
+        for (org.opennms.integration.api.v1.model.Node node : nodes) {
+            nodeIds.set(node.getId());
+        }
+        final int removed = lastStatusByNodeId.retainAll(nodeIds::get);
+        if (flapDampener != null) {
+            flapDampener.retainAll(nodeIds::get);
+        }
+        final int expired = lastStatusByNodeId.evictExpired();
+        LOG.debug("Removed {} deleted and {} expired node(s) from the status cache: {}", removed, expired, lastStatusByNodeId);
+    }
+
+    /**
+     * Retrieves every referenced topology once and derives the status of all
+     * the nodes by checking whether or not their id is present in the topology.
+     */
+    private void refreshNodeStatesFromSnapshot(List<org.opennms.integration.api.v1.model.Node> nodes) throws InterruptedException {
+        final Map<String, List<org.opennms.integration.api.v1.model.Node>> nodesByTopologyId = nodes.stream()
+                .filter(n -> nodeRegistry.getMetadata(n).getTopologyId() != null)
+                .collect(Collectors.groupingBy(n -> nodeRegistry.getMetadata(n).getTopologyId()));
+
+        // Topologies are retrieved in parallel. If a topology cannot be retrieved, the refresh fails
+        // and we skip its nodes instead of marking all of them as offline.
+        final RefreshWorkerPool.CycleReport report = refreshWorkerPool.refresh(nodesByTopologyId.entrySet(),
+                entry -> "topology " + entry.getKey(),
+                entry -> refreshNodeStatesFromTopology(entry.getKey(), entry.getValue()));
+        onCycleCompleted("snapshot refresh", report);
+    }
+
+    private Runnable refreshNodeStatesFromTopology(String topologyId, List<org.opennms.integration.api.v1.model.Node> nodes) throws Exception {
+        final Set<String> presentNodeIds = new HashSet<>();
+        final Topology topology = client.getOperationalTopology(topologyId);
+        if (topology.getNode() != null) {
+            for (Node topologyNode : topology.getNode()) {
+                presentNodeIds.add(topologyNode.getNodeId().getValue());
+            }
+        }
+
+        LOG.debug("Found {} nodes in operational topology with ID: {}", presentNodeIds.size(), topologyId);
+        return () -> {
+            for (org.opennms.integration.api.v1.model.Node node : nodes) {
+                updateNodeState(node, presentNodeIds.contains(nodeRegistry.getMetadata(node).getNodeId()));
+            }
+        };
+    }
+
+    /**
+     * Refreshes the state of the given nodes individually, using the worker pool.
+     */
+    private void refreshNodeStatesInParallel(List<org.opennms.integration.api.v1.model.Node> nodes, String description) throws InterruptedException {
+        final RefreshWorkerPool.CycleReport report = refreshWorkerPool.refresh(nodes,
+                org.opennms.integration.api.v1.model.Node::getLabel,
+                this::refreshNodeState);
+        onCycleCompleted(description, report);
+    }
+
+    private void onCycleCompleted(String description, RefreshWorkerPool.CycleReport report) {
+        lastCycleReport = report;
+        if (report.getTimedOut() > 0) {
+            LOG.warn("Deadline of {} ms exceeded during {}: {}", refreshCycleDeadlineMs, description, report);
+        } else {
+            LOG.debug("Completed {}: {}", description, report);
+        }
+        LOG.debug("Event forwarding: {}", eventBatcher);
+    }
+
+    /**
+     * Refreshes the state of only the given nodes.
+     */
+    private void refreshNodeStates(Set<String> odlNodeIds) throws InterruptedException {
+        LOG.debug("Refreshing node state for {} node(s) referenced by data change notifications.", odlNodeIds.size());
+        final List<org.opennms.integration.api.v1.model.Node> nodes = new ArrayList<>(odlNodeIds.size());
+        for (String odlNodeId : odlNodeIds) {
+            final org.opennms.integration.api.v1.model.Node node = nodeRegistry.getNodeByOdlNodeId(odlNodeId);
+            if (node == null) {
+                LOG.debug("No node found for ODL node with ID: {}. Skipping.", odlNodeId);
+                continue;
+            }
+            nodes.add(node);
+        }
+        refreshNodeStatesInParallel(nodes, "partial refresh");
+    }
+
+    private Runnable refreshNodeState(org.opennms.integration.api.v1.model.Node node) throws Exception {
         final OpendaylightServicePoller poller = opendaylightServicePollerFactory.createPoller();
         final Node topologyNode = poller.getNodeFromOperationalTopology(node);
+        return () -> updateNodeState(node, topologyNode != null);
+    }
 
-        final boolean isOnline = topologyNode != null;
-        final Boolean lastStatus = lastStatusByNodeId.get(node.getId());
-        if (lastStatus == null || isOnline != lastStatus) {
-            if (isOnline) {
+    /**
+     * Only invoked by the updates applied by the worker pool, which are applied one at a time,
+     * so the status of a node cannot change between the time it is read and written.
+     */
+    private void updateNodeState(org.opennms.integration.api.v1.model.Node node, boolean isOnline) {
+        final byte lastStatus = lastStatusByNodeId.get(node.getId());
+        final byte status = isOnline ? NodeStatusCache.ONLINE : NodeStatusCache.OFFLINE;
+        boolean accepted = true;
+        if (lastStatus != status) {
+            // The first status we observe for a node is not a flap
+            final FlapDampener.Outcome outcome = flapDampener != null && lastStatus != NodeStatusCache.UNKNOWN
+                    ? flapDampener.onStatusChange(node.getId()) : FlapDampener.Outcome.FORWARD;
+            if (outcome == FlapDampener.Outcome.START_SUPPRESSING) {
+                LOG.info("Node: {} with id: {} started flapping. Sending flapping event.", node.getForeignId(), node.getId());
+                sendFlappingEvent(node.getId());
+            }
+            if (outcome != FlapDampener.Outcome.FORWARD) {
+                LOG.info("Dampening {} event for flapping node: {} with id: {}", isOnline ? "online" : "offline", node.getForeignId(), node.getId());
+            } else if (isOnline) {
                 LOG.info("Sending online event for: {} with id: {}", node.getForeignId(), node.getId());
-                sendOnlineEvent(node);
+                accepted = sendOnlineEvent(node.getId());
             } else {
                 LOG.info("Sending offline event for: {} with id: {}", node.getForeignId(), node.getId());
-                sendOfflineEvent(node);
+                accepted = sendOfflineEvent(node.getId());
             }
-            lastStatusByNodeId.put(node.getId(), isOnline);
         } else {
             LOG.debug("Suppressing event for: {} status is the same: {}", node.getForeignId(), isOnline);
         }
+        // Only store the status once the event was queued, so that the change is sent again on the next refresh otherwise.
+        // The status is stored even if it did not change, so that the entry does not expire while the node is being refreshed.
+        if (accepted) {
+            lastStatusByNodeId.put(node.getId(), isOnline);
+        }
+    }
+
+    /**
+     * Forgets the status carried by events which could not be forwarded, so that
+     * the current status of these nodes is sent again on the next refresh.
+     */
+    private void onEventsDropped(List<InMemoryEvent> events) {
+        for (InMemoryEvent event : events) {
+            if (event.getNodeId() != null && (EventConstants.NODE_ONLINE_UEI.equals(event.getUei())
+                    || EventConstants.NODE_OFFLINE_UEI.equals(event.getUei()))) {
+                lastStatusByNodeId.remove(event.getNodeId());
+            }
+        }
+    }
+
+    /**
+     * When enabled, every refresh retrieves each operational topology once and derives the
+     * status of all of the nodes from it, instead of issuing one request per node.
+     */
+    public void setSnapshotRefresh(boolean snapshotRefresh) {
+        this.snapshotRefresh = snapshotRefresh;
+    }
+
+    /**
+     * Change notifications are coalesced until none have been received for this period.
+     */
+    public void setNotificationQuietPeriodMs(long notificationQuietPeriodMs) {
+        this.notificationQuietPeriodMs = notificationQuietPeriodMs;
+    }
+
+    /**
+     * Upper bound on how long change notifications are coalesced before a refresh is triggered.
+     */
+    public void setNotificationMaxDelayMs(long notificationMaxDelayMs) {
+        this.notificationMaxDelayMs = notificationMaxDelayMs;
+    }
+
+    /**
+     * Entries in the status cache which have not been refreshed within this period are evicted,
+     * causing the next observed status of the node to be forwarded as an event.
+     */
+    public void setStatusCacheTtlMs(long statusCacheTtlMs) {
+        this.statusCacheTtlMs = statusCacheTtlMs;
+    }
+
+    /**
+     * Maximum number of nodes tracked by the status cache. The least recently updated entries are evicted first.
+     */
+    public void setStatusCacheMaxSize(int statusCacheMaxSize) {
+        this.statusCacheMaxSize = statusCacheMaxSize;
+    }
+
+    /**
+     * File in which the last known status of the nodes is persisted across restarts.
+     * Defaults to a file in the Karaf data directory when blank.
+     */
+    public void setStatusFile(String statusFile) {
+        this.statusFile = statusFile;
+    }
+
+    /**
+     * Number of workers used to refresh node states in parallel.
+     */
+    public void setRefreshThreads(int refreshThreads) {
+        this.refreshThreads = refreshThreads;
+    }
+
+    /**
+     * Maximum number of refreshes issued concurrently against the controller.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Refreshes which have not completed within this period of the start of the cycle are cancelled.
+     */
+    public void setRefreshCycleDeadlineMs(long refreshCycleDeadlineMs) {
+        this.refreshCycleDeadlineMs = refreshCycleDeadlineMs;
+    }
+
+    /**
+     * Events are accumulated for up to this period before being forwarded as a batch.
+     */
+    public void setEventBatchWindowMs(long eventBatchWindowMs) {
+        this.eventBatchWindowMs = eventBatchWindowMs;
+    }
+
+    /**
+     * Maximum number of events forwarded in a single batch.
+     */
+    public void setEventBatchMaxSize(int eventBatchMaxSize) {
+        this.eventBatchMaxSize = eventBatchMaxSize;
+    }
+
+    /**
+     * Maximum number of events waiting to be forwarded. Refreshes block once the queue is full.
+     */
+    public void setEventQueueCapacity(int eventQueueCapacity) {
+        this.eventQueueCapacity = eventQueueCapacity;
     }
 
-    private void sendOfflineEvent(org.opennms.integration.api.v1.model.Node node) {
+    public EventBatcher getEventBatcher() {
+        return eventBatcher;
+    }
+
+    public RefreshWorkerPool.CycleReport getLastCycleReport() {
+        return lastCycleReport;
+    }
+
+    /**
+     * When enabled, the status changes of flapping nodes are suppressed. A flapping event is sent
+     * when the suppression starts, and is cleared once the node settles down.
+     */
+    public void setFlapDampeningEnabled(boolean flapDampeningEnabled) {
+        this.flapDampeningEnabled = flapDampeningEnabled;
+    }
+
+    /**
+     * Time it takes for the flap penalty of a node to decay by half.
+     */
+    public void setFlapHalfLifeMs(long flapHalfLifeMs) {
+        this.flapHalfLifeMs = flapHalfLifeMs;
+    }
+
+    /**
+     * Penalty above which status changes are suppressed. Every status change adds a penalty of 1000.
+     */
+    public void setFlapSuppressThreshold(double flapSuppressThreshold) {
+        this.flapSuppressThreshold = flapSuppressThreshold;
+    }
+
+    /**
+     * Penalty below which a suppressed node is released.
+     */
+    public void setFlapReuseThreshold(double flapReuseThreshold) {
+        this.flapReuseThreshold = flapReuseThreshold;
+    }
+
+    /**
+     * Upper bound on the penalty, which limits how long a node can remain suppressed.
+     */
+    public void setFlapMaxPenalty(double flapMaxPenalty) {
+        this.flapMaxPenalty = flapMaxPenalty;
+    }
+
+    public FlapDampener getFlapDampener() {
+        return flapDampener;
+    }
+
+    public NodeStatusCache getStatusCache() {
+        return lastStatusByNodeId;
+    }
+
+    public RefreshCoalescer getRefreshCoalescer() {
+        return refreshCoalescer;
+    }
+
+    private boolean sendOfflineEvent(int nodeId) {
         final InMemoryEvent event = ImmutableInMemoryEvent.newBuilder()
                 .setUei(EventConstants.NODE_OFFLINE_UEI)
                 .setSource(EventConstants.SOURCE)
-                .setNodeId(node.getId())
+                .setNodeId(nodeId)
                 .build();
-        eventForwarder.sendAsync(event);
+        return eventBatcher.send(event);
     }
 
-    private void sendOnlineEvent(org.opennms.integration.api.v1.model.Node node) {
+    private boolean sendOnlineEvent(int nodeId) {
         final InMemoryEvent event = ImmutableInMemoryEvent.newBuilder()
                 .setUei(EventConstants.NODE_ONLINE_UEI)
                 .setSource(EventConstants.SOURCE)
-                .setNodeId(node.getId())
+                .setNodeId(nodeId)
+                .build();
+        return eventBatcher.send(event);
+    }
+
+    private void sendFlappingEvent(int nodeId) {
+        final InMemoryEvent event = ImmutableInMemoryEvent.newBuilder()
+                .setUei(EventConstants.NODE_FLAPPING_UEI)
+                .setSource(EventConstants.SOURCE)
+                .setNodeId(nodeId)
+                .build();
+        eventBatcher.send(event);
+    }
+
+    private void sendStoppedFlappingEvent(int nodeId, int suppressedCount) {
+        final InMemoryEvent event = ImmutableInMemoryEvent.newBuilder()
+                .setUei(EventConstants.NODE_STOPPED_FLAPPING_UEI)
+                .setSource(EventConstants.SOURCE)
+                .setNodeId(nodeId)
+                .addParameter(ImmutableEventParameter.newInstance(EventConstants.SUPPRESSED_COUNT_PARM, Integer.toString(suppressedCount)))
                 .build();
-        eventForwarder.sendAsync(event);
+        eventBatcher.send(event);
     }
 
 }
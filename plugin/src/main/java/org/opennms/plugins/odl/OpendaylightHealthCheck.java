@@ -61,7 +61,8 @@ public class OpendaylightHealthCheck implements HealthCheck {
         try {
             final NetworkTopology networkTopology = restconfClient.getOperationalNetworkTopology();
             LOG.info("Network topology: {}", networkTopology);
-            return ImmutableResponse.newInstance(Status.Success, String.format("Found %d topology(s).", networkTopology.getTopology().size()));
+            return ImmutableResponse.newInstance(Status.Success, String.format("Found %d topology(s). Issued %d request(s), %d coalesced with in-flight requests.",
+                    networkTopology.getTopology().size(), restconfClient.getUncoalescedRequestCount(), restconfClient.getCoalescedRequestCount()));
         } catch (Exception e) {
             return ImmutableResponse.newInstance(e);
         }
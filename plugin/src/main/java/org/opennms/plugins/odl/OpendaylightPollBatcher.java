@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.Topology;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Groups node lookups that arrive within a short window by topology id, and
+ * answers all of them with a single retrieval of the operational topology.
+ *
+ * This turns O(nodes) controller requests per poll cycle into O(topologies).
+ */
+public class OpendaylightPollBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(OpendaylightPollBatcher.class);
+
+    private final OpendaylightRestconfClient client;
+    private final long windowMs;
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<String, Batch> pendingBatchesByTopologyId = new HashMap<>();
+
+    public OpendaylightPollBatcher(OpendaylightRestconfClient client, long windowMs) {
+        this.client = Objects.requireNonNull(client);
+        if (windowMs <= 0) {
+            throw new IllegalArgumentException("Window must be strictly positive. Got: " + windowMs);
+        }
+        this.windowMs = windowMs;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ODL-PollBatcher-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Determines whether or not the given node is present in the operational topology.
+     *
+     * @param topologyId the topology id
+     * @param nodeId the node id
+     * @return a future which completes with true if the node was found in the topology, false otherwise
+     */
+    public CompletableFuture<Boolean> isNodeInOperationalTopology(String topologyId, String nodeId) {
+        synchronized (pendingBatchesByTopologyId) {
+            Batch batch = pendingBatchesByTopologyId.get(topologyId);
+            if (batch == null) {
+                batch = new Batch(topologyId);
+                pendingBatchesByTopologyId.put(topologyId, batch);
+                final Batch batchToFlush = batch;
+                scheduler.schedule(() -> flush(batchToFlush), windowMs, TimeUnit.MILLISECONDS);
+            }
+            // Give every caller its own future, so that one caller cancelling or completing
+            // its future does not affect other callers polling the same node
+            return batch.futuresByNodeId.computeIfAbsent(nodeId, k -> new CompletableFuture<>())
+                    .thenApply(Function.identity());
+        }
+    }
+
+    private void flush(Batch batch) {
+        synchronized (pendingBatchesByTopologyId) {
+            pendingBatchesByTopologyId.remove(batch.topologyId, batch);
+        }
+        LOG.debug("Resolving {} node lookup(s) against operational topology with ID: {}", batch.futuresByNodeId.size(), batch.topologyId);
+        client.getOperationalTopologyAsync(batch.topologyId).whenComplete((topology, ex) -> {
+            if (ex != null) {
+                batch.futuresByNodeId.values().forEach(f -> f.completeExceptionally(ex));
+                return;
+            }
+            final Set<String> nodeIds = getNodeIds(topology);
+            batch.futuresByNodeId.forEach((nodeId, future) -> future.complete(nodeIds.contains(nodeId)));
+        });
+    }
+
+    private static Set<String> getNodeIds(Topology topology) {
+        final Set<String> nodeIds = new HashSet<>();
+        if (topology != null && topology.getNode() != null) {
+            for (Node node : topology.getNode()) {
+                nodeIds.add(node.getNodeId().getValue());
+            }
+        }
+        return nodeIds;
+    }
+
+    private static class Batch {
+        private final String topologyId;
+        private final Map<String, CompletableFuture<Boolean>> futuresByNodeId = new HashMap<>();
+
+        private Batch(String topologyId) {
+            this.topologyId = topologyId;
+        }
+    }
+}
@@ -116,8 +116,7 @@ public class OpendaylightRequisitionProvider implements RequisitionProvider {
                 final String nodeId = node.getNodeId().getValue();
                 final String nodeIdIndex = getNodeIndexFromId(nodeId);
 
-                // Colons are typically used a separators, so we replace them to be safe
-                final String foreignId = nodeId.replaceAll(":", "_");
+                final String foreignId = toForeignId(nodeId);
 
                 requisitionBuilder.addNode(ImmutableRequisitionNode.newBuilder()
                         .setForeignId(foreignId)
@@ -152,6 +151,14 @@ public class OpendaylightRequisitionProvider implements RequisitionProvider {
         return requisitionBuilder.build();
     }
 
+    /**
+     * Derives the foreign id used in the requisition for the given ODL node id.
+     */
+    public static String toForeignId(String nodeId) {
+        // Colons are typically used a separators, so we replace them to be safe
+        return nodeId.replace(':', '_');
+    }
+
     private String getNodeIndexFromId(String nodeId) {
         if (Strings.isNullOrEmpty(nodeId)) {
             return "";
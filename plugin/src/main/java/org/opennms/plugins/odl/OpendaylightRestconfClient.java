@@ -28,11 +28,26 @@
 
 package org.opennms.plugins.odl;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 import org.opendaylight.mdsal.binding.dom.codec.api.BindingCodecTreeNode;
 import org.opendaylight.mdsal.binding.dom.codec.gen.impl.StreamWriterGenerator;
@@ -45,6 +60,7 @@ import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.NodeId;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.TopologyId;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.Topology;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Link;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Node;
 import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
 import org.opendaylight.yangtools.yang.binding.util.BindingReflections;
@@ -60,11 +76,14 @@ import org.opendaylight.yangtools.yang.model.api.SchemaContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 
 import javassist.ClassPool;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Credentials;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
@@ -76,6 +95,11 @@ import okhttp3.ResponseBody;
 import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
 import okhttp3.logging.HttpLoggingInterceptor;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
 
 /**
  * Java client for Opendaylight's RESTConf API.
@@ -91,10 +115,16 @@ public class OpendaylightRestconfClient {
     public static final String DEFAULT_USERNAME = "admin";
     public static final String DEFAULT_PASSWORD = "admin";
 
+    private static final int DECODE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int DECODE_QUEUE_SIZE = 1000;
+    private static final int DEFAULT_MAX_REQUESTS = 64;
+    private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 32;
+
     private static final SchemaContext s_schemaContext;
     private static final BindingCodecTreeNode<NetworkTopology> s_networkTopologyCodec;
     private static final BindingCodecTreeNode<Topology> s_topologyCodec;
     private static final BindingCodecTreeNode<Node> s_nodeCodec;
+    private static final BindingCodecTreeNode<Link> s_linkCodec;
 
     private static final DataSchemaNode s_networkTopologySchemaNode;
     private static final DataSchemaNode s_topologySchemaNode;
@@ -119,6 +149,7 @@ public class OpendaylightRestconfClient {
         ctx.registerModuleInfo(org.opendaylight.yang.gen.v1.urn.opendaylight.port.statistics.rev131214.$YangModuleInfoImpl.getInstance());
         ctx.registerModuleInfo(org.opendaylight.yang.gen.v1.urn.opendaylight.group.statistics.rev131111.$YangModuleInfoImpl.getInstance());
         ctx.registerModuleInfo(org.opendaylight.yang.gen.v1.urn.opendaylight.flow.table.statistics.rev131215.$YangModuleInfoImpl.getInstance());
+        ctx.registerModuleInfo(org.opendaylight.yang.gen.v1.urn.opendaylight.queue.statistics.rev131216.$YangModuleInfoImpl.getInstance());
         ctx.registerModuleInfo(org.opendaylight.yang.gen.v1.urn.opendaylight.l2switch.loopremover.rev140714.$YangModuleInfoImpl.getInstance());
 
         // Alternatively, we could load everything on the classpath
@@ -133,6 +164,7 @@ public class OpendaylightRestconfClient {
         s_networkTopologyCodec = registry.getCodecContext().getSubtreeCodec(InstanceIdentifier.create(NetworkTopology.class));
         s_topologyCodec = s_networkTopologyCodec.streamChild(Topology.class);
         s_nodeCodec = s_topologyCodec.streamChild(Node.class);
+        s_linkCodec = s_topologyCodec.streamChild(Link.class);
 
         s_networkTopologySchemaNode = s_schemaContext.getDataChildByName(NetworkTopology.QNAME);
         s_topologySchemaNode = ((DataNodeContainer)s_networkTopologySchemaNode).getDataChildByName(Topology.QNAME);
@@ -150,6 +182,16 @@ public class OpendaylightRestconfClient {
 
     private final HttpUrl baseUrl;
     private final OkHttpClient okHttpClient;
+    private final ExecutorService decodeExecutor;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    // Requests which are currently in-flight, used to coalesce identical concurrent requests.
+    // Keyed by URL, prefixed with the kind of result so that raw and decoded lookups are never shared.
+    private final ConcurrentMap<String, CompletableFuture<?>> inFlightRequests = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedRequestCount = new AtomicLong();
+    private final AtomicLong uncoalescedRequestCount = new AtomicLong();
 
     public OpendaylightRestconfClient(String controllerUrl) {
         this(controllerUrl, DEFAULT_USERNAME, DEFAULT_PASSWORD);
@@ -179,12 +221,25 @@ public class OpendaylightRestconfClient {
             clientBuilder.addInterceptor(logging);
         }
         okHttpClient = clientBuilder.build();
+        okHttpClient.dispatcher().setMaxRequests(DEFAULT_MAX_REQUESTS);
+        okHttpClient.dispatcher().setMaxRequestsPerHost(DEFAULT_MAX_REQUESTS_PER_HOST);
         yangDecoder = new YangDecoder();
+
+        // Responses to asynchronous requests are read and decoded on this pool, so that
+        // neither the callers nor OkHttp's dispatcher threads are tied up with decoding
+        decodeExecutor = new ThreadPoolExecutor(DECODE_THREADS, DECODE_THREADS,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(DECODE_QUEUE_SIZE),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("ODL-RestconfDecoder-%d")
+                        .setDaemon(true)
+                        .build());
     }
 
     public void destroy() {
         // Trigger shutdown of the dispatcher's executor so this process can exit cleanly.
         okHttpClient.dispatcher().executorService().shutdown();
+        decodeExecutor.shutdown();
     }
 
     private String doGet(HttpUrl httpUrl) throws IOException {
@@ -192,13 +247,14 @@ public class OpendaylightRestconfClient {
                 .url(httpUrl)
                 .get()
                 .build();
+        requestCount.incrementAndGet();
         final Response response = okHttpClient.newCall(request).execute();
 
         final ResponseBody responseBody = response.body();
         String responseBodyAsStr = null;
         if (responseBody != null) {
             try {
-                responseBodyAsStr = responseBody.string();
+                responseBodyAsStr = readBody(responseBody);
             } finally {
                 responseBody.close();
             }
@@ -212,12 +268,240 @@ public class OpendaylightRestconfClient {
         return responseBodyAsStr;
     }
 
-    private Response doGetWithResponse(HttpUrl httpUrl) throws IOException {
+    /**
+     * Issues a GET and decodes the response body while it is being read off the wire.
+     *
+     * The request is executed and decoded on the calling thread, so blocking lookups are neither
+     * limited by OkHttp's dispatcher nor by the decode executor. Concurrent requests for the same
+     * URL share a single call and decoded result.
+     *
+     * @param httpUrl the URL
+     * @param nullIfNotFound when true, a 404 yields null instead of an exception
+     * @param decoder used to decode the response body
+     * @return the decoded response
+     */
+    private <T> T doGetAndDecode(HttpUrl httpUrl, boolean nullIfNotFound, BodyDecoder<T> decoder) throws IOException {
+        return doGetAndDecode(httpUrl, "decoded:" + httpUrl, nullIfNotFound, decoder);
+    }
+
+    private <T> T doGetAndDecode(HttpUrl httpUrl, String requestKey, boolean nullIfNotFound, BodyDecoder<T> decoder) throws IOException {
+        final CompletableFuture<T> placeholder = new CompletableFuture<>();
+        @SuppressWarnings("unchecked")
+        final CompletableFuture<T> inFlight = (CompletableFuture<T>)inFlightRequests.putIfAbsent(requestKey, placeholder);
+        if (inFlight != null) {
+            coalescedRequestCount.incrementAndGet();
+            LOG.trace("Joining in-flight request for URL: {}", httpUrl);
+            return await(httpUrl, inFlight.thenApply(Function.identity()));
+        }
+
+        uncoalescedRequestCount.incrementAndGet();
+        T result = null;
+        Throwable failure = null;
+        try {
+            result = executeGetAndDecode(httpUrl, nullIfNotFound, decoder);
+            return result;
+        } catch (IOException | RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            // Remove the entry before completing, so that requests issued from the callbacks hit the controller
+            inFlightRequests.remove(requestKey, placeholder);
+            if (failure != null) {
+                placeholder.completeExceptionally(failure);
+            } else {
+                placeholder.complete(result);
+            }
+        }
+    }
+
+    private <T> T executeGetAndDecode(HttpUrl httpUrl, boolean nullIfNotFound, BodyDecoder<T> decoder) throws IOException {
         final Request request = new Request.Builder()
                 .url(httpUrl)
                 .get()
                 .build();
-        return okHttpClient.newCall(request).execute();
+        requestCount.incrementAndGet();
+        try (final Response response = okHttpClient.newCall(request).execute()) {
+            return decodeResponse(httpUrl, response, nullIfNotFound, decoder);
+        }
+    }
+
+    private static <T> T await(HttpUrl httpUrl, CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for response from URL: " + httpUrl);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #doGetAndDecode(HttpUrl, boolean, BodyDecoder)}.
+     *
+     * The request is enqueued with OkHttp's dispatcher and the response is decoded
+     * on the bounded decode executor, so the calling thread never blocks on I/O.
+     * The number of concurrent asynchronous requests is bounded by the dispatcher,
+     * see {@link #setMaxRequestsPerHost(int)}.
+     *
+     * Concurrent requests for the same URL share a single in-flight call and decoded result.
+     */
+    private <T> CompletableFuture<T> doGetAndDecodeAsync(HttpUrl httpUrl, boolean nullIfNotFound, BodyDecoder<T> decoder) {
+        return doGetAndDecodeAsync(httpUrl, "decoded:" + httpUrl, nullIfNotFound, decoder);
+    }
+
+    private <T> CompletableFuture<T> doGetAndDecodeAsync(HttpUrl httpUrl, String requestKey, boolean nullIfNotFound, BodyDecoder<T> decoder) {
+        final CompletableFuture<T> placeholder = new CompletableFuture<>();
+        @SuppressWarnings("unchecked")
+        final CompletableFuture<T> inFlight = (CompletableFuture<T>)inFlightRequests.putIfAbsent(requestKey, placeholder);
+        if (inFlight != null) {
+            coalescedRequestCount.incrementAndGet();
+            LOG.trace("Joining in-flight request for URL: {}", httpUrl);
+            // Give each caller their own future so that one caller can't complete or cancel it for the others
+            return inFlight.thenApply(Function.identity());
+        }
+
+        uncoalescedRequestCount.incrementAndGet();
+        enqueueGetAndDecode(httpUrl, nullIfNotFound, decoder).whenComplete((result, ex) -> {
+            // Remove the entry before completing, so that requests issued from the callbacks hit the controller
+            inFlightRequests.remove(requestKey, placeholder);
+            if (ex != null) {
+                placeholder.completeExceptionally(ex);
+            } else {
+                placeholder.complete(result);
+            }
+        });
+        return placeholder.thenApply(Function.identity());
+    }
+
+    private <T> CompletableFuture<T> enqueueGetAndDecode(HttpUrl httpUrl, boolean nullIfNotFound, BodyDecoder<T> decoder) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final Request request = new Request.Builder()
+                .url(httpUrl)
+                .get()
+                .build();
+        requestCount.incrementAndGet();
+        okHttpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                final Runnable decode = () -> {
+                    try (final Response r = response) {
+                        future.complete(decodeResponse(httpUrl, r, nullIfNotFound, decoder));
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                    }
+                };
+                try {
+                    decodeExecutor.execute(decode);
+                } catch (RejectedExecutionException e) {
+                    // Too many responses waiting to be decoded, decode on the dispatcher thread instead of failing
+                    LOG.debug("Decode queue is full. Decoding response for URL: {} on the dispatcher thread.", httpUrl);
+                    decode.run();
+                }
+            }
+        });
+        return future;
+    }
+
+    private <T> T decodeResponse(HttpUrl httpUrl, Response response, boolean nullIfNotFound, BodyDecoder<T> decoder) throws IOException {
+        if (nullIfNotFound && response.code() == 404) {
+            return null;
+        } else if (response.isSuccessful()) {
+            final ResponseBody body = response.body();
+            if (body != null) {
+                return decoder.decode(body);
+            } else {
+                throw new IOException(String.format("Response was successful, but got empty body for URL: %s",
+                        httpUrl));
+            }
+        } else {
+            throw new IOException(String.format("GET for URL: %s failed. Response: %s",
+                    httpUrl, response));
+        }
+    }
+
+    /**
+     * Reads the complete body, keeping track of the number of bytes received on the wire.
+     */
+    private String readBody(ResponseBody body) throws IOException {
+        final BufferedSource source = body.source();
+        source.request(Long.MAX_VALUE);
+        bytesReceived.addAndGet(source.buffer().size());
+        return body.string();
+    }
+
+    /**
+     * Feeds the JSON parser directly from the response body's source, without
+     * materializing the body as a String first.
+     */
+    private NormalizedNode<?, ?> streamBodyToNode(ResponseBody body, DataSchemaNode parentNode) throws IOException {
+        final MediaType contentType = body.contentType();
+        final Charset charset = contentType != null ? contentType.charset(StandardCharsets.UTF_8) : StandardCharsets.UTF_8;
+        final CountingSource countingSource = new CountingSource(body.source());
+        try (Reader reader = new InputStreamReader(Okio.buffer(countingSource).inputStream(), charset)) {
+            return streamJsonToNode(reader, parentNode);
+        } finally {
+            bytesReceived.addAndGet(countingSource.getBytesRead());
+        }
+    }
+
+    /**
+     * Maximum number of asynchronous requests which may be in flight at once, across all hosts.
+     * Blocking lookups are executed on the caller's thread and are not subject to this limit.
+     */
+    public void setMaxRequests(int maxRequests) {
+        okHttpClient.dispatcher().setMaxRequests(maxRequests);
+    }
+
+    /**
+     * Maximum number of asynchronous requests which may be in flight at once against the controller.
+     * Further requests are queued until one completes.
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        okHttpClient.dispatcher().setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    public String getControllerUrl() {
+        return controllerUrl;
+    }
+
+    /**
+     * @return the number of GET requests issued by this client since it was created
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the number of response body bytes received by GET requests issued by this client
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return the number of lookups which were answered by joining an identical in-flight request
+     */
+    public long getCoalescedRequestCount() {
+        return coalescedRequestCount.get();
+    }
+
+    /**
+     * @return the number of lookups which required a request to the controller
+     */
+    public long getUncoalescedRequestCount() {
+        return uncoalescedRequestCount.get();
     }
 
     public NetworkTopology getOperationalNetworkTopology() throws Exception {
@@ -227,9 +511,10 @@ public class OpendaylightRestconfClient {
                 .addPathSegment("network-topology:network-topology")
                 .addPathSegment("") // add an empty segment, since it must end with trailing slash
                 .build();
-        final String json = doGet(httpUrl);
-        final NormalizedNode<?,?> node = streamJsonToNode(json, s_schemaContext);
-        return s_networkTopologyCodec.deserialize(node);
+        return doGetAndDecode(httpUrl, false, body -> {
+            final NormalizedNode<?,?> node = streamBodyToNode(body, s_schemaContext);
+            return s_networkTopologyCodec.deserialize(node);
+        });
     }
 
     public Topology getOperationalTopology(TopologyId topologyId) throws Exception {
@@ -237,15 +522,25 @@ public class OpendaylightRestconfClient {
     }
 
     public Topology getOperationalTopology(String topologyId) throws Exception {
-        final HttpUrl httpUrl = baseUrl.newBuilder()
+        return doGetAndDecode(getOperationalTopologyUrl(topologyId), false, this::decodeTopology);
+    }
+
+    public CompletableFuture<Topology> getOperationalTopologyAsync(String topologyId) {
+        return doGetAndDecodeAsync(getOperationalTopologyUrl(topologyId), false, this::decodeTopology);
+    }
+
+    private HttpUrl getOperationalTopologyUrl(String topologyId) {
+        return baseUrl.newBuilder()
                 .addPathSegment("restconf")
                 .addPathSegment("operational")
                 .addPathSegment("network-topology:network-topology")
                 .addPathSegment("topology")
                 .addPathSegment(topologyId)
                 .build();
-        final String json = doGet(httpUrl);
-        final MapNode node = (MapNode)streamJsonToNode(json, s_networkTopologySchemaNode);
+    }
+
+    private Topology decodeTopology(ResponseBody body) throws IOException {
+        final MapNode node = (MapNode)streamBodyToNode(body, s_networkTopologySchemaNode);
         return s_topologyCodec.deserialize(node.getValue().iterator().next());
     }
 
@@ -254,7 +549,20 @@ public class OpendaylightRestconfClient {
     }
 
     public Node getNodeFromOperationalTopology(String topologyId, String nodeId) throws Exception {
-        final HttpUrl httpUrl = baseUrl.newBuilder()
+        return doGetAndDecode(getNodeFromOperationalTopologyUrl(topologyId, nodeId), true, this::decodeTopologyNode);
+    }
+
+    /**
+     * Asynchronous variant of {@link #getNodeFromOperationalTopology(String, String)}.
+     *
+     * @return a future which completes with the node, or with null if the node is not present in the topology
+     */
+    public CompletableFuture<Node> getNodeFromOperationalTopologyAsync(String topologyId, String nodeId) {
+        return doGetAndDecodeAsync(getNodeFromOperationalTopologyUrl(topologyId, nodeId), true, this::decodeTopologyNode);
+    }
+
+    private HttpUrl getNodeFromOperationalTopologyUrl(String topologyId, String nodeId) {
+        return baseUrl.newBuilder()
                 .addPathSegment("restconf")
                 .addPathSegment("operational")
                 .addPathSegment("network-topology:network-topology")
@@ -263,73 +571,105 @@ public class OpendaylightRestconfClient {
                 .addPathSegment("node")
                 .addPathSegment(nodeId)
                 .build();
-        try(final Response response = doGetWithResponse(httpUrl)) {
-            if (response.code() == 404) {
-                return null;
-            } else if (response.isSuccessful()) {
-                final ResponseBody body = response.body();
-                if (body != null) {
-                    try {
-                        final String json = body.string();
-                        final MapNode node = (MapNode)streamJsonToNode(json, s_topologySchemaNode);
-                        return s_nodeCodec.deserialize(node.getValue().iterator().next());
-                    } finally {
-                        body.close();
-                    }
-                } else {
-                    throw new IOException(String.format("Response was successful, but got empty body for URL: %s",
-                            httpUrl));
-                }
-            } else {
-                throw new IOException(String.format("GET for URL: %s failed. Response: %s",
-                        httpUrl, response));
-            }
-        }
     }
 
-    public org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node getNodeFromOperationalInventory(String nodeId) throws IOException {
+    private Node decodeTopologyNode(ResponseBody body) throws IOException {
+        final MapNode node = (MapNode)streamBodyToNode(body, s_topologySchemaNode);
+        return s_nodeCodec.deserialize(node.getValue().iterator().next());
+    }
+
+    /**
+     * @return the link, or null if the link is not present in the topology
+     */
+    public Link getLinkFromOperationalTopology(String topologyId, String linkId) throws IOException {
         final HttpUrl httpUrl = baseUrl.newBuilder()
+                .addPathSegment("restconf")
+                .addPathSegment("operational")
+                .addPathSegment("network-topology:network-topology")
+                .addPathSegment("topology")
+                .addPathSegment(topologyId)
+                .addPathSegment("link")
+                .addPathSegment(linkId)
+                .build();
+        return doGetAndDecode(httpUrl, true, this::decodeTopologyLink);
+    }
+
+    private Link decodeTopologyLink(ResponseBody body) throws IOException {
+        final MapNode node = (MapNode)streamBodyToNode(body, s_topologySchemaNode);
+        return s_linkCodec.deserialize(node.getValue().iterator().next());
+    }
+
+    public org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node getNodeFromOperationalInventory(String nodeId) throws IOException {
+        return doGetAndDecode(getNodeFromOperationalInventoryUrl(nodeId), true, body -> {
+            final MapNode node = (MapNode)streamBodyToNode(body, s_inventorySchemaNode);
+            return s_inventoryNodeCodec.deserialize(node.getValue().iterator().next());
+        });
+    }
+
+    /**
+     * Decodes a node of the operational inventory from JSON which was retrieved by other means.
+     *
+     * @param json the JSON
+     * @param charset the encoding of the JSON
+     */
+    public org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node decodeNodeFromOperationalInventory(byte[] json, Charset charset) {
+        final MapNode node = (MapNode)streamJsonToNode(new InputStreamReader(new ByteArrayInputStream(json), charset), s_inventorySchemaNode);
+        return s_inventoryNodeCodec.deserialize(node.getValue().iterator().next());
+    }
+
+    /**
+     * Retrieves all of the nodes in the operational inventory with a single request.
+     *
+     * @return the inventory nodes, or null if the inventory is empty
+     */
+    public Nodes getOperationalInventory() throws Exception {
+        return doGetAndDecode(getOperationalInventoryUrl(), true, body -> {
+            final NormalizedNode<?,?> node = streamBodyToNode(body, s_schemaContext);
+            return s_inventoryNodesCodec.deserialize(node);
+        });
+    }
+
+    private HttpUrl getNodeFromOperationalInventoryUrl(String nodeId) {
+        return baseUrl.newBuilder()
                 .addPathSegment("restconf")
                 .addPathSegment("operational")
                 .addPathSegment("opendaylight-inventory:nodes")
                 .addPathSegment("node")
                 .addPathSegment(nodeId)
                 .build();
-        try (final Response response = doGetWithResponse(httpUrl)) {
-            if (response.code() == 404) {
-                return null;
-            } else if (response.isSuccessful()) {
-                final ResponseBody body = response.body();
-                if (body != null) {
-                    try {
-                        final String json = body.string();
-                        //return yangDecoder.getNode(json);
-                        final MapNode node = (MapNode)streamJsonToNode(json, s_inventorySchemaNode);
-                        return s_inventoryNodeCodec.deserialize(node.getValue().iterator().next());
-                    } finally {
-                        body.close();
-                    }
-                } else {
-                    throw new IOException(String.format("Response was successful, but got empty body for URL: %s",
-                            httpUrl));
-                }
-            } else {
-                throw new IOException(String.format("GET for URL: %s failed. Response: %s",
-                        httpUrl, response));
-            }
-        }
     }
 
-    private NormalizedNode<?, ?> streamJsonToNode(String json, DataSchemaNode parentNode) {
+    private HttpUrl getOperationalInventoryUrl() {
+        return baseUrl.newBuilder()
+                .addPathSegment("restconf")
+                .addPathSegment("operational")
+                .addPathSegment("opendaylight-inventory:nodes")
+                .addPathSegment("") // add an empty segment, since it must end with trailing slash
+                .build();
+    }
+
+    static NormalizedNode<?, ?> streamJsonToNode(Reader reader, DataSchemaNode parentNode) {
         final NormalizedNodeResult result = new NormalizedNodeResult();
         final NormalizedNodeStreamWriter streamWriter = ImmutableNormalizedNodeStreamWriter.from(result);
 
         final JsonParserStream jsonParser = JsonParserStream.create(streamWriter, s_schemaContext, parentNode);
-        jsonParser.parse(new JsonReader(new StringReader(json)));
+        jsonParser.parse(new JsonReader(reader));
 
         return result.getResult();
     }
 
+    static SchemaContext getSchemaContext() {
+        return s_schemaContext;
+    }
+
+    static DataSchemaNode getTopologySchemaNode() {
+        return s_topologySchemaNode;
+    }
+
+    static DataSchemaNode getInventorySchemaNode() {
+        return s_inventorySchemaNode;
+    }
+
     /**
      * @param path the path
      * @param datastore CONFIGURATION or OPERATIONAL
@@ -396,11 +736,18 @@ public class OpendaylightRestconfClient {
     }
 
     public WebSocket streamChanges(String path, String datastore, String scope, Consumer<String> consumer) throws IOException {
+        return streamChanges(path, datastore, scope, consumer, () -> {});
+    }
+
+    /**
+     * @param closeListener invoked once the websocket is closed, or failed, and no more notifications will be received
+     */
+    public WebSocket streamChanges(String path, String datastore, String scope, Consumer<String> consumer, Runnable closeListener) throws IOException {
         // See https://wiki.opendaylight.org/view/OpenDaylight_Controller:MD-SAL:Restconf:Change_event_notification_subscription
         final String streamName = getStreamName(path, datastore, scope);
         final String wsUrl = subscribeToStream(streamName);
 
-        final ChangeEventWSListener listener = new ChangeEventWSListener(consumer);
+        final ChangeEventWSListener listener = new ChangeEventWSListener(consumer, closeListener);
         Request request = new Request.Builder()
                 .url(wsUrl)
                 .build();
@@ -432,12 +779,43 @@ public class OpendaylightRestconfClient {
         return responseBodyAsStr;
     }
 
+    @FunctionalInterface
+    private interface BodyDecoder<T> {
+        T decode(ResponseBody body) throws IOException;
+    }
+
+    /**
+     * Keeps track of the number of bytes read from the underlying source.
+     */
+    private static class CountingSource extends ForwardingSource {
+        private long bytesRead = 0;
+
+        public CountingSource(Source delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            final long read = super.read(sink, byteCount);
+            if (read > 0) {
+                bytesRead += read;
+            }
+            return read;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+    }
+
     private static class ChangeEventWSListener extends WebSocketListener {
         private static final Logger LOG = LoggerFactory.getLogger(ChangeEventWSListener.class);
         private final Consumer<String> consumer;
+        private final Runnable closeListener;
 
-        public ChangeEventWSListener(Consumer<String> consumer) {
+        public ChangeEventWSListener(Consumer<String> consumer, Runnable closeListener) {
             this.consumer = Objects.requireNonNull(consumer);
+            this.closeListener = Objects.requireNonNull(closeListener);
         }
 
         @Override
@@ -455,11 +833,13 @@ public class OpendaylightRestconfClient {
         @Override
         public void onClosed(WebSocket webSocket, int code, String reason) {
             LOG.debug("Websocket is closed.");
+            closeListener.run();
         }
 
         @Override
         public void onFailure(WebSocket webSocket, Throwable t, Response response) {
             LOG.warn("Websocket failure.", t);
+            closeListener.run();
         }
     }
 
@@ -30,6 +30,7 @@ package org.opennms.plugins.odl;
 
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Node;
 import org.opennms.integration.api.v1.dao.NodeDao;
@@ -47,52 +48,73 @@ public class OpendaylightServicePoller implements ServicePoller {
 
     private final OpendaylightRestconfClient client;
     private final NodeDao nodeDao;
+    private final NodeRegistry nodeRegistry;
+    private final OpendaylightPollBatcher pollBatcher;
 
-    public OpendaylightServicePoller(OpendaylightRestconfClient client, NodeDao nodeDao) {
+    public OpendaylightServicePoller(OpendaylightRestconfClient client, NodeDao nodeDao, NodeRegistry nodeRegistry) {
+        this(client, nodeDao, nodeRegistry, null);
+    }
+
+    /**
+     * @param pollBatcher used to batch the node lookups, or null if every poll should issue its own request
+     */
+    public OpendaylightServicePoller(OpendaylightRestconfClient client, NodeDao nodeDao, NodeRegistry nodeRegistry, OpendaylightPollBatcher pollBatcher) {
         this.client = Objects.requireNonNull(client);
         this.nodeDao = Objects.requireNonNull(nodeDao);
+        this.nodeRegistry = Objects.requireNonNull(nodeRegistry);
+        this.pollBatcher = pollBatcher;
     }
 
     @Override
     public CompletableFuture<PollerResult> poll(PollerRequest pollerRequest) {
         // Assume the poll is for a node on the current controller
 
-        // Retrieve the node
-        final org.opennms.integration.api.v1.model.Node node = nodeDao.getNodeById(pollerRequest.getNodeId());
-        if (node == null) {
-            return CompletableFuture.completedFuture(ImmutablePollerResult.newBuilder()
-                    .setStatus(Status.Down)
-                    .setReason("No matching node found!")
-                    .build());
+        // Use the metadata indexed by the registry, and only retrieve the node when it isn't known yet
+        OdlMetadata odlMetadata = nodeRegistry.getMetadata(pollerRequest.getNodeId());
+        if (odlMetadata == null) {
+            final org.opennms.integration.api.v1.model.Node node = nodeDao.getNodeById(pollerRequest.getNodeId());
+            if (node == null) {
+                return CompletableFuture.completedFuture(ImmutablePollerResult.newBuilder()
+                        .setStatus(Status.Down)
+                        .setReason("No matching node found!")
+                        .build());
+            }
+            odlMetadata = nodeRegistry.getMetadata(node);
         }
-
-        final OdlMetadata odlMetadata = new OdlMetadata(node);
         final String odlTopologyId = odlMetadata.getTopologyId();
         final String odlNodeId = odlMetadata.getNodeId();
 
-        try {
-            LOG.debug("Attempting to retrieve node with ID: {} from operational topology with ID: {}", odlNodeId, odlTopologyId);
-            Node odlNode = getNodeFromOperationalTopology(node);
-            if (odlNode == null) {
-                return CompletableFuture.completedFuture(
-                        ImmutablePollerResult.newBuilder()
+        LOG.debug("Attempting to retrieve node with ID: {} from operational topology with ID: {}", odlNodeId, odlTopologyId);
+        // Don't block the calling thread while waiting for the controller to respond
+        final CompletableFuture<Boolean> isPresent;
+        if (pollBatcher != null) {
+            isPresent = pollBatcher.isNodeInOperationalTopology(odlTopologyId, odlNodeId);
+        } else {
+            isPresent = client.getNodeFromOperationalTopologyAsync(odlTopologyId, odlNodeId)
+                    .thenApply(Objects::nonNull);
+        }
+        return isPresent
+                .handle((present, ex) -> {
+                    if (ex != null) {
+                        final Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                        return ImmutablePollerResult.newBuilder()
+                                .setStatus(Status.Down)
+                                .setReason(cause.getMessage())
+                                .build();
+                    } else if (!present) {
+                        return ImmutablePollerResult.newBuilder()
                                 .setStatus(Status.Down)
                                 .setReason("Node was not found in operational topology.")
-                                .build());
-            }
-            return CompletableFuture.completedFuture(ImmutablePollerResult.newBuilder()
-                    .setStatus(Status.Up)
-                    .build());
-        } catch (Exception e) {
-            return CompletableFuture.completedFuture(ImmutablePollerResult.newBuilder()
-                    .setStatus(Status.Down)
-                    .setReason(e.getMessage())
-                    .build());
-        }
+                                .build();
+                    }
+                    return ImmutablePollerResult.newBuilder()
+                            .setStatus(Status.Up)
+                            .build();
+                });
     }
 
     public Node getNodeFromOperationalTopology(org.opennms.integration.api.v1.model.Node node) throws Exception {
-        final OdlMetadata odlMetadata = new OdlMetadata(node);
+        final OdlMetadata odlMetadata = nodeRegistry.getMetadata(node);
         final String odlTopologyId = odlMetadata.getTopologyId();
         final String odlNodeId = odlMetadata.getNodeId();
 
@@ -40,15 +40,41 @@ public class OpendaylightServicePollerFactory implements ServicePollerFactory<Op
 
     private final OpendaylightRestconfClient client;
     private final NodeDao nodeDao;
+    private final NodeRegistry nodeRegistry;
 
-    public OpendaylightServicePollerFactory(OpendaylightRestconfClient client, NodeDao nodeDao) {
+    private long pollBatchWindowMs = 0;
+    private OpendaylightPollBatcher pollBatcher;
+
+    public OpendaylightServicePollerFactory(OpendaylightRestconfClient client, NodeDao nodeDao, NodeRegistry nodeRegistry) {
         this.client = Objects.requireNonNull(client);
         this.nodeDao = Objects.requireNonNull(nodeDao);
+        this.nodeRegistry = Objects.requireNonNull(nodeRegistry);
+    }
+
+    public void init() {
+        if (pollBatchWindowMs > 0) {
+            pollBatcher = new OpendaylightPollBatcher(client, pollBatchWindowMs);
+        }
+    }
+
+    public void destroy() {
+        if (pollBatcher != null) {
+            pollBatcher.destroy();
+            pollBatcher = null;
+        }
     }
 
     @Override
     public OpendaylightServicePoller createPoller() {
-        return new OpendaylightServicePoller(client, nodeDao);
+        return new OpendaylightServicePoller(client, nodeDao, nodeRegistry, pollBatcher);
+    }
+
+    /**
+     * Polls arriving within this window are grouped by topology and resolved with a single
+     * request for the operational topology. Set to 0 to issue one request per poll.
+     */
+    public void setPollBatchWindowMs(long pollBatchWindowMs) {
+        this.pollBatchWindowMs = pollBatchWindowMs;
     }
 
     @Override
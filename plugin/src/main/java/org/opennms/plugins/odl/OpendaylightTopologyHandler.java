@@ -28,83 +28,84 @@
 
 package org.opennms.plugins.odl;
 
-import static org.opennms.plugins.odl.OpendaylightRequisitionProvider.DEFAULT_FOREIGN_SOURCE;
-
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.Topology;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Link;
-import org.opennms.integration.api.v1.dao.NodeDao;
-import org.opennms.integration.api.v1.events.EventListener;
-import org.opennms.integration.api.v1.events.EventSubscriptionService;
-import org.opennms.integration.api.v1.model.InMemoryEvent;
-import org.opennms.integration.api.v1.model.Node;
 import org.opennms.integration.api.v1.requisition.RequisitionRepository;
-import org.opennms.integration.api.v1.topology.UserDefinedLink;
 import org.opennms.integration.api.v1.topology.UserDefinedLinkDao;
-import org.opennms.integration.api.v1.topology.immutables.ImmutableUserDefinedLink;
+import org.opennms.plugins.odl.DataChangeNotificationParser.DataChangeEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import okhttp3.WebSocket;
 
-public class OpendaylightTopologyHandler implements EventListener {
+/**
+ * Synchronizes the links of the flow:1 operational topology with the user defined links
+ * every time the nodes of the requisition are reloaded following an import.
+ *
+ * Changes to the links of the topology are also streamed from the controller and applied
+ * directly to the affected links, while a periodic full sync acts as a safety net for any
+ * changes which may have been missed. Every changed link is retrieved with its own request,
+ * so when too many links changed at once, the whole topology is retrieved instead.
+ */
+public class OpendaylightTopologyHandler implements NodeRegistry.ReloadListener {
     private static final Logger LOG = LoggerFactory.getLogger(OpendaylightTopologyHandler.class);
 
     public static final String IMPORT_SUCCESSFUL_UEI = "uei.opennms.org/internal/importer/importSuccessful";
     public static final String PARM_FOREIGN_SOURCE = "foreignSource";
 
+    private static final String TOPOLOGY_ID = "flow:1";
+    private static final long DEFAULT_LINK_RECONCILE_INTERVAL_MS = 15 * 60 * 1000;
+    // Link changes are accumulated for this period before being applied, to absorb bursts
+    private static final long LINK_CHANGE_DELAY_MS = 500;
+    private static final int DEFAULT_MAX_INDIVIDUAL_LINK_CHANGES = 50;
+
     private final OpendaylightRestconfClient client;
     private final RequisitionRepository requisitionRepository;
-    private final EventSubscriptionService eventSubscriptionService;
-    private final NodeDao nodeDao;
-    private final UserDefinedLinkDao userDefinedLinkDao;
+    private final NodeRegistry nodeRegistry;
+    private final LinkSynchronizer linkSynchronizer;
+    private final DataChangeNotificationParser notificationParser = new DataChangeNotificationParser();
+
+    private boolean eventDrivenLinks = true;
+    private long linkReconcileIntervalMs = DEFAULT_LINK_RECONCILE_INTERVAL_MS;
+    private int maxIndividualLinkChanges = DEFAULT_MAX_INDIVIDUAL_LINK_CHANGES;
+
+    private volatile ScheduledExecutorService executor;
+    private WebSocket webSocket;
+
+    // Pending link changes, keyed by link id, with true for links which were removed
+    private final Map<String, Boolean> pendingLinkChanges = new LinkedHashMap<>();
+    // Guarded by pendingLinkChanges
+    private boolean linkChangesScheduled = false;
+
+    private final AtomicLong linkChangesReceived = new AtomicLong();
+    private final AtomicLong linkChangesApplied = new AtomicLong();
+    private final AtomicLong fullSyncs = new AtomicLong();
 
     public OpendaylightTopologyHandler(OpendaylightRestconfClient client,
                                        RequisitionRepository requisitionRepository,
-                                       EventSubscriptionService eventSubscriptionService,
-                                       NodeDao nodeDao,
+                                       NodeRegistry nodeRegistry,
                                        UserDefinedLinkDao userDefinedLinkDao) {
         this.client = Objects.requireNonNull(client);
         this.requisitionRepository = Objects.requireNonNull(requisitionRepository);
-        this.eventSubscriptionService = Objects.requireNonNull(eventSubscriptionService);
-        this.nodeDao = Objects.requireNonNull(nodeDao);
-        this.userDefinedLinkDao = Objects.requireNonNull(userDefinedLinkDao);
+        this.nodeRegistry = Objects.requireNonNull(nodeRegistry);
+        this.linkSynchronizer = new LinkSynchronizer(userDefinedLinkDao, nodeRegistry);
     }
 
     @Override
-    public String getName() {
-        return OpendaylightTopologyHandler.class.getName();
-    }
-
-    @Override
-    public int getNumThreads() {
-        return 1;
-    }
-
-    @Override
-    public void onEvent(InMemoryEvent event) {
-        if (event == null || !IMPORT_SUCCESSFUL_UEI.equals(event.getUei())) {
-            return;
-        }
-
-        // Extract the name of the referenced FS
-        final String foreignSource = event.getParameterValue(PARM_FOREIGN_SOURCE).orElse(null);
-        if (foreignSource == null) {
-            LOG.warn("No foreign source parameter found on import successful event. Ignoring.");
-            return;
-        }
-
-
-        if (!DEFAULT_FOREIGN_SOURCE.equals(foreignSource)) {
-            LOG.debug("Ignoring foreign source: {}", foreignSource);
-            return;
-        }
-
+    public void onNodesReloaded(NodeRegistry registry) {
         /*
         // TODO: Quickly determine whether or not we need to load the requisition - it may be large and unrelated
 
@@ -115,85 +116,210 @@ public class OpendaylightTopologyHandler implements EventListener {
         // TODO: Figure out which controller
         */
 
+        // Don't hold up the registry's listener thread while fetching the topology and updating the links
+        final ScheduledExecutorService executor = this.executor;
+        if (executor == null || executor.isShutdown()) {
+            return;
+        }
+        executor.execute(() -> syncLinksSafely(false));
+    }
+
+    /**
+     * Synchronizes all of the links with the operational topology.
+     *
+     * @param force when true, the links of every node are diffed, including the ones which did not change
+     */
+    private void syncLinks(boolean force) {
         // Load the topology
         Topology operationalTopology;
         try {
-            operationalTopology = client.getOperationalTopology("flow:1");
+            operationalTopology = client.getOperationalTopology(TOPOLOGY_ID);
         } catch (Exception e) {
             LOG.error("Failed to load operational topology.", e);
             return;
         }
 
-        // Index the links by source id
-        final Map<String, List<Link>> linksBySourceId = operationalTopology.getLink().stream()
-                .collect(Collectors.groupingBy(l -> l.getSource().getSourceNode().getValue()));
-
-
-        // Build a "ODL Node ID" to "OpenNMS Node" map
-        final List<Node> nodes = nodeDao.getNodesInForeignSource(foreignSource);
-        final Map<String,Node> nodesByLabel = nodes.stream()
-                .collect(Collectors.toMap(Node::getLabel, n -> n));
+        final List<org.opennms.plugins.odl.topo.Link> expectedLinks = new ArrayList<>();
+        if (operationalTopology.getLink() != null) {
+            for (Link link : operationalTopology.getLink()) {
+                expectedLinks.add(new org.opennms.plugins.odl.topo.Link(link));
+            }
+        }
+        final LinkSynchronizer.SyncReport report = linkSynchronizer.sync(expectedLinks, force);
+        fullSyncs.incrementAndGet();
+        LOG.info("Synchronized {} link(s) from the operational topology: {}", expectedLinks.size(), report);
+    }
 
-        for (Node node : nodes) {
-            List<Link> expectedLinks = linksBySourceId.get(node.getLabel());
-            pushLinkUpdates(node, expectedLinks, nodesByLabel);
+    private void syncLinksSafely(boolean force) {
+        try {
+            syncLinks(force);
+        } catch (Exception e) {
+            LOG.error("Failed to synchronize the links.", e);
         }
     }
 
-    private void pushLinkUpdates(Node node, List<Link> expectedLinks, Map<String,Node> nodesByLabel) {
-        final Map<String, UserDefinedLink> existingLinksById = userDefinedLinkDao.getOutLinks(node.getId()).stream()
-                .filter(udl -> Objects.equals(EventConstants.SOURCE, udl.getOwner()))
-                .collect(Collectors.toMap(UserDefinedLink::getLinkId, l -> l));
+    /**
+     * Handles data change notifications for the topology by queuing the changes to its links.
+     */
+    void onNotification(String notificationXml) {
+        final ScheduledExecutorService executor = this.executor;
+        if (executor == null || executor.isShutdown()) {
+            return;
+        }
+        final List<DataChangeEvent> events;
+        try {
+            events = notificationParser.parse(notificationXml);
+        } catch (Exception e) {
+            LOG.warn("Failed to parse data change notification. Scheduling a sync of all the links.", e);
+            executor.execute(() -> syncLinksSafely(false));
+            return;
+        }
 
-        // Add any missing links
-        for (Link expectedLink : expectedLinks) {
-            final String linkId = expectedLink.getKey().getLinkId().getValue();
-            UserDefinedLink udl = existingLinksById.get(linkId);
-            if (udl != null) {
-                // Link already exists
-                continue;
+        boolean fullSync = false;
+        final Map<String, Boolean> linkChanges = new LinkedHashMap<>();
+        for (DataChangeEvent event : events) {
+            if (event.isTopologyEvent() && event.getOperation() != DataChangeNotificationParser.Operation.UPDATED) {
+                // The topology itself was added or removed
+                fullSync = true;
+            } else if (event.getLinkId() != null) {
+                // Only the removal of the link itself removes the link, changes to its children are updates
+                final boolean removed = event.getOperation() == DataChangeNotificationParser.Operation.DELETED
+                        && event.getPath().endsWith("link-id='" + event.getLinkId() + "']");
+                linkChanges.put(event.getLinkId(), removed);
             }
+        }
 
-            final String targetId = expectedLink.getDestination().getDestNode().getValue();
-            final Node targetNode = nodesByLabel.get(targetId);
-            if (targetNode == null) {
-                LOG.warn("Link refers to node which was not found!: {}", expectedLink);
-                continue;
+        if (fullSync) {
+            executor.execute(() -> syncLinksSafely(false));
+        }
+        if (linkChanges.isEmpty()) {
+            return;
+        }
+        linkChangesReceived.addAndGet(linkChanges.size());
+        synchronized (pendingLinkChanges) {
+            pendingLinkChanges.putAll(linkChanges);
+            if (!linkChangesScheduled) {
+                linkChangesScheduled = true;
+                executor.schedule(this::applyLinkChanges, LINK_CHANGE_DELAY_MS, TimeUnit.MILLISECONDS);
             }
+        }
+    }
 
-            udl = ImmutableUserDefinedLink.newBuilder()
-                    .setNodeIdA(node.getId())
-                    .setComponentLabelA(expectedLink.getSource().getSourceTp().getValue())
-                    .setNodeIdZ(targetNode.getId())
-                    .setComponentLabelZ(expectedLink.getDestination().getDestTp().getValue())
-                    .setLinkId(linkId)
-                    .setLinkLabel("Opendaylight Topology")
-                    .setOwner(EventConstants.SOURCE)
-                    .build();
-            LOG.debug("Inserting link: {}", udl);
-            userDefinedLinkDao.saveOrUpdate(udl);
+    private void applyLinkChanges() {
+        final Map<String, Boolean> linkChanges;
+        synchronized (pendingLinkChanges) {
+            linkChanges = new LinkedHashMap<>(pendingLinkChanges);
+            pendingLinkChanges.clear();
+            linkChangesScheduled = false;
         }
 
-        // Delete any extraneous links
-        final Set<String> expectedLinkIds = expectedLinks.stream()
-                .map(l -> l.getKey().getLinkId().getValue())
-                .collect(Collectors.toSet());
+        if (!linkSynchronizer.isLinksLoaded()) {
+            // Nothing to apply the changes to yet
+            syncLinksSafely(false);
+            return;
+        }
+        final long linksToRetrieve = linkChanges.values().stream().filter(removed -> !removed).count();
+        if (linksToRetrieve > maxIndividualLinkChanges) {
+            LOG.debug("{} links changed. Synchronizing all of the links instead of retrieving them individually.", linksToRetrieve);
+            syncLinksSafely(false);
+            return;
+        }
 
-        // Links with these ids are present, but are not expected
-        final Set<String> linkIdsToDelete = Sets.difference(existingLinksById.keySet(), expectedLinkIds);
-        for (String linkIdToDelete : linkIdsToDelete) {
-            final UserDefinedLink udl = existingLinksById.get(linkIdToDelete);
-            LOG.debug("Deleting link: {}", udl);
-            userDefinedLinkDao.delete(udl);
+        final List<org.opennms.plugins.odl.topo.Link> updatedLinks = new ArrayList<>();
+        final List<String> removedLinkIds = new ArrayList<>();
+        try {
+            for (Map.Entry<String, Boolean> entry : linkChanges.entrySet()) {
+                final Link link = entry.getValue() ? null : client.getLinkFromOperationalTopology(TOPOLOGY_ID, entry.getKey());
+                if (link == null) {
+                    removedLinkIds.add(entry.getKey());
+                } else {
+                    updatedLinks.add(new org.opennms.plugins.odl.topo.Link(link));
+                }
+            }
+            final LinkSynchronizer.SyncReport report = linkSynchronizer.applyChanges(updatedLinks, removedLinkIds);
+            linkChangesApplied.addAndGet(linkChanges.size());
+            LOG.debug("Applied {} link change(s) from the operational topology: {}", linkChanges.size(), report);
+        } catch (Exception e) {
+            LOG.warn("Failed to apply {} link change(s). Synchronizing all of the links instead.", linkChanges.size(), e);
+            syncLinksSafely(false);
         }
     }
 
+    /**
+     * When enabled, changes to the links of the topology are streamed from the controller
+     * and applied as they happen, instead of waiting for the next import.
+     */
+    public void setEventDrivenLinks(boolean eventDrivenLinks) {
+        this.eventDrivenLinks = eventDrivenLinks;
+    }
+
+    /**
+     * How often all of the links are diffed against the topology, in case any changes were missed.
+     * Set to 0 to only sync on import.
+     */
+    public void setLinkReconcileIntervalMs(long linkReconcileIntervalMs) {
+        this.linkReconcileIntervalMs = linkReconcileIntervalMs;
+    }
+
+    /**
+     * Maximum number of changed links which are retrieved individually. When more links changed at once,
+     * the whole topology is retrieved and synchronized instead.
+     */
+    public void setMaxIndividualLinkChanges(int maxIndividualLinkChanges) {
+        this.maxIndividualLinkChanges = maxIndividualLinkChanges;
+    }
+
+    public long getLinkChangesReceived() {
+        return linkChangesReceived.get();
+    }
+
+    public long getLinkChangesApplied() {
+        return linkChangesApplied.get();
+    }
+
+    public long getFullSyncs() {
+        return fullSyncs.get();
+    }
+
+    /**
+     * Maximum number of links deleted at once.
+     */
+    public void setLinkSyncBatchSize(int linkSyncBatchSize) {
+        linkSynchronizer.setBatchSize(linkSyncBatchSize);
+    }
+
+    public LinkSynchronizer getLinkSynchronizer() {
+        return linkSynchronizer;
+    }
+
     public void init() {
-        eventSubscriptionService.addEventListener(this, IMPORT_SUCCESSFUL_UEI);
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ODL-LinkSync-%d")
+                .setDaemon(true)
+                .build());
+        if (linkReconcileIntervalMs > 0) {
+            executor.scheduleWithFixedDelay(() -> syncLinksSafely(true), linkReconcileIntervalMs, linkReconcileIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        nodeRegistry.addReloadListener(this);
+        if (eventDrivenLinks) {
+            try {
+                webSocket = client.streamChangesForTopology(TOPOLOGY_ID, this::onNotification);
+            } catch (IOException e) {
+                LOG.warn("Failed to stream changes for topology. Links will only be synchronized periodically and on import.", e);
+            }
+        }
     }
 
     public void destroy() {
-        eventSubscriptionService.removeEventListener(this, IMPORT_SUCCESSFUL_UEI);
+        nodeRegistry.removeReloadListener(this);
+        if (webSocket != null) {
+            webSocket.close(1001, "going away");
+            webSocket = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
     }
 
 }
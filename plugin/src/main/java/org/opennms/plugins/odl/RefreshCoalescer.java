@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debounces bursts of change notifications before they are turned into refreshes.
+ *
+ * A refresh is triggered once no notifications were received for the quiet period,
+ * or once the oldest pending notification has been waiting for the maximum delay,
+ * whichever comes first. The nodes referenced by all of the notifications received
+ * in the meantime are merged into a single refresh. A full refresh is also
+ * triggered on every refresh period.
+ */
+public class RefreshCoalescer {
+
+    public static class Refresh {
+        private final boolean full;
+        private final Set<String> nodeIds;
+
+        private Refresh(boolean full, Set<String> nodeIds) {
+            this.full = full;
+            this.nodeIds = nodeIds;
+        }
+
+        /**
+         * @return true if all of the nodes should be refreshed
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * @return the ids of the nodes to refresh, empty when {@link #isFull()} is true
+         */
+        public Set<String> getNodeIds() {
+            return nodeIds;
+        }
+    }
+
+    private final long refreshPeriodMs;
+    private final long quietPeriodMs;
+    private final long maxDelayMs;
+
+    private final Object lock = new Object();
+    // Guarded by lock
+    private final Set<String> pendingNodeIds = new LinkedHashSet<>();
+    private boolean fullRefreshPending = false;
+    private long firstPendingMs;
+    private long lastNotificationMs;
+    private long lastFullRefreshMs;
+
+    private final AtomicLong notificationsReceived = new AtomicLong();
+    private final AtomicLong refreshesRun = new AtomicLong();
+    private final AtomicLong fullRefreshesRun = new AtomicLong();
+
+    public RefreshCoalescer(long refreshPeriodMs, long quietPeriodMs, long maxDelayMs) {
+        if (quietPeriodMs < 0 || maxDelayMs < quietPeriodMs) {
+            throw new IllegalArgumentException(String.format("Invalid quiet period: %d and max delay: %d", quietPeriodMs, maxDelayMs));
+        }
+        this.refreshPeriodMs = refreshPeriodMs;
+        this.quietPeriodMs = quietPeriodMs;
+        this.maxDelayMs = maxDelayMs;
+        lastFullRefreshMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Schedules a refresh for the given nodes.
+     */
+    public void onNotification(Collection<String> nodeIds) {
+        notificationsReceived.incrementAndGet();
+        if (nodeIds.isEmpty()) {
+            return;
+        }
+        synchronized (lock) {
+            final boolean wasPending = isPending();
+            pendingNodeIds.addAll(nodeIds);
+            onPending(wasPending);
+        }
+    }
+
+    /**
+     * Schedules a refresh for all of the nodes.
+     */
+    public void onFullRefreshNotification() {
+        notificationsReceived.incrementAndGet();
+        synchronized (lock) {
+            final boolean wasPending = isPending();
+            fullRefreshPending = true;
+            onPending(wasPending);
+        }
+    }
+
+    /**
+     * Blocks until the next refresh is due.
+     *
+     * @return the refresh to perform
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Refresh awaitNextRefresh() throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                final long now = System.currentTimeMillis();
+                final long nextFullRefreshMs = lastFullRefreshMs + refreshPeriodMs;
+                long dueMs = nextFullRefreshMs;
+                if (isPending()) {
+                    dueMs = Math.min(dueMs, Math.min(lastNotificationMs + quietPeriodMs, firstPendingMs + maxDelayMs));
+                }
+
+                if (now >= dueMs) {
+                    final boolean full = fullRefreshPending || now >= nextFullRefreshMs;
+                    final Refresh refresh = new Refresh(full, full ? Collections.emptySet() : new LinkedHashSet<>(pendingNodeIds));
+                    pendingNodeIds.clear();
+                    fullRefreshPending = false;
+                    if (full) {
+                        lastFullRefreshMs = now;
+                        fullRefreshesRun.incrementAndGet();
+                    }
+                    refreshesRun.incrementAndGet();
+                    return refresh;
+                }
+                lock.wait(dueMs - now);
+            }
+        }
+    }
+
+    public long getNotificationsReceived() {
+        return notificationsReceived.get();
+    }
+
+    public long getRefreshesRun() {
+        return refreshesRun.get();
+    }
+
+    public long getFullRefreshesRun() {
+        return fullRefreshesRun.get();
+    }
+
+    private boolean isPending() {
+        return fullRefreshPending || !pendingNodeIds.isEmpty();
+    }
+
+    private void onPending(boolean wasPending) {
+        lastNotificationMs = System.currentTimeMillis();
+        if (!wasPending) {
+            firstPendingMs = lastNotificationMs;
+            // Only wake up the waiter when a new deadline is set, later notifications only push it back
+            lock.notifyAll();
+        }
+    }
+}
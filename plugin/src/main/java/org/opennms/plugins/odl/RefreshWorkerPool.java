@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Refreshes a collection of items in parallel using a fixed number of workers,
+ * while limiting the number of refreshes issued concurrently against the controller.
+ *
+ * Every cycle is bounded by a deadline: refreshes which have not completed by then
+ * are cancelled and reported as timeouts. Refreshes return the update to apply once
+ * they complete. Updates are applied one at a time, and only while the cycle is still
+ * running, so that refreshes which outlive their cycle never modify any state.
+ */
+public class RefreshWorkerPool {
+    private static final Logger LOG = LoggerFactory.getLogger(RefreshWorkerPool.class);
+
+    private static final int NUM_SLOWEST_TO_REPORT = 5;
+
+    private static final int PENDING = 0;
+    private static final int COMPLETED = 1;
+    private static final int FAILED = 2;
+    private static final int TIMED_OUT = 3;
+
+    @FunctionalInterface
+    public interface RefreshTask<T> {
+        /**
+         * Retrieves the state of the item.
+         *
+         * @return the update to apply, or null if there is nothing to update
+         */
+        Runnable refresh(T item) throws Exception;
+    }
+
+    private final long cycleDeadlineMs;
+    private final ExecutorService executor;
+    // All of the refreshes are issued against the same controller, so this is a global limit
+    private final Semaphore permits;
+
+    public RefreshWorkerPool(int numThreads, int maxConcurrentRequests, long cycleDeadlineMs) {
+        if (numThreads < 1 || maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("The number of threads and the number of concurrent requests must be strictly positive.");
+        }
+        this.cycleDeadlineMs = cycleDeadlineMs;
+        permits = new Semaphore(maxConcurrentRequests);
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("ODL-RefreshWorker-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    public void destroy() throws InterruptedException {
+        executor.shutdownNow();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            LOG.warn("Refresh workers did not terminate in time.");
+        }
+    }
+
+    /**
+     * Refreshes all of the given items and waits for them to complete, or for the cycle deadline to expire.
+     *
+     * @param items the items to refresh
+     * @param nameOf the name of the item, used for reporting
+     * @param task the refresh itself
+     * @return a report for the cycle
+     * @throws InterruptedException if interrupted while waiting, in which case all outstanding refreshes are cancelled
+     */
+    public <T> CycleReport refresh(Collection<T> items, Function<T, String> nameOf, RefreshTask<T> task) throws InterruptedException {
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(cycleDeadlineMs);
+
+        final List<T> itemList = new ArrayList<>(items);
+        final AtomicLongArray durationsNanos = new AtomicLongArray(itemList.size());
+        final AtomicIntegerArray states = new AtomicIntegerArray(itemList.size());
+        // Guards the updates, and the end of the cycle
+        final Object updateLock = new Object();
+        final CountDownLatch latch = new CountDownLatch(itemList.size());
+        final List<Future<?>> futures = new ArrayList<>(itemList.size());
+
+        for (int i = 0; i < itemList.size(); i++) {
+            final int index = i;
+            final T item = itemList.get(i);
+            futures.add(executor.submit(() -> {
+                try {
+                    final long remainingNanos = deadline - System.nanoTime();
+                    if (remainingNanos <= 0 || !permits.tryAcquire(remainingNanos, TimeUnit.NANOSECONDS)) {
+                        // Out of time, leave it to be reported as a timeout
+                        return;
+                    }
+                    final long taskStart = System.nanoTime();
+                    final Runnable update;
+                    try {
+                        update = task.refresh(item);
+                    } finally {
+                        permits.release();
+                    }
+                    synchronized (updateLock) {
+                        if (states.get(index) != PENDING) {
+                            LOG.debug("Refresh of: {} completed after the end of its cycle. Discarding the update.", nameOf.apply(item));
+                            return;
+                        }
+                        try {
+                            if (update != null) {
+                                update.run();
+                            }
+                            durationsNanos.set(index, System.nanoTime() - taskStart);
+                            states.set(index, COMPLETED);
+                        } catch (RuntimeException e) {
+                            states.set(index, FAILED);
+                            LOG.error("Failed to apply the refresh of: {}", nameOf.apply(item), e);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    if (states.compareAndSet(index, PENDING, FAILED)) {
+                        LOG.error("Failed to refresh: {}", nameOf.apply(item), e);
+                    } else {
+                        // Most likely interrupted by the cancellation, already reported as a timeout
+                        LOG.debug("Refresh of: {} failed after the end of its cycle.", nameOf.apply(item), e);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }));
+        }
+
+        try {
+            latch.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } finally {
+            // Anything which has not completed by now is a timeout, whether we timed out or were interrupted
+            synchronized (updateLock) {
+                for (int i = 0; i < itemList.size(); i++) {
+                    states.compareAndSet(i, PENDING, TIMED_OUT);
+                }
+            }
+            // Cancel anything which is still queued or running
+            futures.forEach(f -> f.cancel(true));
+        }
+
+        final long[] durations = new long[durationsNanos.length()];
+        final PriorityQueue<Integer> slowest = new PriorityQueue<>(Comparator.comparingLong(idx -> durations[idx]));
+        int completed = 0;
+        int failed = 0;
+        int timedOut = 0;
+        for (int i = 0; i < durations.length; i++) {
+            final int state = states.get(i);
+            if (state == FAILED) {
+                failed++;
+                continue;
+            } else if (state != COMPLETED) {
+                timedOut++;
+                continue;
+            }
+            durations[i] = durationsNanos.get(i);
+            completed++;
+            slowest.add(i);
+            if (slowest.size() > NUM_SLOWEST_TO_REPORT) {
+                slowest.poll();
+            }
+        }
+        final List<String> slowestItems = new ArrayList<>(slowest.size());
+        while (!slowest.isEmpty()) {
+            final int idx = slowest.poll();
+            slowestItems.add(0, String.format("%s (%d ms)", nameOf.apply(itemList.get(idx)), TimeUnit.NANOSECONDS.toMillis(durations[idx])));
+        }
+
+        return new CycleReport(itemList.size(), completed, failed, timedOut,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), slowestItems);
+    }
+
+    public static class CycleReport {
+        private final int total;
+        private final int completed;
+        private final int failed;
+        private final int timedOut;
+        private final long durationMs;
+        private final List<String> slowest;
+
+        public CycleReport(int total, int completed, int failed, int timedOut, long durationMs, List<String> slowest) {
+            this.total = total;
+            this.completed = completed;
+            this.failed = failed;
+            this.timedOut = timedOut;
+            this.durationMs = durationMs;
+            this.slowest = slowest;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getCompleted() {
+            return completed;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getTimedOut() {
+            return timedOut;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        /**
+         * @return the names and durations of the slowest refreshes, slowest first
+         */
+        public List<String> getSlowest() {
+            return slowest;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d of %d refreshed in %d ms, %d failed, %d timed out. Slowest: %s",
+                    completed, total, durationMs, failed, timedOut, slowest);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import org.opennms.integration.api.v1.collectors.CollectionSet;
+import org.opennms.integration.api.v1.collectors.resource.CollectionSetResource;
+import org.opennms.integration.api.v1.collectors.resource.NumericAttribute;
+import org.opennms.integration.api.v1.model.Node;
+
+/**
+ * Adapts the collection interval of every node to how busy it is and to how quickly the
+ * controller responds for it.
+ *
+ * After every collection, we look at the total number of octets counted by the ports of the node:
+ * <ul>
+ *     <li>nodes whose counters did not move for consecutive collections are backed off,</li>
+ *     <li>nodes whose rate changed by more than the volatility threshold are sped up,</li>
+ *     <li>nodes whose rate remained steady for consecutive collections return towards the configured interval,</li>
+ *     <li>nodes for which the controller takes more than half of the interval to respond are backed off.</li>
+ * </ul>
+ *
+ * Adapted intervals are always multiples of the step of the RRDs the metrics are persisted to, since
+ * samples closer than the step are consolidated into one and add no resolution. Sped up intervals are the
+ * configured interval divided by a power of two, rounded up to a multiple of the step. A backed off interval
+ * is at most twice the configured interval, and is capped at the largest multiple of the step which does not
+ * exceed three quarters of the RRD heartbeat, so that the gap between two samples stays below the heartbeat
+ * even when a collection starts late. The configured interval itself is always allowed.
+ *
+ * OpenNMS creates the RRDs with a heartbeat of twice the step, in which case the step is the only interval
+ * which may be backed off to: nodes collected at the step can be neither backed off nor sped up. Adaptive
+ * intervals only have an effect when the configured intervals are larger than the step, or when the RRDs
+ * have a longer heartbeat.
+ */
+public class AdaptiveIntervals {
+
+    public static final double DEFAULT_VOLATILITY_THRESHOLD = 0.25;
+
+    // Number of consecutive collections without any change before backing off
+    private static final int IDLE_COLLECTIONS_BEFORE_BACKOFF = 2;
+    // Number of consecutive collections with a steady rate before returning towards the configured interval
+    private static final int STABLE_COLLECTIONS_BEFORE_RECOVERY = 3;
+    // Fraction of the interval the controller may take to respond before backing off
+    private static final double SLOW_RESPONSE_RATIO = 0.5;
+    // Weight of the latest response time in the moving average
+    private static final double RESPONSE_TIME_WEIGHT = 0.3;
+    // Intervals range from a quarter to twice the configured interval
+    private static final int MIN_LEVEL = -2;
+    private static final int MAX_LEVEL = 1;
+    // Fraction of the heartbeat a backed off interval may reach, leaves room for late collections
+    static final double HEARTBEAT_RATIO = 0.75;
+
+    private final CollectionIntervals baseIntervals;
+    private final long minIntervalMs;
+    private final long maxIntervalMs;
+    private final long stepMs;
+    private final long maxBackoffIntervalMs;
+    private final double volatilityThreshold;
+    private final LongSupplier clock;
+    private final Map<Integer, NodeState> statesByNodeId = new ConcurrentHashMap<>();
+
+    /**
+     * @param stepMs step of the RRDs the metrics are persisted to
+     * @param heartbeatMs heartbeat of the RRDs the metrics are persisted to
+     */
+    public AdaptiveIntervals(CollectionIntervals baseIntervals, long minIntervalMs, long maxIntervalMs, long stepMs, long heartbeatMs,
+                             double volatilityThreshold) {
+        this(baseIntervals, minIntervalMs, maxIntervalMs, stepMs, heartbeatMs, volatilityThreshold, System::currentTimeMillis);
+    }
+
+    AdaptiveIntervals(CollectionIntervals baseIntervals, long minIntervalMs, long maxIntervalMs, long stepMs, long heartbeatMs,
+                      double volatilityThreshold, LongSupplier clock) {
+        if (minIntervalMs > maxIntervalMs) {
+            throw new IllegalArgumentException(String.format("Minimum interval (%d) must not be greater than the maximum interval (%d).",
+                    minIntervalMs, maxIntervalMs));
+        }
+        if (stepMs <= 0) {
+            throw new IllegalArgumentException(String.format("Step (%d) must be positive.", stepMs));
+        }
+        if (heartbeatMs <= stepMs) {
+            throw new IllegalArgumentException(String.format("Heartbeat (%d) must be greater than the step (%d).", heartbeatMs, stepMs));
+        }
+        this.baseIntervals = Objects.requireNonNull(baseIntervals);
+        this.minIntervalMs = minIntervalMs;
+        this.maxIntervalMs = maxIntervalMs;
+        this.stepMs = stepMs;
+        this.maxBackoffIntervalMs = Math.min(maxIntervalMs, (long)(heartbeatMs * HEARTBEAT_RATIO)) / stepMs * stepMs;
+        this.volatilityThreshold = volatilityThreshold;
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    /**
+     * @return the interval at which the given node should currently be collected
+     */
+    public long getIntervalMs(Node node) {
+        final long baseIntervalMs = baseIntervals.getIntervalMs(node);
+        final NodeState state = statesByNodeId.get(node.getId());
+        if (state == null) {
+            return clamp(baseIntervalMs, 0);
+        }
+        synchronized (state) {
+            state.baseIntervalMs = baseIntervalMs;
+            state.level = clampLevel(baseIntervalMs, state.level);
+            return clamp(baseIntervalMs, state.level);
+        }
+    }
+
+    /**
+     * Updates the interval of the node following a collection.
+     *
+     * @param responseTimeMs time taken by the controller to return the statistics of the node, or a negative
+     *                       value if unknown, i.e. when the statistics of all of the nodes were fetched together
+     */
+    public void observe(Node node, CollectionSet collectionSet, long responseTimeMs) {
+        long totalOctets = 0;
+        for (CollectionSetResource<?> resource : collectionSet.getCollectionSetResources()) {
+            for (NumericAttribute attribute : resource.getNumericAttributes()) {
+                if ("ifHCInOctets".equals(attribute.getName()) || "ifHCOutOctets".equals(attribute.getName())) {
+                    totalOctets += (long)attribute.getValue();
+                }
+            }
+        }
+        final long baseIntervalMs = baseIntervals.getIntervalMs(node);
+        final NodeState state = statesByNodeId.computeIfAbsent(node.getId(), id -> new NodeState(baseIntervalMs));
+        synchronized (state) {
+            state.baseIntervalMs = baseIntervalMs;
+            state.update(totalOctets, clock.getAsLong(), responseTimeMs);
+        }
+    }
+
+    /**
+     * Backs off the interval of the node after its collection was dropped because the collectors could not keep up.
+     */
+    public void backOff(Node node) {
+        final long baseIntervalMs = baseIntervals.getIntervalMs(node);
+        final NodeState state = statesByNodeId.computeIfAbsent(node.getId(), id -> new NodeState(baseIntervalMs));
+        synchronized (state) {
+            state.baseIntervalMs = baseIntervalMs;
+            state.level = clampLevel(baseIntervalMs, state.level + 1);
+        }
+    }
+
+    /**
+     * @return the current effective interval of the given node, or -1 if it was never collected
+     */
+    public long getEffectiveIntervalMs(int nodeId) {
+        final NodeState state = statesByNodeId.get(nodeId);
+        if (state == null) {
+            return -1;
+        }
+        synchronized (state) {
+            return clamp(state.baseIntervalMs, state.level);
+        }
+    }
+
+    /**
+     * @return the current effective interval of every node which was collected, keyed by node id
+     */
+    public Map<Integer, Long> getEffectiveIntervals() {
+        final Map<Integer, Long> intervals = new TreeMap<>();
+        for (Map.Entry<Integer, NodeState> entry : statesByNodeId.entrySet()) {
+            final NodeState state = entry.getValue();
+            synchronized (state) {
+                intervals.put(entry.getKey(), clamp(state.baseIntervalMs, state.level));
+            }
+        }
+        return Collections.unmodifiableMap(intervals);
+    }
+
+    /**
+     * Forgets the nodes which are no longer present.
+     */
+    public void retainAll(Set<Integer> nodeIds) {
+        statesByNodeId.keySet().retainAll(nodeIds);
+    }
+
+    private long clamp(long baseIntervalMs, int level) {
+        return intervalAt(baseIntervalMs, clampLevel(baseIntervalMs, level));
+    }
+
+    private long intervalAt(long baseIntervalMs, int level) {
+        if (level > 0) {
+            return Math.min(baseIntervalMs << level, maxBackoffIntervalMs) / stepMs * stepMs;
+        } else if (level < 0) {
+            final long intervalMs = baseIntervalMs >> -level;
+            return (intervalMs + stepMs - 1) / stepMs * stepMs;
+        }
+        return baseIntervalMs;
+    }
+
+    private int clampLevel(long baseIntervalMs, int level) {
+        level = Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level));
+        // Stay within the bounds, but always allow the configured interval itself. Levels which
+        // don't change the interval once aligned to the step are pointless.
+        while (level < 0 && (intervalAt(baseIntervalMs, level) < minIntervalMs || intervalAt(baseIntervalMs, level) >= baseIntervalMs)) {
+            level++;
+        }
+        while (level > 0 && intervalAt(baseIntervalMs, level) <= baseIntervalMs) {
+            level--;
+        }
+        return level;
+    }
+
+    private class NodeState {
+        private long baseIntervalMs;
+        private int level = 0;
+        private long lastTotalOctets = -1;
+        private long lastTimeMs = -1;
+        private double lastRate = -1;
+        private int idleCollections = 0;
+        private int stableCollections = 0;
+        private double averageResponseTimeMs = -1;
+
+        private NodeState(long baseIntervalMs) {
+            this.baseIntervalMs = baseIntervalMs;
+        }
+
+        private void update(long totalOctets, long now, long responseTimeMs) {
+            if (responseTimeMs >= 0) {
+                averageResponseTimeMs = averageResponseTimeMs < 0 ? responseTimeMs
+                        : RESPONSE_TIME_WEIGHT * responseTimeMs + (1 - RESPONSE_TIME_WEIGHT) * averageResponseTimeMs;
+            }
+
+            if (lastTimeMs >= 0 && now > lastTimeMs && totalOctets >= lastTotalOctets) {
+                final long delta = totalOctets - lastTotalOctets;
+                if (delta == 0) {
+                    lastRate = 0;
+                    stableCollections = 0;
+                    if (++idleCollections >= IDLE_COLLECTIONS_BEFORE_BACKOFF) {
+                        level++;
+                        idleCollections = 0;
+                    }
+                } else {
+                    idleCollections = 0;
+                    final double rate = delta * 1000d / (now - lastTimeMs);
+                    if (lastRate >= 0 && Math.abs(rate - lastRate) > volatilityThreshold * Math.max(lastRate, 1d)) {
+                        level--;
+                        stableCollections = 0;
+                    } else if (lastRate >= 0 && ++stableCollections >= STABLE_COLLECTIONS_BEFORE_RECOVERY) {
+                        level -= Integer.signum(level);
+                        stableCollections = 0;
+                    }
+                    lastRate = rate;
+                }
+            }
+            lastTotalOctets = totalOctets;
+            lastTimeMs = now;
+
+            // Don't hit a slow controller harder, regardless of how busy the node is
+            if (averageResponseTimeMs > SLOW_RESPONSE_RATIO * clamp(baseIntervalMs, level)) {
+                level++;
+            }
+            level = clampLevel(baseIntervalMs, level);
+        }
+    }
+}
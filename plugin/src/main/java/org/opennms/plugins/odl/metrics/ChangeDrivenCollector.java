@@ -0,0 +1,377 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.plugins.odl.DataChangeNotificationParser;
+import org.opennms.plugins.odl.DataChangeNotificationParser.DataChangeEvent;
+import org.opennms.plugins.odl.NodeRegistry;
+import org.opennms.plugins.odl.OpendaylightRestconfClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Utf8;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import okhttp3.WebSocket;
+
+/**
+ * Collects the metrics of the nodes whose port statistics have changed, instead of
+ * collecting every node at a fixed interval.
+ *
+ * We subscribe to the data change notifications for the operational inventory, and
+ * remember which nodes had changes to the byte or packet counters of their node connectors.
+ * Other leaves of the statistics, such as the duration, change on every update and are
+ * ignored. The changed nodes are collected together on every flush. Nodes which have not
+ * been collected for longer than the fallback interval are collected regardless, so that
+ * quiet nodes, or missed notifications, don't leave gaps in the data. The fallback interval
+ * is capped at three quarters of the RRD heartbeat, since a longer one would store unknown
+ * values for the quiet nodes.
+ *
+ * The subscription is reopened from the flush thread when it could not be opened, or when it
+ * was closed. All of the nodes are collected once it is reopened, since changes may have been
+ * missed in the meantime.
+ *
+ * Changed nodes are fetched individually, unless a bulk collector is set and the fraction
+ * of changed nodes reaches the bulk fetch ratio, in which case a single request for the
+ * complete inventory is cheaper.
+ *
+ * The subscription itself is not free: the controller streams an event for every changed
+ * leaf in the inventory, which we have to receive and parse. The counters exposed here, and
+ * logged with the pipeline statistics, show whether this pays off: the number of
+ * notification bytes, counted as UTF-8, and the time spent parsing them are the added cost, while the skipped
+ * collections are the node fetches which a fixed-interval scheduler with the same flush
+ * interval would have made. If few collections are skipped, the fixed-interval scheduler
+ * with bulk fetches does less work.
+ */
+public class ChangeDrivenCollector {
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeDrivenCollector.class);
+
+    public static final String INVENTORY_PATH = "/opendaylight-inventory:nodes";
+
+    public static final double DEFAULT_BULK_FETCH_RATIO = 0.5;
+
+    // Minimum amount of time between two attempts at opening the subscription
+    static final long RESUBSCRIBE_DELAY_MS = 30000;
+
+    private final OpendaylightRestconfClient client;
+    private final NodeRegistry nodeRegistry;
+    private final Supplier<List<Node>> nodeSupplier;
+    private final CollectionScheduler.Collector collector;
+    private final long flushIntervalMs;
+    private final long fallbackIntervalMs;
+    private final long nodeRefreshIntervalMs;
+    private final LongSupplier clock;
+
+    private final DataChangeNotificationParser notificationParser = new DataChangeNotificationParser();
+    private final Set<String> changedNodeIds = ConcurrentHashMap.newKeySet();
+    // Set when a notification could not be parsed, in which case we collect all of the nodes
+    private final AtomicBoolean collectAll = new AtomicBoolean(false);
+
+    // Only accessed from the flush thread
+    private final Map<String, Long> lastCollectedByNodeId = new HashMap<>();
+    private Map<String, Node> nodesByOdlNodeId = new HashMap<>();
+    private long lastNodeRefreshMs = -1;
+
+    private ScheduledExecutorService executor;
+    private volatile WebSocket webSocket;
+    // Cleared when the subscription could not be opened, or was closed
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+    // Only accessed from the flush thread, once started
+    private long lastSubscribeAttemptMs = -1;
+
+    // Optional, collects the nodes by fetching the complete inventory
+    private CollectionScheduler.Collector bulkCollector;
+    private double bulkFetchRatio = DEFAULT_BULK_FETCH_RATIO;
+
+    private final AtomicLong notificationsReceived = new AtomicLong();
+    private final AtomicLong notificationBytesReceived = new AtomicLong();
+    private final AtomicLong subscriptionsOpened = new AtomicLong();
+    private final AtomicLong notificationParseNanos = new AtomicLong();
+    private final AtomicLong portChangesReceived = new AtomicLong();
+    private final AtomicLong statisticsChangesIgnored = new AtomicLong();
+    private final AtomicLong changedCollections = new AtomicLong();
+    private final AtomicLong fallbackCollections = new AtomicLong();
+    private final AtomicLong skippedCollections = new AtomicLong();
+    private final AtomicLong bulkFetches = new AtomicLong();
+    private final AtomicLong collectionsFailed = new AtomicLong();
+
+    /**
+     * @param nodeSupplier provides the nodes to collect
+     * @param collector collects the given nodes
+     * @param flushIntervalMs how often the changed nodes are collected
+     * @param fallbackIntervalMs maximum amount of time between two collections of the same node
+     * @param heartbeatMs heartbeat of the RRDs the metrics are persisted to
+     * @param nodeRefreshIntervalMs how often the set of nodes is refreshed
+     */
+    public ChangeDrivenCollector(OpendaylightRestconfClient client, NodeRegistry nodeRegistry, Supplier<List<Node>> nodeSupplier,
+                                 CollectionScheduler.Collector collector, long flushIntervalMs, long fallbackIntervalMs, long heartbeatMs,
+                                 long nodeRefreshIntervalMs) {
+        this(client, nodeRegistry, nodeSupplier, collector, flushIntervalMs, fallbackIntervalMs, heartbeatMs, nodeRefreshIntervalMs, System::currentTimeMillis);
+    }
+
+    ChangeDrivenCollector(OpendaylightRestconfClient client, NodeRegistry nodeRegistry, Supplier<List<Node>> nodeSupplier,
+                          CollectionScheduler.Collector collector, long flushIntervalMs, long fallbackIntervalMs, long heartbeatMs,
+                          long nodeRefreshIntervalMs, LongSupplier clock) {
+        this.client = Objects.requireNonNull(client);
+        this.nodeRegistry = Objects.requireNonNull(nodeRegistry);
+        this.nodeSupplier = Objects.requireNonNull(nodeSupplier);
+        this.collector = Objects.requireNonNull(collector);
+        this.flushIntervalMs = flushIntervalMs;
+        final long maxFallbackIntervalMs = (long)(heartbeatMs * AdaptiveIntervals.HEARTBEAT_RATIO);
+        if (fallbackIntervalMs > maxFallbackIntervalMs) {
+            LOG.warn("The fallback interval of {}ms exceeds three quarters of the {}ms RRD heartbeat. Using {}ms instead.",
+                    fallbackIntervalMs, heartbeatMs, maxFallbackIntervalMs);
+            fallbackIntervalMs = maxFallbackIntervalMs;
+        }
+        this.fallbackIntervalMs = Math.max(flushIntervalMs, fallbackIntervalMs);
+        this.nodeRefreshIntervalMs = nodeRefreshIntervalMs;
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    public void start() {
+        subscribe();
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ODL-MetricChanges-%d")
+                .setDaemon(true)
+                .build());
+        executor.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        final WebSocket ws = webSocket;
+        if (ws != null) {
+            ws.close(1001, "going away");
+            webSocket = null;
+        }
+    }
+
+    void subscribe() {
+        lastSubscribeAttemptMs = clock.getAsLong();
+        try {
+            subscribed.set(true);
+            webSocket = client.streamChanges(INVENTORY_PATH, "OPERATIONAL", "SUBTREE", this::onNotification, this::onSubscriptionClosed);
+            if (subscriptionsOpened.incrementAndGet() > 1) {
+                LOG.info("Reopened the subscription to the inventory changes.");
+                // Changes may have been missed while we were not subscribed
+                collectAll.set(true);
+            }
+        } catch (IOException e) {
+            subscribed.set(false);
+            LOG.warn("Failed to stream changes for the inventory. Nodes will only be collected every {}ms until the subscription is reopened.",
+                    fallbackIntervalMs, e);
+        }
+    }
+
+    private void onSubscriptionClosed() {
+        if (subscribed.compareAndSet(true, false)) {
+            LOG.warn("The subscription to the inventory changes was closed. Retrying in {}ms.", RESUBSCRIBE_DELAY_MS);
+        }
+    }
+
+    void onNotification(String notificationXml) {
+        notificationsReceived.incrementAndGet();
+        notificationBytesReceived.addAndGet(Utf8.encodedLength(notificationXml));
+        final long start = System.nanoTime();
+        final List<DataChangeEvent> events;
+        try {
+            events = notificationParser.parse(notificationXml);
+        } catch (Exception e) {
+            LOG.warn("Failed to parse data change notification. Collecting all nodes on the next flush.", e);
+            collectAll.set(true);
+            return;
+        } finally {
+            notificationParseNanos.addAndGet(System.nanoTime() - start);
+        }
+        for (DataChangeEvent event : events) {
+            if (event.getInventoryNodeId() == null) {
+                continue;
+            }
+            if (event.isPortCountersEvent()) {
+                portChangesReceived.incrementAndGet();
+                changedNodeIds.add(event.getInventoryNodeId());
+            } else if (event.isPortStatisticsEvent()) {
+                statisticsChangesIgnored.incrementAndGet();
+            }
+        }
+    }
+
+    void flush() {
+        try {
+            final long now = clock.getAsLong();
+            if (lastNodeRefreshMs < 0 || now - lastNodeRefreshMs >= nodeRefreshIntervalMs) {
+                refreshNodes();
+                lastNodeRefreshMs = now;
+            }
+            if (!subscribed.get() && now - lastSubscribeAttemptMs >= RESUBSCRIBE_DELAY_MS) {
+                subscribe();
+            }
+
+            final boolean all = collectAll.getAndSet(false);
+            final List<Node> nodesToCollect = new ArrayList<>();
+            for (Map.Entry<String, Node> entry : nodesByOdlNodeId.entrySet()) {
+                final String odlNodeId = entry.getKey();
+                final boolean changed = changedNodeIds.remove(odlNodeId);
+                final Long lastCollected = lastCollectedByNodeId.get(odlNodeId);
+                final boolean due = lastCollected == null || now - lastCollected >= fallbackIntervalMs;
+                if (changed || all) {
+                    changedCollections.incrementAndGet();
+                } else if (due) {
+                    fallbackCollections.incrementAndGet();
+                } else {
+                    skippedCollections.incrementAndGet();
+                    continue;
+                }
+                lastCollectedByNodeId.put(odlNodeId, now);
+                nodesToCollect.add(entry.getValue());
+            }
+            // Forget about changes to nodes we don't know about
+            final Map<String, Node> nodes = nodesByOdlNodeId;
+            changedNodeIds.removeIf(id -> !nodes.containsKey(id));
+
+            if (nodesToCollect.isEmpty()) {
+                return;
+            }
+            if (bulkCollector != null && nodesToCollect.size() >= bulkFetchRatio * nodesByOdlNodeId.size()) {
+                LOG.debug("Collecting {} of {} nodes from the complete inventory.", nodesToCollect.size(), nodesByOdlNodeId.size());
+                bulkFetches.incrementAndGet();
+                bulkCollector.collect(nodesToCollect);
+            } else {
+                LOG.debug("Collecting {} of {} nodes.", nodesToCollect.size(), nodesByOdlNodeId.size());
+                collector.collect(nodesToCollect);
+            }
+        } catch (Exception e) {
+            collectionsFailed.incrementAndGet();
+            LOG.error("Failed to collect the changed nodes.", e);
+        }
+    }
+
+    private void refreshNodes() {
+        final Map<String, Node> nodes = new HashMap<>();
+        for (Node node : nodeSupplier.get()) {
+            final String odlNodeId = nodeRegistry.getMetadata(node).getNodeId();
+            if (odlNodeId != null) {
+                nodes.put(odlNodeId, node);
+            }
+        }
+        nodesByOdlNodeId = nodes;
+        lastCollectedByNodeId.keySet().retainAll(nodes.keySet());
+    }
+
+    /**
+     * When set, the nodes are collected using the given collector, which is expected to fetch
+     * the complete inventory, when the fraction of nodes to collect reaches the bulk fetch ratio.
+     */
+    public void setBulkCollector(CollectionScheduler.Collector bulkCollector) {
+        this.bulkCollector = bulkCollector;
+    }
+
+    /**
+     * Fraction, between 0 and 1, of the nodes which must be collected for the complete inventory to be fetched.
+     */
+    public void setBulkFetchRatio(double bulkFetchRatio) {
+        this.bulkFetchRatio = bulkFetchRatio;
+    }
+
+    public long getNotificationsReceived() {
+        return notificationsReceived.get();
+    }
+
+    public long getNotificationBytesReceived() {
+        return notificationBytesReceived.get();
+    }
+
+    public long getNotificationParseTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(notificationParseNanos.get());
+    }
+
+    /**
+     * @return the number of times the subscription was opened, including the initial one
+     */
+    public long getSubscriptionsOpened() {
+        return subscriptionsOpened.get();
+    }
+
+    public long getPortChangesReceived() {
+        return portChangesReceived.get();
+    }
+
+    public long getStatisticsChangesIgnored() {
+        return statisticsChangesIgnored.get();
+    }
+
+    public long getChangedCollections() {
+        return changedCollections.get();
+    }
+
+    public long getFallbackCollections() {
+        return fallbackCollections.get();
+    }
+
+    public long getSkippedCollections() {
+        return skippedCollections.get();
+    }
+
+    public long getBulkFetches() {
+        return bulkFetches.get();
+    }
+
+    public long getCollectionsFailed() {
+        return collectionsFailed.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ChangeDrivenCollector[subscriptions=%d, notifications=%d, notificationBytes=%d, parseTimeMs=%d, portChanges=%d, ignoredStatisticsChanges=%d, "
+                        + "changedCollections=%d, fallbackCollections=%d, skippedCollections=%d, bulkFetches=%d, failed=%d]",
+                subscriptionsOpened.get(), notificationsReceived.get(), notificationBytesReceived.get(), getNotificationParseTimeMs(), portChangesReceived.get(),
+                statisticsChangesIgnored.get(), changedCollections.get(), fallbackCollections.get(), skippedCollections.get(),
+                bulkFetches.get(), collectionsFailed.get());
+    }
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.plugins.odl.NodeRegistry;
+import org.opennms.plugins.odl.OdlMetadata;
+
+/**
+ * Determines the collection interval of a node.
+ *
+ * Overrides are given as a comma separated list of {@code regex=seconds} pairs, i.e.
+ * {@code core-.*=5,openflow:1=10}. The first pattern which matches either the label of
+ * the node or its ODL node id wins. Nodes which do not match any pattern use the default interval.
+ */
+public class CollectionIntervals {
+
+    private final long defaultIntervalMs;
+    private final List<IntervalOverride> overrides;
+
+    // Optional, provides the metadata of the nodes without parsing it on every lookup
+    private NodeRegistry nodeRegistry;
+
+    public CollectionIntervals(long defaultIntervalMs) {
+        this(defaultIntervalMs, Collections.emptyList());
+    }
+
+    private CollectionIntervals(long defaultIntervalMs, List<IntervalOverride> overrides) {
+        if (defaultIntervalMs < 1) {
+            throw new IllegalArgumentException("Interval must be strictly positive. Got: " + defaultIntervalMs);
+        }
+        this.defaultIntervalMs = defaultIntervalMs;
+        this.overrides = overrides;
+    }
+
+    public static CollectionIntervals parse(long defaultIntervalMs, String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return new CollectionIntervals(defaultIntervalMs);
+        }
+        final List<IntervalOverride> overrides = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            // Split on the last '=', since the pattern itself may contain one
+            final int idx = entry.lastIndexOf('=');
+            if (idx < 1) {
+                throw new IllegalArgumentException("Invalid collection interval: '" + entry + "'. Expected: regex=seconds");
+            }
+            final Pattern pattern;
+            final long seconds;
+            try {
+                pattern = Pattern.compile(entry.substring(0, idx).trim());
+                seconds = Long.parseLong(entry.substring(idx + 1).trim());
+            } catch (PatternSyntaxException|NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid collection interval: '" + entry + "'. Expected: regex=seconds", e);
+            }
+            if (seconds < 1) {
+                throw new IllegalArgumentException("Invalid collection interval: '" + entry + "'. Interval must be at least 1 second.");
+            }
+            overrides.add(new IntervalOverride(pattern, TimeUnit.SECONDS.toMillis(seconds)));
+        }
+        return new CollectionIntervals(defaultIntervalMs, overrides);
+    }
+
+    public void setNodeRegistry(NodeRegistry nodeRegistry) {
+        this.nodeRegistry = nodeRegistry;
+    }
+
+    public long getDefaultIntervalMs() {
+        return defaultIntervalMs;
+    }
+
+    public long getIntervalMs(Node node) {
+        if (overrides.isEmpty()) {
+            return defaultIntervalMs;
+        }
+        final OdlMetadata odlMetadata = nodeRegistry != null ? nodeRegistry.getMetadata(node) : new OdlMetadata(node);
+        final String odlNodeId = odlMetadata.getNodeId();
+        for (IntervalOverride override : overrides) {
+            if ((node.getLabel() != null && override.pattern.matcher(node.getLabel()).matches())
+                    || (odlNodeId != null && override.pattern.matcher(odlNodeId).matches())) {
+                return override.intervalMs;
+            }
+        }
+        return defaultIntervalMs;
+    }
+
+    private static class IntervalOverride {
+        private final Pattern pattern;
+        private final long intervalMs;
+
+        private IntervalOverride(Pattern pattern, long intervalMs) {
+            this.pattern = pattern;
+            this.intervalMs = intervalMs;
+        }
+    }
+}
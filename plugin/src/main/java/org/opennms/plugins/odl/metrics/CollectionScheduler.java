@@ -0,0 +1,365 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import org.opennms.integration.api.v1.model.Node;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Schedules the collection of the nodes on a bounded pool of workers.
+ *
+ * The nodes are grouped into collection units, either one per node or, when collecting
+ * in bulk, one per collection interval. The start times of the units sharing the same interval
+ * are spread evenly across the interval with some random jitter, so that the controller is
+ * not hit with all of the requests at once. When collecting in bulk, every interval has a single
+ * unit which fetches the whole inventory with one request, so there is nothing to spread: the
+ * jitter only randomizes the start of that unit within its interval.
+ *
+ * A unit which is still running when it is due again is skipped and reported as an overrun.
+ * A unit remains running until the future returned by the collector completes, so collections
+ * which are queued by the collector, rather than performed in place, are accounted for too.
+ * Collections whose future fails with a {@link RejectedExecutionException} were dropped by the
+ * collector and are reported separately from the failed ones.
+ * The set of nodes is periodically reconciled so that new nodes are scheduled and deleted
+ * nodes are dropped. Units whose interval changed are rescheduled relative to their last
+ * run, so that the gap between two collections never exceeds the larger of the two intervals.
+ */
+public class CollectionScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(CollectionScheduler.class);
+
+    private static final int WORK_QUEUE_SIZE = 1000;
+
+    @FunctionalInterface
+    public interface Collector {
+        /**
+         * Collects the given nodes, either before returning or asynchronously.
+         *
+         * @return a future which completes once the nodes were collected, or null if they already were
+         */
+        CompletableFuture<Void> collect(List<Node> nodes) throws Exception;
+    }
+
+    private final Supplier<List<Node>> nodeSupplier;
+    private final Collector collector;
+    private final ToLongFunction<Node> intervals;
+    private final boolean groupByInterval;
+    private final int numThreads;
+    private final double jitter;
+    private final long reconcileIntervalMs;
+
+    private ScheduledExecutorService scheduler;
+    private ThreadPoolExecutor workers;
+    private final Map<String, CollectionUnit> unitsByKey = new HashMap<>();
+
+    private final AtomicLong collectionsRun = new AtomicLong();
+    private final AtomicLong collectionsFailed = new AtomicLong();
+    private final AtomicLong collectionsDropped = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong lateCollections = new AtomicLong();
+
+    /**
+     * @param nodeSupplier provides the nodes to collect
+     * @param collector collects the given nodes
+     * @param intervals determines the interval of each node
+     * @param groupByInterval when true, all of the nodes sharing an interval are collected together
+     * @param numThreads number of workers
+     * @param jitter fraction of the spacing between two units which is randomized, between 0 and 1
+     * @param reconcileIntervalMs how often the set of nodes is refreshed
+     */
+    public CollectionScheduler(Supplier<List<Node>> nodeSupplier, Collector collector, CollectionIntervals intervals,
+                               boolean groupByInterval, int numThreads, double jitter, long reconcileIntervalMs) {
+        this(nodeSupplier, collector, intervals::getIntervalMs, groupByInterval, numThreads, jitter, reconcileIntervalMs);
+    }
+
+    /**
+     * @param intervals determines the current interval of each node, which may change between reconciliations
+     */
+    public CollectionScheduler(Supplier<List<Node>> nodeSupplier, Collector collector, ToLongFunction<Node> intervals,
+                               boolean groupByInterval, int numThreads, double jitter, long reconcileIntervalMs) {
+        this.nodeSupplier = Objects.requireNonNull(nodeSupplier);
+        this.collector = Objects.requireNonNull(collector);
+        this.intervals = Objects.requireNonNull(intervals);
+        this.groupByInterval = groupByInterval;
+        this.numThreads = numThreads;
+        this.jitter = Math.max(0, Math.min(1, jitter));
+        this.reconcileIntervalMs = reconcileIntervalMs;
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ODL-MetricScheduler-%d")
+                .setDaemon(true)
+                .build());
+        workers = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(WORK_QUEUE_SIZE),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("ODL-MetricCollector-%d")
+                        .setDaemon(true)
+                        .build());
+        scheduler.scheduleWithFixedDelay(this::reconcileSafely, 0, reconcileIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+            try {
+                if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                    LOG.warn("Metric collectors did not terminate in time.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            workers = null;
+        }
+        synchronized (unitsByKey) {
+            unitsByKey.clear();
+        }
+    }
+
+    private void reconcileSafely() {
+        try {
+            reconcile();
+        } catch (Exception e) {
+            LOG.error("Failed to reconcile the collection schedule.", e);
+        }
+    }
+
+    /**
+     * Schedules units for new nodes, drops the units of deleted nodes and reschedules
+     * the nodes whose interval has changed.
+     */
+    void reconcile() {
+        final List<Node> nodes = nodeSupplier.get();
+
+        // Group the nodes into units
+        final Map<String, List<Node>> nodesByKey = new LinkedHashMap<>();
+        final Map<String, Long> intervalByKey = new HashMap<>();
+        for (Node node : nodes) {
+            final long intervalMs = intervals.applyAsLong(node);
+            final String key = groupByInterval ? "interval:" + intervalMs : "node:" + node.getId();
+            nodesByKey.computeIfAbsent(key, k -> new ArrayList<>()).add(node);
+            intervalByKey.put(key, intervalMs);
+        }
+
+        synchronized (unitsByKey) {
+            // Drop units which are gone or whose interval has changed
+            final Map<String, CollectionUnit> rescheduledUnitsByKey = new HashMap<>();
+            final Iterator<Map.Entry<String, CollectionUnit>> it = unitsByKey.entrySet().iterator();
+            while (it.hasNext()) {
+                final CollectionUnit unit = it.next().getValue();
+                final Long intervalMs = intervalByKey.get(unit.key);
+                if (intervalMs == null || intervalMs != unit.intervalMs) {
+                    unit.future.cancel(false);
+                    it.remove();
+                    if (intervalMs != null) {
+                        rescheduledUnitsByKey.put(unit.key, unit);
+                    }
+                }
+            }
+
+            // Update the nodes of the existing units, and gather the new ones by interval
+            final Map<Long, List<CollectionUnit>> newUnitsByInterval = new HashMap<>();
+            for (Map.Entry<String, List<Node>> entry : nodesByKey.entrySet()) {
+                final CollectionUnit existingUnit = unitsByKey.get(entry.getKey());
+                if (existingUnit != null) {
+                    existingUnit.nodes = entry.getValue();
+                    continue;
+                }
+                final long intervalMs = intervalByKey.get(entry.getKey());
+                final CollectionUnit unit = new CollectionUnit(entry.getKey(), intervalMs, entry.getValue());
+                final CollectionUnit previousUnit = rescheduledUnitsByKey.get(entry.getKey());
+                if (previousUnit != null && previousUnit.lastRunMs > 0) {
+                    // Keep the phase of the unit: the next run is due one (new) interval after the last one
+                    final long delayMs = Math.max(0, previousUnit.lastRunMs + intervalMs - System.currentTimeMillis());
+                    unit.running = previousUnit.running;
+                    unit.future = scheduler.scheduleAtFixedRate(() -> dispatch(unit), delayMs, intervalMs, TimeUnit.MILLISECONDS);
+                    unitsByKey.put(unit.key, unit);
+                    continue;
+                }
+                newUnitsByInterval.computeIfAbsent(intervalMs, k -> new ArrayList<>()).add(unit);
+            }
+
+            // Spread the new units evenly across their interval
+            for (Map.Entry<Long, List<CollectionUnit>> entry : newUnitsByInterval.entrySet()) {
+                final long intervalMs = entry.getKey();
+                final List<CollectionUnit> units = entry.getValue();
+                final double spacingMs = (double)intervalMs / units.size();
+                for (int i = 0; i < units.size(); i++) {
+                    final CollectionUnit unit = units.get(i);
+                    final long offsetMs = (long)(i * spacingMs + ThreadLocalRandom.current().nextDouble() * jitter * spacingMs);
+                    unit.future = scheduler.scheduleAtFixedRate(() -> dispatch(unit), offsetMs, intervalMs, TimeUnit.MILLISECONDS);
+                    unitsByKey.put(unit.key, unit);
+                }
+            }
+        }
+
+        LOG.info("Scheduled {} collection unit(s) for {} node(s). Collections run: {}, failed: {}, overruns: {}, rejected: {}, late: {}.",
+                getNumUnits(), nodes.size(), getCollectionsRun(), getCollectionsFailed(), getOverruns(), getRejected(), getLateCollections());
+    }
+
+    private void dispatch(CollectionUnit unit) {
+        // Any exception thrown from here would cancel all of the future runs of the unit
+        try {
+            if (!unit.running.compareAndSet(false, true)) {
+                overruns.incrementAndGet();
+                LOG.warn("Collection of {} is still running after its {} ms interval. Skipping this cycle.", unit.key, unit.intervalMs);
+                return;
+            }
+            try {
+                workers.execute(() -> collect(unit));
+            } catch (RejectedExecutionException e) {
+                unit.running.set(false);
+                rejected.incrementAndGet();
+                LOG.warn("All collectors are busy. Skipping the collection of {} for this cycle.", unit.key);
+            }
+        } catch (RuntimeException e) {
+            unit.running.set(false);
+            LOG.error("Failed to dispatch the collection of {}. Skipping this cycle.", unit.key, e);
+        }
+    }
+
+    private void collect(CollectionUnit unit) {
+        final long start = System.currentTimeMillis();
+        unit.lastRunMs = start;
+        CompletableFuture<Void> future;
+        try {
+            future = collector.collect(unit.nodes);
+        } catch (Exception e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        if (future == null) {
+            future = CompletableFuture.completedFuture(null);
+        }
+        future.whenComplete((result, ex) -> {
+            final Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof RejectedExecutionException) {
+                collectionsDropped.incrementAndGet();
+                LOG.warn("Collection of {} was dropped: {}", unit.key, cause.getMessage());
+            } else if (cause != null) {
+                collectionsFailed.incrementAndGet();
+                LOG.error("Collection of {} failed.", unit.key, cause);
+            }
+            final long durationMs = System.currentTimeMillis() - start;
+            if (durationMs > unit.intervalMs) {
+                lateCollections.incrementAndGet();
+                LOG.warn("Collection of {} took {} ms, which exceeds its {} ms interval.", unit.key, durationMs, unit.intervalMs);
+            }
+            collectionsRun.incrementAndGet();
+            unit.running.set(false);
+        });
+    }
+
+    public int getNumUnits() {
+        synchronized (unitsByKey) {
+            return unitsByKey.size();
+        }
+    }
+
+    public long getCollectionsRun() {
+        return collectionsRun.get();
+    }
+
+    public long getCollectionsFailed() {
+        return collectionsFailed.get();
+    }
+
+    /**
+     * @return the number of collections which were dropped by the collector before completing, i.e. which stored no data
+     */
+    public long getCollectionsDropped() {
+        return collectionsDropped.get();
+    }
+
+    /**
+     * @return the number of cycles which were skipped because the previous collection of the unit was still running
+     */
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    /**
+     * @return the number of cycles which were skipped because all of the workers were busy
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of collections which took longer than their interval
+     */
+    public long getLateCollections() {
+        return lateCollections.get();
+    }
+
+    private static class CollectionUnit {
+        private final String key;
+        private final long intervalMs;
+        private AtomicBoolean running = new AtomicBoolean(false);
+        private volatile List<Node> nodes;
+        private volatile long lastRunMs;
+        private ScheduledFuture<?> future;
+
+        private CollectionUnit(String key, long intervalMs, List<Node> nodes) {
+            this.key = key;
+            this.intervalMs = intervalMs;
+            this.nodes = nodes;
+        }
+    }
+}
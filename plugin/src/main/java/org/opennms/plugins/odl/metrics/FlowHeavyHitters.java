@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-saving sketch used to track the heaviest flows of a single switch in fixed memory.
+ *
+ * Every tracked flow has a weight, the sum of its byte deltas, and the error it inherited
+ * when it replaced another flow. The last counters of the tracked flows are kept so that their
+ * deltas are exact on the following intervals, while the deltas of the flows which are not
+ * tracked must be estimated by the caller. When the sketch is full, a new flow replaces the
+ * flow with the smallest weight. The weights are halved at the start of every interval so that
+ * flows which stop sending are eventually replaced.
+ *
+ * This class is not thread safe.
+ */
+public class FlowHeavyHitters {
+
+    /**
+     * Receives the top flows without boxing.
+     */
+    @FunctionalInterface
+    public interface FlowConsumer {
+        void accept(short tableId, String flowId, long bytes, long packets, long deltaBytes, long deltaPackets);
+    }
+
+    private final int capacity;
+    private final Map<String, Integer> slotsByKey;
+
+    private final String[] keys;
+    private final String[] flowIds;
+    private final short[] tableIds;
+    private final long[] weights;
+    private final long[] errors;
+    private final long[] lastBytes;
+    private final long[] lastPackets;
+    private final long[] deltaBytes;
+    private final long[] deltaPackets;
+    private final int[] lastSeen;
+
+    // Binary min-heap of slots, ordered by weight
+    private final int[] heap;
+    private final int[] heapIndexBySlot;
+
+    private int size = 0;
+    private int generation = 0;
+    private long replacements = 0;
+
+    public FlowHeavyHitters(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be strictly positive. Got: " + capacity);
+        }
+        this.capacity = capacity;
+        slotsByKey = new HashMap<>(capacity * 2);
+        keys = new String[capacity];
+        flowIds = new String[capacity];
+        tableIds = new short[capacity];
+        weights = new long[capacity];
+        errors = new long[capacity];
+        lastBytes = new long[capacity];
+        lastPackets = new long[capacity];
+        deltaBytes = new long[capacity];
+        deltaPackets = new long[capacity];
+        lastSeen = new int[capacity];
+        heap = new int[capacity];
+        heapIndexBySlot = new int[capacity];
+    }
+
+    /**
+     * Starts a new interval, decaying the weights of all of the tracked flows.
+     */
+    public void beginInterval() {
+        generation++;
+        // Halving all of the weights preserves the heap order
+        for (int slot = 0; slot < size; slot++) {
+            weights[slot] >>>= 1;
+            errors[slot] >>>= 1;
+        }
+    }
+
+    /**
+     * Records the counters of a flow for the current interval.
+     *
+     * @param estimatedDeltaBytes delta to use if the flow is not already tracked
+     * @param estimatedDeltaPackets delta to use if the flow is not already tracked
+     * @return the slot of the flow, which can be used to retrieve its deltas until the next call
+     */
+    public int offer(short tableId, String flowId, long bytes, long packets, long estimatedDeltaBytes, long estimatedDeltaPackets) {
+        final String key = tableId + "/" + flowId;
+        final Integer existingSlot = slotsByKey.get(key);
+        final int slot;
+        if (existingSlot != null) {
+            slot = existingSlot;
+            // The counters go backwards when a flow is re-installed
+            deltaBytes[slot] = bytes >= lastBytes[slot] ? bytes - lastBytes[slot] : bytes;
+            deltaPackets[slot] = packets >= lastPackets[slot] ? packets - lastPackets[slot] : packets;
+        } else {
+            if (size < capacity) {
+                slot = size;
+                heap[size] = slot;
+                heapIndexBySlot[slot] = size;
+                size++;
+                weights[slot] = 0;
+                errors[slot] = 0;
+            } else {
+                // Replace the flow with the smallest weight, inheriting its weight as the error
+                slot = heap[0];
+                slotsByKey.remove(keys[slot]);
+                errors[slot] = weights[slot];
+                replacements++;
+            }
+            slotsByKey.put(key, slot);
+            keys[slot] = key;
+            flowIds[slot] = flowId;
+            tableIds[slot] = tableId;
+            deltaBytes[slot] = Math.max(0, estimatedDeltaBytes);
+            deltaPackets[slot] = Math.max(0, estimatedDeltaPackets);
+        }
+        lastBytes[slot] = bytes;
+        lastPackets[slot] = packets;
+        lastSeen[slot] = generation;
+        weights[slot] += deltaBytes[slot];
+        // New flows are appended to the end of the heap, existing flows only get heavier
+        siftDown(siftUp(heapIndexBySlot[slot]));
+        return slot;
+    }
+
+    public long getDeltaBytes(int slot) {
+        return deltaBytes[slot];
+    }
+
+    public long getDeltaPackets(int slot) {
+        return deltaPackets[slot];
+    }
+
+    /**
+     * Visits the top flows of every table, amongst the flows that were seen in the current interval.
+     *
+     * Flows are ranked by their guaranteed weight, that is their weight minus their error.
+     */
+    public void forEachTop(int n, FlowConsumer consumer) {
+        final Integer[] slots = new Integer[size];
+        int numSlots = 0;
+        for (int slot = 0; slot < size; slot++) {
+            if (lastSeen[slot] == generation) {
+                slots[numSlots++] = slot;
+            }
+        }
+        Arrays.sort(slots, 0, numSlots, (a, b) -> {
+            final int c = Short.compare(tableIds[a], tableIds[b]);
+            return c != 0 ? c : Long.compare(weights[b] - errors[b], weights[a] - errors[a]);
+        });
+
+        int countInTable = 0;
+        short currentTable = -1;
+        for (int i = 0; i < numSlots; i++) {
+            final int slot = slots[i];
+            if (i == 0 || tableIds[slot] != currentTable) {
+                currentTable = tableIds[slot];
+                countInTable = 0;
+            }
+            if (countInTable++ < n) {
+                consumer.accept(tableIds[slot], flowIds[slot], lastBytes[slot], lastPackets[slot], deltaBytes[slot], deltaPackets[slot]);
+            }
+        }
+    }
+
+    /**
+     * @return the weight of the given flow, or -1 if it is not tracked
+     */
+    public long getWeight(short tableId, String flowId) {
+        final Integer slot = slotsByKey.get(tableId + "/" + flowId);
+        return slot != null ? weights[slot] : -1;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getReplacements() {
+        return replacements;
+    }
+
+    private int siftUp(int index) {
+        while (index > 0) {
+            final int parent = (index - 1) / 2;
+            if (weights[heap[parent]] <= weights[heap[index]]) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+        return index;
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            final int left = 2 * index + 1;
+            if (left >= size) {
+                return;
+            }
+            final int right = left + 1;
+            int smallest = right < size && weights[heap[right]] < weights[heap[left]] ? right : left;
+            if (weights[heap[index]] <= weights[heap[smallest]]) {
+                return;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        final int slotI = heap[i];
+        final int slotJ = heap[j];
+        heap[i] = slotJ;
+        heap[j] = slotI;
+        heapIndexBySlot[slotJ] = i;
+        heapIndexBySlot[slotI] = j;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FlowHeavyHitters[capacity=%d, size=%d, replacements=%d]", capacity, size, replacements);
+    }
+}
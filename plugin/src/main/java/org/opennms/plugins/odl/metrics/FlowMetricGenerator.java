@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNode;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.Table;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.Flow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.statistics.rev130819.FlowStatisticsData;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.statistics.rev130819.flow.statistics.FlowStatistics;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.model.statistics.types.rev130925.Counter64;
+import org.opennms.integration.api.v1.collectors.resource.GenericTypeResource;
+import org.opennms.integration.api.v1.collectors.resource.NodeResource;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableCollectionSet;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableCollectionSetResource;
+
+/**
+ * Generates per-flow metrics for the heaviest flows of every table.
+ *
+ * Persisting the statistics of every flow entry would create one resource per flow, and switches
+ * can have tens of thousands of them. Instead, the flows of every switch are fed to a
+ * {@link FlowHeavyHitters} sketch of fixed capacity, and only the top N flows of each table are
+ * persisted. The traffic of all of the other flows in the table is summed into an "other" flow.
+ *
+ * The byte and packet deltas of the flows tracked by the sketch are exact. The deltas of the other
+ * flows are estimated from their average rate since they were installed. Since the "other" flow
+ * has no counter of its own on the switch, it is persisted as a gauge of its rate over the last
+ * interval, which graphs the same way as the counters of the top flows. Nothing is persisted for
+ * it on the first interval of a switch, since there is no previous collection to compute a rate from.
+ */
+public class FlowMetricGenerator {
+
+    public static final int DEFAULT_TOP_N = 10;
+    public static final int DEFAULT_SKETCH_CAPACITY = 128;
+
+    public static final String FLOW_RESOURCE_TYPE = "odlFlow";
+    public static final String OTHER_FLOW_ID = "other";
+
+    private static final String FLOW_STATISTICS_GROUP = "opendaylight-flow-statistics";
+    // OpenFlow table ids are a single byte, and 255 is reserved
+    private static final int MAX_TABLES = 255;
+
+    private final int topN;
+    private final int sketchCapacity;
+    private final LongSupplier clock;
+    private final Map<Integer, SwitchFlows> switchFlowsByNodeId = new ConcurrentHashMap<>();
+
+    public FlowMetricGenerator(int topN, int sketchCapacity) {
+        this(topN, sketchCapacity, System::currentTimeMillis);
+    }
+
+    FlowMetricGenerator(int topN, int sketchCapacity, LongSupplier clock) {
+        if (topN < 1) {
+            throw new IllegalArgumentException("Top N must be strictly positive. Got: " + topN);
+        }
+        if (sketchCapacity < topN) {
+            throw new IllegalArgumentException(String.format("Sketch capacity must be at least %d. Got: %d", topN, sketchCapacity));
+        }
+        this.topN = topN;
+        this.sketchCapacity = sketchCapacity;
+        this.clock = clock;
+    }
+
+    public void addFlowStatistics(ImmutableCollectionSet.Builder csetBuilder, NodeResource nodeResource, int nodeId, FlowCapableNode flowCapableNode) {
+        if (flowCapableNode.getTable() == null) {
+            return;
+        }
+        final SwitchFlows switchFlows = switchFlowsByNodeId.computeIfAbsent(nodeId, id -> new SwitchFlows(sketchCapacity));
+        synchronized (switchFlows) {
+            final long elapsedMs = switchFlows.update(flowCapableNode, clock.getAsLong());
+            switchFlows.sketch.forEachTop(topN, (tableId, flowId, bytes, packets, deltaBytes, deltaPackets) -> {
+                switchFlows.otherDeltaBytes[tableId] -= deltaBytes;
+                switchFlows.otherDeltaPackets[tableId] -= deltaPackets;
+                csetBuilder.addCollectionSetResource(flowResource(nodeResource, tableId, flowId, bytes, packets));
+            });
+            if (elapsedMs <= 0) {
+                // First interval, the deltas are the totals since the flows were installed
+                return;
+            }
+            final double elapsedSeconds = elapsedMs / 1000d;
+            for (int tableId = 0; tableId < MAX_TABLES; tableId++) {
+                if (!switchFlows.tablesSeen[tableId]) {
+                    continue;
+                }
+                csetBuilder.addCollectionSetResource(otherFlowResource(nodeResource, (short)tableId,
+                        Math.max(0, switchFlows.otherDeltaBytes[tableId]) / elapsedSeconds,
+                        Math.max(0, switchFlows.otherDeltaPackets[tableId]) / elapsedSeconds));
+            }
+        }
+    }
+
+    /**
+     * Forgets the flows of the nodes which are no longer present.
+     */
+    public void retainAll(Set<Integer> nodeIds) {
+        switchFlowsByNodeId.keySet().retainAll(nodeIds);
+    }
+
+    public int getNumSwitches() {
+        return switchFlowsByNodeId.size();
+    }
+
+    FlowHeavyHitters getSketch(int nodeId) {
+        final SwitchFlows switchFlows = switchFlowsByNodeId.get(nodeId);
+        return switchFlows != null ? switchFlows.sketch : null;
+    }
+
+    private static ImmutableCollectionSetResource<GenericTypeResource> flowResource(NodeResource nodeResource, short tableId, String flowId, long bytes, long packets) {
+        return ImmutableCollectionSetResource.newBuilder(GenericTypeResource.class)
+                .setResource(MetricGenerator.genericResource(nodeResource, FLOW_RESOURCE_TYPE, tableId + "." + MetricGenerator.sanitize(flowId)))
+                .addStringAttribute(MetricGenerator.string("flowId", FLOW_STATISTICS_GROUP, flowId))
+                .addStringAttribute(MetricGenerator.string("tableId", FLOW_STATISTICS_GROUP, Short.toString(tableId)))
+                .addNumericAttribute(MetricGenerator.counter("flowBytes", FLOW_STATISTICS_GROUP, (double)bytes))
+                .addNumericAttribute(MetricGenerator.counter("flowPackets", FLOW_STATISTICS_GROUP, (double)packets))
+                .build();
+    }
+
+    private static ImmutableCollectionSetResource<GenericTypeResource> otherFlowResource(NodeResource nodeResource, short tableId, double bytesPerSecond, double packetsPerSecond) {
+        return ImmutableCollectionSetResource.newBuilder(GenericTypeResource.class)
+                .setResource(MetricGenerator.genericResource(nodeResource, FLOW_RESOURCE_TYPE, tableId + "." + OTHER_FLOW_ID))
+                .addStringAttribute(MetricGenerator.string("flowId", FLOW_STATISTICS_GROUP, OTHER_FLOW_ID))
+                .addStringAttribute(MetricGenerator.string("tableId", FLOW_STATISTICS_GROUP, Short.toString(tableId)))
+                .addNumericAttribute(MetricGenerator.gauge("flowBytes", FLOW_STATISTICS_GROUP, bytesPerSecond))
+                .addNumericAttribute(MetricGenerator.gauge("flowPackets", FLOW_STATISTICS_GROUP, packetsPerSecond))
+                .build();
+    }
+
+    private static long toLong(Counter64 value) {
+        return value != null ? value.getValue().longValue() : 0L;
+    }
+
+    /**
+     * Everything we track for a single switch, of fixed size.
+     */
+    private static class SwitchFlows {
+        private final FlowHeavyHitters sketch;
+        private final boolean[] tablesSeen = new boolean[MAX_TABLES];
+        // Sum of the deltas of the flows which are not in the top N, for the current interval
+        private final long[] otherDeltaBytes = new long[MAX_TABLES];
+        private final long[] otherDeltaPackets = new long[MAX_TABLES];
+        private long lastUpdateMs = -1;
+
+        private SwitchFlows(int sketchCapacity) {
+            sketch = new FlowHeavyHitters(sketchCapacity);
+        }
+
+        /**
+         * @return the time elapsed since the previous update, or -1 if this is the first one
+         */
+        private long update(FlowCapableNode flowCapableNode, long now) {
+            final long elapsedMs = lastUpdateMs >= 0 ? now - lastUpdateMs : -1;
+            lastUpdateMs = now;
+
+            sketch.beginInterval();
+            Arrays.fill(tablesSeen, false);
+            Arrays.fill(otherDeltaBytes, 0);
+            Arrays.fill(otherDeltaPackets, 0);
+
+            for (Table table : flowCapableNode.getTable()) {
+                if (table.getFlow() == null || table.getId() == null || table.getId() < 0 || table.getId() >= MAX_TABLES) {
+                    continue;
+                }
+                final short tableId = table.getId();
+                for (Flow flow : table.getFlow()) {
+                    final FlowStatisticsData data = flow.getAugmentation(FlowStatisticsData.class);
+                    if (data == null || data.getFlowStatistics() == null) {
+                        continue;
+                    }
+                    final FlowStatistics stats = data.getFlowStatistics();
+                    final long bytes = toLong(stats.getByteCount());
+                    final long packets = toLong(stats.getPacketCount());
+                    final long durationMs = stats.getDuration() != null && stats.getDuration().getSecond() != null
+                            ? stats.getDuration().getSecond().getValue() * 1000 : 0;
+
+                    // Flows which were installed during the interval sent all of their traffic within it,
+                    // otherwise assume that the flow has been sending at its average rate
+                    final double ratio = elapsedMs < 0 || durationMs <= elapsedMs ? 1d : (double)elapsedMs / durationMs;
+                    final int slot = sketch.offer(tableId, flow.getId().getValue(), bytes, packets,
+                            (long)(bytes * ratio), (long)(packets * ratio));
+
+                    tablesSeen[tableId] = true;
+                    otherDeltaBytes[tableId] += sketch.getDeltaBytes(slot);
+                    otherDeltaPackets[tableId] += sketch.getDeltaPackets(slot);
+                }
+            }
+            return elapsedMs;
+        }
+    }
+}
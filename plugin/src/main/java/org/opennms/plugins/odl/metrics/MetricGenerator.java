@@ -29,98 +29,372 @@
 package org.opennms.plugins.odl.metrics;
 
 import java.math.BigInteger;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.function.Supplier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNode;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNodeConnector;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.node.connector.Queue;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.Table;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.table.statistics.rev131215.FlowTableStatisticsData;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.table.statistics.rev131215.flow.table.statistics.FlowTableStatistics;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.statistics.rev131111.NodeGroupStatistics;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.statistics.rev131111.group.statistics.GroupStatistics;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.groups.Group;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.model.statistics.types.rev130925.Counter32;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.model.statistics.types.rev130925.Counter64;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.port.statistics.rev131214.FlowCapableNodeConnectorStatisticsData;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.port.statistics.rev131214.flow.capable.node.connector.statistics.FlowCapableNodeConnectorStatistics;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.queue.statistics.rev131216.FlowCapableNodeConnectorQueueStatisticsData;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.queue.statistics.rev131216.flow.capable.node.connector.queue.statistics.FlowCapableNodeConnectorQueueStatistics;
 import org.opennms.integration.api.v1.collectors.CollectionSet;
 import org.opennms.integration.api.v1.collectors.immutables.ImmutableNumericAttribute;
 import org.opennms.integration.api.v1.collectors.immutables.ImmutableStringAttribute;
+import org.opennms.integration.api.v1.collectors.resource.GenericTypeResource;
 import org.opennms.integration.api.v1.collectors.resource.IpInterfaceResource;
 import org.opennms.integration.api.v1.collectors.resource.NodeResource;
 import org.opennms.integration.api.v1.collectors.resource.NumericAttribute;
 import org.opennms.integration.api.v1.collectors.resource.StringAttribute;
 import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableCollectionSet;
 import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableCollectionSetResource;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableGenericTypeResource;
 import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableIpInterfaceResource;
 import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableNodeResource;
 
 /**
  * Used to generate/extract metrics for a ODL operational inventory node
  * into an OpenNMS collection set.
+ *
+ * Port statistics are stored against interface resources, while flow table, group and
+ * queue statistics are stored against the generic resource types defined in
+ * opendaylight-resource-types.xml. All of them are extracted from the same inventory node.
+ *
+ * This runs for every port on every collection cycle, so the resources and the
+ * string attributes of each node connector, which rarely change, are cached and reused.
+ * Instances are safe to use from multiple threads.
  */
 public class MetricGenerator {
 
+    // Store all attributes in the same group
+    private static final String PORT_STATISTICS_GROUP = "opendaylight-port-statistics";
+    private static final String FLOW_TABLE_STATISTICS_GROUP = "opendaylight-flow-table-statistics";
+    private static final String GROUP_STATISTICS_GROUP = "opendaylight-group-statistics";
+    private static final String QUEUE_STATISTICS_GROUP = "opendaylight-queue-statistics";
+
+    public static final String FLOW_TABLE_RESOURCE_TYPE = "odlFlowTable";
+    public static final String GROUP_RESOURCE_TYPE = "odlGroup";
+    public static final String QUEUE_RESOURCE_TYPE = "odlQueue";
+
+    // Upper bound on the number of cached connectors, the caches are cleared when exceeded
+    private static final int MAX_CACHED_CONNECTORS = 100000;
+
+    private final Map<Integer, NodeResource> nodeResourcesById = new ConcurrentHashMap<>();
+    private final Map<String, ConnectorMetadata> connectorMetadataById = new ConcurrentHashMap<>();
+
+    // Optional, only set when per-flow metrics are enabled
+    private volatile FlowMetricGenerator flowMetricGenerator;
+    // Optional, only set when the port rates are computed on ingest
+    private volatile PortRateTracker portRateTracker;
+
     public CollectionSet toCollectionSet(org.opennms.integration.api.v1.model.Node onmsNode, Node odlNode) {
         final ImmutableCollectionSet.Builder csetBuilder = ImmutableCollectionSet.newBuilder()
                 .setStatus(CollectionSet.Status.SUCCEEDED);
 
-        final NodeResource nodeResource = ImmutableNodeResource.newBuilder()
-                .setNodeId(onmsNode.getId())
-                .build();
+        final NodeResource nodeResource = getNodeResource(onmsNode.getId());
 
         // A node has many connectors, which operate like "interfaces" in OpenNMS
         for (NodeConnector nodeConnector : odlNode.getNodeConnector()) {
+            final FlowCapableNodeConnectorStatisticsData flow = nodeConnector.getAugmentation(FlowCapableNodeConnectorStatisticsData.class);
+            if (flow == null) {
+                continue;
+            }
+            final FlowCapableNodeConnectorStatistics flowStats = flow.getFlowCapableNodeConnectorStatistics();
             final FlowCapableNodeConnector flowCapableNodeConnector = nodeConnector.getAugmentation(FlowCapableNodeConnector.class);
-            final String ifName = flowCapableNodeConnector.getName();
-            // Replace all non alpha-numeric characters
-            final String sanitizedIfName = ifName.replaceAll("[^A-Za-z0-9]", "_");
+            final ConnectorMetadata metadata = getConnectorMetadata(nodeResource, nodeConnector, flowCapableNodeConnector);
 
-            // Build an IP interface resource, using the nodeConnectorId as the instance id
-            final IpInterfaceResource ipInterfaceResource = ImmutableIpInterfaceResource.newInstance(nodeResource, sanitizedIfName);
             final ImmutableCollectionSetResource.Builder<?> resourceBuilder = ImmutableCollectionSetResource.newBuilder(IpInterfaceResource.class)
-                    .setResource(ipInterfaceResource);
+                    .setResource(metadata.resource)
+                    // ifName (i.e. s4-eth1)
+                    .addStringAttribute(metadata.ifNameAttribute)
+                    // ifHighSpeed - currentSpeed is in kbps
+                    .addStringAttribute(metadata.ifHighSpeedAttribute);
 
-            // Store all attributes in the same group
-            final String groupName = "opendaylight-port-statistics";
+            // ifHCInOctets, ifHCOutOctets
+            resourceBuilder.addNumericAttribute(counter("ifHCInOctets", PORT_STATISTICS_GROUP, flowStats.getBytes().getReceived()));
+            resourceBuilder.addNumericAttribute(counter("ifHCOutOctets", PORT_STATISTICS_GROUP, flowStats.getBytes().getTransmitted()));
 
-            final FlowCapableNodeConnectorStatisticsData flow = nodeConnector.getAugmentation(FlowCapableNodeConnectorStatisticsData.class);
-            if (flow != null) {
-                final FlowCapableNodeConnectorStatistics flowStats = flow.getFlowCapableNodeConnectorStatistics();
-                // ifName (i.e. s4-eth1)
-                resourceBuilder.addStringAttribute(string("ifName", groupName, () -> ifName));
+            // ifHCInUcastPkts, ifHCOutUcastPkts
+            resourceBuilder.addNumericAttribute(counter("ifHCInUcastPkts", PORT_STATISTICS_GROUP, flowStats.getPackets().getReceived()));
+            resourceBuilder.addNumericAttribute(counter("ifHCOutUcastPkts", PORT_STATISTICS_GROUP, flowStats.getPackets().getTransmitted()));
 
-                // ifHighSpeed - currentSpeed is in kbps
-                resourceBuilder.addStringAttribute(string("ifHighSpeed", groupName, () -> Long.toString(flowCapableNodeConnector.getCurrentSpeed() / 1000)));
+            // transmitDrops
+            resourceBuilder.addNumericAttribute(counter("transmitDrops", PORT_STATISTICS_GROUP, flowStats.getTransmitDrops()));
 
-                // ifHCInOctets, ifHCOutOctets
-                resourceBuilder.addNumericAttribute(counter("ifHCInOctets", groupName, () -> flowStats.getBytes().getReceived()));
-                resourceBuilder.addNumericAttribute(counter("ifHCOutOctets", groupName, () -> flowStats.getBytes().getTransmitted()));
+            final PortRateTracker portRateTracker = this.portRateTracker;
+            if (portRateTracker != null) {
+                final PortRateTracker.PortHistory history = portRateTracker.getOrCreate(onmsNode.getId(), nodeConnector.getId().getValue());
+                if (history != null) {
+                    addPortRates(resourceBuilder, history, flowStats, metadata.currentSpeed);
+                }
+            }
 
-                // ifHCInUcastPkts, ifHCOutUcastPkts
-                resourceBuilder.addNumericAttribute(counter("ifHCInUcastPkts", groupName, () -> flowStats.getPackets().getReceived()));
-                resourceBuilder.addNumericAttribute(counter("ifHCOutUcastPkts", groupName, () -> flowStats.getPackets().getTransmitted()));
+            // Add the resource to the collection set
+            csetBuilder.addCollectionSetResource(resourceBuilder.build());
 
-                // transmitDrops
-                resourceBuilder.addNumericAttribute(counter("transmitDrops", groupName, flowStats::getTransmitDrops));
+            addQueueStatistics(csetBuilder, nodeResource, metadata, flowCapableNodeConnector);
+        }
 
-                // Add the resource to the collection set
-                csetBuilder.addCollectionSetResource(resourceBuilder.build());
+        final FlowCapableNode flowCapableNode = odlNode.getAugmentation(FlowCapableNode.class);
+        if (flowCapableNode != null) {
+            addFlowTableStatistics(csetBuilder, nodeResource, flowCapableNode);
+            addGroupStatistics(csetBuilder, nodeResource, flowCapableNode);
+            final FlowMetricGenerator flowMetricGenerator = this.flowMetricGenerator;
+            if (flowMetricGenerator != null) {
+                flowMetricGenerator.addFlowStatistics(csetBuilder, nodeResource, onmsNode.getId(), flowCapableNode);
             }
         }
         return csetBuilder.build();
     }
 
-    private StringAttribute string(String name, String group, Supplier<String> value) {
+    public void setFlowMetricGenerator(FlowMetricGenerator flowMetricGenerator) {
+        this.flowMetricGenerator = flowMetricGenerator;
+    }
+
+    public FlowMetricGenerator getFlowMetricGenerator() {
+        return flowMetricGenerator;
+    }
+
+    public void setPortRateTracker(PortRateTracker portRateTracker) {
+        this.portRateTracker = portRateTracker;
+    }
+
+    public PortRateTracker getPortRateTracker() {
+        return portRateTracker;
+    }
+
+    private static void addPortRates(ImmutableCollectionSetResource.Builder<?> resourceBuilder, PortRateTracker.PortHistory history,
+                                     FlowCapableNodeConnectorStatistics flowStats, long currentSpeed) {
+        // Prefer the time reported by the switch, so that samples which were not refreshed by the controller are detected
+        final long timeNanos = flowStats.getDuration() != null && flowStats.getDuration().getSecond() != null
+                ? flowStats.getDuration().getSecond().getValue() * 1000000000L
+                    + (flowStats.getDuration().getNanosecond() != null ? flowStats.getDuration().getNanosecond().getValue() : 0L)
+                : System.nanoTime();
+        history.add(timeNanos,
+                flowStats.getBytes().getReceived().longValue(),
+                flowStats.getBytes().getTransmitted().longValue(),
+                flowStats.getPackets().getReceived().longValue(),
+                flowStats.getPackets().getTransmitted().longValue(),
+                flowStats.getTransmitDrops().longValue());
+        if (history.getSampleCount() < 1) {
+            return;
+        }
+
+        final double inOctetsRate = history.getRate(PortRateTracker.IN_OCTETS);
+        final double outOctetsRate = history.getRate(PortRateTracker.OUT_OCTETS);
+        resourceBuilder.addNumericAttribute(gauge("inOctetsRate", PORT_STATISTICS_GROUP, inOctetsRate));
+        resourceBuilder.addNumericAttribute(gauge("outOctetsRate", PORT_STATISTICS_GROUP, outOctetsRate));
+        resourceBuilder.addNumericAttribute(gauge("inPktsRate", PORT_STATISTICS_GROUP, history.getRate(PortRateTracker.IN_PACKETS)));
+        resourceBuilder.addNumericAttribute(gauge("outPktsRate", PORT_STATISTICS_GROUP, history.getRate(PortRateTracker.OUT_PACKETS)));
+        resourceBuilder.addNumericAttribute(gauge("txDropsRate", PORT_STATISTICS_GROUP, history.getRate(PortRateTracker.TRANSMIT_DROPS)));
+        if (currentSpeed > 0) {
+            resourceBuilder.addNumericAttribute(gauge("inUtilization", PORT_STATISTICS_GROUP, PortRateTracker.toUtilization(inOctetsRate, currentSpeed)));
+            resourceBuilder.addNumericAttribute(gauge("outUtilization", PORT_STATISTICS_GROUP, PortRateTracker.toUtilization(outOctetsRate, currentSpeed)));
+        }
+    }
+
+    private static void addFlowTableStatistics(ImmutableCollectionSet.Builder csetBuilder, NodeResource nodeResource, FlowCapableNode flowCapableNode) {
+        if (flowCapableNode.getTable() == null) {
+            return;
+        }
+        for (Table table : flowCapableNode.getTable()) {
+            final FlowTableStatisticsData data = table.getAugmentation(FlowTableStatisticsData.class);
+            if (data == null || data.getFlowTableStatistics() == null) {
+                continue;
+            }
+            final FlowTableStatistics stats = data.getFlowTableStatistics();
+            // Switches expose every table they support, most of which are never used, so skip these
+            // to avoid creating hundreds of empty resources per switch
+            if (isZero(stats.getActiveFlows()) && isZero(stats.getPacketsLookedUp())) {
+                continue;
+            }
+            csetBuilder.addCollectionSetResource(ImmutableCollectionSetResource.newBuilder(GenericTypeResource.class)
+                    .setResource(genericResource(nodeResource, FLOW_TABLE_RESOURCE_TYPE, Short.toString(table.getId())))
+                    .addNumericAttribute(gauge("activeFlows", FLOW_TABLE_STATISTICS_GROUP, stats.getActiveFlows()))
+                    .addNumericAttribute(counter("packetsLookedUp", FLOW_TABLE_STATISTICS_GROUP, stats.getPacketsLookedUp()))
+                    .addNumericAttribute(counter("packetsMatched", FLOW_TABLE_STATISTICS_GROUP, stats.getPacketsMatched()))
+                    .build());
+        }
+    }
+
+    private static void addGroupStatistics(ImmutableCollectionSet.Builder csetBuilder, NodeResource nodeResource, FlowCapableNode flowCapableNode) {
+        if (flowCapableNode.getGroup() == null) {
+            return;
+        }
+        for (Group group : flowCapableNode.getGroup()) {
+            final NodeGroupStatistics data = group.getAugmentation(NodeGroupStatistics.class);
+            if (data == null || data.getGroupStatistics() == null) {
+                continue;
+            }
+            final GroupStatistics stats = data.getGroupStatistics();
+            csetBuilder.addCollectionSetResource(ImmutableCollectionSetResource.newBuilder(GenericTypeResource.class)
+                    .setResource(genericResource(nodeResource, GROUP_RESOURCE_TYPE, Long.toString(group.getGroupId().getValue())))
+                    .addNumericAttribute(counter("groupPackets", GROUP_STATISTICS_GROUP, stats.getPacketCount()))
+                    .addNumericAttribute(counter("groupBytes", GROUP_STATISTICS_GROUP, stats.getByteCount()))
+                    .addNumericAttribute(gauge("groupRefCount", GROUP_STATISTICS_GROUP, stats.getRefCount()))
+                    .build());
+        }
+    }
+
+    private static void addQueueStatistics(ImmutableCollectionSet.Builder csetBuilder, NodeResource nodeResource,
+                                           ConnectorMetadata metadata, FlowCapableNodeConnector flowCapableNodeConnector) {
+        if (flowCapableNodeConnector.getQueue() == null) {
+            return;
+        }
+        for (Queue queue : flowCapableNodeConnector.getQueue()) {
+            final FlowCapableNodeConnectorQueueStatisticsData data = queue.getAugmentation(FlowCapableNodeConnectorQueueStatisticsData.class);
+            if (data == null || data.getFlowCapableNodeConnectorQueueStatistics() == null) {
+                continue;
+            }
+            final FlowCapableNodeConnectorQueueStatistics stats = data.getFlowCapableNodeConnectorQueueStatistics();
+            // Queues are numbered per port, so qualify them with the interface
+            final String instance = metadata.sanitizedIfName + "." + queue.getQueueId().getValue();
+            csetBuilder.addCollectionSetResource(ImmutableCollectionSetResource.newBuilder(GenericTypeResource.class)
+                    .setResource(genericResource(nodeResource, QUEUE_RESOURCE_TYPE, instance))
+                    .addStringAttribute(string("ifName", QUEUE_STATISTICS_GROUP, metadata.ifName))
+                    .addNumericAttribute(counter("queueTxBytes", QUEUE_STATISTICS_GROUP, stats.getTransmittedBytes()))
+                    .addNumericAttribute(counter("queueTxPackets", QUEUE_STATISTICS_GROUP, stats.getTransmittedPackets()))
+                    .addNumericAttribute(counter("queueTxErrors", QUEUE_STATISTICS_GROUP, stats.getTransmissionErrors()))
+                    .build());
+        }
+    }
+
+    static GenericTypeResource genericResource(NodeResource nodeResource, String type, String instance) {
+        return ImmutableGenericTypeResource.newBuilder()
+                .setNodeResource(nodeResource)
+                .setType(type)
+                .setInstance(instance)
+                .build();
+    }
+
+    private NodeResource getNodeResource(int nodeId) {
+        return nodeResourcesById.computeIfAbsent(nodeId, id -> ImmutableNodeResource.newBuilder()
+                .setNodeId(id)
+                .build());
+    }
+
+    private ConnectorMetadata getConnectorMetadata(NodeResource nodeResource, NodeConnector nodeConnector, FlowCapableNodeConnector flowCapableNodeConnector) {
+        final String connectorId = nodeConnector.getId().getValue();
+        final String ifName = flowCapableNodeConnector.getName();
+        final long currentSpeed = flowCapableNodeConnector.getCurrentSpeed();
+
+        final ConnectorMetadata metadata = connectorMetadataById.get(connectorId);
+        if (metadata != null && metadata.matches(nodeResource, ifName, currentSpeed)) {
+            return metadata;
+        }
+
+        if (connectorMetadataById.size() >= MAX_CACHED_CONNECTORS) {
+            connectorMetadataById.clear();
+            nodeResourcesById.clear();
+        }
+        final ConnectorMetadata newMetadata = new ConnectorMetadata(nodeResource, ifName, currentSpeed);
+        connectorMetadataById.put(connectorId, newMetadata);
+        return newMetadata;
+    }
+
+    /**
+     * Replaces all non alpha-numeric characters with underscores.
+     */
+    static String sanitize(String ifName) {
+        final char[] chars = ifName.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            final char c = chars[i];
+            if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
+                chars[i] = '_';
+            }
+        }
+        return new String(chars);
+    }
+
+    static StringAttribute string(String name, String group, String value) {
         return ImmutableStringAttribute.newBuilder()
                 .setName(name)
                 .setGroup(group)
-                .setValue(value.get())
+                .setValue(value)
                 .build();
     }
 
-    private NumericAttribute counter(String name, String group, Supplier<BigInteger> value) {
+    static NumericAttribute counter(String name, String group, BigInteger value) {
+        return counter(name, group, toDouble(value));
+    }
+
+    static NumericAttribute counter(String name, String group, double value) {
         return ImmutableNumericAttribute.newBuilder()
                 .setName(name)
                 .setGroup(group)
                 .setType(NumericAttribute.Type.COUNTER)
-                .setValue(value.get().doubleValue())
+                .setValue(value)
+                .build();
+    }
+
+    private static NumericAttribute counter(String name, String group, Counter64 value) {
+        return counter(name, group, value != null ? value.getValue() : BigInteger.ZERO);
+    }
+
+    private static NumericAttribute gauge(String name, String group, Counter32 value) {
+        return gauge(name, group, value != null ? value.getValue() : 0);
+    }
+
+    static NumericAttribute gauge(String name, String group, double value) {
+        return ImmutableNumericAttribute.newBuilder()
+                .setName(name)
+                .setGroup(group)
+                .setType(NumericAttribute.Type.GAUGE)
+                .setValue(value)
                 .build();
     }
+
+    private static boolean isZero(Counter32 value) {
+        return value == null || value.getValue() == 0;
+    }
+
+    private static boolean isZero(Counter64 value) {
+        return value == null || value.getValue().signum() == 0;
+    }
+
+    private static double toDouble(BigInteger value) {
+        // Most counters fit in a long, which converts without going through the magnitude array
+        return value.bitLength() < Long.SIZE ? (double)value.longValue() : value.doubleValue();
+    }
+
+    /**
+     * Everything we derive from a node connector which does not change from one sample to the next.
+     */
+    private static class ConnectorMetadata {
+        private final NodeResource nodeResource;
+        private final String ifName;
+        private final String sanitizedIfName;
+        private final long currentSpeed;
+        private final IpInterfaceResource resource;
+        private final StringAttribute ifNameAttribute;
+        private final StringAttribute ifHighSpeedAttribute;
+
+        private ConnectorMetadata(NodeResource nodeResource, String ifName, long currentSpeed) {
+            this.nodeResource = nodeResource;
+            this.ifName = ifName;
+            this.currentSpeed = currentSpeed;
+            sanitizedIfName = sanitize(ifName);
+            // Build an IP interface resource, using the sanitized interface name as the instance id
+            resource = ImmutableIpInterfaceResource.newInstance(nodeResource, sanitizedIfName);
+            ifNameAttribute = string("ifName", PORT_STATISTICS_GROUP, ifName);
+            ifHighSpeedAttribute = string("ifHighSpeed", PORT_STATISTICS_GROUP, Long.toString(currentSpeed / 1000));
+        }
+
+        private boolean matches(NodeResource nodeResource, String ifName, long currentSpeed) {
+            return this.nodeResource == nodeResource
+                    && this.currentSpeed == currentSpeed
+                    && this.ifName.equals(ifName);
+        }
+    }
 }
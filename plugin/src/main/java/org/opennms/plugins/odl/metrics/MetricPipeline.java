@@ -0,0 +1,530 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
+import org.opennms.integration.api.v1.collectors.CollectionSet;
+import org.opennms.integration.api.v1.collectors.CollectionSetPersistenceService;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.plugins.odl.NodeRegistry;
+import org.opennms.plugins.odl.OpendaylightRestconfClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects metrics using a pipeline of stages: fetch, generate and persist.
+ *
+ * Every stage has its own bounded input queue and its own set of threads, so that
+ * network, CPU and storage latency overlap instead of adding up. When a queue is full,
+ * the {@link OverflowPolicy} determines whether the upstream stage blocks, or whether the
+ * oldest queued item is dropped in favor of the new one.
+ *
+ * The responses are decoded by the fetch stage while they are read off the wire, so that
+ * the inventory is never buffered as a whole.
+ *
+ * Every submission returns a future which completes once all of its nodes went through the
+ * persist stage, so that callers can tell when a collection actually finished, rather than
+ * when it was queued. When any part of a submission is dropped, the future completes
+ * exceptionally with a {@link RejectedExecutionException}, and the affected nodes are backed
+ * off when adaptive intervals are in use.
+ */
+public class MetricPipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricPipeline.class);
+
+    private static final long STAGE_DRAIN_TIMEOUT_MS = 5000;
+
+    public enum OverflowPolicy {
+        /**
+         * Block the upstream stage until there is room in the queue.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest item in the queue to make room.
+         */
+        DROP_OLDEST
+    }
+
+    private final OpendaylightRestconfClient client;
+    private final NodeRegistry nodeRegistry;
+    private final CollectionSetPersistenceService collectionSetPersistenceService;
+    private final MetricGenerator metricGenerator;
+    private final boolean bulkInventoryFetch;
+
+    private final Stage<NodeBatch> fetchStage;
+    private final Stage<NodeInventory> generateStage;
+    private final Stage<NodeCollectionSet> persistStage;
+
+    // Optional, evaluates the thresholds before the collection sets are queued for persistence
+    private ThresholdEvaluator thresholdEvaluator;
+    // Optional, adapts the collection intervals to the metrics and to the time taken to fetch them
+    private AdaptiveIntervals adaptiveIntervals;
+
+    public MetricPipeline(OpendaylightRestconfClient client, NodeRegistry nodeRegistry, CollectionSetPersistenceService collectionSetPersistenceService,
+                          MetricGenerator metricGenerator, boolean bulkInventoryFetch, int queueSize, OverflowPolicy overflowPolicy,
+                          int fetchThreads, int generateThreads, int persistThreads) {
+        this.client = Objects.requireNonNull(client);
+        this.nodeRegistry = Objects.requireNonNull(nodeRegistry);
+        this.collectionSetPersistenceService = Objects.requireNonNull(collectionSetPersistenceService);
+        this.metricGenerator = Objects.requireNonNull(metricGenerator);
+        this.bulkInventoryFetch = bulkInventoryFetch;
+        persistStage = new Stage<>("Persist", queueSize, overflowPolicy, persistThreads, this::persist,
+                item -> onDropped("Persist", item.submission, Collections.singletonList(item.onmsNode)));
+        generateStage = new Stage<>("Generate", queueSize, overflowPolicy, generateThreads, this::generate,
+                item -> onDropped("Generate", item.submission, Collections.singletonList(item.onmsNode)));
+        fetchStage = new Stage<>("Fetch", queueSize, overflowPolicy, fetchThreads, this::fetch,
+                item -> onDropped("Fetch", item.submission, item.onmsNodes));
+    }
+
+    public void setThresholdEvaluator(ThresholdEvaluator thresholdEvaluator) {
+        this.thresholdEvaluator = thresholdEvaluator;
+    }
+
+    public void setAdaptiveIntervals(AdaptiveIntervals adaptiveIntervals) {
+        this.adaptiveIntervals = adaptiveIntervals;
+    }
+
+    public void start() {
+        persistStage.start();
+        generateStage.start();
+        fetchStage.start();
+    }
+
+    /**
+     * Stops the stages from upstream to downstream, giving each stage a chance to
+     * process the items which are still queued.
+     */
+    public void stop() {
+        fetchStage.stop(STAGE_DRAIN_TIMEOUT_MS);
+        generateStage.stop(STAGE_DRAIN_TIMEOUT_MS);
+        persistStage.stop(STAGE_DRAIN_TIMEOUT_MS);
+    }
+
+    /**
+     * Queues the collection of the given nodes.
+     *
+     * @return a future which completes once the collection sets of the nodes were persisted
+     */
+    public CompletableFuture<Void> submit(List<Node> onmsNodes) throws InterruptedException {
+        return submit(onmsNodes, bulkInventoryFetch);
+    }
+
+    /**
+     * Queues the collection of the given nodes, overriding whether the inventory is fetched in bulk.
+     *
+     * @return a future which completes once the collection sets of the nodes were persisted
+     */
+    public CompletableFuture<Void> submit(List<Node> onmsNodes, boolean bulk) throws InterruptedException {
+        final Submission submission = new Submission();
+        fetchStage.submit(new NodeBatch(onmsNodes, bulk, submission));
+        return submission.future;
+    }
+
+    public List<Stage<?>> getStages() {
+        final List<Stage<?>> stages = new ArrayList<>(3);
+        stages.add(fetchStage);
+        stages.add(generateStage);
+        stages.add(persistStage);
+        return stages;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MetricPipeline[%s, %s, %s]", fetchStage, generateStage, persistStage);
+    }
+
+    private void onDropped(String stageName, Submission submission, List<Node> onmsNodes) {
+        submission.fail(new RejectedExecutionException(String.format("The %s stage dropped the collection of %d node(s).",
+                stageName, onmsNodes.size())));
+        if (adaptiveIntervals != null) {
+            onmsNodes.forEach(adaptiveIntervals::backOff);
+        }
+    }
+
+    private void fetch(NodeBatch batch) throws Exception {
+        try {
+            fetchNodes(batch);
+        } catch (InterruptedException e) {
+            // Accounted for by the stage
+            throw e;
+        } catch (Exception e) {
+            batch.submission.fail(e);
+            throw e;
+        }
+        batch.submission.done();
+    }
+
+    private void fetchNodes(NodeBatch batch) throws Exception {
+        final List<Node> onmsNodes = batch.onmsNodes;
+        if (batch.bulk) {
+            final Nodes inventory = client.getOperationalInventory();
+            final Map<String, org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node> inventoryNodesById = new HashMap<>();
+            if (inventory != null && inventory.getNode() != null) {
+                for (org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node node : inventory.getNode()) {
+                    inventoryNodesById.put(node.getId().getValue(), node);
+                }
+            }
+            for (Node onmsNode : onmsNodes) {
+                final org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node node =
+                        inventoryNodesById.get(nodeRegistry.getMetadata(onmsNode).getNodeId());
+                if (node == null) {
+                    LOG.debug("Node with label: {} is not in the operational inventory. Skipping.", onmsNode.getLabel());
+                    continue;
+                }
+                // The fetch time is that of the whole inventory, it says nothing about the node itself
+                queueForGeneration(new NodeInventory(onmsNode, node, -1, batch.submission));
+            }
+            return;
+        }
+        for (Node onmsNode : onmsNodes) {
+            final String nodeId = nodeRegistry.getMetadata(onmsNode).getNodeId();
+            try {
+                final long start = System.currentTimeMillis();
+                final org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node node = client.getNodeFromOperationalInventory(nodeId);
+                if (node == null) {
+                    LOG.debug("Node with label: {} is not in the operational inventory. Skipping.", onmsNode.getLabel());
+                    continue;
+                }
+                queueForGeneration(new NodeInventory(onmsNode, node, System.currentTimeMillis() - start, batch.submission));
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                LOG.error("Failed to fetch metrics for: {}", onmsNode.getLabel(), e);
+            }
+        }
+    }
+
+    private void queueForGeneration(NodeInventory nodeInventory) throws InterruptedException {
+        // Counted before being queued, so that the submission can't complete while the node is in flight
+        nodeInventory.submission.fork();
+        try {
+            generateStage.submit(nodeInventory);
+        } catch (InterruptedException e) {
+            nodeInventory.submission.done();
+            throw e;
+        }
+    }
+
+    private void generate(NodeInventory nodeInventory) throws Exception {
+        final CollectionSet collectionSet;
+        try {
+            collectionSet = metricGenerator.toCollectionSet(nodeInventory.onmsNode, nodeInventory.node);
+            if (thresholdEvaluator != null) {
+                thresholdEvaluator.evaluate(nodeInventory.onmsNode, collectionSet);
+            }
+            if (adaptiveIntervals != null) {
+                adaptiveIntervals.observe(nodeInventory.onmsNode, collectionSet, nodeInventory.fetchTimeMs);
+            }
+        } catch (Exception e) {
+            // The failure of a single node is logged by the stage, the other nodes of the submission carry on
+            nodeInventory.submission.done();
+            throw e;
+        }
+        persistStage.submit(new NodeCollectionSet(nodeInventory.onmsNode, collectionSet, nodeInventory.submission));
+    }
+
+    private void persist(NodeCollectionSet nodeCollectionSet) {
+        try {
+            final Node onmsNode = nodeCollectionSet.onmsNode;
+            final InetAddress address = onmsNode.getIpInterfaces().get(0).getIpAddress();
+            collectionSetPersistenceService.persist(onmsNode.getId(), address, nodeCollectionSet.collectionSet);
+            LOG.debug("Successfully pushed collection set with {} resouces for node: {}",
+                    nodeCollectionSet.collectionSet.getCollectionSetResources().size(), onmsNode.getLabel());
+        } finally {
+            nodeCollectionSet.submission.done();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Handler<T> {
+        void handle(T item) throws Exception;
+    }
+
+    /**
+     * A bounded queue drained by a fixed number of threads.
+     */
+    public static class Stage<T> {
+        private final String name;
+        private final BlockingQueue<QueuedItem<T>> queue;
+        private final OverflowPolicy overflowPolicy;
+        private final int numThreads;
+        private final Handler<T> handler;
+        // Invoked with every item which is dropped without being handled
+        private final Consumer<T> dropHandler;
+        private final List<Thread> threads = new ArrayList<>();
+        private volatile boolean running = false;
+
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong totalProcessingNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        private Stage(String name, int queueSize, OverflowPolicy overflowPolicy, int numThreads, Handler<T> handler, Consumer<T> dropHandler) {
+            this.name = Objects.requireNonNull(name);
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+            this.numThreads = numThreads;
+            this.handler = Objects.requireNonNull(handler);
+            this.dropHandler = Objects.requireNonNull(dropHandler);
+        }
+
+        private void start() {
+            running = true;
+            for (int i = 0; i < numThreads; i++) {
+                final Thread thread = new Thread(this::run);
+                thread.setName(String.format("ODL-Metric%s-%d", name, i));
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+
+        /**
+         * Waits up to the given timeout for the queued items to be picked up, and then stops the threads.
+         * Items which are still queued are dropped.
+         */
+        private void stop(long drainTimeoutMs) {
+            final long deadline = System.currentTimeMillis() + drainTimeoutMs;
+            try {
+                while (running && !queue.isEmpty() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running = false;
+            threads.forEach(Thread::interrupt);
+            for (Thread thread : threads) {
+                try {
+                    thread.join(TimeUnit.SECONDS.toMillis(10));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            threads.clear();
+            final List<QueuedItem<T>> remaining = new ArrayList<>();
+            queue.drainTo(remaining);
+            if (!remaining.isEmpty()) {
+                LOG.warn("{} stage stopped with {} item(s) still queued. Dropping them.", name, remaining.size());
+                remaining.forEach(queuedItem -> drop(queuedItem.item));
+            }
+        }
+
+        private void submit(T item) throws InterruptedException {
+            final QueuedItem<T> queuedItem = new QueuedItem<>(item);
+            if (overflowPolicy == OverflowPolicy.BLOCK) {
+                queue.put(queuedItem);
+                return;
+            }
+            while (!queue.offer(queuedItem)) {
+                final QueuedItem<T> oldestItem = queue.poll();
+                if (oldestItem != null) {
+                    drop(oldestItem.item);
+                }
+            }
+        }
+
+        private void drop(T item) {
+            dropped.incrementAndGet();
+            try {
+                dropHandler.accept(item);
+            } catch (RuntimeException e) {
+                LOG.warn("{} stage failed to handle a dropped item.", name, e);
+            }
+        }
+
+        private void run() {
+            while (running) {
+                final QueuedItem<T> queuedItem;
+                try {
+                    queuedItem = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                final long start = System.nanoTime();
+                final long waitNanos = start - queuedItem.queuedAtNanos;
+                totalWaitNanos.addAndGet(waitNanos);
+                maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+                try {
+                    handler.handle(queuedItem.item);
+                    processed.incrementAndGet();
+                } catch (InterruptedException e) {
+                    // Stopped while processing the item
+                    LOG.warn("{} stage was stopped while processing an item. Dropping it.", name);
+                    drop(queuedItem.item);
+                    return;
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    LOG.error("{} stage failed to process item.", name, e);
+                }
+                totalProcessingNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getQueueDepth() {
+            return queue.size();
+        }
+
+        /**
+         * @return the number of items which were processed successfully
+         */
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return the number of items dropped from the queue to make room for newer ones, or because the stage was stopped
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * @return the average time spent by items in the queue before being processed
+         */
+        public double getAverageWaitMs() {
+            final long count = processed.get() + failed.get();
+            return count == 0 ? 0 : totalWaitNanos.get() / 1e6 / count;
+        }
+
+        public double getMaxWaitMs() {
+            return maxWaitNanos.get() / 1e6;
+        }
+
+        public double getAverageProcessingMs() {
+            final long count = processed.get() + failed.get();
+            return count == 0 ? 0 : totalProcessingNanos.get() / 1e6 / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[depth=%d, processed=%d, failed=%d, dropped=%d, avgWaitMs=%.1f, maxWaitMs=%.1f, avgProcessingMs=%.1f]",
+                    name, getQueueDepth(), getProcessed(), getFailed(), getDropped(), getAverageWaitMs(), getMaxWaitMs(), getAverageProcessingMs());
+        }
+    }
+
+    private static class QueuedItem<T> {
+        private final T item;
+        private final long queuedAtNanos = System.nanoTime();
+
+        private QueuedItem(T item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * Tracks the nodes of a submission which are still going through the stages.
+     */
+    private static class Submission {
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        // The fetch of the batch, plus one for every node which was fetched and is not yet persisted.
+        // Once failed, the future is no longer affected by the count.
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private void fork() {
+            pending.incrementAndGet();
+        }
+
+        private void done() {
+            if (pending.decrementAndGet() == 0) {
+                future.complete(null);
+            }
+        }
+
+        private void fail(Throwable t) {
+            future.completeExceptionally(t);
+        }
+    }
+
+    private static class NodeBatch {
+        private final List<Node> onmsNodes;
+        private final boolean bulk;
+        private final Submission submission;
+
+        private NodeBatch(List<Node> onmsNodes, boolean bulk, Submission submission) {
+            this.onmsNodes = onmsNodes;
+            this.bulk = bulk;
+            this.submission = submission;
+        }
+    }
+
+    private static class NodeInventory {
+        private final Node onmsNode;
+        private final org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node node;
+        // Negative when the node was fetched as part of the complete inventory
+        private final long fetchTimeMs;
+        private final Submission submission;
+
+        private NodeInventory(Node onmsNode, org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node node, long fetchTimeMs,
+                              Submission submission) {
+            this.onmsNode = onmsNode;
+            this.node = node;
+            this.fetchTimeMs = fetchTimeMs;
+            this.submission = submission;
+        }
+    }
+
+    private static class NodeCollectionSet {
+        private final Node onmsNode;
+        private final CollectionSet collectionSet;
+        private final Submission submission;
+
+        private NodeCollectionSet(Node onmsNode, CollectionSet collectionSet, Submission submission) {
+            this.onmsNode = onmsNode;
+            this.collectionSet = collectionSet;
+            this.submission = submission;
+        }
+    }
+}
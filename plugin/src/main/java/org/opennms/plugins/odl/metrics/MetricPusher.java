@@ -29,16 +29,18 @@
 package org.opennms.plugins.odl.metrics;
 
 import java.net.InetAddress;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
 import org.opennms.integration.api.v1.collectors.CollectionSet;
 import org.opennms.integration.api.v1.collectors.CollectionSetPersistenceService;
-import org.opennms.integration.api.v1.dao.NodeDao;
 import org.opennms.integration.api.v1.model.Node;
+import org.opennms.plugins.odl.NodeRegistry;
 import org.opennms.plugins.odl.OdlMetadata;
 import org.opennms.plugins.odl.OpendaylightRequisitionProvider;
 import org.opennms.plugins.odl.OpendaylightRestconfClient;
@@ -48,69 +50,457 @@ import org.slf4j.LoggerFactory;
 public class MetricPusher {
     private static final Logger LOG = LoggerFactory.getLogger(MetricPusher.class);
 
+    private static final long DEFAULT_COLLECTION_INTERVAL_MS = 15000;
+    private static final int DEFAULT_COLLECTOR_THREADS = 4;
+    private static final double DEFAULT_COLLECTION_JITTER = 0.5;
+    private static final long DEFAULT_NODE_REFRESH_INTERVAL_MS = 60000;
+    private static final long DEFAULT_MIN_COLLECTION_INTERVAL_MS = 5000;
+    private static final long DEFAULT_MAX_COLLECTION_INTERVAL_MS = 30000;
+    private static final long DEFAULT_RRD_STEP_MS = DEFAULT_COLLECTION_INTERVAL_MS;
+    // OpenNMS creates the RRDs with a heartbeat of twice the step
+    private static final long DEFAULT_RRD_HEARTBEAT_MS = 2 * DEFAULT_RRD_STEP_MS;
+    private static final long DEFAULT_CHANGE_FALLBACK_INTERVAL_MS = (long)(DEFAULT_RRD_HEARTBEAT_MS * AdaptiveIntervals.HEARTBEAT_RATIO);
+    private static final int DEFAULT_PIPELINE_QUEUE_SIZE = 1000;
+    private static final int DEFAULT_PIPELINE_STAGE_THREADS = 2;
+    // Responses are decoded on the fetch threads
+    private static final int DEFAULT_PIPELINE_FETCH_THREADS = 4;
+
     private final OpendaylightRestconfClient client;
-    private final NodeDao nodeDao;
+    private final NodeRegistry nodeRegistry;
     private final CollectionSetPersistenceService collectionSetPersistenceService;
     private final MetricGenerator metricGenerator = new MetricGenerator();
 
-    private Timer timer;
+    private boolean bulkInventoryFetch = true;
+    private long collectionIntervalMs = DEFAULT_COLLECTION_INTERVAL_MS;
+    private String collectionIntervals;
+    private int collectorThreads = DEFAULT_COLLECTOR_THREADS;
+    private double collectionJitter = DEFAULT_COLLECTION_JITTER;
+    private long nodeRefreshIntervalMs = DEFAULT_NODE_REFRESH_INTERVAL_MS;
+
+    private boolean pipelined = true;
+    private int pipelineQueueSize = DEFAULT_PIPELINE_QUEUE_SIZE;
+    private MetricPipeline.OverflowPolicy pipelineOverflowPolicy = MetricPipeline.OverflowPolicy.BLOCK;
+    private int fetchThreads = DEFAULT_PIPELINE_FETCH_THREADS;
+    private int generateThreads = DEFAULT_PIPELINE_STAGE_THREADS;
+    private int persistThreads = DEFAULT_PIPELINE_STAGE_THREADS;
+
+    private boolean flowMetricsEnabled = false;
+    private int flowMetricsTopN = FlowMetricGenerator.DEFAULT_TOP_N;
+    private int flowSketchCapacity = FlowMetricGenerator.DEFAULT_SKETCH_CAPACITY;
+
+    private boolean portRatesEnabled = true;
+    private int portRateHistorySize = PortRateTracker.DEFAULT_HISTORY_SIZE;
 
+    private ThresholdEvaluator thresholdEvaluator;
 
-    public MetricPusher(OpendaylightRestconfClient client, NodeDao nodeDao, CollectionSetPersistenceService collectionSetPersistenceService) {
+    private boolean changeDrivenCollection = false;
+    private long changeFallbackIntervalMs = DEFAULT_CHANGE_FALLBACK_INTERVAL_MS;
+    private double changeBulkFetchRatio = ChangeDrivenCollector.DEFAULT_BULK_FETCH_RATIO;
+
+    private boolean adaptiveIntervalsEnabled = false;
+    private long minCollectionIntervalMs = DEFAULT_MIN_COLLECTION_INTERVAL_MS;
+    private long maxCollectionIntervalMs = DEFAULT_MAX_COLLECTION_INTERVAL_MS;
+    private long rrdStepMs = DEFAULT_RRD_STEP_MS;
+    private long rrdHeartbeatMs = DEFAULT_RRD_HEARTBEAT_MS;
+    private double adaptiveIntervalsVolatility = AdaptiveIntervals.DEFAULT_VOLATILITY_THRESHOLD;
+
+    private AdaptiveIntervals adaptiveIntervals;
+    private CollectionScheduler scheduler;
+    private ChangeDrivenCollector changeDrivenCollector;
+    private MetricPipeline pipeline;
+
+    public MetricPusher(OpendaylightRestconfClient client, NodeRegistry nodeRegistry, CollectionSetPersistenceService collectionSetPersistenceService) {
         this.client = Objects.requireNonNull(client);
-        this.nodeDao = Objects.requireNonNull(nodeDao);
+        this.nodeRegistry = Objects.requireNonNull(nodeRegistry);
         this.collectionSetPersistenceService = Objects.requireNonNull(collectionSetPersistenceService);
     }
 
     public void init() {
-        timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                Thread.currentThread().setName("ODL-MetricPusher");
-                try {
-                    gatherAndPersistMetrics();
-                } catch (Exception e) {
-                    LOG.error("Oops", e);
-                }
+        if (flowMetricsEnabled) {
+            metricGenerator.setFlowMetricGenerator(new FlowMetricGenerator(flowMetricsTopN, flowSketchCapacity));
+        }
+        if (portRatesEnabled) {
+            metricGenerator.setPortRateTracker(new PortRateTracker(portRateHistorySize));
+        }
+        final CollectionIntervals intervals = CollectionIntervals.parse(collectionIntervalMs, collectionIntervals);
+        intervals.setNodeRegistry(nodeRegistry);
+        if (adaptiveIntervalsEnabled && !changeDrivenCollection) {
+            adaptiveIntervals = new AdaptiveIntervals(intervals, minCollectionIntervalMs, maxCollectionIntervalMs, rrdStepMs, rrdHeartbeatMs,
+                    adaptiveIntervalsVolatility);
+        }
+        final CollectionScheduler.Collector collector;
+        final CollectionScheduler.Collector perNodeCollector;
+        final CollectionScheduler.Collector bulkCollector;
+        if (pipelined) {
+            pipeline = new MetricPipeline(client, nodeRegistry, collectionSetPersistenceService, metricGenerator, bulkInventoryFetch,
+                    pipelineQueueSize, pipelineOverflowPolicy, fetchThreads, generateThreads, persistThreads);
+            pipeline.setThresholdEvaluator(thresholdEvaluator);
+            pipeline.setAdaptiveIntervals(adaptiveIntervals);
+            pipeline.start();
+            final MetricPipeline metricPipeline = pipeline;
+            collector = metricPipeline::submit;
+            perNodeCollector = nodes -> metricPipeline.submit(nodes, false);
+            bulkCollector = nodes -> metricPipeline.submit(nodes, true);
+        } else {
+            // Collected in place
+            collector = nodes -> {
+                gatherAndPersistMetrics(nodes);
+                return null;
+            };
+            perNodeCollector = nodes -> {
+                gatherAndPersistMetrics(nodes, false);
+                return null;
+            };
+            bulkCollector = nodes -> {
+                gatherAndPersistMetrics(nodes, true);
+                return null;
+            };
+        }
+        if (changeDrivenCollection) {
+            // Only the nodes which changed are collected, so they are fetched individually unless many of them changed
+            changeDrivenCollector = new ChangeDrivenCollector(client, nodeRegistry, this::refreshNodes, perNodeCollector,
+                    collectionIntervalMs, changeFallbackIntervalMs, rrdHeartbeatMs, nodeRefreshIntervalMs);
+            if (bulkInventoryFetch) {
+                changeDrivenCollector.setBulkCollector(bulkCollector);
+                changeDrivenCollector.setBulkFetchRatio(changeBulkFetchRatio);
             }
-        }, 0, TimeUnit.SECONDS.toMillis(15));
+            changeDrivenCollector.start();
+            return;
+        }
+        if (adaptiveIntervals != null) {
+            // The intervals are re-evaluated every time the nodes are refreshed. Every node may end up with its own
+            // interval, so the nodes are scheduled and fetched individually instead of fetching the inventory per interval.
+            scheduler = new CollectionScheduler(this::refreshNodes, perNodeCollector, adaptiveIntervals::getIntervalMs,
+                    false, collectorThreads, collectionJitter, nodeRefreshIntervalMs);
+        } else {
+            // When fetching the inventory in bulk, collect all of the nodes which share an interval together
+            scheduler = new CollectionScheduler(this::refreshNodes, collector, intervals,
+                    bulkInventoryFetch, collectorThreads, collectionJitter, nodeRefreshIntervalMs);
+        }
+        scheduler.start();
     }
 
     public void destroy() {
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
+        if (changeDrivenCollector != null) {
+            changeDrivenCollector.stop();
+            changeDrivenCollector = null;
+        }
+        if (scheduler != null) {
+            scheduler.stop();
+            scheduler = null;
         }
+        if (pipeline != null) {
+            pipeline.stop();
+            pipeline = null;
+        }
+    }
+
+    /**
+     * Invoked periodically by the scheduler to refresh the list of nodes to collect.
+     */
+    private List<Node> refreshNodes() {
+        if (pipeline != null) {
+            LOG.info("Pipeline statistics: {}", pipeline);
+        }
+        if (changeDrivenCollector != null) {
+            LOG.info("Change driven collection statistics: {}", changeDrivenCollector);
+        }
+        final List<Node> nodes = getNodes();
+        final Set<Integer> nodeIds = nodes.stream().map(Node::getId).collect(Collectors.toSet());
+        if (adaptiveIntervals != null) {
+            adaptiveIntervals.retainAll(nodeIds);
+            LOG.debug("Effective collection intervals by node id: {}", adaptiveIntervals.getEffectiveIntervals());
+        }
+        // Forget the flows and port histories of the removed nodes
+        final FlowMetricGenerator flowMetricGenerator = metricGenerator.getFlowMetricGenerator();
+        if (flowMetricGenerator != null) {
+            flowMetricGenerator.retainAll(nodeIds);
+        }
+        final PortRateTracker portRateTracker = metricGenerator.getPortRateTracker();
+        if (portRateTracker != null) {
+            portRateTracker.retainAll(nodeIds);
+        }
+        return nodes;
+    }
+
+    private List<Node> getNodes() {
+        return nodeRegistry.getNodes();
     }
 
     public void gatherAndPersistMetrics() {
         LOG.debug("Gathering and persisting metrics for all nodes in the {} requsition...", OpendaylightRequisitionProvider.DEFAULT_FOREIGN_SOURCE);
-        final List<Node> onmsNodes = nodeDao.getNodesInForeignSource(OpendaylightRequisitionProvider.DEFAULT_FOREIGN_SOURCE);
+        gatherAndPersistMetrics(getNodes());
+    }
+
+    public void gatherAndPersistMetrics(List<Node> onmsNodes) {
+        gatherAndPersistMetrics(onmsNodes, bulkInventoryFetch);
+    }
+
+    private void gatherAndPersistMetrics(List<Node> onmsNodes, boolean bulk) {
         if (onmsNodes.isEmpty()) {
             LOG.debug("No nodes. Nothing to collect.");
             return;
         }
 
         LOG.debug("Found {} nodes.", onmsNodes.size());
+        final long requestCountBefore = client.getRequestCount();
+        final long bytesReceivedBefore = client.getBytesReceived();
+        final long start = System.currentTimeMillis();
+        if (bulk) {
+            gatherAndPersistMetricsInBulk(onmsNodes);
+        } else {
+            gatherAndPersistMetricsPerNode(onmsNodes);
+        }
+
+        // The counters are shared by all users of the client, so these are only approximate
+        final long requests = client.getRequestCount() - requestCountBefore;
+        final long bytes = client.getBytesReceived() - bytesReceivedBefore;
+        LOG.debug("Collected metrics for {} nodes in {}ms using {} request(s) ({} saved versus per-node mode) and {} bytes.",
+                onmsNodes.size(), System.currentTimeMillis() - start, requests, Math.max(0, onmsNodes.size() - requests), bytes);
+    }
+
+    private void gatherAndPersistMetricsPerNode(List<Node> onmsNodes) {
         for (Node onmsNode : onmsNodes) {
-            final OdlMetadata odlMetadata = new OdlMetadata(onmsNode);
+            final OdlMetadata odlMetadata = nodeRegistry.getMetadata(onmsNode);
             try {
                 LOG.debug("Collecting metrics for: {}", onmsNode.getLabel());
+                final long start = System.currentTimeMillis();
                 org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node node = client.getNodeFromOperationalInventory(odlMetadata.getNodeId());
-                if (node == null) {
-                    LOG.debug("Node with label: {} is not in the operational inventory. Skipping.", onmsNode.getLabel());
-                    continue;
-                }
-                final CollectionSet collectionSet = metricGenerator.toCollectionSet(onmsNode, node);
-                collectionSetPersistenceService.persist(onmsNode.getId(), getFirstInetAddress(onmsNode), collectionSet);
-                LOG.debug("Successfully pushed collection set with {} resouces for node: {}", collectionSet.getCollectionSetResources().size(), onmsNode.getLabel());
+                persistMetrics(onmsNode, node, System.currentTimeMillis() - start);
             } catch (Exception e ){
                 LOG.error("Failed to gather/persist metrics for: {}", onmsNode.getLabel(), e);
             }
         }
     }
 
+    private void gatherAndPersistMetricsInBulk(List<Node> onmsNodes) {
+        final Nodes inventory;
+        final long start = System.currentTimeMillis();
+        try {
+            inventory = client.getOperationalInventory();
+        } catch (Exception e) {
+            LOG.error("Failed to retrieve the operational inventory.", e);
+            return;
+        }
+
+        // Index the inventory nodes by id
+        final Map<String, org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node> inventoryNodesById = new HashMap<>();
+        if (inventory != null && inventory.getNode() != null) {
+            for (org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node node : inventory.getNode()) {
+                inventoryNodesById.put(node.getId().getValue(), node);
+            }
+        }
+        LOG.debug("Found {} nodes in the operational inventory in {}ms.", inventoryNodesById.size(), System.currentTimeMillis() - start);
+
+        for (Node onmsNode : onmsNodes) {
+            final OdlMetadata odlMetadata = nodeRegistry.getMetadata(onmsNode);
+            try {
+                // The fetch time is that of the whole inventory, it says nothing about the node itself
+                persistMetrics(onmsNode, inventoryNodesById.get(odlMetadata.getNodeId()), -1);
+            } catch (Exception e ){
+                LOG.error("Failed to gather/persist metrics for: {}", onmsNode.getLabel(), e);
+            }
+        }
+    }
+
+    private void persistMetrics(Node onmsNode, org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node node, long fetchTimeMs) {
+        if (node == null) {
+            LOG.debug("Node with label: {} is not in the operational inventory. Skipping.", onmsNode.getLabel());
+            return;
+        }
+        final CollectionSet collectionSet = metricGenerator.toCollectionSet(onmsNode, node);
+        if (thresholdEvaluator != null) {
+            thresholdEvaluator.evaluate(onmsNode, collectionSet);
+        }
+        if (adaptiveIntervals != null) {
+            adaptiveIntervals.observe(onmsNode, collectionSet, fetchTimeMs);
+        }
+        collectionSetPersistenceService.persist(onmsNode.getId(), getFirstInetAddress(onmsNode), collectionSet);
+        LOG.debug("Successfully pushed collection set with {} resouces for node: {}", collectionSet.getCollectionSetResources().size(), onmsNode.getLabel());
+    }
+
+    /**
+     * When enabled, the complete operational inventory is retrieved with a single request
+     * on every cycle, instead of issuing one request per node.
+     */
+    public void setBulkInventoryFetch(boolean bulkInventoryFetch) {
+        this.bulkInventoryFetch = bulkInventoryFetch;
+    }
+
+    /**
+     * Default interval at which the nodes are collected.
+     */
+    public void setCollectionIntervalMs(long collectionIntervalMs) {
+        this.collectionIntervalMs = collectionIntervalMs;
+    }
+
+    /**
+     * Per-node or per-group interval overrides, given as a comma separated list of {@code regex=seconds}
+     * pairs matched against the node label or ODL node id.
+     */
+    public void setCollectionIntervals(String collectionIntervals) {
+        this.collectionIntervals = collectionIntervals;
+    }
+
+    /**
+     * Number of collections which may run concurrently.
+     */
+    public void setCollectorThreads(int collectorThreads) {
+        this.collectorThreads = collectorThreads;
+    }
+
+    /**
+     * Fraction, between 0 and 1, of the spacing between two collections which is randomized.
+     * When fetching the inventory in bulk, the nodes sharing an interval are collected together,
+     * so only the start of the bulk collection is randomized.
+     */
+    public void setCollectionJitter(double collectionJitter) {
+        this.collectionJitter = collectionJitter;
+    }
+
+    /**
+     * How often the list of nodes to collect is refreshed.
+     */
+    public void setNodeRefreshIntervalMs(long nodeRefreshIntervalMs) {
+        this.nodeRefreshIntervalMs = nodeRefreshIntervalMs;
+    }
+
+    /**
+     * When enabled, metrics are collected using a pipeline of fetch, generate and persist
+     * stages which run concurrently, instead of collecting each unit serially.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Capacity of the queue in front of each pipeline stage.
+     */
+    public void setPipelineQueueSize(int pipelineQueueSize) {
+        this.pipelineQueueSize = pipelineQueueSize;
+    }
+
+    /**
+     * What to do when the queue of a pipeline stage is full: BLOCK or DROP_OLDEST.
+     */
+    public void setPipelineOverflowPolicy(String pipelineOverflowPolicy) {
+        this.pipelineOverflowPolicy = MetricPipeline.OverflowPolicy.valueOf(pipelineOverflowPolicy.trim().toUpperCase());
+    }
+
+    public void setFetchThreads(int fetchThreads) {
+        this.fetchThreads = fetchThreads;
+    }
+
+    public void setGenerateThreads(int generateThreads) {
+        this.generateThreads = generateThreads;
+    }
+
+    public void setPersistThreads(int persistThreads) {
+        this.persistThreads = persistThreads;
+    }
+
+    public void setFlowMetricsEnabled(boolean flowMetricsEnabled) {
+        this.flowMetricsEnabled = flowMetricsEnabled;
+    }
+
+    public void setFlowMetricsTopN(int flowMetricsTopN) {
+        this.flowMetricsTopN = flowMetricsTopN;
+    }
+
+    public void setFlowSketchCapacity(int flowSketchCapacity) {
+        this.flowSketchCapacity = flowSketchCapacity;
+    }
+
+    public void setPortRatesEnabled(boolean portRatesEnabled) {
+        this.portRatesEnabled = portRatesEnabled;
+    }
+
+    public void setPortRateHistorySize(int portRateHistorySize) {
+        this.portRateHistorySize = portRateHistorySize;
+    }
+
+    public void setThresholdEvaluator(ThresholdEvaluator thresholdEvaluator) {
+        this.thresholdEvaluator = thresholdEvaluator;
+    }
+
+    public void setChangeDrivenCollection(boolean changeDrivenCollection) {
+        this.changeDrivenCollection = changeDrivenCollection;
+    }
+
+    /**
+     * Maximum amount of time between two collections of the same node when collecting changed nodes.
+     * Capped at three quarters of the RRD heartbeat, so that quiet nodes don't store unknown values.
+     */
+    public void setChangeFallbackIntervalMs(long changeFallbackIntervalMs) {
+        this.changeFallbackIntervalMs = changeFallbackIntervalMs;
+    }
+
+    /**
+     * With change driven collection and bulk fetches enabled, the fraction of nodes which must have
+     * changed for the complete inventory to be fetched instead of fetching the changed nodes individually.
+     */
+    public void setChangeBulkFetchRatio(double changeBulkFetchRatio) {
+        this.changeBulkFetchRatio = changeBulkFetchRatio;
+    }
+
+    /**
+     * When enabled, the interval of each node is adapted between the minimum and maximum intervals
+     * based on how much its counters change and on how quickly the controller responds.
+     */
+    public void setAdaptiveIntervalsEnabled(boolean adaptiveIntervalsEnabled) {
+        this.adaptiveIntervalsEnabled = adaptiveIntervalsEnabled;
+    }
+
+    public void setMinCollectionIntervalMs(long minCollectionIntervalMs) {
+        this.minCollectionIntervalMs = minCollectionIntervalMs;
+    }
+
+    public void setMaxCollectionIntervalMs(long maxCollectionIntervalMs) {
+        this.maxCollectionIntervalMs = maxCollectionIntervalMs;
+    }
+
+    /**
+     * Step of the RRDs the metrics are persisted to. Adaptive intervals are always multiples of it.
+     */
+    public void setRrdStepMs(long rrdStepMs) {
+        this.rrdStepMs = rrdStepMs;
+    }
+
+    /**
+     * Heartbeat of the RRDs the metrics are persisted to. Adaptive intervals are never backed off
+     * beyond three quarters of it, and neither is the fallback interval of the change driven collection.
+     */
+    public void setRrdHeartbeatMs(long rrdHeartbeatMs) {
+        this.rrdHeartbeatMs = rrdHeartbeatMs;
+    }
+
+    /**
+     * Relative change in the rate of a node above which its interval is shortened.
+     */
+    public void setAdaptiveIntervalsVolatility(double adaptiveIntervalsVolatility) {
+        this.adaptiveIntervalsVolatility = adaptiveIntervalsVolatility;
+    }
+
+    public AdaptiveIntervals getAdaptiveIntervals() {
+        return adaptiveIntervals;
+    }
+
+    public ChangeDrivenCollector getChangeDrivenCollector() {
+        return changeDrivenCollector;
+    }
+
+    public MetricGenerator getMetricGenerator() {
+        return metricGenerator;
+    }
+
+    public MetricPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public CollectionScheduler getScheduler() {
+        return scheduler;
+    }
+
     private InetAddress getFirstInetAddress(Node onmsNode) {
         return onmsNode.getIpInterfaces().get(0).getIpAddress();
     }
@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a short history of the port counters so that rates and utilization can be
+ * computed when the samples are ingested, instead of only in the graph definitions.
+ *
+ * Every port has a ring buffer of fixed size holding the counter deltas between consecutive
+ * samples, so the memory used per port is constant. The samples are timestamped using the
+ * duration reported by the switch, which lets us detect samples that were not refreshed by
+ * the controller and ports that were reset.
+ *
+ * The histories are grouped by node so that the ones of removed nodes can be dropped together.
+ * Once the maximum number of ports is tracked, new ports are not tracked until others are dropped,
+ * rather than discarding the histories which are in use.
+ */
+public class PortRateTracker {
+
+    public static final int IN_OCTETS = 0;
+    public static final int OUT_OCTETS = 1;
+    public static final int IN_PACKETS = 2;
+    public static final int OUT_PACKETS = 3;
+    public static final int TRANSMIT_DROPS = 4;
+    static final int NUM_COUNTERS = 5;
+
+    public static final int DEFAULT_HISTORY_SIZE = 10;
+
+    // Upper bound on the number of tracked ports
+    private static final int DEFAULT_MAX_TRACKED_PORTS = 100000;
+
+    private final int historySize;
+    private final int maxTrackedPorts;
+    private final Map<Integer, Map<String, PortHistory>> historiesByNodeId = new ConcurrentHashMap<>();
+
+    public PortRateTracker(int historySize) {
+        this(historySize, DEFAULT_MAX_TRACKED_PORTS);
+    }
+
+    PortRateTracker(int historySize, int maxTrackedPorts) {
+        if (historySize < 1) {
+            throw new IllegalArgumentException("History size must be strictly positive. Got: " + historySize);
+        }
+        this.historySize = historySize;
+        this.maxTrackedPorts = maxTrackedPorts;
+    }
+
+    /**
+     * @param nodeId id of the node the port belongs to
+     * @return the history of the given port, or null if the port is not tracked and the maximum number of ports is reached
+     */
+    public PortHistory getOrCreate(int nodeId, String portId) {
+        final Map<String, PortHistory> histories = historiesByNodeId.computeIfAbsent(nodeId, id -> new ConcurrentHashMap<>());
+        PortHistory history = histories.get(portId);
+        if (history == null) {
+            if (size() >= maxTrackedPorts) {
+                return null;
+            }
+            history = histories.computeIfAbsent(portId, id -> new PortHistory(historySize));
+        }
+        return history;
+    }
+
+    /**
+     * @return the history of the given port, or null if the port is not tracked
+     */
+    public PortHistory get(int nodeId, String portId) {
+        final Map<String, PortHistory> histories = historiesByNodeId.get(nodeId);
+        return histories != null ? histories.get(portId) : null;
+    }
+
+    /**
+     * Forgets the ports of the nodes which are no longer present.
+     */
+    public void retainAll(Set<Integer> nodeIds) {
+        historiesByNodeId.keySet().retainAll(nodeIds);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<String, PortHistory> histories : historiesByNodeId.values()) {
+            size += histories.size();
+        }
+        return size;
+    }
+
+    /**
+     * Converts a rate in octets per second to a percentage of the given speed.
+     *
+     * @param speedKbps speed of the port, as reported by the switch
+     * @return the utilization, or NaN if the speed is unknown
+     */
+    public static double toUtilization(double octetsPerSecond, long speedKbps) {
+        if (speedKbps <= 0) {
+            return Double.NaN;
+        }
+        return octetsPerSecond * 8 * 100 / (speedKbps * 1000d);
+    }
+
+    /**
+     * Ring buffer of the counter deltas of a single port.
+     */
+    public static class PortHistory {
+        private final int capacity;
+        // Deltas of the counters between consecutive samples, indexed by [sample * NUM_COUNTERS + counter]
+        private final long[] deltas;
+        private final long[] intervalsNanos;
+        private final long[] lastValues = new long[NUM_COUNTERS];
+        private final long[] pendingDeltas = new long[NUM_COUNTERS];
+        private long lastTimeNanos = -1;
+        // Index of the next sample to write
+        private int head = 0;
+        private int count = 0;
+
+        private long duplicates = 0;
+        private long wraps = 0;
+        private long resets = 0;
+
+        private PortHistory(int capacity) {
+            this.capacity = capacity;
+            deltas = new long[capacity * NUM_COUNTERS];
+            intervalsNanos = new long[capacity];
+        }
+
+        /**
+         * Adds a sample. The counter values are treated as unsigned 64-bit integers.
+         *
+         * @param timeNanos time at which the counters were read, only used to compute the intervals
+         * @return true if the sample was added to the history, false if it was a duplicate, the first
+         * sample, or if the counters were reset
+         */
+        public synchronized boolean add(long timeNanos, long inOctets, long outOctets, long inPackets, long outPackets, long transmitDrops) {
+            if (lastTimeNanos < 0 || timeNanos < lastTimeNanos) {
+                // The first sample, or the port was reset
+                if (lastTimeNanos >= 0) {
+                    resets++;
+                }
+                reset(timeNanos, inOctets, outOctets, inPackets, outPackets, transmitDrops);
+                return false;
+            }
+            if (timeNanos == lastTimeNanos) {
+                // The controller has not refreshed the statistics since the last sample
+                duplicates++;
+                return false;
+            }
+
+            if (!delta(IN_OCTETS, inOctets) || !delta(OUT_OCTETS, outOctets) || !delta(IN_PACKETS, inPackets)
+                    || !delta(OUT_PACKETS, outPackets) || !delta(TRANSMIT_DROPS, transmitDrops)) {
+                resets++;
+                reset(timeNanos, inOctets, outOctets, inPackets, outPackets, transmitDrops);
+                return false;
+            }
+
+            System.arraycopy(pendingDeltas, 0, deltas, head * NUM_COUNTERS, NUM_COUNTERS);
+            intervalsNanos[head] = timeNanos - lastTimeNanos;
+            head = (head + 1) % capacity;
+            count = Math.min(count + 1, capacity);
+            setLastValues(timeNanos, inOctets, outOctets, inPackets, outPackets, transmitDrops);
+            return true;
+        }
+
+        /**
+         * @return the rate of the given counter, in units per second, over the most recent sample,
+         * or NaN if there are no samples
+         */
+        public double getRate(int counter) {
+            return getAverageRate(counter, 1);
+        }
+
+        /**
+         * @return the rate of the given counter, in units per second, over the given number of most
+         * recent samples, or NaN if there are no samples
+         */
+        public synchronized double getAverageRate(int counter, int numSamples) {
+            final int n = Math.min(numSamples, count);
+            if (n < 1) {
+                return Double.NaN;
+            }
+            long sumDeltas = 0;
+            long sumIntervalsNanos = 0;
+            for (int i = 1; i <= n; i++) {
+                final int sample = (head - i + capacity) % capacity;
+                sumDeltas += deltas[sample * NUM_COUNTERS + counter];
+                sumIntervalsNanos += intervalsNanos[sample];
+            }
+            return sumDeltas / (sumIntervalsNanos / 1e9d);
+        }
+
+        public synchronized int getSampleCount() {
+            return count;
+        }
+
+        public synchronized long getDuplicates() {
+            return duplicates;
+        }
+
+        public synchronized long getWraps() {
+            return wraps;
+        }
+
+        public synchronized long getResets() {
+            return resets;
+        }
+
+        private boolean delta(int counter, long value) {
+            final long last = lastValues[counter];
+            if (Long.compareUnsigned(value, last) >= 0) {
+                pendingDeltas[counter] = value - last;
+                return true;
+            }
+            // A 64-bit counter can only wrap if it was close to the maximum and is now close to zero,
+            // otherwise it went backwards because it was reset
+            if (last >>> 62 == 3 && value >>> 62 == 0) {
+                pendingDeltas[counter] = value - last;
+                wraps++;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset(long timeNanos, long inOctets, long outOctets, long inPackets, long outPackets, long transmitDrops) {
+            head = 0;
+            count = 0;
+            setLastValues(timeNanos, inOctets, outOctets, inPackets, outPackets, transmitDrops);
+        }
+
+        private void setLastValues(long timeNanos, long inOctets, long outOctets, long inPackets, long outPackets, long transmitDrops) {
+            lastTimeNanos = timeNanos;
+            lastValues[IN_OCTETS] = inOctets;
+            lastValues[OUT_OCTETS] = outOctets;
+            lastValues[IN_PACKETS] = inPackets;
+            lastValues[OUT_PACKETS] = outPackets;
+            lastValues[TRANSMIT_DROPS] = transmitDrops;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("PortHistory[samples=%d, duplicates=%d, wraps=%d, resets=%d]", count, duplicates, wraps, resets);
+        }
+    }
+}
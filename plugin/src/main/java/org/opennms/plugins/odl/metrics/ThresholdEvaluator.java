@@ -0,0 +1,455 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.opennms.integration.api.v1.collectors.CollectionSet;
+import org.opennms.integration.api.v1.collectors.resource.CollectionSetResource;
+import org.opennms.integration.api.v1.collectors.resource.GenericTypeResource;
+import org.opennms.integration.api.v1.collectors.resource.IpInterfaceResource;
+import org.opennms.integration.api.v1.collectors.resource.NodeResource;
+import org.opennms.integration.api.v1.collectors.resource.NumericAttribute;
+import org.opennms.integration.api.v1.collectors.resource.Resource;
+import org.opennms.integration.api.v1.collectors.resource.StringAttribute;
+import org.opennms.integration.api.v1.config.thresholding.Basethresholddef;
+import org.opennms.integration.api.v1.config.thresholding.Expression;
+import org.opennms.integration.api.v1.config.thresholding.GroupDefinition;
+import org.opennms.integration.api.v1.config.thresholding.Threshold;
+import org.opennms.integration.api.v1.config.thresholding.ThresholdType;
+import org.opennms.integration.api.v1.config.thresholding.ThresholdingConfigExtension;
+import org.opennms.integration.api.v1.events.EventForwarder;
+import org.opennms.integration.api.v1.model.InMemoryEvent;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.integration.api.v1.model.immutables.ImmutableEventParameter;
+import org.opennms.integration.api.v1.model.immutables.ImmutableInMemoryEvent;
+import org.opennms.plugins.odl.EventConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates the high and low thresholds of the plugin's thresholding configuration against
+ * the collection sets as they are generated, before they are persisted, and sends the
+ * threshold events immediately.
+ *
+ * The thresholds are loaded from the same {@link ThresholdingConfigExtension} that is
+ * exposed to threshd, so there is a single definition of them. As in threshd, the values of
+ * counters are converted to rates before being compared.
+ *
+ * The trigger and rearm state of every resource is kept in primitive arrays indexed by the
+ * position of the threshold and of the variable within the thresholds of the resource type.
+ * Evaluations are serialized per resource type, so collection sets of different types can be
+ * evaluated concurrently.
+ */
+public class ThresholdEvaluator {
+    private static final Logger LOG = LoggerFactory.getLogger(ThresholdEvaluator.class);
+
+    // Upper bound on the number of tracked resources, per resource type
+    private static final int DEFAULT_MAX_RESOURCES_PER_TYPE = 100000;
+
+    private final ThresholdingConfigExtension thresholdingConfig;
+    private final EventForwarder eventForwarder;
+    private final LongSupplier clock;
+
+    private volatile boolean enabled = false;
+    private int maxResourcesPerType = DEFAULT_MAX_RESOURCES_PER_TYPE;
+
+    // Thresholds, grouped by the type of resource they apply to
+    private volatile Map<String, ResourceTypeThresholds> thresholdsByDsType = Collections.emptyMap();
+
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong eventsSent = new AtomicLong();
+
+    public ThresholdEvaluator(ThresholdingConfigExtension thresholdingConfig, EventForwarder eventForwarder) {
+        this(thresholdingConfig, eventForwarder, System::currentTimeMillis);
+    }
+
+    ThresholdEvaluator(ThresholdingConfigExtension thresholdingConfig, EventForwarder eventForwarder, LongSupplier clock) {
+        this.thresholdingConfig = Objects.requireNonNull(thresholdingConfig);
+        this.eventForwarder = Objects.requireNonNull(eventForwarder);
+        this.clock = Objects.requireNonNull(clock);
+    }
+
+    public synchronized void init() {
+        final Map<String, ResourceTypeThresholds> thresholds = new HashMap<>();
+        int numThresholds = 0;
+        for (GroupDefinition group : thresholdingConfig.getGroupDefinitions()) {
+            for (Threshold threshold : group.getThresholds()) {
+                numThresholds += compile(thresholds, threshold, threshold.getDsName());
+            }
+            for (Expression expression : group.getExpressions()) {
+                numThresholds += compile(thresholds, expression, expression.getExpression());
+            }
+        }
+        thresholds.values().forEach(ResourceTypeThresholds::freeze);
+        thresholdsByDsType = thresholds;
+        LOG.info("Loaded {} threshold(s) for inline evaluation.", numThresholds);
+    }
+
+    private static int compile(Map<String, ResourceTypeThresholds> thresholds, Basethresholddef def, String expression) {
+        final ThresholdType type = def.getType();
+        if (type != ThresholdType.HIGH && type != ThresholdType.LOW) {
+            // Left to threshd
+            LOG.debug("Skipping {} threshold on {}. Only high and low thresholds are evaluated inline.", type, expression);
+            return 0;
+        }
+        final ResourceTypeThresholds typeThresholds = thresholds.computeIfAbsent(def.getDsType(), ResourceTypeThresholds::new);
+        try {
+            typeThresholds.add(new CompiledThreshold(def, ThresholdExpression.compile(expression, typeThresholds::indexOf)));
+            return 1;
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Failed to compile threshold expression: {}. It will not be evaluated inline.", expression, e);
+            return 0;
+        }
+    }
+
+    /**
+     * Evaluates the thresholds against the given collection set, sending events for those
+     * which are triggered or rearmed.
+     */
+    public void evaluate(Node onmsNode, CollectionSet collectionSet) {
+        final Map<String, ResourceTypeThresholds> thresholdsByDsType = this.thresholdsByDsType;
+        if (!enabled || thresholdsByDsType.isEmpty()) {
+            return;
+        }
+        final long now = clock.getAsLong();
+        for (CollectionSetResource<?> collectionSetResource : collectionSet.getCollectionSetResources()) {
+            final Resource resource = collectionSetResource.getResource();
+            final String dsType;
+            final String instance;
+            if (resource instanceof IpInterfaceResource) {
+                dsType = "if";
+                instance = ((IpInterfaceResource)resource).getInstance();
+            } else if (resource instanceof GenericTypeResource) {
+                dsType = ((GenericTypeResource)resource).getType();
+                instance = ((GenericTypeResource)resource).getInstance();
+            } else if (resource instanceof NodeResource) {
+                dsType = "node";
+                instance = "node";
+            } else {
+                continue;
+            }
+            final ResourceTypeThresholds typeThresholds = thresholdsByDsType.get(dsType);
+            if (typeThresholds == null) {
+                continue;
+            }
+
+            synchronized (typeThresholds) {
+                final ResourceState state = getOrCreateState(typeThresholds, new ResourceKey(onmsNode.getId(), instance));
+                loadValues(typeThresholds, state, collectionSetResource, now);
+                final List<CompiledThreshold> thresholds = typeThresholds.thresholds;
+                for (int i = 0; i < thresholds.size(); i++) {
+                    final CompiledThreshold threshold = thresholds.get(i);
+                    evaluate(onmsNode, collectionSetResource, instance, threshold, state, i,
+                            threshold.expression.evaluate(typeThresholds.values, typeThresholds.stack));
+                }
+            }
+        }
+    }
+
+    private ResourceState getOrCreateState(ResourceTypeThresholds typeThresholds, ResourceKey key) {
+        final Map<ResourceKey, ResourceState> states = typeThresholds.states;
+        ResourceState state = states.get(key);
+        if (state == null) {
+            if (states.size() >= maxResourcesPerType) {
+                evictInactiveStates(typeThresholds);
+            }
+            state = new ResourceState(typeThresholds.variableIndexes.size(), typeThresholds.thresholds.size());
+            states.put(key, state);
+        }
+        return state;
+    }
+
+    /**
+     * Removes the state of the least recently evaluated resources which have no triggered or
+     * partially exceeded thresholds, until a tenth of the capacity is free. The state of
+     * the other resources is kept, regardless of the limit, so that they can still be rearmed.
+     */
+    private void evictInactiveStates(ResourceTypeThresholds typeThresholds) {
+        final int target = maxResourcesPerType - Math.max(1, maxResourcesPerType / 10);
+        int evicted = 0;
+        final Iterator<ResourceState> it = typeThresholds.states.values().iterator();
+        while (it.hasNext() && typeThresholds.states.size() > target) {
+            if (!it.next().isActive()) {
+                it.remove();
+                evicted++;
+            }
+        }
+        if (typeThresholds.states.size() > target) {
+            LOG.warn("{} resources of type {} have active thresholds, which exceeds the limit of {}. Their state is retained.",
+                    typeThresholds.states.size(), typeThresholds.dsType, maxResourcesPerType);
+        } else {
+            LOG.debug("Evicted the threshold state of {} inactive resources of type {}.", evicted, typeThresholds.dsType);
+        }
+    }
+
+    private void loadValues(ResourceTypeThresholds typeThresholds, ResourceState state, CollectionSetResource<?> collectionSetResource, long now) {
+        Arrays.fill(typeThresholds.values, Double.NaN);
+        for (NumericAttribute attribute : collectionSetResource.getNumericAttributes()) {
+            final Integer index = typeThresholds.variableIndexes.get(attribute.getName());
+            if (index == null) {
+                continue;
+            }
+            if (attribute.getType() == NumericAttribute.Type.COUNTER) {
+                typeThresholds.values[index] = state.toRate(index, attribute.getValue(), now);
+            } else {
+                typeThresholds.values[index] = attribute.getValue();
+            }
+        }
+    }
+
+    private void evaluate(Node onmsNode, CollectionSetResource<?> collectionSetResource, String instance,
+                          CompiledThreshold threshold, ResourceState state, int slot, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        evaluations.incrementAndGet();
+
+        final boolean high = threshold.type == ThresholdType.HIGH;
+        final boolean exceeded = high ? value >= threshold.value : value <= threshold.value;
+        if (exceeded) {
+            state.exceededCounts[slot]++;
+            if (!state.triggered[slot] && state.exceededCounts[slot] >= threshold.trigger) {
+                state.triggered[slot] = true;
+                sendEvent(onmsNode, collectionSetResource, instance, threshold, value, threshold.triggeredUei);
+            }
+            return;
+        }
+
+        state.exceededCounts[slot] = 0;
+        final boolean rearmed = high ? value <= threshold.rearm : value >= threshold.rearm;
+        if (state.triggered[slot] && rearmed) {
+            state.triggered[slot] = false;
+            sendEvent(onmsNode, collectionSetResource, instance, threshold, value, threshold.rearmedUei);
+        }
+    }
+
+    private void sendEvent(Node onmsNode, CollectionSetResource<?> collectionSetResource, String instance,
+                           CompiledThreshold threshold, double value, String uei) {
+        String label = instance;
+        if (threshold.dsLabel != null) {
+            for (StringAttribute attribute : collectionSetResource.getStringAttributes()) {
+                if (threshold.dsLabel.equals(attribute.getName())) {
+                    label = attribute.getValue();
+                    break;
+                }
+            }
+        }
+
+        final ImmutableInMemoryEvent.Builder eventBuilder = ImmutableInMemoryEvent.newBuilder()
+                .setUei(uei)
+                .setSource(EventConstants.SOURCE)
+                .setNodeId(onmsNode.getId())
+                .addParameter(ImmutableEventParameter.newInstance(EventConstants.THRESHOLD_LABEL_PARM, label))
+                .addParameter(ImmutableEventParameter.newInstance(EventConstants.THRESHOLD_DS_PARM, threshold.expression.toString()))
+                .addParameter(ImmutableEventParameter.newInstance(EventConstants.THRESHOLD_VALUE_PARM, Double.toString(value)))
+                .addParameter(ImmutableEventParameter.newInstance(EventConstants.THRESHOLD_INSTANCE_PARM, instance))
+                .addParameter(ImmutableEventParameter.newInstance(EventConstants.THRESHOLD_THRESHOLD_PARM, Double.toString(threshold.value)))
+                .addParameter(ImmutableEventParameter.newInstance(EventConstants.THRESHOLD_TRIGGER_PARM, Integer.toString(threshold.trigger)))
+                .addParameter(ImmutableEventParameter.newInstance(EventConstants.THRESHOLD_REARM_PARM, Double.toString(threshold.rearm)));
+        if (threshold.description != null) {
+            eventBuilder.addParameter(ImmutableEventParameter.newInstance(EventConstants.THRESHOLD_DESCRIPTION_PARM, threshold.description));
+        }
+        if (!onmsNode.getIpInterfaces().isEmpty()) {
+            final InetAddress address = onmsNode.getIpInterfaces().get(0).getIpAddress();
+            eventBuilder.setInterface(address);
+        }
+
+        final InMemoryEvent event = eventBuilder.build();
+        LOG.debug("Sending threshold event: {}", event);
+        eventForwarder.sendAsync(event);
+        eventsSent.incrementAndGet();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getEvaluations() {
+        return evaluations.get();
+    }
+
+    public long getEventsSent() {
+        return eventsSent.get();
+    }
+
+    public int getNumThresholds() {
+        return thresholdsByDsType.values().stream().mapToInt(t -> t.thresholds.size()).sum();
+    }
+
+    void setMaxResourcesPerType(int maxResourcesPerType) {
+        this.maxResourcesPerType = maxResourcesPerType;
+    }
+
+    /**
+     * The thresholds which apply to a given type of resource, along with the scratch space used to evaluate them
+     * and the state of the resources. Both are guarded by the instance's monitor.
+     */
+    private static class ResourceTypeThresholds {
+        private final String dsType;
+        private final Map<String, Integer> variableIndexes = new LinkedHashMap<>();
+        private final List<CompiledThreshold> thresholds = new ArrayList<>();
+        // Access ordered, least recently evaluated first
+        private final Map<ResourceKey, ResourceState> states = new LinkedHashMap<>(16, 0.75f, true);
+        private double[] values;
+        private double[] stack;
+
+        private ResourceTypeThresholds(String dsType) {
+            this.dsType = dsType;
+        }
+
+        private int indexOf(String variable) {
+            return variableIndexes.computeIfAbsent(variable, v -> variableIndexes.size());
+        }
+
+        private void add(CompiledThreshold threshold) {
+            thresholds.add(threshold);
+        }
+
+        private void freeze() {
+            values = new double[variableIndexes.size()];
+            stack = new double[Math.max(1, thresholds.stream().mapToInt(t -> t.expression.getMaxDepth()).max().orElse(1))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ResourceTypeThresholds[dsType=%s, thresholds=%d]", dsType, thresholds.size());
+        }
+    }
+
+    private static class ResourceKey {
+        private final int nodeId;
+        private final String instance;
+
+        private ResourceKey(int nodeId, String instance) {
+            this.nodeId = nodeId;
+            this.instance = instance;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final ResourceKey that = (ResourceKey) o;
+            return nodeId == that.nodeId && Objects.equals(instance, that.instance);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * nodeId + Objects.hashCode(instance);
+        }
+    }
+
+    /**
+     * The trigger and rearm state of the thresholds, and the last values of the counters, of a single resource.
+     */
+    private static class ResourceState {
+        private final double[] lastCounterValues;
+        private final long[] lastCounterTimes;
+        private final boolean[] counterSeen;
+        private final int[] exceededCounts;
+        private final boolean[] triggered;
+
+        private ResourceState(int numVariables, int numThresholds) {
+            lastCounterValues = new double[numVariables];
+            lastCounterTimes = new long[numVariables];
+            counterSeen = new boolean[numVariables];
+            exceededCounts = new int[numThresholds];
+            triggered = new boolean[numThresholds];
+        }
+
+        /**
+         * @return the rate of the counter per second, NaN on the first sample or if the counter went backwards
+         */
+        private double toRate(int index, double value, long now) {
+            final boolean seen = counterSeen[index];
+            final double delta = value - lastCounterValues[index];
+            final long elapsedMs = now - lastCounterTimes[index];
+            counterSeen[index] = true;
+            lastCounterValues[index] = value;
+            lastCounterTimes[index] = now;
+            if (!seen || delta < 0 || elapsedMs <= 0) {
+                return Double.NaN;
+            }
+            return delta * 1000 / elapsedMs;
+        }
+
+        /**
+         * @return true if any of the thresholds is triggered or has been exceeded without being triggered yet
+         */
+        private boolean isActive() {
+            for (int i = 0; i < triggered.length; i++) {
+                if (triggered[i] || exceededCounts[i] > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class CompiledThreshold {
+        private final ThresholdType type;
+        private final double value;
+        private final double rearm;
+        private final int trigger;
+        private final String dsLabel;
+        private final String description;
+        private final String triggeredUei;
+        private final String rearmedUei;
+        private final ThresholdExpression expression;
+
+        private CompiledThreshold(Basethresholddef def, ThresholdExpression expression) {
+            this.type = def.getType();
+            this.value = def.getValue();
+            this.rearm = def.getRearm();
+            this.trigger = Math.max(1, def.getTrigger());
+            this.dsLabel = def.getDsLabel().orElse(null);
+            this.description = def.getDescription().orElse(null);
+            final boolean high = type == ThresholdType.HIGH;
+            this.triggeredUei = def.getTriggeredUEI().orElse(high ? EventConstants.HIGH_THRESHOLD_EXCEEDED_UEI : EventConstants.LOW_THRESHOLD_EXCEEDED_UEI);
+            this.rearmedUei = def.getRearmedUEI().orElse(high ? EventConstants.HIGH_THRESHOLD_REARMED_UEI : EventConstants.LOW_THRESHOLD_REARMED_UEI);
+            this.expression = expression;
+        }
+    }
+}
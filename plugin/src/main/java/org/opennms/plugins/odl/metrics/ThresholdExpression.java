@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+/**
+ * Arithmetic expression over the attributes of a resource, as used in the threshold definitions.
+ *
+ * Supports numbers, attribute names, the +, -, * and / operators and parentheses. The
+ * expression is compiled once to a postfix program of primitive operations, and the attribute
+ * names are replaced by indexes into the array of values given at evaluation time.
+ */
+public class ThresholdExpression {
+
+    private static final int PUSH_CONSTANT = 0;
+    private static final int PUSH_VARIABLE = 1;
+    private static final int ADD = 2;
+    private static final int SUBTRACT = 3;
+    private static final int MULTIPLY = 4;
+    private static final int DIVIDE = 5;
+    private static final int NEGATE = 6;
+
+    private final String text;
+    private final int[] ops;
+    // Constant value or variable index, for each push operation
+    private final double[] operands;
+    private final int maxDepth;
+
+    private ThresholdExpression(String text, int[] ops, double[] operands, int maxDepth) {
+        this.text = text;
+        this.ops = ops;
+        this.operands = operands;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Compiles the given expression.
+     *
+     * @param variableIndexer maps the attribute names to their index in the array of values
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public static ThresholdExpression compile(String text, ToIntFunction<String> variableIndexer) {
+        final Compiler compiler = new Compiler(text, variableIndexer);
+        compiler.parseSum();
+        compiler.skipWhitespace();
+        if (compiler.pos != text.length()) {
+            throw new IllegalArgumentException(String.format("Unexpected character '%c' at position %d in expression: %s",
+                    text.charAt(compiler.pos), compiler.pos, text));
+        }
+        return new ThresholdExpression(text, Arrays.copyOf(compiler.ops, compiler.numOps),
+                Arrays.copyOf(compiler.operands, compiler.numOps), compiler.maxDepth);
+    }
+
+    /**
+     * @param values values of the variables, NaN if missing
+     * @param stack scratch space, of at least {@link #getMaxDepth()} elements
+     * @return the value of the expression, NaN if any of the variables are missing
+     */
+    public double evaluate(double[] values, double[] stack) {
+        int depth = 0;
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+                case PUSH_CONSTANT:
+                    stack[depth++] = operands[i];
+                    break;
+                case PUSH_VARIABLE:
+                    stack[depth++] = values[(int)operands[i]];
+                    break;
+                case ADD:
+                    depth--;
+                    stack[depth - 1] += stack[depth];
+                    break;
+                case SUBTRACT:
+                    depth--;
+                    stack[depth - 1] -= stack[depth];
+                    break;
+                case MULTIPLY:
+                    depth--;
+                    stack[depth - 1] *= stack[depth];
+                    break;
+                case DIVIDE:
+                    depth--;
+                    stack[depth - 1] /= stack[depth];
+                    break;
+                case NEGATE:
+                    stack[depth - 1] = -stack[depth - 1];
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation: " + ops[i]);
+            }
+        }
+        return stack[0];
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Recursive descent parser emitting postfix operations.
+     */
+    private static class Compiler {
+        private final String text;
+        private final ToIntFunction<String> variableIndexer;
+        private int pos = 0;
+
+        private int[] ops = new int[8];
+        private double[] operands = new double[8];
+        private int numOps = 0;
+        private int depth = 0;
+        private int maxDepth = 0;
+
+        private Compiler(String text, ToIntFunction<String> variableIndexer) {
+            this.text = text;
+            this.variableIndexer = variableIndexer;
+        }
+
+        private void parseSum() {
+            parseProduct();
+            while (true) {
+                skipWhitespace();
+                if (accept('+')) {
+                    parseProduct();
+                    emit(ADD, 0);
+                } else if (accept('-')) {
+                    parseProduct();
+                    emit(SUBTRACT, 0);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void parseProduct() {
+            parseUnary();
+            while (true) {
+                skipWhitespace();
+                if (accept('*')) {
+                    parseUnary();
+                    emit(MULTIPLY, 0);
+                } else if (accept('/')) {
+                    parseUnary();
+                    emit(DIVIDE, 0);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void parseUnary() {
+            skipWhitespace();
+            if (accept('-')) {
+                parseUnary();
+                emit(NEGATE, 0);
+                return;
+            }
+            if (accept('(')) {
+                parseSum();
+                skipWhitespace();
+                if (!accept(')')) {
+                    throw new IllegalArgumentException("Missing closing parenthesis in expression: " + text);
+                }
+                return;
+            }
+
+            final int start = pos;
+            if (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.'
+                        || text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+                    pos++;
+                }
+                try {
+                    emit(PUSH_CONSTANT, Double.parseDouble(text.substring(start, pos)));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid number in expression: " + text, e);
+                }
+            } else if (pos < text.length() && Character.isJavaIdentifierStart(text.charAt(pos))) {
+                while (pos < text.length() && Character.isJavaIdentifierPart(text.charAt(pos))) {
+                    pos++;
+                }
+                emit(PUSH_VARIABLE, variableIndexer.applyAsInt(text.substring(start, pos)));
+            } else {
+                throw new IllegalArgumentException(String.format("Expected a number or an attribute at position %d in expression: %s", pos, text));
+            }
+        }
+
+        private void emit(int op, double operand) {
+            if (numOps == ops.length) {
+                ops = Arrays.copyOf(ops, numOps * 2);
+                operands = Arrays.copyOf(operands, numOps * 2);
+            }
+            ops[numOps] = op;
+            operands[numOps] = operand;
+            numOps++;
+            if (op == PUSH_CONSTANT || op == PUSH_VARIABLE) {
+                maxDepth = Math.max(maxDepth, ++depth);
+            } else if (op != NEGATE) {
+                depth--;
+            }
+        }
+
+        private boolean accept(char c) {
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
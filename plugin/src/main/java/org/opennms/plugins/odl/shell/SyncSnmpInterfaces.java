@@ -1,8 +1,5 @@
 package org.opennms.plugins.odl.shell;
 
-import static org.opennms.plugins.odl.OdlMetadata.NODE_ID_INDEX_KEY;
-import static org.opennms.plugins.odl.OpendaylightRequisitionProvider.METADATA_CONTEXT_ID;
-
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
@@ -24,7 +21,7 @@ import org.apache.karaf.shell.api.action.lifecycle.Service;
 import org.opennms.integration.api.v1.dao.NodeDao;
 import org.opennms.integration.api.v1.model.Node;
 import org.opennms.integration.api.v1.model.SnmpInterface;
-import org.opennms.plugins.odl.OpendaylightRequisitionProvider;
+import org.opennms.plugins.odl.NodeRegistry;
 
 @Command(scope = "opennms-odl", name = "sync-snmp-interfaces", description="Synchronize the SNMP interfaces for a given switch.")
 @Service
@@ -33,6 +30,9 @@ public class SyncSnmpInterfaces implements Action {
     @Reference
     private NodeDao nodeDao;
 
+    @Reference
+    private NodeRegistry nodeRegistry;
+
     @Reference
     private DataSource dataSource;
 
@@ -102,12 +102,12 @@ public class SyncSnmpInterfaces implements Action {
     }
 
     private Optional<Node> findNodeWithIndex(int nodeIdIndex) {
-        return nodeDao.getNodesInForeignSource(OpendaylightRequisitionProvider.DEFAULT_FOREIGN_SOURCE).stream()
-                .filter(n -> n.getMetaData().stream()
-                        .filter(m -> METADATA_CONTEXT_ID.equals(m.getContext()))
-                        .filter(m -> NODE_ID_INDEX_KEY.equals(m.getKey()))
-                        .anyMatch(m -> Integer.toString(nodeIdIndex).equals(m.getValue())))
-                .findFirst();
+        final Node node = nodeRegistry.getNodeByNodeIdIndex(nodeIdIndex);
+        if (node == null) {
+            return Optional.empty();
+        }
+        // Retrieve the latest copy of the node, since its SNMP interfaces may have been updated by a previous run
+        return Optional.ofNullable(nodeDao.getNodeById(node.getId()));
     }
 
 }
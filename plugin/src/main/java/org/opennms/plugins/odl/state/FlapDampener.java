@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.state;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+import java.util.function.LongSupplier;
+
+/**
+ * Dampens the status changes of flapping nodes, in the style of BGP route flap dampening.
+ *
+ * Every status change adds a fixed penalty to the node, and penalties decay exponentially
+ * with the configured half-life. Once the penalty of a node reaches the suppress threshold,
+ * its status changes are suppressed until the penalty decays below the reuse threshold,
+ * at which point the node is released along with the number of changes that were suppressed.
+ * The change which starts the suppression is reported separately, so that callers can
+ * signal that the node is flapping as soon as it starts.
+ *
+ * State is only kept for nodes which have a penalty, in primitive arrays.
+ * All operations are synchronized, so the dampener can be shared by multiple threads.
+ */
+public class FlapDampener extends IntIndexedTable {
+
+    public static final double DEFAULT_PENALTY_PER_FLAP = 1000;
+    public static final double DEFAULT_SUPPRESS_THRESHOLD = 2000;
+    public static final double DEFAULT_REUSE_THRESHOLD = 750;
+    public static final double DEFAULT_MAX_PENALTY = 6000;
+    public static final long DEFAULT_HALF_LIFE_MS = 5 * 60 * 1000;
+
+    /**
+     * What to do with a status change.
+     */
+    public enum Outcome {
+        /**
+         * The change should be forwarded.
+         */
+        FORWARD,
+        /**
+         * The change should be suppressed, and it is the first one to be suppressed since the node started flapping.
+         */
+        START_SUPPRESSING,
+        /**
+         * The change should be suppressed.
+         */
+        SUPPRESS
+    }
+
+    /**
+     * Receives the nodes which are no longer suppressed.
+     */
+    @FunctionalInterface
+    public interface ReleaseConsumer {
+        void released(int nodeId, int suppressedCount);
+    }
+
+    private final double penaltyPerFlap;
+    private final double suppressThreshold;
+    private final double reuseThreshold;
+    private final double maxPenalty;
+    private final long halfLifeMs;
+    private final LongSupplier clock;
+    private final long epochMs;
+
+    private float[] penalties;
+    // Time at which the penalty was last decayed, in seconds since the epoch of the dampener
+    private int[] updatedAt;
+    private boolean[] suppressed;
+    private int[] suppressedCounts;
+
+    private long totalSuppressed = 0;
+    private long totalReleased = 0;
+
+    public FlapDampener() {
+        this(DEFAULT_PENALTY_PER_FLAP, DEFAULT_SUPPRESS_THRESHOLD, DEFAULT_REUSE_THRESHOLD, DEFAULT_MAX_PENALTY, DEFAULT_HALF_LIFE_MS);
+    }
+
+    public FlapDampener(double penaltyPerFlap, double suppressThreshold, double reuseThreshold, double maxPenalty, long halfLifeMs) {
+        this(penaltyPerFlap, suppressThreshold, reuseThreshold, maxPenalty, halfLifeMs, System::currentTimeMillis);
+    }
+
+    FlapDampener(double penaltyPerFlap, double suppressThreshold, double reuseThreshold, double maxPenalty, long halfLifeMs, LongSupplier clock) {
+        if (reuseThreshold >= suppressThreshold || suppressThreshold > maxPenalty) {
+            throw new IllegalArgumentException(String.format("Thresholds must satisfy reuse (%.0f) < suppress (%.0f) <= max penalty (%.0f).",
+                    reuseThreshold, suppressThreshold, maxPenalty));
+        }
+        if (halfLifeMs < 1000) {
+            throw new IllegalArgumentException("Half-life must be at least 1000 ms. Got: " + halfLifeMs);
+        }
+        this.penaltyPerFlap = penaltyPerFlap;
+        this.suppressThreshold = suppressThreshold;
+        this.reuseThreshold = reuseThreshold;
+        this.maxPenalty = maxPenalty;
+        this.halfLifeMs = halfLifeMs;
+        this.clock = clock;
+        epochMs = clock.getAsLong();
+        penalties = new float[keys.length];
+        updatedAt = new int[keys.length];
+        suppressed = new boolean[keys.length];
+        suppressedCounts = new int[keys.length];
+    }
+
+    /**
+     * Records a status change for the given node.
+     *
+     * @return whether the change should be forwarded or suppressed
+     */
+    public synchronized Outcome onStatusChange(int nodeId) {
+        final int now = now();
+        int index = indexOf(nodeId);
+        if (index < 0) {
+            index = add(nodeId);
+            penalties[index] = 0;
+            suppressed[index] = false;
+            suppressedCounts[index] = 0;
+        } else {
+            decay(index, now);
+        }
+        updatedAt[index] = now;
+        penalties[index] = (float)Math.min(maxPenalty, penalties[index] + penaltyPerFlap);
+
+        Outcome outcome = Outcome.SUPPRESS;
+        if (!suppressed[index]) {
+            if (penalties[index] < suppressThreshold) {
+                return Outcome.FORWARD;
+            }
+            suppressed[index] = true;
+            outcome = Outcome.START_SUPPRESSING;
+        }
+        suppressedCounts[index]++;
+        totalSuppressed++;
+        return outcome;
+    }
+
+    /**
+     * Releases the suppressed nodes whose penalty has decayed below the reuse threshold,
+     * and forgets about the nodes whose penalty has become negligible.
+     *
+     * @return the number of nodes released
+     */
+    public synchronized int release(ReleaseConsumer consumer) {
+        final int now = now();
+        int released = 0;
+        // Iterate backwards, since removing an entry moves the last one into its place
+        for (int index = size - 1; index >= 0; index--) {
+            decay(index, now);
+            if (suppressed[index] && penalties[index] < reuseThreshold) {
+                consumer.released(keys[index], suppressedCounts[index]);
+                suppressed[index] = false;
+                suppressedCounts[index] = 0;
+                released++;
+            }
+            if (!suppressed[index] && penalties[index] < reuseThreshold / 2) {
+                removeAt(index);
+            }
+        }
+        totalReleased += released;
+        return released;
+    }
+
+    /**
+     * Removes the state of the nodes for which the given predicate does not hold, without releasing them.
+     */
+    public synchronized int retainAll(IntPredicate predicate) {
+        int removed = 0;
+        for (int index = size - 1; index >= 0; index--) {
+            if (!predicate.test(keys[index])) {
+                removeAt(index);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized boolean isSuppressed(int nodeId) {
+        final int index = indexOf(nodeId);
+        return index >= 0 && suppressed[index];
+    }
+
+    public synchronized double getPenalty(int nodeId) {
+        final int index = indexOf(nodeId);
+        if (index < 0) {
+            return 0;
+        }
+        decay(index, now());
+        return penalties[index];
+    }
+
+    /**
+     * @return the number of nodes with a penalty
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of nodes which are currently suppressed
+     */
+    public synchronized int getSuppressedNodeCount() {
+        int count = 0;
+        for (int index = 0; index < size; index++) {
+            if (suppressed[index]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized long getTotalSuppressed() {
+        return totalSuppressed;
+    }
+
+    public synchronized long getTotalReleased() {
+        return totalReleased;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("FlapDampener[tracked=%d, suppressedNodes=%d, totalSuppressed=%d, totalReleased=%d]",
+                size, getSuppressedNodeCount(), totalSuppressed, totalReleased);
+    }
+
+    @Override
+    protected void growValues(int capacity) {
+        penalties = Arrays.copyOf(penalties, capacity);
+        updatedAt = Arrays.copyOf(updatedAt, capacity);
+        suppressed = Arrays.copyOf(suppressed, capacity);
+        suppressedCounts = Arrays.copyOf(suppressedCounts, capacity);
+    }
+
+    @Override
+    protected void moveValues(int from, int to) {
+        penalties[to] = penalties[from];
+        updatedAt[to] = updatedAt[from];
+        suppressed[to] = suppressed[from];
+        suppressedCounts[to] = suppressedCounts[from];
+    }
+
+    private void decay(int index, int now) {
+        final int elapsedSeconds = now - updatedAt[index];
+        if (elapsedSeconds > 0) {
+            penalties[index] = (float)(penalties[index] * Math.pow(0.5, elapsedSeconds * 1000d / halfLifeMs));
+            updatedAt[index] = now;
+        }
+    }
+
+    private int now() {
+        return (int)((clock.getAsLong() - epochMs) / 1000);
+    }
+}
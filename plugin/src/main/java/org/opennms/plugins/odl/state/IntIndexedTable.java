@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.state;
+
+import java.util.Arrays;
+
+/**
+ * Base class for tables keyed by strictly positive integers, such as node ids, which store
+ * their values in primitive arrays.
+ *
+ * Keys are mapped to a dense index using open addressing with linear probing. Subclasses
+ * keep one array per value, indexed by this dense index, which lets them iterate over all
+ * of the entries without touching empty slots and without allocating any objects per entry.
+ * Removing an entry moves the last entry into its place.
+ */
+abstract class IntIndexedTable {
+
+    // Keys are strictly positive, so we use 0 to mark empty slots
+    private static final int EMPTY = 0;
+    static final int INITIAL_CAPACITY = 32;
+
+    private int[] slotKeys;
+    private int[] slotIndexes;
+
+    /**
+     * Keys by dense index.
+     */
+    protected int[] keys;
+    protected int size = 0;
+
+    protected IntIndexedTable() {
+        keys = new int[INITIAL_CAPACITY];
+        rehash(INITIAL_CAPACITY * 2);
+    }
+
+    /**
+     * Grows the value arrays to the given capacity, preserving their content.
+     */
+    protected abstract void growValues(int capacity);
+
+    /**
+     * Moves the values at index {@code from} to index {@code to}.
+     */
+    protected abstract void moveValues(int from, int to);
+
+    /**
+     * @return the dense index of the given key, or -1 if the key is not present
+     */
+    protected final int indexOf(int key) {
+        final int slot = findSlot(key);
+        return slot < 0 ? -1 : slotIndexes[slot];
+    }
+
+    /**
+     * Adds the given key, which must not already be present.
+     *
+     * @return the dense index of the new entry
+     */
+    protected final int add(int key) {
+        if (key <= EMPTY) {
+            throw new IllegalArgumentException("Key must be strictly positive. Got: " + key);
+        }
+        if (size == keys.length) {
+            final int capacity = keys.length * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            growValues(capacity);
+            rehash(capacity * 2);
+        }
+        final int index = size++;
+        keys[index] = key;
+        slotIndexes[insertionSlot(key)] = index;
+        return index;
+    }
+
+    /**
+     * Removes the entry at the given dense index. The last entry is moved into its place,
+     * so iterations which remove entries should run from the last index to the first.
+     */
+    protected final void removeAt(int index) {
+        deleteSlot(findSlot(keys[index]));
+        final int last = --size;
+        if (index != last) {
+            keys[index] = keys[last];
+            moveValues(last, index);
+            slotIndexes[findSlot(keys[index])] = index;
+        }
+        keys[last] = EMPTY;
+    }
+
+    private int findSlot(int key) {
+        final int mask = slotKeys.length - 1;
+        for (int slot = hash(key) & mask; slotKeys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (slotKeys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int insertionSlot(int key) {
+        final int mask = slotKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (slotKeys[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        slotKeys[slot] = key;
+        return slot;
+    }
+
+    /**
+     * Deletes the given slot, shifting back any entries in the same probe sequence
+     * so that no tombstones are required.
+     */
+    private void deleteSlot(int slot) {
+        final int mask = slotKeys.length - 1;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (slotKeys[next] == EMPTY) {
+                break;
+            }
+            final int home = hash(slotKeys[next]) & mask;
+            // Move the entry into the hole unless its home slot lies cyclically within (hole, next]
+            final boolean inRange = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!inRange) {
+                slotKeys[hole] = slotKeys[next];
+                slotIndexes[hole] = slotIndexes[next];
+                hole = next;
+            }
+        }
+        slotKeys[hole] = EMPTY;
+    }
+
+    private void rehash(int slotCapacity) {
+        slotKeys = new int[slotCapacity];
+        slotIndexes = new int[slotCapacity];
+        for (int index = 0; index < size; index++) {
+            slotIndexes[insertionSlot(keys[index])] = index;
+        }
+    }
+
+    private static int hash(int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.state;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of the last known status of the nodes, keyed by node id.
+ *
+ * Entries are stored in primitive arrays, so that no objects are allocated per entry.
+ * Entries which have not been updated for longer than the TTL are evicted, and the
+ * oldest entries are evicted when the cache is full. Entries are linked in the order
+ * in which they were last updated, so that eviction only visits the evicted entries.
+ *
+ * All operations are synchronized, so the cache can be shared by multiple threads.
+ */
+public class NodeStatusCache extends IntIndexedTable {
+
+    public static final byte UNKNOWN = -1;
+    public static final byte OFFLINE = 0;
+    public static final byte ONLINE = 1;
+
+    private static final int NONE = -1;
+
+    private final long ttlMs;
+    private final int maxSize;
+    private final LongSupplier clock;
+    private final long epochMs;
+
+    private byte[] statuses;
+    // Time of the last update, in seconds since the epoch of the cache
+    private int[] updatedAt;
+    // Doubly linked list of the dense indexes, from the least to the most recently updated
+    private int[] prev;
+    private int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    // Incremented whenever a status is added, changed or removed
+    private long modCount = 0;
+
+    /**
+     * Receives the entries of the cache without boxing.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(int nodeId, byte status);
+    }
+
+    public NodeStatusCache(long ttlMs, int maxSize) {
+        this(ttlMs, maxSize, System::currentTimeMillis);
+    }
+
+    NodeStatusCache(long ttlMs, int maxSize, LongSupplier clock) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Max size must be strictly positive. Got: " + maxSize);
+        }
+        this.ttlMs = ttlMs;
+        this.maxSize = maxSize;
+        this.clock = clock;
+        epochMs = clock.getAsLong();
+        statuses = new byte[keys.length];
+        updatedAt = new int[keys.length];
+        prev = new int[keys.length];
+        next = new int[keys.length];
+    }
+
+    /**
+     * @return the last known status of the node, one of {@link #ONLINE}, {@link #OFFLINE} or {@link #UNKNOWN}
+     */
+    public synchronized byte get(int nodeId) {
+        final int index = indexOf(nodeId);
+        if (index < 0 || isExpired(index, now())) {
+            misses++;
+            return UNKNOWN;
+        }
+        hits++;
+        return statuses[index];
+    }
+
+    /**
+     * Stores the status of the node and refreshes its time-to-live.
+     */
+    public synchronized void put(int nodeId, boolean online) {
+        final int now = now();
+        int index = indexOf(nodeId);
+        if (index < 0) {
+            if (size >= maxSize) {
+                evictExpired(now);
+                if (size >= maxSize) {
+                    evictOldest();
+                }
+            }
+            index = add(nodeId);
+            statuses[index] = UNKNOWN;
+        } else {
+            unlink(index);
+        }
+        linkLast(index);
+        final byte status = online ? ONLINE : OFFLINE;
+        if (statuses[index] != status) {
+            statuses[index] = status;
+            modCount++;
+        }
+        updatedAt[index] = now;
+    }
+
+    public synchronized void remove(int nodeId) {
+        final int index = indexOf(nodeId);
+        if (index >= 0) {
+            delete(index);
+        }
+    }
+
+    /**
+     * Removes all of the entries for which the given predicate does not hold.
+     *
+     * @return the number of entries removed
+     */
+    public synchronized int retainAll(IntPredicate predicate) {
+        return removeIf(index -> !predicate.test(keys[index]));
+    }
+
+    /**
+     * Removes all of the entries which have not been updated within the TTL.
+     *
+     * @return the number of entries removed
+     */
+    public synchronized int evictExpired() {
+        return evictExpired(now());
+    }
+
+    /**
+     * Invokes the consumer for every entry in the cache, including those which have expired
+     * but have not yet been evicted.
+     */
+    public synchronized void forEach(EntryConsumer consumer) {
+        for (int index = 0; index < size; index++) {
+            consumer.accept(keys[index], statuses[index]);
+        }
+    }
+
+    /**
+     * @return a counter which changes whenever the content of the cache changes
+     */
+    public synchronized long getModCount() {
+        return modCount;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRatio() {
+        final long total = hits + misses;
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("NodeStatusCache[size=%d, evictions=%d, hits=%d, misses=%d, hitRatio=%.2f]",
+                size, evictions, hits, misses, getHitRatio());
+    }
+
+    @Override
+    protected void growValues(int capacity) {
+        statuses = Arrays.copyOf(statuses, capacity);
+        updatedAt = Arrays.copyOf(updatedAt, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        next = Arrays.copyOf(next, capacity);
+    }
+
+    @Override
+    protected void moveValues(int from, int to) {
+        statuses[to] = statuses[from];
+        updatedAt[to] = updatedAt[from];
+        // Point the neighbours of the moved entry at its new index
+        prev[to] = prev[from];
+        next[to] = next[from];
+        if (prev[to] != NONE) {
+            next[prev[to]] = to;
+        } else {
+            head = to;
+        }
+        if (next[to] != NONE) {
+            prev[next[to]] = to;
+        } else {
+            tail = to;
+        }
+    }
+
+    private int evictExpired(int now) {
+        // Entries are ordered by update time, so the expired ones are at the head of the list
+        int evicted = 0;
+        while (head != NONE && isExpired(head, now)) {
+            delete(head);
+            evicted++;
+        }
+        evictions += evicted;
+        return evicted;
+    }
+
+    private void evictOldest() {
+        if (head != NONE) {
+            delete(head);
+            evictions++;
+        }
+    }
+
+    private void linkLast(int index) {
+        prev[index] = tail;
+        next[index] = NONE;
+        if (tail != NONE) {
+            next[tail] = index;
+        } else {
+            head = index;
+        }
+        tail = index;
+    }
+
+    private void unlink(int index) {
+        if (prev[index] != NONE) {
+            next[prev[index]] = next[index];
+        } else {
+            head = next[index];
+        }
+        if (next[index] != NONE) {
+            prev[next[index]] = prev[index];
+        } else {
+            tail = prev[index];
+        }
+    }
+
+    private int removeIf(IntPredicate indexPredicate) {
+        int removed = 0;
+        // Iterate backwards, since removing an entry moves the last one into its place
+        for (int index = size - 1; index >= 0; index--) {
+            if (indexPredicate.test(index)) {
+                delete(index);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private void delete(int index) {
+        unlink(index);
+        removeAt(index);
+        modCount++;
+    }
+
+    private boolean isExpired(int index, int now) {
+        return ttlMs > 0 && (now - updatedAt[index]) * 1000L > ttlMs;
+    }
+
+    private int now() {
+        return (int)((clock.getAsLong() - epochMs) / 1000);
+    }
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.state;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the content of a {@link NodeStatusCache} to a local file, so that the
+ * last known status of the nodes survives restarts.
+ *
+ * The file is made up of a header (magic, format version and entry count), followed by
+ * one node id and status per entry, and ends with a CRC32 checksum of all the preceding bytes.
+ * Snapshots are written to a temporary file which then atomically replaces the previous one.
+ */
+public class NodeStatusStore {
+    private static final Logger LOG = LoggerFactory.getLogger(NodeStatusStore.class);
+
+    static final int MAGIC = 0x4F444C53; // "ODLS"
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = Integer.BYTES * 3;
+    private static final int ENTRY_SIZE = Integer.BYTES + Byte.BYTES;
+    private static final int CHECKSUM_SIZE = Long.BYTES;
+
+    private final Path file;
+    private long lastSavedModCount = -1;
+
+    public NodeStatusStore(Path file) {
+        this.file = Objects.requireNonNull(file);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Loads the persisted entries into the given cache. Missing, corrupt or
+     * incompatible files are ignored and result in no entries being loaded.
+     *
+     * @return the number of entries loaded
+     */
+    public int load(NodeStatusCache cache) {
+        final byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            LOG.debug("No node status file found at: {}", file);
+            return 0;
+        } catch (IOException e) {
+            LOG.warn("Failed to read node status file: {}. Starting with an empty state.", file, e);
+            return 0;
+        }
+
+        try {
+            final int numLoaded = decode(bytes, cache);
+            lastSavedModCount = cache.getModCount();
+            LOG.info("Loaded the status of {} node(s) from: {}", numLoaded, file);
+            return numLoaded;
+        } catch (IllegalStateException e) {
+            LOG.warn("Ignoring node status file: {}. {}", file, e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the content of the cache to the file, unless it has not changed since it was last loaded or saved.
+     *
+     * @return true if the file was written
+     */
+    public synchronized boolean saveIfChanged(NodeStatusCache cache) throws IOException {
+        final long modCount = cache.getModCount();
+        if (modCount == lastSavedModCount) {
+            return false;
+        }
+        save(cache);
+        lastSavedModCount = modCount;
+        return true;
+    }
+
+    private void save(NodeStatusCache cache) throws IOException {
+        final Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        final Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(encode(cache));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static byte[] encode(NodeStatusCache cache) {
+        // Hold the lock so that the size cannot change while we copy the entries
+        synchronized (cache) {
+            final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + cache.size() * ENTRY_SIZE + CHECKSUM_SIZE);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(cache.size());
+            cache.forEach((nodeId, status) -> {
+                buffer.putInt(nodeId);
+                buffer.put(status);
+            });
+            buffer.putLong(checksum(buffer.array(), buffer.position()));
+            return buffer.array();
+        }
+    }
+
+    static int decode(byte[] bytes, NodeStatusCache cache) {
+        if (bytes.length < HEADER_SIZE + CHECKSUM_SIZE) {
+            throw new IllegalStateException("File is truncated.");
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final long expectedChecksum = buffer.getLong(bytes.length - CHECKSUM_SIZE);
+        if (checksum(bytes, bytes.length - CHECKSUM_SIZE) != expectedChecksum) {
+            throw new IllegalStateException("Checksum mismatch.");
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalStateException("Invalid magic.");
+        }
+        final int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IllegalStateException("Unsupported version: " + version);
+        }
+        final int count = buffer.getInt();
+        if (count < 0 || bytes.length != HEADER_SIZE + count * ENTRY_SIZE + CHECKSUM_SIZE) {
+            throw new IllegalStateException("Invalid entry count: " + count);
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                final int nodeId = buffer.getInt();
+                final byte status = buffer.get();
+                if (nodeId > 0 && (status == NodeStatusCache.ONLINE || status == NodeStatusCache.OFFLINE)) {
+                    cache.put(nodeId, status == NodeStatusCache.ONLINE);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalStateException("File is truncated.");
+        }
+        return count;
+    }
+
+    private static long checksum(byte[] bytes, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.plugins.odl.DataChangeNotificationParser.DataChangeEvent;
+import org.opennms.plugins.odl.DataChangeNotificationParser.Operation;
+
+import com.google.common.io.Resources;
+
+public class DataChangeNotificationParserTest {
+
+    private final DataChangeNotificationParser parser = new DataChangeNotificationParser();
+
+    @Test
+    public void canParseExampleNotification() throws Exception {
+        String notificationXml = Resources.toString(Resources.getResource("example-notifications.xml"), StandardCharsets.UTF_8);
+        List<DataChangeEvent> events = parser.parse(notificationXml);
+        assertThat(events, hasSize(10));
+
+        DataChangeEvent topologyEvent = events.get(0);
+        assertThat(topologyEvent.getPath(), equalTo("/network-topology:network-topology/network-topology:topology[network-topology:topology-id='flow:1']"));
+        assertThat(topologyEvent.getOperation(), equalTo(Operation.UPDATED));
+        assertThat(topologyEvent.getTopologyId(), equalTo("flow:1"));
+        assertThat(topologyEvent.getNodeId(), nullValue());
+        assertTrue(topologyEvent.isTopologyEvent());
+
+        DataChangeEvent linkEvent = events.get(1);
+        assertThat(linkEvent.getTopologyId(), equalTo("flow:1"));
+        assertThat(linkEvent.getLinkId(), equalTo("openflow:3:3"));
+        assertFalse(linkEvent.isTopologyEvent());
+
+        // None of the changes reference a node
+        assertThat(DataChangeNotificationParser.getNodeIds(events), empty());
+    }
+
+    @Test
+    public void canExtractNodeIds() throws Exception {
+        String notificationXml = "<notification xmlns=\"urn:ietf:params:xml:ns:netconf:notification:1.0\">" +
+                "<eventTime>2019-03-14T12:08:57.367-04:00</eventTime>" +
+                "<data-changed-notification xmlns=\"urn:opendaylight:params:xml:ns:yang:controller:md:sal:remote\">" +
+                "<data-change-event>" +
+                "<path>/network-topology:network-topology/network-topology:topology[network-topology:topology-id='flow:1']/network-topology:node[network-topology:node-id='openflow:2']</path>" +
+                "<operation>deleted</operation>" +
+                "</data-change-event>" +
+                "</data-changed-notification>" +
+                "</notification>";
+        List<DataChangeEvent> events = parser.parse(notificationXml);
+        assertThat(events, hasSize(1));
+        assertThat(events.get(0).getOperation(), equalTo(Operation.DELETED));
+        assertThat(DataChangeNotificationParser.getNodeIds(events), contains("openflow:2"));
+    }
+
+    @Test
+    public void canExtractInventoryIds() {
+        DataChangeEvent event = new DataChangeEvent("/opendaylight-inventory:nodes/opendaylight-inventory:node[opendaylight-inventory:id='openflow:2']"
+                + "/opendaylight-inventory:node-connector[opendaylight-inventory:id='openflow:2:1']"
+                + "/opendaylight-port-statistics:flow-capable-node-connector-statistics", Operation.UPDATED);
+        assertThat(event.getInventoryNodeId(), equalTo("openflow:2"));
+        assertThat(event.getNodeConnectorId(), equalTo("openflow:2:1"));
+        assertThat(event.isPortStatisticsEvent(), equalTo(true));
+        assertThat(event.isPortCountersEvent(), equalTo(false));
+        assertThat(event.getNodeId(), nullValue());
+
+        // Only the byte and packet counters are considered to be counter changes
+        final String statisticsPath = "/opendaylight-inventory:nodes/opendaylight-inventory:node[opendaylight-inventory:id='openflow:2']"
+                + "/opendaylight-inventory:node-connector[opendaylight-inventory:id='openflow:2:1']"
+                + "/opendaylight-port-statistics:flow-capable-node-connector-statistics";
+        event = new DataChangeEvent(statisticsPath + "/opendaylight-port-statistics:bytes/opendaylight-port-statistics:received", Operation.UPDATED);
+        assertThat(event.isPortCountersEvent(), equalTo(true));
+        event = new DataChangeEvent(statisticsPath + "/opendaylight-port-statistics:packets", Operation.UPDATED);
+        assertThat(event.isPortCountersEvent(), equalTo(true));
+        event = new DataChangeEvent(statisticsPath + "/opendaylight-port-statistics:duration/opendaylight-port-statistics:second", Operation.UPDATED);
+        assertThat(event.isPortStatisticsEvent(), equalTo(true));
+        assertThat(event.isPortCountersEvent(), equalTo(false));
+
+        // Topology nodes are keyed by node-id
+        event = new DataChangeEvent("/network-topology:network-topology/network-topology:topology[network-topology:topology-id='flow:1']"
+                + "/network-topology:node[network-topology:node-id='openflow:2']", Operation.UPDATED);
+        assertThat(event.getInventoryNodeId(), nullValue());
+        assertThat(event.isPortStatisticsEvent(), equalTo(false));
+    }
+}
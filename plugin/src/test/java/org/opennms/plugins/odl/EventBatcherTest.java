@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.opennms.plugins.odl.TestUtils.waitFor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.integration.api.v1.events.EventForwarder;
+import org.opennms.integration.api.v1.model.InMemoryEvent;
+import org.opennms.integration.api.v1.model.immutables.ImmutableInMemoryEvent;
+
+public class EventBatcherTest {
+
+    private final EventForwarder eventForwarder = mock(EventForwarder.class);
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    private EventBatcher eventBatcher;
+
+    @Before
+    public void setUp() {
+        doAnswer(invocation -> {
+            final List<?> events = invocation.getArgument(0);
+            batchSizes.add(events.size());
+            return null;
+        }).when(eventForwarder).sendSync(anyList());
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (eventBatcher != null) {
+            eventBatcher.destroy();
+        }
+    }
+
+    @Test
+    public void canForwardEventsInBatches() throws InterruptedException {
+        eventBatcher = new EventBatcher(eventForwarder, 200, 4, 100);
+        // Queue all of the events before starting so that the batches are deterministic
+        for (int i = 0; i < 10; i++) {
+            eventBatcher.send(event(i));
+        }
+        eventBatcher.init();
+
+        waitFor(eventBatcher::getEventsSent, 10);
+        assertEquals(3, eventBatcher.getBatchesSent());
+        assertEquals(4, eventBatcher.getMaxBatchSize());
+        assertEquals(10 / 3d, eventBatcher.getAverageBatchSize(), 0.01d);
+        synchronized (batchSizes) {
+            assertEquals(Arrays.asList(4, 4, 2), batchSizes);
+        }
+    }
+
+    @Test
+    public void canForwardRemainingEventsOnDestroy() throws InterruptedException {
+        eventBatcher = new EventBatcher(eventForwarder, 60000, 100, 100);
+        eventBatcher.init();
+        eventBatcher.send(event(1));
+        eventBatcher.send(event(2));
+        eventBatcher.destroy();
+
+        assertEquals(2, eventBatcher.getEventsSent());
+        eventBatcher = null;
+    }
+
+    @Test
+    public void canApplyBackpressureWhenForwardingIsSlow() throws InterruptedException {
+        final CountDownLatch forwarding = new CountDownLatch(1);
+        final CountDownLatch releaseForwarder = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            forwarding.countDown();
+            releaseForwarder.await();
+            return null;
+        }).when(eventForwarder).sendSync(anyList());
+
+        eventBatcher = new EventBatcher(eventForwarder, 0, 1, 1);
+        eventBatcher.init();
+        eventBatcher.send(event(1));
+        assertTrue(forwarding.await(5, TimeUnit.SECONDS));
+
+        // The forwarder is stuck, so the first send fills the queue and the next one must block
+        eventBatcher.send(event(2));
+        final CountDownLatch sent = new CountDownLatch(1);
+        final Thread producer = new Thread(() -> {
+            eventBatcher.send(event(3));
+            sent.countDown();
+        });
+        producer.start();
+        assertFalse(sent.await(200, TimeUnit.MILLISECONDS));
+
+        releaseForwarder.countDown();
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        producer.join();
+        waitFor(eventBatcher::getEventsSent, 3);
+    }
+
+    @Test
+    public void canRetryBatchesWhichFailToBeForwarded() throws InterruptedException {
+        final AtomicInteger attempts = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new RuntimeException("eventd is unavailable");
+            }
+            return null;
+        }).when(eventForwarder).sendSync(anyList());
+
+        eventBatcher = new EventBatcher(eventForwarder, 0, 10, 10);
+        eventBatcher.setForwardRetryDelayMs(10);
+        eventBatcher.init();
+        assertTrue(eventBatcher.send(event(1)));
+
+        waitFor(eventBatcher::getEventsSent, 1);
+        assertEquals(3, attempts.get());
+        assertEquals(0, eventBatcher.getEventsDropped());
+    }
+
+    @Test
+    public void canNotifyListenerOfDroppedBatches() throws InterruptedException {
+        doThrow(new RuntimeException("eventd is unavailable")).when(eventForwarder).sendSync(anyList());
+        final List<InMemoryEvent> dropped = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch droppedLatch = new CountDownLatch(1);
+
+        eventBatcher = new EventBatcher(eventForwarder, 0, 10, 10);
+        eventBatcher.setMaxForwardAttempts(2);
+        eventBatcher.setForwardRetryDelayMs(10);
+        eventBatcher.setDropListener(events -> {
+            dropped.addAll(events);
+            droppedLatch.countDown();
+        });
+        eventBatcher.init();
+        eventBatcher.send(event(1));
+
+        assertTrue(droppedLatch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, dropped.size());
+        assertEquals(1, eventBatcher.getEventsDropped());
+        assertEquals(0, eventBatcher.getEventsSent());
+    }
+
+    private static InMemoryEvent event(int nodeId) {
+        return ImmutableInMemoryEvent.newBuilder()
+                .setUei(EventConstants.NODE_ONLINE_UEI)
+                .setSource(EventConstants.SOURCE)
+                .setNodeId(nodeId)
+                .build();
+    }
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.opennms.plugins.odl.TestUtils.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.integration.api.v1.topology.UserDefinedLink;
+import org.opennms.integration.api.v1.topology.UserDefinedLinkDao;
+import org.opennms.plugins.odl.topo.Link;
+
+public class LinkSynchronizerTest {
+
+    private final UserDefinedLinkDao userDefinedLinkDao = mock(UserDefinedLinkDao.class);
+    private final NodeRegistry nodeRegistry = mock(NodeRegistry.class);
+    private final List<UserDefinedLink> links = new ArrayList<>();
+    private final List<Integer> deleteBatchSizes = new ArrayList<>();
+    private LinkSynchronizer synchronizer;
+
+    @Before
+    public void setUp() {
+        final List<Node> nodes = Arrays.asList(node(1, "openflow:1"), node(2, "openflow:2"), node(3, "openflow:3"));
+        when(nodeRegistry.getNodes()).thenReturn(nodes);
+        for (Node node : nodes) {
+            when(nodeRegistry.getNodeByLabel(node.getLabel())).thenReturn(node);
+        }
+
+        // Back the DAO with a list
+        when(userDefinedLinkDao.getLinksWithLabel(LinkSynchronizer.LINK_LABEL)).thenAnswer(invocation -> new ArrayList<>(links));
+        doAnswer(invocation -> {
+            links.add(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        }).when(userDefinedLinkDao).saveOrUpdate(any(UserDefinedLink.class));
+        doAnswer(invocation -> {
+            final Collection<UserDefinedLink> batch = invocation.getArgument(0);
+            deleteBatchSizes.add(batch.size());
+            links.removeAll(batch);
+            return null;
+        }).when(userDefinedLinkDao).delete(anyCollection());
+
+        synchronizer = new LinkSynchronizer(userDefinedLinkDao, nodeRegistry);
+        synchronizer.setBatchSize(2);
+    }
+
+    @Test
+    public void canSyncLinks() {
+        LinkSynchronizer.SyncReport report = synchronizer.sync(Arrays.asList(
+                link("1-2", "openflow:1", "openflow:2"),
+                link("2-1", "openflow:2", "openflow:1"),
+                link("2-3", "openflow:2", "openflow:3"),
+                link("3-4", "openflow:3", "openflow:4")), false);
+        assertEquals(3, report.getNodesChanged());
+        assertEquals(3, report.getInserted());
+        assertEquals(1, report.getUnresolved());
+        assertThat(linkIds(), containsInAnyOrder("1-2", "2-1", "2-3"));
+
+        // Only node 2 changed
+        report = synchronizer.sync(Arrays.asList(
+                link("1-2", "openflow:1", "openflow:2"),
+                link("3-4", "openflow:3", "openflow:4")), false);
+        assertEquals(1, report.getNodesChanged());
+        assertEquals(3, report.getExistingLinks());
+        assertEquals(0, report.getInserted());
+        assertEquals(2, report.getDeleted());
+        assertEquals(0, report.getUnresolved());
+        assertThat(linkIds(), containsInAnyOrder("1-2"));
+        assertEquals(Collections.singletonList(2), deleteBatchSizes);
+    }
+
+    @Test
+    public void canSkipUnchangedNodes() {
+        final List<Link> expectedLinks = Arrays.asList(
+                link("1-2", "openflow:1", "openflow:2"),
+                link("2-1", "openflow:2", "openflow:1"));
+        synchronizer.sync(expectedLinks, false);
+        final LinkSynchronizer.SyncReport report = synchronizer.sync(expectedLinks, false);
+        assertEquals(0, report.getNodesChanged());
+        // The links are only loaded once
+        verify(userDefinedLinkDao, times(1)).getLinksWithLabel(LinkSynchronizer.LINK_LABEL);
+        verify(userDefinedLinkDao, never()).delete(anyCollection());
+
+        // Unless forced
+        assertEquals(3, synchronizer.sync(expectedLinks, true).getNodesChanged());
+        synchronizer.invalidate();
+        assertEquals(3, synchronizer.sync(expectedLinks, false).getNodesChanged());
+    }
+
+    @Test
+    public void canReplaceLinksWhoseEndPointsChanged() {
+        synchronizer.sync(Collections.singletonList(link("1-2", "openflow:1", "openflow:2")), false);
+        final LinkSynchronizer.SyncReport report = synchronizer.sync(Collections.singletonList(link("1-2", "openflow:1", "openflow:3")), false);
+        assertEquals(1, report.getInserted());
+        assertEquals(1, report.getDeleted());
+        assertEquals(1, links.size());
+        assertEquals(3, (int)links.get(0).getNodeIdZ());
+    }
+
+    @Test
+    public void canApplyIndividualChanges() {
+        final List<Link> expectedLinks = Arrays.asList(
+                link("1-2", "openflow:1", "openflow:2"),
+                link("2-1", "openflow:2", "openflow:1"));
+        synchronizer.sync(expectedLinks, false);
+        assertThat(linkIds(), containsInAnyOrder("1-2", "2-1"));
+
+        final LinkSynchronizer.SyncReport report = synchronizer.applyChanges(
+                Collections.singletonList(link("2-3", "openflow:2", "openflow:3")),
+                Arrays.asList("1-2", "unknown"));
+        assertEquals(1, report.getInserted());
+        assertEquals(1, report.getDeleted());
+        assertEquals(2, report.getNodesChanged());
+        assertThat(linkIds(), containsInAnyOrder("2-1", "2-3"));
+        // Applied without reloading the links
+        verify(userDefinedLinkDao, times(1)).getLinksWithLabel(LinkSynchronizer.LINK_LABEL);
+
+        // The nodes which changed are diffed again on the next sync
+        assertEquals(2, synchronizer.sync(expectedLinks, false).getNodesChanged());
+        assertThat(linkIds(), containsInAnyOrder("1-2", "2-1"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotApplyChangesBeforeSync() {
+        synchronizer.applyChanges(Collections.emptyList(), Collections.singletonList("1-2"));
+    }
+
+    @Test
+    public void canIgnoreLinksOwnedByOthers() {
+        final UserDefinedLink other = mock(UserDefinedLink.class);
+        when(other.getNodeIdA()).thenReturn(1);
+        when(other.getLinkId()).thenReturn("manual");
+        when(other.getOwner()).thenReturn("admin");
+        links.add(other);
+
+        synchronizer.sync(Collections.emptyList(), false);
+        assertThat(links, containsInAnyOrder(other));
+    }
+
+    private List<String> linkIds() {
+        return links.stream().map(UserDefinedLink::getLinkId).collect(Collectors.toList());
+    }
+
+    private static Link link(String id, String source, String destination) {
+        final Link link = new Link();
+        link.setId(id);
+        link.setSourceNode(source);
+        link.setSourceTerminationPoint(source + ":1");
+        link.setDestinationNode(destination);
+        link.setDestinationTerminationPoint(destination + ":1");
+        return link;
+    }
+}
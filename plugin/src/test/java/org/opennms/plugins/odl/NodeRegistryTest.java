@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.integration.api.v1.dao.NodeDao;
+import org.opennms.integration.api.v1.events.EventSubscriptionService;
+import org.opennms.integration.api.v1.model.MetaData;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.integration.api.v1.model.immutables.ImmutableEventParameter;
+import org.opennms.integration.api.v1.model.immutables.ImmutableInMemoryEvent;
+
+public class NodeRegistryTest {
+
+    private final AtomicLong now = new AtomicLong(0);
+    private final NodeDao nodeDao = mock(NodeDao.class);
+    private final EventSubscriptionService eventSubscriptionService = mock(EventSubscriptionService.class);
+    private final List<Node> nodes = new ArrayList<>();
+    private NodeRegistry registry;
+
+    @Before
+    public void setUp() {
+        nodes.add(node(1, "openflow:1", "1"));
+        nodes.add(node(2, "openflow:2", "2"));
+        when(nodeDao.getNodesInForeignSource("ODL")).thenAnswer(invocation -> new ArrayList<>(nodes));
+        registry = new NodeRegistry(nodeDao, eventSubscriptionService, now::get);
+        registry.init();
+    }
+
+    @Test
+    public void canLookupNodesByAnyKey() {
+        assertEquals(2, registry.getNodes().size());
+        assertSame(nodes.get(0), registry.getNodeById(1));
+        assertSame(nodes.get(1), registry.getNodeByOdlNodeId("openflow:2"));
+        assertSame(nodes.get(1), registry.getNodeByNodeIdIndex(2));
+        assertSame(nodes.get(0), registry.getNodeByLabel("openflow:1"));
+        assertEquals("flow:1", registry.getMetadata(1).getTopologyId());
+        assertNull(registry.getNodeByOdlNodeId("openflow:3"));
+
+        // Lookups are served from the registry
+        verify(nodeDao, times(1)).getNodesInForeignSource("ODL");
+    }
+
+    @Test
+    public void canUpdateNodesIncrementally() {
+        final Node node3 = node(3, "openflow:3", "3");
+        when(nodeDao.getNodeById(3)).thenReturn(node3);
+        registry.onEvent(nodeEvent(NodeRegistry.NODE_ADDED_UEI, 3));
+        assertSame(node3, registry.getNodeByOdlNodeId("openflow:3"));
+        assertEquals(3, registry.size());
+
+        // The index is updated when the node is relabeled
+        final Node relabeledNode3 = node(3, "openflow:3", "3");
+        when(relabeledNode3.getLabel()).thenReturn("switch-3");
+        when(nodeDao.getNodeById(3)).thenReturn(relabeledNode3);
+        registry.onEvent(nodeEvent(NodeRegistry.NODE_UPDATED_UEI, 3));
+        assertNull(registry.getNodeByLabel("openflow:3"));
+        assertSame(relabeledNode3, registry.getNodeByLabel("switch-3"));
+
+        registry.onEvent(nodeEvent(NodeRegistry.NODE_DELETED_UEI, 1));
+        assertNull(registry.getNodeById(1));
+        assertNull(registry.getNodeByNodeIdIndex(1));
+        assertEquals(2, registry.size());
+        assertEquals(3, registry.getNodeReloads());
+        verify(nodeDao, times(1)).getNodesInForeignSource("ODL");
+    }
+
+    @Test
+    public void canIgnoreNodesFromOtherRequisitions() {
+        final Node other = mock(Node.class);
+        when(other.getId()).thenReturn(4);
+        when(other.getForeignSource()).thenReturn("Other");
+        when(nodeDao.getNodeById(4)).thenReturn(other);
+        registry.onEvent(nodeEvent(NodeRegistry.NODE_ADDED_UEI, 4));
+        assertNull(registry.getNodeById(4));
+    }
+
+    @Test
+    public void canReloadOnImport() {
+        final AtomicInteger reloads = new AtomicInteger();
+        registry.addReloadListener(r -> reloads.incrementAndGet());
+        nodes.remove(0);
+
+        // Imports of other requisitions are ignored
+        registry.onEvent(importEvent("Other"));
+        assertEquals(2, registry.size());
+        assertEquals(0, reloads.get());
+
+        registry.onEvent(importEvent("ODL"));
+        assertEquals(1, registry.size());
+        assertNull(registry.getNodeByOdlNodeId("openflow:1"));
+        assertEquals(1, reloads.get());
+        assertEquals(2, registry.getFullReloads());
+    }
+
+    @Test
+    public void canReloadWhenStale() {
+        registry.setReloadIntervalMs(60000);
+        nodes.remove(0);
+        now.set(30000);
+        assertEquals(2, registry.getNodes().size());
+        now.set(60000);
+        assertEquals(1, registry.getNodes().size());
+    }
+
+    private static Node node(int id, String odlNodeId, String nodeIdIndex) {
+        final Node node = mock(Node.class);
+        when(node.getId()).thenReturn(id);
+        when(node.getLabel()).thenReturn(odlNodeId);
+        when(node.getForeignSource()).thenReturn("ODL");
+        when(node.getMetaData()).thenReturn(Arrays.asList(
+                metaData(OdlMetadata.NODE_ID_KEY, odlNodeId),
+                metaData(OdlMetadata.NODE_ID_INDEX_KEY, nodeIdIndex),
+                metaData(OdlMetadata.TOPOLOGY_ID_KEY, "flow:1")));
+        return node;
+    }
+
+    private static MetaData metaData(String key, String value) {
+        final MetaData metaData = mock(MetaData.class);
+        when(metaData.getContext()).thenReturn(OpendaylightRequisitionProvider.METADATA_CONTEXT_ID);
+        when(metaData.getKey()).thenReturn(key);
+        when(metaData.getValue()).thenReturn(value);
+        return metaData;
+    }
+
+    private static ImmutableInMemoryEvent nodeEvent(String uei, int nodeId) {
+        return ImmutableInMemoryEvent.newBuilder()
+                .setUei(uei)
+                .setSource("test")
+                .setNodeId(nodeId)
+                .build();
+    }
+
+    private static ImmutableInMemoryEvent importEvent(String foreignSource) {
+        return ImmutableInMemoryEvent.newBuilder()
+                .setUei(OpendaylightTopologyHandler.IMPORT_SUCCESSFUL_UEI)
+                .setSource("test")
+                .addParameter(ImmutableEventParameter.newInstance(OpendaylightTopologyHandler.PARM_FOREIGN_SOURCE, foreignSource))
+                .build();
+    }
+}
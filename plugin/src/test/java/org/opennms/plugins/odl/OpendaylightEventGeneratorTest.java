@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.opennms.plugins.odl.TestUtils.waitFor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.NodeId;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.Topology;
+import org.opennms.integration.api.v1.events.EventForwarder;
+import org.opennms.integration.api.v1.model.InMemoryEvent;
+import org.opennms.integration.api.v1.model.MetaData;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.plugins.odl.state.NodeStatusCache;
+
+public class OpendaylightEventGeneratorTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final OpendaylightRestconfClient client = mock(OpendaylightRestconfClient.class);
+    private final EventForwarder eventForwarder = mock(EventForwarder.class);
+    private final NodeRegistry nodeRegistry = TestUtils.nodeRegistry();
+    private final OpendaylightServicePollerFactory pollerFactory = mock(OpendaylightServicePollerFactory.class);
+    private final List<InMemoryEvent> events = Collections.synchronizedList(new ArrayList<>());
+    private OpendaylightEventGenerator eventGenerator;
+
+    @Before
+    public void setUp() throws Exception {
+        doAnswer(invocation -> {
+            final List<InMemoryEvent> batch = invocation.getArgument(0);
+            events.addAll(batch);
+            return null;
+        }).when(eventForwarder).sendSync(anyList());
+
+        eventGenerator = new OpendaylightEventGenerator(client, eventForwarder, nodeRegistry, pollerFactory);
+        eventGenerator.setStatusFile(tempFolder.newFile().getAbsolutePath());
+        eventGenerator.setSnapshotRefresh(true);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (eventGenerator != null) {
+            eventGenerator.destroy();
+        }
+    }
+
+    @Test
+    public void canRefreshNodeStatesFromSnapshot() throws Exception {
+        final Node present = node(1, "openflow:1", "flow:1");
+        final Node missing = node(2, "openflow:2", "flow:1");
+        final Node unreachable = node(3, "openflow:3", "flow:2");
+        when(nodeRegistry.getNodes()).thenReturn(Arrays.asList(present, missing, unreachable));
+
+        final Topology topology = mock(Topology.class);
+        final org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Node topologyNode =
+                mock(org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Node.class);
+        when(topologyNode.getNodeId()).thenReturn(new NodeId("openflow:1"));
+        when(topology.getNode()).thenReturn(Collections.singletonList(topologyNode));
+        when(client.getOperationalTopology("flow:1")).thenReturn(topology);
+        when(client.getOperationalTopology("flow:2")).thenThrow(new IOException("Connection refused"));
+
+        eventGenerator.init();
+        // The node in the unreachable topology was last seen online
+        eventGenerator.getStatusCache().put(3, true);
+        eventGenerator.getRefreshCoalescer().onFullRefreshNotification();
+        final RefreshWorkerPool.CycleReport report = waitForCycleReport();
+        eventGenerator.destroy();
+        eventGenerator = null;
+
+        // The refresh of the unreachable topology failed
+        assertEquals(1, report.getFailed());
+
+        final Map<Integer, String> ueisByNodeId;
+        synchronized (events) {
+            ueisByNodeId = events.stream().collect(Collectors.toMap(InMemoryEvent::getNodeId, InMemoryEvent::getUei));
+        }
+        assertEquals(EventConstants.NODE_ONLINE_UEI, ueisByNodeId.get(1));
+        assertEquals(EventConstants.NODE_OFFLINE_UEI, ueisByNodeId.get(2));
+        // Nodes in a topology which could not be retrieved are skipped, not marked as offline
+        assertEquals(2, ueisByNodeId.size());
+    }
+
+    @Test
+    public void canSkipNodesWhenTopologyCannotBeRetrieved() throws Exception {
+        final Node node = node(1, "openflow:1", "flow:1");
+        when(nodeRegistry.getNodes()).thenReturn(Collections.singletonList(node));
+        when(client.getOperationalTopology("flow:1")).thenThrow(new IOException("Connection refused"));
+
+        eventGenerator.init();
+        eventGenerator.getStatusCache().put(1, true);
+        eventGenerator.getRefreshCoalescer().onFullRefreshNotification();
+        waitForCycleReport();
+
+        assertEquals(NodeStatusCache.ONLINE, eventGenerator.getStatusCache().get(1));
+        assertEquals(0, eventGenerator.getEventBatcher().getEventsSent());
+    }
+
+    private RefreshWorkerPool.CycleReport waitForCycleReport() throws InterruptedException {
+        waitFor(() -> eventGenerator.getLastCycleReport() != null);
+        return eventGenerator.getLastCycleReport();
+    }
+
+    private static Node node(int id, String odlNodeId, String topologyId) {
+        final Node node = mock(Node.class);
+        when(node.getId()).thenReturn(id);
+        when(node.getForeignId()).thenReturn(odlNodeId);
+        when(node.getMetaData()).thenReturn(Arrays.asList(
+                metaData(OdlMetadata.NODE_ID_KEY, odlNodeId),
+                metaData(OdlMetadata.TOPOLOGY_ID_KEY, topologyId)));
+        return node;
+    }
+
+    private static MetaData metaData(String key, String value) {
+        final MetaData metaData = mock(MetaData.class);
+        when(metaData.getContext()).thenReturn(OpendaylightRequisitionProvider.METADATA_CONTEXT_ID);
+        when(metaData.getKey()).thenReturn(key);
+        when(metaData.getValue()).thenReturn(value);
+        return metaData;
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.NodeId;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.Topology;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Node;
+
+public class OpendaylightPollBatcherTest {
+
+    private final OpendaylightRestconfClient client = mock(OpendaylightRestconfClient.class);
+    private OpendaylightPollBatcher pollBatcher;
+
+    @After
+    public void tearDown() {
+        if (pollBatcher != null) {
+            pollBatcher.destroy();
+        }
+    }
+
+    @Test
+    public void canResolveManyPollsWithSingleTopologyRequest() throws Exception {
+        final Topology topology = mock(Topology.class);
+        final Node node = mock(Node.class);
+        when(node.getNodeId()).thenReturn(new NodeId("openflow:1"));
+        when(topology.getNode()).thenReturn(Arrays.asList(node));
+        when(client.getOperationalTopologyAsync("flow:1")).thenReturn(CompletableFuture.completedFuture(topology));
+
+        pollBatcher = new OpendaylightPollBatcher(client, 100);
+        CompletableFuture<Boolean> present = pollBatcher.isNodeInOperationalTopology("flow:1", "openflow:1");
+        CompletableFuture<Boolean> presentAgain = pollBatcher.isNodeInOperationalTopology("flow:1", "openflow:1");
+        CompletableFuture<Boolean> missing = pollBatcher.isNodeInOperationalTopology("flow:1", "openflow:2");
+
+        assertTrue(present.get());
+        assertTrue(presentAgain.get());
+        assertFalse(missing.get());
+        verify(client, times(1)).getOperationalTopologyAsync("flow:1");
+    }
+
+    @Test
+    public void cancellingOnePollDoesNotAffectOthersForTheSameNode() throws Exception {
+        final Topology topology = mock(Topology.class);
+        final Node node = mock(Node.class);
+        when(node.getNodeId()).thenReturn(new NodeId("openflow:1"));
+        when(topology.getNode()).thenReturn(Arrays.asList(node));
+        when(client.getOperationalTopologyAsync("flow:1")).thenReturn(CompletableFuture.completedFuture(topology));
+
+        pollBatcher = new OpendaylightPollBatcher(client, 100);
+        CompletableFuture<Boolean> cancelled = pollBatcher.isNodeInOperationalTopology("flow:1", "openflow:1");
+        CompletableFuture<Boolean> present = pollBatcher.isNodeInOperationalTopology("flow:1", "openflow:1");
+        assertNotSame(cancelled, present);
+
+        cancelled.cancel(true);
+        assertTrue(present.get());
+    }
+}
@@ -34,17 +34,20 @@ import static com.github.tomakehurst.wiremock.client.WireMock.post;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNode;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowNode;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.NetworkTopology;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.Topology;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Node;
@@ -115,6 +118,45 @@ public class OpendaylightRestconfClientIT {
         assertEquals("openflow:1", node.getNodeId().getValue());
     }
 
+    @Test
+    public void canGetNodeFromOperationalTopologyAsync() throws Exception {
+        stubFor(get(urlEqualTo("/restconf/operational/network-topology:network-topology/topology/flow:1/node/openflow:1"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "Content-Type: application/yang.data+json; charset=utf-8")
+                        .withBodyFile("operational-topology-node.json")));
+
+        // Make the call
+        OpendaylightRestconfClient client = new OpendaylightRestconfClient(String.format("http://localhost:%s", wireMockRule.port()));
+        Node node = client.getNodeFromOperationalTopologyAsync("flow:1", "openflow:1").get();
+
+        // Verify
+        assertEquals("openflow:1", node.getNodeId().getValue());
+
+        // Nodes which are not present in the topology should yield null
+        assertNull(client.getNodeFromOperationalTopologyAsync("flow:1", "openflow:99").get());
+    }
+
+    @Test
+    public void canCoalesceConcurrentRequestsForTheSameNode() throws Exception {
+        stubFor(get(urlEqualTo("/restconf/operational/network-topology:network-topology/topology/flow:1/node/openflow:1"))
+                .willReturn(aResponse()
+                        .withFixedDelay(500)
+                        .withHeader("Content-Type", "Content-Type: application/yang.data+json; charset=utf-8")
+                        .withBodyFile("operational-topology-node.json")));
+
+        // Issue two requests for the same node while the first one is still in-flight
+        OpendaylightRestconfClient client = new OpendaylightRestconfClient(String.format("http://localhost:%s", wireMockRule.port()));
+        CompletableFuture<Node> first = client.getNodeFromOperationalTopologyAsync("flow:1", "openflow:1");
+        CompletableFuture<Node> second = client.getNodeFromOperationalTopologyAsync("flow:1", "openflow:1");
+
+        // Verify
+        assertEquals("openflow:1", first.get().getNodeId().getValue());
+        assertEquals("openflow:1", second.get().getNodeId().getValue());
+        assertEquals(1, client.getRequestCount());
+        assertEquals(1, client.getUncoalescedRequestCount());
+        assertEquals(1, client.getCoalescedRequestCount());
+    }
+
     @Test
     public void canGetStreamName() throws Exception {
         stubFor(post(urlEqualTo("/restconf/operations/sal-remote:create-data-change-event-subscription"))
@@ -164,4 +206,22 @@ public class OpendaylightRestconfClientIT {
         assertEquals("Open vSwitch", flowCapableNode.getHardware());
 
     }
+
+    @Test
+    public void canRetrieveOperationalInventory() throws Exception {
+        stubFor(get(urlEqualTo("/restconf/operational/opendaylight-inventory:nodes/"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "Content-Type: application/yang.data+json; charset=utf-8")
+                        .withBodyFile("operational-inventory.json")));
+
+        // Make the call
+        OpendaylightRestconfClient client = new OpendaylightRestconfClient(String.format("http://localhost:%s", wireMockRule.port()));
+        Nodes nodes = client.getOperationalInventory();
+
+        // Verify
+        assertEquals(1, nodes.getNode().size());
+        assertEquals("openflow:4", nodes.getNode().get(0).getId().getValue());
+        assertEquals(1, client.getRequestCount());
+        assertTrue(client.getBytesReceived() > 0);
+    }
 }
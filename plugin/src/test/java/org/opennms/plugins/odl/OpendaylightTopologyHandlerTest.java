@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.opennms.plugins.odl.TestUtils.node;
+import static org.opennms.plugins.odl.TestUtils.waitFor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.LinkId;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.NodeId;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.TpId;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.Topology;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Link;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.integration.api.v1.requisition.RequisitionRepository;
+import org.opennms.integration.api.v1.topology.UserDefinedLink;
+import org.opennms.integration.api.v1.topology.UserDefinedLinkDao;
+
+public class OpendaylightTopologyHandlerTest {
+
+    private static final String TOPOLOGY_PATH = "/network-topology:network-topology"
+            + "/network-topology:topology[network-topology:topology-id='flow:1']";
+
+    private final OpendaylightRestconfClient client = mock(OpendaylightRestconfClient.class);
+    private final UserDefinedLinkDao userDefinedLinkDao = mock(UserDefinedLinkDao.class);
+    private final NodeRegistry nodeRegistry = mock(NodeRegistry.class);
+    private final List<UserDefinedLink> links = Collections.synchronizedList(new ArrayList<>());
+    private OpendaylightTopologyHandler topologyHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        final List<Node> nodes = Arrays.asList(node(1, "openflow:1"), node(2, "openflow:2"), node(3, "openflow:3"));
+        when(nodeRegistry.getNodes()).thenReturn(nodes);
+        for (Node node : nodes) {
+            when(nodeRegistry.getNodeByLabel(node.getLabel())).thenReturn(node);
+        }
+
+        // Back the DAO with a list
+        when(userDefinedLinkDao.getLinksWithLabel(LinkSynchronizer.LINK_LABEL)).thenAnswer(invocation -> new ArrayList<>(links));
+        doAnswer(invocation -> {
+            links.add(invocation.getArgument(0));
+            return invocation.getArgument(0);
+        }).when(userDefinedLinkDao).saveOrUpdate(any(UserDefinedLink.class));
+        doAnswer(invocation -> {
+            final Collection<UserDefinedLink> batch = invocation.getArgument(0);
+            links.removeAll(batch);
+            return null;
+        }).when(userDefinedLinkDao).delete(anyCollection());
+
+        final Topology topology = topology(link("1-2", "openflow:1", "openflow:2"));
+        when(client.getOperationalTopology("flow:1")).thenReturn(topology);
+
+        topologyHandler = new OpendaylightTopologyHandler(client, mock(RequisitionRepository.class), nodeRegistry, userDefinedLinkDao);
+        topologyHandler.setEventDrivenLinks(false);
+        topologyHandler.setLinkReconcileIntervalMs(0);
+        topologyHandler.setMaxIndividualLinkChanges(2);
+        topologyHandler.init();
+
+        // Initial sync, performed asynchronously
+        topologyHandler.onNodesReloaded(nodeRegistry);
+        waitFor(topologyHandler::getFullSyncs, 1);
+        assertThat(linkIds(), containsInAnyOrder("1-2"));
+    }
+
+    @After
+    public void tearDown() {
+        topologyHandler.destroy();
+    }
+
+    @Test
+    public void canAddLinks() throws Exception {
+        final Link link = link("2-3", "openflow:2", "openflow:3");
+        when(client.getLinkFromOperationalTopology("flow:1", "2-3")).thenReturn(link);
+
+        topologyHandler.onNotification(notification("created", linkPath("2-3")));
+        waitFor(topologyHandler::getLinkChangesApplied, 1);
+
+        assertThat(linkIds(), containsInAnyOrder("1-2", "2-3"));
+        assertEquals(1, topologyHandler.getFullSyncs());
+    }
+
+    @Test
+    public void canUpdateLinksWhenTheirChildrenChange() throws Exception {
+        final Link link = link("1-2", "openflow:1", "openflow:3");
+        when(client.getLinkFromOperationalTopology("flow:1", "1-2")).thenReturn(link);
+
+        // Removing a child of the link is an update of the link
+        topologyHandler.onNotification(notification("deleted", linkPath("1-2") + "/network-topology:destination"));
+        waitFor(topologyHandler::getLinkChangesApplied, 1);
+
+        assertThat(linkIds(), containsInAnyOrder("1-2"));
+        assertEquals(3, (int)links.get(0).getNodeIdZ());
+    }
+
+    @Test
+    public void canDeleteLinks() throws Exception {
+        topologyHandler.onNotification(notification("deleted", linkPath("1-2")));
+        waitFor(topologyHandler::getLinkChangesApplied, 1);
+
+        assertThat(links, empty());
+        // Deleted links are not retrieved
+        verify(client, never()).getLinkFromOperationalTopology(anyString(), anyString());
+    }
+
+    @Test
+    public void canSyncAllLinksWhenTheTopologyIsDeleted() throws Exception {
+        final Topology emptyTopology = topology();
+        when(client.getOperationalTopology("flow:1")).thenReturn(emptyTopology);
+
+        topologyHandler.onNotification(notification("deleted", TOPOLOGY_PATH));
+        waitFor(topologyHandler::getFullSyncs, 2);
+
+        assertThat(links, empty());
+    }
+
+    @Test
+    public void canSyncAllLinksWhenTheNotificationCannotBeParsed() throws Exception {
+        final Topology topology = topology(link("1-2", "openflow:1", "openflow:2"), link("2-3", "openflow:2", "openflow:3"));
+        when(client.getOperationalTopology("flow:1")).thenReturn(topology);
+
+        topologyHandler.onNotification("<notification");
+        waitFor(topologyHandler::getFullSyncs, 2);
+
+        assertThat(linkIds(), containsInAnyOrder("1-2", "2-3"));
+        assertEquals(0, topologyHandler.getLinkChangesReceived());
+    }
+
+    @Test
+    public void canSyncAllLinksWhenManyLinksChanged() throws Exception {
+        final Topology topology = topology(link("1-2", "openflow:1", "openflow:2"), link("2-3", "openflow:2", "openflow:3"),
+                link("3-1", "openflow:3", "openflow:1"), link("2-1", "openflow:2", "openflow:1"));
+        when(client.getOperationalTopology("flow:1")).thenReturn(topology);
+
+        topologyHandler.onNotification(notification("created", linkPath("2-3"), linkPath("3-1"), linkPath("2-1")));
+        waitFor(topologyHandler::getFullSyncs, 2);
+
+        assertThat(linkIds(), containsInAnyOrder("1-2", "2-3", "3-1", "2-1"));
+        verify(client, never()).getLinkFromOperationalTopology(anyString(), anyString());
+    }
+
+    private List<String> linkIds() {
+        synchronized (links) {
+            return links.stream().map(UserDefinedLink::getLinkId).collect(Collectors.toList());
+        }
+    }
+
+    private static String linkPath(String linkId) {
+        return TOPOLOGY_PATH + "/network-topology:link[network-topology:link-id='" + linkId + "']";
+    }
+
+    private static String notification(String operation, String... paths) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<notification xmlns=\"urn:ietf:params:xml:ns:netconf:notification:1.0\">")
+                .append("<eventTime>2019-03-14T12:08:57.367-04:00</eventTime>")
+                .append("<data-changed-notification xmlns=\"urn:opendaylight:params:xml:ns:yang:controller:md:sal:remote\">");
+        for (String path : paths) {
+            sb.append("<data-change-event><path>").append(path).append("</path><operation>").append(operation).append("</operation></data-change-event>");
+        }
+        return sb.append("</data-changed-notification></notification>").toString();
+    }
+
+    private static Topology topology(Link... links) {
+        final Topology topology = mock(Topology.class);
+        when(topology.getLink()).thenReturn(Arrays.asList(links));
+        return topology;
+    }
+
+    private static Link link(String id, String source, String destination) {
+        final Link link = mock(Link.class, RETURNS_DEEP_STUBS);
+        when(link.getLinkId()).thenReturn(new LinkId(id));
+        when(link.getSource().getSourceNode()).thenReturn(new NodeId(source));
+        when(link.getSource().getSourceTp()).thenReturn(new TpId(source + ":1"));
+        when(link.getDestination().getDestNode()).thenReturn(new NodeId(destination));
+        when(link.getDestination().getDestTp()).thenReturn(new TpId(destination + ":1"));
+        return link;
+    }
+}
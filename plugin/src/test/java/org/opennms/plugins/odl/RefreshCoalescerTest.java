@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class RefreshCoalescerTest {
+
+    @Test
+    public void canCoalesceBurstOfNotifications() throws InterruptedException {
+        final RefreshCoalescer coalescer = new RefreshCoalescer(60000, 100, 5000);
+        coalescer.onNotification(Collections.singleton("openflow:1"));
+        coalescer.onNotification(Collections.singleton("openflow:2"));
+        coalescer.onNotification(Collections.singleton("openflow:1"));
+
+        final RefreshCoalescer.Refresh refresh = coalescer.awaitNextRefresh();
+        assertFalse(refresh.isFull());
+        assertThat(refresh.getNodeIds(), containsInAnyOrder("openflow:1", "openflow:2"));
+        assertEquals(3, coalescer.getNotificationsReceived());
+        assertEquals(1, coalescer.getRefreshesRun());
+    }
+
+    @Test
+    public void canTriggerRefreshAfterMaxDelay() throws InterruptedException {
+        final RefreshCoalescer coalescer = new RefreshCoalescer(60000, 200, 300);
+        final long start = System.currentTimeMillis();
+        final Thread notifier = new Thread(() -> {
+            // Keep notifying more often than the quiet period
+            for (int i = 0; i < 20; i++) {
+                coalescer.onNotification(Collections.singleton("openflow:" + i));
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        notifier.start();
+
+        final RefreshCoalescer.Refresh refresh = coalescer.awaitNextRefresh();
+        final long elapsed = System.currentTimeMillis() - start;
+        notifier.interrupt();
+        notifier.join();
+
+        assertFalse(refresh.isFull());
+        assertThat(elapsed, greaterThanOrEqualTo(300L));
+        assertThat(elapsed, lessThan(1000L));
+    }
+
+    @Test
+    public void canTriggerFullRefresh() throws InterruptedException {
+        final RefreshCoalescer coalescer = new RefreshCoalescer(60000, 10, 100);
+        coalescer.onNotification(Collections.singleton("openflow:1"));
+        coalescer.onFullRefreshNotification();
+
+        final RefreshCoalescer.Refresh refresh = coalescer.awaitNextRefresh();
+        assertTrue(refresh.isFull());
+        assertTrue(refresh.getNodeIds().isEmpty());
+        assertEquals(1, coalescer.getFullRefreshesRun());
+    }
+}
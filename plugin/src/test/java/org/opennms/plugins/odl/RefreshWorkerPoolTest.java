@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class RefreshWorkerPoolTest {
+
+    private RefreshWorkerPool pool;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (pool != null) {
+            pool.destroy();
+        }
+    }
+
+    @Test
+    public void canLimitConcurrentRequests() throws InterruptedException {
+        pool = new RefreshWorkerPool(8, 2, 10000);
+        final List<Integer> items = IntStream.range(0, 20).boxed().collect(Collectors.toList());
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+
+        final RefreshWorkerPool.CycleReport report = pool.refresh(items, i -> "node" + i, i -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            active.decrementAndGet();
+            return null;
+        });
+
+        assertEquals(20, report.getCompleted());
+        assertEquals(0, report.getTimedOut());
+        assertEquals(0, report.getFailed());
+        assertThat(maxActive.get(), lessThanOrEqualTo(2));
+    }
+
+    @Test
+    public void canReportFailuresTimeoutsAndSlowestNodes() throws InterruptedException {
+        pool = new RefreshWorkerPool(4, 4, 500);
+        final long start = System.currentTimeMillis();
+        final RefreshWorkerPool.CycleReport report = pool.refresh(Arrays.asList(1, 2, 3, 4, 5), i -> "node" + i, i -> {
+            switch (i) {
+                case 1:
+                    throw new Exception("Failed!");
+                case 2:
+                    // Exceeds the deadline
+                    Thread.sleep(60000);
+                    break;
+                case 5:
+                    // Exceeds the deadline, and fails once cancelled
+                    try {
+                        Thread.sleep(60000);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    break;
+                default:
+                    Thread.sleep(i * 20);
+            }
+            return null;
+        });
+        assertThat(System.currentTimeMillis() - start, lessThan(5000L));
+
+        assertEquals(5, report.getTotal());
+        assertEquals(2, report.getCompleted());
+        assertEquals(1, report.getFailed());
+        assertEquals(2, report.getTimedOut());
+        assertEquals(2, report.getSlowest().size());
+        assertThat(report.getSlowest().get(0), startsWith("node4"));
+        assertThat(report.getSlowest().get(1), startsWith("node3"));
+    }
+
+    @Test
+    public void canDiscardUpdatesOfRefreshesWhichOutliveTheirCycle() throws InterruptedException {
+        pool = new RefreshWorkerPool(2, 2, 200);
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        final AtomicInteger updates = new AtomicInteger();
+        final RefreshWorkerPool.CycleReport report = pool.refresh(Arrays.asList(1, 2), i -> "node" + i, i -> {
+            if (i == 2) {
+                // Ignores the cancellation
+                Uninterruptibles.sleepUninterruptibly(500, TimeUnit.MILLISECONDS);
+                refreshed.countDown();
+            }
+            return updates::incrementAndGet;
+        });
+        assertEquals(1, report.getCompleted());
+        assertEquals(1, report.getTimedOut());
+
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        pool.destroy();
+        pool = null;
+        assertEquals(1, updates.get());
+    }
+}
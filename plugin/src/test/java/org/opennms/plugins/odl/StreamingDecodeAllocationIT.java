@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.notNullValue;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+import org.opendaylight.yangtools.yang.data.api.schema.NormalizedNode;
+import org.opendaylight.yangtools.yang.model.api.DataSchemaNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Compares the heap allocated when decoding the fixtures by first materializing
+ * the body as a String versus streaming it directly into the parser.
+ */
+public class StreamingDecodeAllocationIT {
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingDecodeAllocationIT.class);
+
+    private static final int ITERATIONS = 20;
+
+    private final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void streamingAllocatesLessForInventoryNode() throws IOException {
+        compare("operational-inventory-node.json", OpendaylightRestconfClient.getInventorySchemaNode(), true);
+    }
+
+    @Test
+    public void streamingAllocatesLessForNetworkTopology() throws IOException {
+        compare("operational-network-topology.json", OpendaylightRestconfClient.getSchemaContext(), true);
+    }
+
+    @Test
+    public void canStreamTopologyNode() throws IOException {
+        // This document is smaller than the buffers used when streaming, so we only log the results
+        compare("operational-topology-node.json", OpendaylightRestconfClient.getTopologySchemaNode(), false);
+    }
+
+    private void compare(String fixture, DataSchemaNode parentNode, boolean expectSavings) throws IOException {
+        final Path path = Paths.get("src", "test", "resources", "__files", fixture);
+
+        // Warm up both paths
+        for (int i = 0; i < ITERATIONS; i++) {
+            decodeFromString(path, parentNode);
+            decodeFromStream(path, parentNode);
+        }
+
+        final long stringBytes = measure(() -> decodeFromString(path, parentNode));
+        final long streamBytes = measure(() -> decodeFromStream(path, parentNode));
+        LOG.info("{} ({} bytes): String path allocated {} bytes/decode, streaming path allocated {} bytes/decode.",
+                fixture, Files.size(path), stringBytes, streamBytes);
+        if (expectSavings) {
+            assertThat(streamBytes, lessThan(stringBytes));
+        }
+    }
+
+    private long measure(IOCallable callable) throws IOException {
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertThat(callable.call(), notNullValue());
+        }
+        return (threadMXBean.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+    }
+
+    private static NormalizedNode<?, ?> decodeFromString(Path path, DataSchemaNode parentNode) throws IOException {
+        final String json;
+        try (BufferedSource source = Okio.buffer(Okio.source(path))) {
+            json = source.readString(StandardCharsets.UTF_8);
+        }
+        return OpendaylightRestconfClient.streamJsonToNode(new StringReader(json), parentNode);
+    }
+
+    private static NormalizedNode<?, ?> decodeFromStream(Path path, DataSchemaNode parentNode) throws IOException {
+        try (Reader reader = new InputStreamReader(Okio.buffer(Okio.source(path)).inputStream(), StandardCharsets.UTF_8)) {
+            return OpendaylightRestconfClient.streamJsonToNode(reader, parentNode);
+        }
+    }
+
+    @FunctionalInterface
+    private interface IOCallable {
+        NormalizedNode<?, ?> call() throws IOException;
+    }
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+import org.opennms.integration.api.v1.model.Node;
+
+/**
+ * Helpers shared by the tests.
+ */
+public class TestUtils {
+
+    private static final long WAIT_TIMEOUT_MS = 10000;
+
+    private TestUtils() {}
+
+    /**
+     * Waits for the condition to hold, and fails if it doesn't before the timeout.
+     */
+    public static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    /**
+     * Waits for the counter to reach the expected value, and fails if it doesn't, or if it goes beyond it.
+     */
+    public static void waitFor(LongSupplier counter, long expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+        while (counter.getAsLong() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, counter.getAsLong());
+    }
+
+    /**
+     * @return a node without any metadata
+     */
+    public static Node node(int id, String label) {
+        final Node node = mock(Node.class);
+        when(node.getId()).thenReturn(id);
+        when(node.getLabel()).thenReturn(label);
+        when(node.getMetaData()).thenReturn(Collections.emptyList());
+        return node;
+    }
+
+    /**
+     * @return a registry which parses the metadata of the nodes it is given
+     */
+    public static NodeRegistry nodeRegistry() {
+        final NodeRegistry nodeRegistry = mock(NodeRegistry.class);
+        when(nodeRegistry.getMetadata(any(Node.class))).thenAnswer(invocation -> new OdlMetadata(invocation.getArgument(0)));
+        return nodeRegistry;
+    }
+}
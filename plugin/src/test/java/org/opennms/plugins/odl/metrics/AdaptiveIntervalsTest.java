@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.integration.api.v1.collectors.CollectionSet;
+import org.opennms.integration.api.v1.collectors.immutables.ImmutableNumericAttribute;
+import org.opennms.integration.api.v1.collectors.resource.IpInterfaceResource;
+import org.opennms.integration.api.v1.collectors.resource.NodeResource;
+import org.opennms.integration.api.v1.collectors.resource.NumericAttribute;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableCollectionSet;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableCollectionSetResource;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableIpInterfaceResource;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableNodeResource;
+import org.opennms.integration.api.v1.model.Node;
+
+public class AdaptiveIntervalsTest {
+
+    private final AtomicLong now = new AtomicLong(0);
+    private final Node onmsNode = mock(Node.class);
+    private final NodeResource nodeResource = ImmutableNodeResource.newBuilder().setNodeId(1).build();
+    private final CollectionIntervals baseIntervals = new CollectionIntervals(10000);
+
+    @Before
+    public void setUp() {
+        when(onmsNode.getId()).thenReturn(1);
+    }
+
+    @Test
+    public void canBackOffIdleNodes() {
+        final AdaptiveIntervals intervals = new AdaptiveIntervals(baseIntervals, 2500, 60000, 2500, 20000, 0.25, now::get);
+        assertEquals(10000, intervals.getIntervalMs(onmsNode));
+        assertEquals(-1, intervals.getEffectiveIntervalMs(1));
+
+        observe(intervals, 0, 100, 10);
+        observe(intervals, 10000, 100, 10);
+        assertEquals(10000, intervals.getIntervalMs(onmsNode));
+        observe(intervals, 20000, 100, 10);
+        // Capped below the heartbeat
+        assertEquals(15000, intervals.getIntervalMs(onmsNode));
+
+        observe(intervals, 35000, 100, 10);
+        observe(intervals, 50000, 100, 10);
+        assertEquals(15000, intervals.getIntervalMs(onmsNode));
+        assertEquals(Collections.singletonMap(1, 15000L), intervals.getEffectiveIntervals());
+    }
+
+    @Test
+    public void canSpeedUpVolatileNodes() {
+        final AdaptiveIntervals intervals = new AdaptiveIntervals(baseIntervals, 2500, 60000, 2500, 20000, 0.25, now::get);
+        observe(intervals, 0, 0, 10);
+        // 1 KB/s
+        observe(intervals, 10000, 10000, 10);
+        assertEquals(10000, intervals.getIntervalMs(onmsNode));
+        // 2 KB/s
+        observe(intervals, 20000, 30000, 10);
+        assertEquals(5000, intervals.getIntervalMs(onmsNode));
+        // 0.5 KB/s
+        observe(intervals, 25000, 32500, 10);
+        assertEquals(2500, intervals.getIntervalMs(onmsNode));
+        // Bounded by the minimum
+        observe(intervals, 27500, 52500, 10);
+        assertEquals(2500, intervals.getIntervalMs(onmsNode));
+        // Steady, stays where it is
+        observe(intervals, 30000, 72500, 10);
+        assertEquals(2500, intervals.getIntervalMs(onmsNode));
+    }
+
+    @Test
+    public void canRecoverWhenTheRateIsSteady() {
+        final AdaptiveIntervals intervals = new AdaptiveIntervals(baseIntervals, 2500, 60000, 2500, 20000, 0.25, now::get);
+        observe(intervals, 0, 0, 10);
+        observe(intervals, 10000, 10000, 10);
+        observe(intervals, 20000, 30000, 10);
+        assertEquals(5000, intervals.getIntervalMs(onmsNode));
+
+        // Steady at 2 KB/s
+        observe(intervals, 25000, 40000, 10);
+        observe(intervals, 30000, 50000, 10);
+        assertEquals(5000, intervals.getIntervalMs(onmsNode));
+        observe(intervals, 35000, 60000, 10);
+        assertEquals(10000, intervals.getIntervalMs(onmsNode));
+    }
+
+    @Test
+    public void canAlignIntervalsToTheStep() {
+        final AdaptiveIntervals idle = new AdaptiveIntervals(baseIntervals, 2500, 60000, 3000, 40000, 0.25, now::get);
+        observe(idle, 0, 100, 10);
+        observe(idle, 10000, 100, 10);
+        observe(idle, 20000, 100, 10);
+        assertEquals(18000, idle.getIntervalMs(onmsNode));
+
+        final AdaptiveIntervals busy = new AdaptiveIntervals(baseIntervals, 2500, 60000, 3000, 40000, 0.25, now::get);
+        observe(busy, 0, 0, 10);
+        observe(busy, 10000, 10000, 10);
+        observe(busy, 20000, 30000, 10);
+        assertEquals(6000, busy.getIntervalMs(onmsNode));
+        observe(busy, 26000, 33000, 10);
+        assertEquals(3000, busy.getIntervalMs(onmsNode));
+    }
+
+    @Test
+    public void neverAdaptsWhenCollectingAtTheStep() {
+        // The heartbeat is twice the step, as created by OpenNMS
+        final AdaptiveIntervals intervals = new AdaptiveIntervals(baseIntervals, 2500, 60000, 10000, 20000, 0.25, now::get);
+        observe(intervals, 0, 0, 10);
+        observe(intervals, 10000, 0, 10);
+        observe(intervals, 20000, 0, 10);
+        assertEquals(10000, intervals.getIntervalMs(onmsNode));
+        observe(intervals, 30000, 10000, 10);
+        observe(intervals, 40000, 50000, 10);
+        assertEquals(10000, intervals.getIntervalMs(onmsNode));
+    }
+
+    @Test
+    public void canBackOffWhenTheControllerIsSlow() {
+        final AdaptiveIntervals intervals = new AdaptiveIntervals(baseIntervals, 2500, 60000, 2500, 20000, 0.25, now::get);
+        observe(intervals, 0, 0, 8000);
+        assertEquals(15000, intervals.getIntervalMs(onmsNode));
+    }
+
+    @Test
+    public void canBackOffDroppedNodes() {
+        final AdaptiveIntervals intervals = new AdaptiveIntervals(baseIntervals, 2500, 60000, 2500, 20000, 0.25, now::get);
+        intervals.backOff(onmsNode);
+        assertEquals(15000, intervals.getIntervalMs(onmsNode));
+    }
+
+    @Test
+    public void neverBacksOffWhenTheIntervalIsCloseToTheHeartbeat() {
+        final AdaptiveIntervals intervals = new AdaptiveIntervals(baseIntervals, 2500, 60000, 2500, 12000, 0.25, now::get);
+        observe(intervals, 0, 0, 8000);
+        observe(intervals, 10000, 0, 8000);
+        observe(intervals, 20000, 0, 8000);
+        assertEquals(10000, intervals.getIntervalMs(onmsNode));
+    }
+
+    @Test
+    public void ignoresUnknownResponseTimes() {
+        final AdaptiveIntervals intervals = new AdaptiveIntervals(baseIntervals, 2500, 60000, 2500, 20000, 0.25, now::get);
+        observe(intervals, 0, 0, -1);
+        assertEquals(10000, intervals.getIntervalMs(onmsNode));
+    }
+
+    @Test
+    public void canHonorTheBounds() {
+        final AdaptiveIntervals intervals = new AdaptiveIntervals(baseIntervals, 8000, 15000, 5000, 40000, 0.25, now::get);
+        observe(intervals, 0, 100, 10);
+        observe(intervals, 10000, 100, 10);
+        observe(intervals, 20000, 100, 10);
+        assertEquals(15000, intervals.getIntervalMs(onmsNode));
+
+        observe(intervals, 30000, 10100, 10);
+        observe(intervals, 40000, 50100, 10);
+        assertEquals(10000, intervals.getIntervalMs(onmsNode));
+    }
+
+    @Test
+    public void canForgetNodes() {
+        final AdaptiveIntervals intervals = new AdaptiveIntervals(baseIntervals, 2500, 60000, 2500, 20000, 0.25, now::get);
+        observe(intervals, 0, 0, 8000);
+        assertEquals(15000, intervals.getEffectiveIntervalMs(1));
+        intervals.retainAll(Collections.emptySet());
+        assertEquals(-1, intervals.getEffectiveIntervalMs(1));
+        assertEquals(10000, intervals.getIntervalMs(onmsNode));
+    }
+
+    private void observe(AdaptiveIntervals intervals, long time, double octets, long responseTimeMs) {
+        now.set(time);
+        final IpInterfaceResource resource = ImmutableIpInterfaceResource.newInstance(nodeResource, "s1_eth1");
+        final CollectionSet collectionSet = ImmutableCollectionSet.newBuilder()
+                .setStatus(CollectionSet.Status.SUCCEEDED)
+                .addCollectionSetResource(ImmutableCollectionSetResource.newBuilder(IpInterfaceResource.class)
+                        .setResource(resource)
+                        .addNumericAttribute(ImmutableNumericAttribute.newBuilder()
+                                .setName("ifHCInOctets")
+                                .setGroup("test")
+                                .setType(NumericAttribute.Type.COUNTER)
+                                .setValue(octets)
+                                .build())
+                        .addNumericAttribute(ImmutableNumericAttribute.newBuilder()
+                                .setName("ifHCOutOctets")
+                                .setGroup("test")
+                                .setType(NumericAttribute.Type.COUNTER)
+                                .setValue(0d)
+                                .build())
+                        .build())
+                .build();
+        intervals.observe(onmsNode, collectionSet, responseTimeMs);
+    }
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opennms.integration.api.v1.model.MetaData;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.plugins.odl.NodeRegistry;
+import org.opennms.plugins.odl.OdlMetadata;
+import org.opennms.plugins.odl.OpendaylightRequisitionProvider;
+import org.opennms.plugins.odl.OpendaylightRestconfClient;
+import org.opennms.plugins.odl.TestUtils;
+
+import okhttp3.WebSocket;
+
+public class ChangeDrivenCollectorTest {
+
+    private final AtomicLong now = new AtomicLong(0);
+    private final List<List<String>> collected = new ArrayList<>();
+    private final List<Node> nodes = Arrays.asList(onmsNode("openflow:1"), onmsNode("openflow:2"), onmsNode("openflow:3"));
+
+    private final OpendaylightRestconfClient client = mock(OpendaylightRestconfClient.class);
+    private final NodeRegistry nodeRegistry = TestUtils.nodeRegistry();
+    private final ChangeDrivenCollector changeDrivenCollector = changeDrivenCollector(10000, 60000);
+
+    @Test
+    public void canCollectOnlyChangedNodes() {
+        // All of the nodes are collected initially
+        changeDrivenCollector.flush();
+        assertThat(collected.get(0), containsInAnyOrder("openflow:1", "openflow:2", "openflow:3"));
+
+        // Nothing changed
+        now.set(1000);
+        changeDrivenCollector.flush();
+        assertEquals(1, collected.size());
+
+        // The counters of a port changed on openflow:2, while only the duration changed on openflow:1
+        // and the changes to the node itself are ignored
+        changeDrivenCollector.onNotification(notification(
+                statisticsPath("openflow:2") + "/opendaylight-port-statistics:bytes/opendaylight-port-statistics:received",
+                statisticsPath("openflow:1") + "/opendaylight-port-statistics:duration/opendaylight-port-statistics:second",
+                "/opendaylight-inventory:nodes/opendaylight-inventory:node[opendaylight-inventory:id='openflow:3']"));
+        now.set(2000);
+        changeDrivenCollector.flush();
+        assertThat(collected.get(1), contains("openflow:2"));
+        assertEquals(1, changeDrivenCollector.getPortChangesReceived());
+        assertEquals(1, changeDrivenCollector.getStatisticsChangesIgnored());
+        assertEquals(5, changeDrivenCollector.getSkippedCollections());
+
+        // Quiet nodes are collected once the fallback interval has elapsed
+        now.set(10000);
+        changeDrivenCollector.flush();
+        assertThat(collected.get(2), containsInAnyOrder("openflow:1", "openflow:3"));
+        now.set(12000);
+        changeDrivenCollector.flush();
+        assertThat(collected.get(3), contains("openflow:2"));
+        assertEquals(4, collected.size());
+    }
+
+    @Test
+    public void canFetchInBulkWhenManyNodesChanged() {
+        final List<List<String>> collectedInBulk = new ArrayList<>();
+        changeDrivenCollector.setBulkCollector(nodesToCollect -> {
+            collectedInBulk.add(nodesToCollect.stream().map(Node::getLabel).collect(Collectors.toList()));
+            return null;
+        });
+        changeDrivenCollector.setBulkFetchRatio(0.5);
+        changeDrivenCollector.flush();
+        assertThat(collectedInBulk.get(0), containsInAnyOrder("openflow:1", "openflow:2", "openflow:3"));
+
+        // One of three nodes changed, fetched individually
+        changeDrivenCollector.onNotification(notification(statisticsPath("openflow:1") + "/opendaylight-port-statistics:packets"));
+        now.set(1000);
+        changeDrivenCollector.flush();
+        assertThat(collected.get(0), contains("openflow:1"));
+
+        // Two of three nodes changed, fetched in bulk
+        changeDrivenCollector.onNotification(notification(statisticsPath("openflow:1") + "/opendaylight-port-statistics:packets",
+                statisticsPath("openflow:3") + "/opendaylight-port-statistics:bytes"));
+        now.set(2000);
+        changeDrivenCollector.flush();
+        assertThat(collectedInBulk.get(1), containsInAnyOrder("openflow:1", "openflow:3"));
+        assertEquals(1, collected.size());
+        assertEquals(2, changeDrivenCollector.getBulkFetches());
+    }
+
+    @Test
+    public void capsTheFallbackIntervalBelowTheHeartbeat() {
+        final ChangeDrivenCollector changeDrivenCollector = changeDrivenCollector(300000, 30000);
+        changeDrivenCollector.flush();
+        now.set(22000);
+        changeDrivenCollector.flush();
+        assertEquals(1, collected.size());
+        now.set(22500);
+        changeDrivenCollector.flush();
+        assertThat(collected.get(1), containsInAnyOrder("openflow:1", "openflow:2", "openflow:3"));
+    }
+
+    @Test
+    public void canReopenTheSubscription() throws Exception {
+        final ArgumentCaptor<Runnable> closeListener = ArgumentCaptor.forClass(Runnable.class);
+        when(client.streamChanges(anyString(), anyString(), anyString(), any(), closeListener.capture()))
+                .thenThrow(new IOException("unavailable"))
+                .thenReturn(mock(WebSocket.class));
+        final ChangeDrivenCollector changeDrivenCollector = changeDrivenCollector(80000, 120000);
+
+        // The subscription fails initially, and is retried after a delay
+        changeDrivenCollector.subscribe();
+        changeDrivenCollector.flush();
+        now.set(ChangeDrivenCollector.RESUBSCRIBE_DELAY_MS - 1);
+        changeDrivenCollector.flush();
+        assertEquals(0, changeDrivenCollector.getSubscriptionsOpened());
+        now.set(ChangeDrivenCollector.RESUBSCRIBE_DELAY_MS);
+        changeDrivenCollector.flush();
+        assertEquals(1, changeDrivenCollector.getSubscriptionsOpened());
+
+        // Reopened once closed, and all of the nodes are collected before the fallback interval
+        // has elapsed, since changes may have been missed
+        closeListener.getValue().run();
+        now.set(2 * ChangeDrivenCollector.RESUBSCRIBE_DELAY_MS);
+        changeDrivenCollector.flush();
+        assertEquals(2, changeDrivenCollector.getSubscriptionsOpened());
+        assertEquals(2, collected.size());
+        assertThat(collected.get(1), containsInAnyOrder("openflow:1", "openflow:2", "openflow:3"));
+        verify(client, times(3)).streamChanges(anyString(), anyString(), anyString(), any(), any());
+    }
+
+    @Test
+    public void canCountTheEncodedNotificationBytes() {
+        final String notification = notification(statisticsPath("openflow:\u00e9"));
+        changeDrivenCollector.onNotification(notification);
+        assertEquals(notification.getBytes(StandardCharsets.UTF_8).length, changeDrivenCollector.getNotificationBytesReceived());
+    }
+
+    @Test
+    public void collectsAllNodesWhenNotificationsCannotBeParsed() {
+        changeDrivenCollector.flush();
+        collected.clear();
+
+        changeDrivenCollector.onNotification("<notification");
+        now.set(1000);
+        changeDrivenCollector.flush();
+        assertThat(collected.get(0), containsInAnyOrder("openflow:1", "openflow:2", "openflow:3"));
+
+        now.set(2000);
+        changeDrivenCollector.flush();
+        assertThat(collected.subList(1, collected.size()), empty());
+    }
+
+    private ChangeDrivenCollector changeDrivenCollector(long fallbackIntervalMs, long heartbeatMs) {
+        return new ChangeDrivenCollector(client, nodeRegistry, () -> nodes, nodesToCollect -> {
+                    collected.add(nodesToCollect.stream().map(Node::getLabel).collect(Collectors.toList()));
+                    return null;
+                },
+                1000, fallbackIntervalMs, heartbeatMs, 60000, now::get);
+    }
+
+    private static String statisticsPath(String nodeId) {
+        return "/opendaylight-inventory:nodes/opendaylight-inventory:node[opendaylight-inventory:id='" + nodeId + "']"
+                + "/opendaylight-inventory:node-connector[opendaylight-inventory:id='" + nodeId + ":1']"
+                + "/opendaylight-port-statistics:flow-capable-node-connector-statistics";
+    }
+
+    private static String notification(String... paths) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<notification xmlns=\"urn:ietf:params:xml:ns:netconf:notification:1.0\">")
+                .append("<eventTime>2019-03-14T12:08:57.367-04:00</eventTime>")
+                .append("<data-changed-notification xmlns=\"urn:opendaylight:params:xml:ns:yang:controller:md:sal:remote\">");
+        for (String path : paths) {
+            sb.append("<data-change-event><path>").append(path).append("</path><operation>updated</operation></data-change-event>");
+        }
+        return sb.append("</data-changed-notification></notification>").toString();
+    }
+
+    private static Node onmsNode(String odlNodeId) {
+        final MetaData metaData = mock(MetaData.class);
+        when(metaData.getContext()).thenReturn(OpendaylightRequisitionProvider.METADATA_CONTEXT_ID);
+        when(metaData.getKey()).thenReturn(OdlMetadata.NODE_ID_KEY);
+        when(metaData.getValue()).thenReturn(odlNodeId);
+        final Node node = mock(Node.class);
+        when(node.getLabel()).thenReturn(odlNodeId);
+        when(node.getMetaData()).thenReturn(Collections.singletonList(metaData));
+        return node;
+    }
+}
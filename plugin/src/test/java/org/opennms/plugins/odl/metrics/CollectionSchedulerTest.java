@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.opennms.plugins.odl.TestUtils.node;
+import static org.opennms.plugins.odl.TestUtils.waitFor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opennms.integration.api.v1.model.Node;
+
+public class CollectionSchedulerTest {
+
+    private CollectionScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void canParseIntervalOverrides() {
+        final CollectionIntervals intervals = CollectionIntervals.parse(15000, "core-.*=5, edge-1=60");
+        assertEquals(5000, intervals.getIntervalMs(node(1, "core-1")));
+        assertEquals(60000, intervals.getIntervalMs(node(2, "edge-1")));
+        assertEquals(15000, intervals.getIntervalMs(node(3, "edge-2")));
+        assertEquals(15000, CollectionIntervals.parse(15000, "").getIntervalMs(node(1, "core-1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void canRejectInvalidIntervalOverrides() {
+        CollectionIntervals.parse(15000, "core-.*");
+    }
+
+    @Test
+    public void canSpreadCollectionsAcrossInterval() throws InterruptedException {
+        final List<Node> nodes = Arrays.asList(node(1, "n1"), node(2, "n2"), node(3, "n3"), node(4, "n4"));
+        final Map<Integer, Long> firstCollectedAt = new ConcurrentHashMap<>();
+        final long start = System.currentTimeMillis();
+        scheduler = new CollectionScheduler(() -> nodes,
+                collected -> {
+                    collected.forEach(n -> firstCollectedAt.putIfAbsent(n.getId(), System.currentTimeMillis() - start));
+                    return null;
+                },
+                new CollectionIntervals(800), false, 4, 0, 60000);
+        scheduler.start();
+
+        waitFor(() -> firstCollectedAt.size() == 4);
+        assertEquals(4, scheduler.getNumUnits());
+        // The start times should be ~200ms apart, instead of all at once
+        final List<Long> offsets = new ArrayList<>(firstCollectedAt.values());
+        Collections.sort(offsets);
+        assertThat(offsets.get(3) - offsets.get(0), greaterThanOrEqualTo(500L));
+        assertThat(offsets.get(3) - offsets.get(0), lessThan(800L));
+    }
+
+    @Test
+    public void canGroupNodesByIntervalAndDetectOverruns() throws InterruptedException {
+        final List<Node> nodes = Arrays.asList(node(1, "core-1"), node(2, "core-2"), node(3, "edge-1"));
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        scheduler = new CollectionScheduler(() -> nodes,
+                collected -> {
+                    batchSizes.add(collected.size());
+                    // Take longer than the interval
+                    Thread.sleep(250);
+                    return null;
+                },
+                CollectionIntervals.parse(200, "edge-.*=60"), true, 2, 0, 60000);
+        scheduler.start();
+
+        waitFor(() -> scheduler.getOverruns() > 0 && batchSizes.size() >= 2);
+        assertEquals(2, scheduler.getNumUnits());
+        assertThat(batchSizes, hasItems(2, 1));
+        assertThat(scheduler.getOverruns(), greaterThan(0L));
+    }
+
+    @Test
+    public void canDetectOverrunsOfQueuedCollections() throws InterruptedException {
+        final List<Node> nodes = Collections.singletonList(node(1, "core-1"));
+        // The collector only queues the collection, which completes later
+        final CompletableFuture<Void> pending = new CompletableFuture<>();
+        scheduler = new CollectionScheduler(() -> nodes, collected -> pending,
+                new CollectionIntervals(100), false, 1, 0, 60000);
+        scheduler.start();
+
+        waitFor(() -> scheduler.getOverruns() > 1);
+        assertEquals(0, scheduler.getCollectionsRun());
+
+        pending.complete(null);
+        waitFor(() -> scheduler.getCollectionsRun() > 0);
+        assertThat(scheduler.getLateCollections(), greaterThan(0L));
+    }
+
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FlowHeavyHittersTest {
+
+    @Test
+    public void canFindHeavyFlowsInFixedMemory() {
+        final FlowHeavyHitters sketch = new FlowHeavyHitters(8);
+        for (long interval = 1; interval <= 5; interval++) {
+            sketch.beginInterval();
+            // The heavy flows are surrounded by many light flows
+            for (int i = 0; i < 500; i++) {
+                sketch.offer((short)0, "mouse-" + i, interval * 10, interval, 10, 1);
+            }
+            for (int i = 0; i < 3; i++) {
+                sketch.offer((short)0, "elephant-" + i, interval * 1000000 * (i + 1), interval * 1000, 1000000 * (i + 1), 1000);
+            }
+            for (int i = 500; i < 1000; i++) {
+                sketch.offer((short)0, "mouse-" + i, interval * 10, interval, 10, 1);
+            }
+        }
+        assertEquals(8, sketch.size());
+
+        final List<String> top = new ArrayList<>();
+        sketch.forEachTop(3, (tableId, flowId, bytes, packets, deltaBytes, deltaPackets) -> top.add(flowId));
+        assertThat(top, contains("elephant-2", "elephant-1", "elephant-0"));
+    }
+
+    @Test
+    public void computesExactDeltasForTrackedFlows() {
+        final FlowHeavyHitters sketch = new FlowHeavyHitters(4);
+        sketch.beginInterval();
+        int slot = sketch.offer((short)0, "flow", 100, 10, 40, 4);
+        // The estimate is used for new flows
+        assertEquals(40, sketch.getDeltaBytes(slot));
+        assertEquals(4, sketch.getDeltaPackets(slot));
+
+        sketch.beginInterval();
+        slot = sketch.offer((short)0, "flow", 250, 25, 0, 0);
+        assertEquals(150, sketch.getDeltaBytes(slot));
+        assertEquals(15, sketch.getDeltaPackets(slot));
+        // 40 halved, plus 150
+        assertEquals(170, sketch.getWeight((short)0, "flow"));
+
+        // Counters reset when the flow is re-installed
+        sketch.beginInterval();
+        slot = sketch.offer((short)0, "flow", 50, 5, 0, 0);
+        assertEquals(50, sketch.getDeltaBytes(slot));
+        assertEquals(5, sketch.getDeltaPackets(slot));
+    }
+
+    @Test
+    public void limitsTopFlowsPerTable() {
+        final FlowHeavyHitters sketch = new FlowHeavyHitters(16);
+        sketch.beginInterval();
+        sketch.offer((short)0, "a", 100, 1, 100, 1);
+        sketch.offer((short)0, "b", 200, 1, 200, 1);
+        sketch.offer((short)1, "c", 300, 1, 300, 1);
+        sketch.offer((short)1, "d", 50, 1, 50, 1);
+
+        final List<String> top = new ArrayList<>();
+        sketch.forEachTop(1, (tableId, flowId, bytes, packets, deltaBytes, deltaPackets) -> top.add(tableId + "/" + flowId));
+        assertThat(top, containsInAnyOrder("0/b", "1/c"));
+    }
+
+    @Test
+    public void ignoresFlowsWhichAreNoLongerPresent() {
+        final FlowHeavyHitters sketch = new FlowHeavyHitters(16);
+        sketch.beginInterval();
+        sketch.offer((short)0, "removed", 1000, 1, 1000, 1);
+        sketch.offer((short)0, "present", 10, 1, 10, 1);
+
+        sketch.beginInterval();
+        sketch.offer((short)0, "present", 20, 2, 0, 0);
+
+        final List<String> top = new ArrayList<>();
+        sketch.forEachTop(10, (tableId, flowId, bytes, packets, deltaBytes, deltaPackets) -> top.add(flowId));
+        assertThat(top, contains("present"));
+    }
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNodeConnector;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.port.statistics.rev131214.FlowCapableNodeConnectorStatisticsData;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.port.statistics.rev131214.flow.capable.node.connector.statistics.FlowCapableNodeConnectorStatistics;
+import org.opennms.integration.api.v1.collectors.CollectionSet;
+import org.opennms.integration.api.v1.collectors.immutables.ImmutableNumericAttribute;
+import org.opennms.integration.api.v1.collectors.immutables.ImmutableStringAttribute;
+import org.opennms.integration.api.v1.collectors.resource.IpInterfaceResource;
+import org.opennms.integration.api.v1.collectors.resource.NodeResource;
+import org.opennms.integration.api.v1.collectors.resource.NumericAttribute;
+import org.opennms.integration.api.v1.collectors.resource.StringAttribute;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableCollectionSet;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableCollectionSetResource;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableIpInterfaceResource;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableNodeResource;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.plugins.odl.OpendaylightRestconfClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the heap allocated per port by the {@link MetricGenerator} against the
+ * original implementation, which sanitized the interface names using a regex and
+ * rebuilt every resource and attribute on every cycle.
+ */
+public class MetricGeneratorAllocationIT {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricGeneratorAllocationIT.class);
+
+    private static final int ITERATIONS = 1000;
+
+    private final com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    private final OpendaylightRestconfClient client = new OpendaylightRestconfClient("http://localhost:8181");
+
+    @After
+    public void tearDown() {
+        client.destroy();
+    }
+
+    @Test
+    public void allocatesLessPerPortThanOriginalGenerator() throws Exception {
+        final byte[] json = Files.readAllBytes(Paths.get("src", "test", "resources", "__files", "operational-inventory-node.json"));
+        final org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node odlNode = client.decodeNodeFromOperationalInventory(json, StandardCharsets.UTF_8);
+        final Node onmsNode = mock(Node.class);
+        when(onmsNode.getId()).thenReturn(1);
+        final MetricGenerator metricGenerator = new MetricGenerator();
+        final int numPorts = (int)metricGenerator.toCollectionSet(onmsNode, odlNode).getCollectionSetResources().stream()
+                .filter(r -> r.getResource() instanceof IpInterfaceResource)
+                .count();
+
+        // Warm up both paths
+        for (int i = 0; i < ITERATIONS; i++) {
+            toCollectionSetWithOriginalGenerator(onmsNode, odlNode);
+            metricGenerator.toCollectionSet(onmsNode, odlNode);
+        }
+
+        final long originalBytes = measure(() -> toCollectionSetWithOriginalGenerator(onmsNode, odlNode)) / numPorts;
+        final long bytes = measure(() -> metricGenerator.toCollectionSet(onmsNode, odlNode)) / numPorts;
+        LOG.info("Original generator allocated {} bytes/port, generator allocated {} bytes/port.", originalBytes, bytes);
+        assertThat(bytes, lessThan(originalBytes));
+    }
+
+    private long measure(Supplier<CollectionSet> supplier) {
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            supplier.get();
+        }
+        return (threadMXBean.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+    }
+
+    private static CollectionSet toCollectionSetWithOriginalGenerator(Node onmsNode, org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node odlNode) {
+        final ImmutableCollectionSet.Builder csetBuilder = ImmutableCollectionSet.newBuilder()
+                .setStatus(CollectionSet.Status.SUCCEEDED);
+        final NodeResource nodeResource = ImmutableNodeResource.newBuilder()
+                .setNodeId(onmsNode.getId())
+                .build();
+        for (NodeConnector nodeConnector : odlNode.getNodeConnector()) {
+            final FlowCapableNodeConnector flowCapableNodeConnector = nodeConnector.getAugmentation(FlowCapableNodeConnector.class);
+            final String ifName = flowCapableNodeConnector.getName();
+            final String sanitizedIfName = ifName.replaceAll("[^A-Za-z0-9]", "_");
+            final IpInterfaceResource ipInterfaceResource = ImmutableIpInterfaceResource.newInstance(nodeResource, sanitizedIfName);
+            final ImmutableCollectionSetResource.Builder<?> resourceBuilder = ImmutableCollectionSetResource.newBuilder(IpInterfaceResource.class)
+                    .setResource(ipInterfaceResource);
+            final String groupName = "opendaylight-port-statistics";
+            final FlowCapableNodeConnectorStatisticsData flow = nodeConnector.getAugmentation(FlowCapableNodeConnectorStatisticsData.class);
+            if (flow != null) {
+                final FlowCapableNodeConnectorStatistics flowStats = flow.getFlowCapableNodeConnectorStatistics();
+                resourceBuilder.addStringAttribute(string("ifName", groupName, () -> ifName));
+                resourceBuilder.addStringAttribute(string("ifHighSpeed", groupName, () -> Long.toString(flowCapableNodeConnector.getCurrentSpeed() / 1000)));
+                resourceBuilder.addNumericAttribute(counter("ifHCInOctets", groupName, () -> flowStats.getBytes().getReceived()));
+                resourceBuilder.addNumericAttribute(counter("ifHCOutOctets", groupName, () -> flowStats.getBytes().getTransmitted()));
+                resourceBuilder.addNumericAttribute(counter("ifHCInUcastPkts", groupName, () -> flowStats.getPackets().getReceived()));
+                resourceBuilder.addNumericAttribute(counter("ifHCOutUcastPkts", groupName, () -> flowStats.getPackets().getTransmitted()));
+                resourceBuilder.addNumericAttribute(counter("transmitDrops", groupName, flowStats::getTransmitDrops));
+                csetBuilder.addCollectionSetResource(resourceBuilder.build());
+            }
+        }
+        return csetBuilder.build();
+    }
+
+    private static StringAttribute string(String name, String group, Supplier<String> value) {
+        return ImmutableStringAttribute.newBuilder()
+                .setName(name)
+                .setGroup(group)
+                .setValue(value.get())
+                .build();
+    }
+
+    private static NumericAttribute counter(String name, String group, Supplier<BigInteger> value) {
+        return ImmutableNumericAttribute.newBuilder()
+                .setName(name)
+                .setGroup(group)
+                .setType(NumericAttribute.Type.COUNTER)
+                .setValue(value.get().doubleValue())
+                .build();
+    }
+}
@@ -43,6 +43,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNode;
 import org.opennms.integration.api.v1.collectors.CollectionSet;
+import org.opennms.integration.api.v1.collectors.resource.CollectionSetResource;
+import org.opennms.integration.api.v1.collectors.resource.GenericTypeResource;
 import org.opennms.integration.api.v1.model.Node;
 import org.opennms.plugins.odl.OpendaylightRestconfClient;
 
@@ -77,6 +79,33 @@ public class MetricGeneratorIT {
 
         Node onmsNode = mock(Node.class);
         CollectionSet collectionSet = metricGenerator.toCollectionSet(onmsNode, node);
-        assertThat(collectionSet.getCollectionSetResources(), hasSize(5));
+        // 5 interfaces and the single flow table that is in use
+        assertThat(collectionSet.getCollectionSetResources(), hasSize(6));
+
+        CollectionSetResource<?> tableResource = collectionSet.getCollectionSetResources().stream()
+                .filter(r -> r.getResource() instanceof GenericTypeResource)
+                .findFirst()
+                .get();
+        GenericTypeResource table = (GenericTypeResource)tableResource.getResource();
+        assertEquals(MetricGenerator.FLOW_TABLE_RESOURCE_TYPE, table.getType());
+        assertEquals("0", table.getInstance());
+        assertEquals(6d, getNumericValue(tableResource, "activeFlows"), 0d);
+        assertEquals(110398d, getNumericValue(tableResource, "packetsLookedUp"), 0d);
+        assertEquals(110389d, getNumericValue(tableResource, "packetsMatched"), 0d);
+    }
+
+    private static double getNumericValue(CollectionSetResource<?> resource, String name) {
+        return resource.getNumericAttributes().stream()
+                .filter(a -> name.equals(a.getName()))
+                .findFirst()
+                .get()
+                .getValue();
+    }
+
+    @Test
+    public void canSanitizeInterfaceNames() {
+        assertEquals("s4_eth1", MetricGenerator.sanitize("s4-eth1"));
+        assertEquals("br0_1_", MetricGenerator.sanitize("br0.1/"));
+        assertEquals("eth0", MetricGenerator.sanitize("eth0"));
     }
 }
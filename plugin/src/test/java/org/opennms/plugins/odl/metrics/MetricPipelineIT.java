@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.InetAddress;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.opennms.integration.api.v1.collectors.CollectionSet;
+import org.opennms.integration.api.v1.collectors.CollectionSetPersistenceService;
+import org.opennms.integration.api.v1.model.IpInterface;
+import org.opennms.integration.api.v1.model.MetaData;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.plugins.odl.OdlMetadata;
+import org.opennms.plugins.odl.OpendaylightRequisitionProvider;
+import org.opennms.plugins.odl.OpendaylightRestconfClient;
+import org.opennms.plugins.odl.TestUtils;
+
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class MetricPipelineIT {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(WireMockConfiguration.wireMockConfig()
+            .withRootDirectory(Paths.get("src", "test", "resources").toString())
+            .dynamicPort());
+
+    private MetricPipeline pipeline;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    public void canCollectAndPersistInventoryThroughPipeline() throws Exception {
+        stubFor(get(urlEqualTo("/restconf/operational/opendaylight-inventory:nodes/"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "Content-Type: application/yang.data+json; charset=utf-8")
+                        .withBodyFile("operational-inventory.json")));
+        stubFor(get(urlEqualTo("/restconf/operational/opendaylight-inventory:nodes/node/openflow:4"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "Content-Type: application/yang.data+json; charset=utf-8")
+                        .withBodyFile("operational-inventory-node.json")));
+        final OpendaylightRestconfClient client = new OpendaylightRestconfClient(String.format("http://localhost:%s", wireMockRule.port()));
+
+        for (boolean bulk : new boolean[]{true, false}) {
+            final CollectionSetPersistenceService persistenceService = mock(CollectionSetPersistenceService.class);
+            pipeline = new MetricPipeline(client, TestUtils.nodeRegistry(), persistenceService, new MetricGenerator(), bulk,
+                    10, MetricPipeline.OverflowPolicy.BLOCK, 1, 1, 1);
+            pipeline.start();
+            // Completes once persisted
+            pipeline.submit(Collections.singletonList(onmsNode(1, "openflow:4"))).get(10, TimeUnit.SECONDS);
+
+            verify(persistenceService).persist(eq(1), any(InetAddress.class), any(CollectionSet.class));
+            pipeline.getStages().forEach(stage -> assertEquals(stage.getName(), 0, stage.getFailed()));
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    public void canDropOldestWhenPersistenceFallsBehind() throws Exception {
+        stubFor(get(urlEqualTo("/restconf/operational/opendaylight-inventory:nodes/node/openflow:4"))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", "Content-Type: application/yang.data+json; charset=utf-8")
+                        .withBodyFile("operational-inventory-node.json")));
+        final OpendaylightRestconfClient client = new OpendaylightRestconfClient(String.format("http://localhost:%s", wireMockRule.port()));
+
+        // Block persistence until we're done
+        final CollectionSetPersistenceService persistenceService = mock(CollectionSetPersistenceService.class);
+        final CountDownLatch releasePersistence = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            releasePersistence.await();
+            return null;
+        }).when(persistenceService).persist(anyInt(), any(InetAddress.class), any(CollectionSet.class));
+
+        pipeline = new MetricPipeline(client, TestUtils.nodeRegistry(), persistenceService, new MetricGenerator(), false,
+                1, MetricPipeline.OverflowPolicy.DROP_OLDEST, 1, 1, 1);
+        pipeline.start();
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[10];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = pipeline.submit(Collections.singletonList(onmsNode(i + 1, "openflow:4")));
+        }
+
+        // Nothing can be persisted yet, so the first collection to complete is a dropped one
+        try {
+            CompletableFuture.anyOf(futures).get(10, TimeUnit.SECONDS);
+            fail("The collection should have been dropped.");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+        } finally {
+            releasePersistence.countDown();
+        }
+        assertThat(pipeline.getStages().stream().mapToLong(MetricPipeline.Stage::getDropped).sum(), greaterThan(0L));
+    }
+
+    private static Node onmsNode(int id, String odlNodeId) throws Exception {
+        final MetaData metaData = mock(MetaData.class);
+        when(metaData.getContext()).thenReturn(OpendaylightRequisitionProvider.METADATA_CONTEXT_ID);
+        when(metaData.getKey()).thenReturn(OdlMetadata.NODE_ID_KEY);
+        when(metaData.getValue()).thenReturn(odlNodeId);
+
+        final IpInterface ipInterface = mock(IpInterface.class);
+        when(ipInterface.getIpAddress()).thenReturn(InetAddress.getLoopbackAddress());
+
+        final Node node = mock(Node.class);
+        when(node.getId()).thenReturn(id);
+        when(node.getLabel()).thenReturn("node" + id);
+        when(node.getMetaData()).thenReturn(Collections.singletonList(metaData));
+        when(node.getIpInterfaces()).thenReturn(Collections.singletonList(ipInterface));
+        return node;
+    }
+}
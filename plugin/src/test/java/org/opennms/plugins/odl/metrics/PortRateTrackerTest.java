@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PortRateTrackerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final PortRateTracker tracker = new PortRateTracker(4);
+
+    @Test
+    public void canComputeRatesAndUtilization() {
+        final PortRateTracker.PortHistory history = tracker.getOrCreate(1, "openflow:1:1");
+        // The first sample is only used as a baseline
+        assertFalse(history.add(0, 0, 0, 0, 0, 0));
+        assertEquals(Double.NaN, history.getRate(PortRateTracker.IN_OCTETS), 0d);
+
+        assertTrue(history.add(10 * SECOND, 1000, 2000, 10, 20, 0));
+        assertEquals(100d, history.getRate(PortRateTracker.IN_OCTETS), 0.001d);
+        assertEquals(200d, history.getRate(PortRateTracker.OUT_OCTETS), 0.001d);
+        assertEquals(1d, history.getRate(PortRateTracker.IN_PACKETS), 0.001d);
+        assertEquals(2d, history.getRate(PortRateTracker.OUT_PACKETS), 0.001d);
+
+        assertTrue(history.add(20 * SECOND, 4000, 2000, 10, 20, 0));
+        assertEquals(300d, history.getRate(PortRateTracker.IN_OCTETS), 0.001d);
+        assertEquals(200d, history.getAverageRate(PortRateTracker.IN_OCTETS, 10), 0.001d);
+
+        // 125000 octets/s on a 10 Mbps port is 10%
+        assertEquals(10d, PortRateTracker.toUtilization(125000, 10000), 0.001d);
+        assertEquals(Double.NaN, PortRateTracker.toUtilization(125000, 0), 0d);
+    }
+
+    @Test
+    public void keepsAFixedNumberOfSamples() {
+        final PortRateTracker.PortHistory history = tracker.getOrCreate(1, "openflow:1:1");
+        history.add(0, 0, 0, 0, 0, 0);
+        for (int i = 1; i <= 10; i++) {
+            history.add(i * SECOND, i * i * 100, 0, 0, 0, 0);
+        }
+        assertEquals(4, history.getSampleCount());
+        // Only the last 4 samples are kept: (10000 - 3600) / 4 seconds
+        assertEquals(1600d, history.getAverageRate(PortRateTracker.IN_OCTETS, 10), 0.001d);
+    }
+
+    @Test
+    public void canHandleWrapsResetsAndDuplicates() {
+        final PortRateTracker.PortHistory history = tracker.getOrCreate(1, "openflow:1:1");
+        final long nearMax = -101; // 2^64 - 101 as an unsigned value
+        history.add(0, nearMax, 0, 0, 0, 0);
+        assertTrue(history.add(SECOND, 99, 0, 0, 0, 0));
+        assertEquals(200d, history.getRate(PortRateTracker.IN_OCTETS), 0.001d);
+        assertEquals(1, history.getWraps());
+
+        // Same timestamp, the controller did not refresh the statistics
+        assertFalse(history.add(SECOND, 99, 0, 0, 0, 0));
+        assertEquals(1, history.getDuplicates());
+        assertEquals(1, history.getSampleCount());
+
+        // Counters going backwards is a reset, not a wrap
+        assertFalse(history.add(2 * SECOND, 50, 0, 0, 0, 0));
+        assertEquals(1, history.getResets());
+        assertEquals(0, history.getSampleCount());
+
+        // The port was restarted, so the duration went backwards
+        assertTrue(history.add(3 * SECOND, 150, 0, 0, 0, 0));
+        assertFalse(history.add(SECOND, 10, 0, 0, 0, 0));
+        assertEquals(2, history.getResets());
+        assertEquals(0, history.getSampleCount());
+    }
+
+    @Test
+    public void canForgetThePortsOfRemovedNodes() {
+        tracker.getOrCreate(1, "openflow:1:1");
+        tracker.getOrCreate(1, "openflow:1:2");
+        tracker.getOrCreate(2, "openflow:2:1");
+        assertEquals(3, tracker.size());
+
+        tracker.retainAll(Collections.singleton(2));
+        assertEquals(1, tracker.size());
+        assertNull(tracker.get(1, "openflow:1:1"));
+        assertNotNull(tracker.get(2, "openflow:2:1"));
+    }
+
+    @Test
+    public void keepsTheTrackedPortsWhenFull() {
+        final PortRateTracker tracker = new PortRateTracker(4, 2);
+        final PortRateTracker.PortHistory history = tracker.getOrCreate(1, "openflow:1:1");
+        tracker.getOrCreate(1, "openflow:1:2");
+        assertNull(tracker.getOrCreate(2, "openflow:2:1"));
+        assertSame(history, tracker.getOrCreate(1, "openflow:1:1"));
+
+        // Room is made once the node is removed
+        tracker.retainAll(Collections.singleton(2));
+        assertNotNull(tracker.getOrCreate(2, "openflow:2:1"));
+    }
+}
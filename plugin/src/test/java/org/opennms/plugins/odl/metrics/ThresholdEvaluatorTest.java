@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennms.integration.api.v1.collectors.CollectionSet;
+import org.opennms.integration.api.v1.collectors.immutables.ImmutableNumericAttribute;
+import org.opennms.integration.api.v1.collectors.immutables.ImmutableStringAttribute;
+import org.opennms.integration.api.v1.collectors.resource.IpInterfaceResource;
+import org.opennms.integration.api.v1.collectors.resource.NodeResource;
+import org.opennms.integration.api.v1.collectors.resource.NumericAttribute;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableCollectionSet;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableCollectionSetResource;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableIpInterfaceResource;
+import org.opennms.integration.api.v1.collectors.resource.immutables.ImmutableNodeResource;
+import org.opennms.integration.api.v1.config.thresholding.Expression;
+import org.opennms.integration.api.v1.config.thresholding.GroupDefinition;
+import org.opennms.integration.api.v1.config.thresholding.ThresholdType;
+import org.opennms.integration.api.v1.config.thresholding.ThresholdingConfigExtension;
+import org.opennms.integration.api.v1.events.EventForwarder;
+import org.opennms.integration.api.v1.model.InMemoryEvent;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.plugins.odl.EventConstants;
+
+public class ThresholdEvaluatorTest {
+
+    private final AtomicLong now = new AtomicLong(0);
+    private final EventForwarder eventForwarder = mock(EventForwarder.class);
+    private final List<InMemoryEvent> events = new ArrayList<>();
+    private final Node onmsNode = mock(Node.class);
+    private final NodeResource nodeResource = ImmutableNodeResource.newBuilder().setNodeId(1).build();
+    private ThresholdEvaluator evaluator;
+
+    @Before
+    public void setUp() {
+        doAnswer(invocation -> {
+            events.add(invocation.getArgument(0));
+            return null;
+        }).when(eventForwarder).sendAsync(any(InMemoryEvent.class));
+        when(onmsNode.getId()).thenReturn(1);
+
+        // Same definition as the one in thresholds.xml
+        final Expression expression = mock(Expression.class);
+        when(expression.getExpression()).thenReturn("transmitDrops");
+        when(expression.getType()).thenReturn(ThresholdType.HIGH);
+        when(expression.getDsType()).thenReturn("if");
+        when(expression.getValue()).thenReturn(1.0);
+        when(expression.getRearm()).thenReturn(0.0);
+        when(expression.getTrigger()).thenReturn(2);
+        when(expression.getDsLabel()).thenReturn(Optional.of("ifName"));
+        final GroupDefinition group = mock(GroupDefinition.class);
+        when(group.getExpressions()).thenReturn(Collections.singletonList(expression));
+        final ThresholdingConfigExtension config = mock(ThresholdingConfigExtension.class);
+        when(config.getGroupDefinitions()).thenReturn(Collections.singletonList(group));
+
+        evaluator = new ThresholdEvaluator(config, eventForwarder, now::get);
+        evaluator.setEnabled(true);
+        evaluator.init();
+    }
+
+    @Test
+    public void canTriggerAndRearmOnCounterRates() {
+        assertEquals(1, evaluator.getNumThresholds());
+
+        // The first sample is only used to compute the rate
+        evaluate(0, 0);
+        // 5 drops per second, exceeded once
+        evaluate(1000, 5);
+        assertEquals(0, events.size());
+        // Exceeded twice, triggers
+        evaluate(2000, 10);
+        assertEquals(1, events.size());
+        assertEquals(EventConstants.HIGH_THRESHOLD_EXCEEDED_UEI, events.get(0).getUei());
+        assertEquals("s1-eth1", events.get(0).getParameterValue(EventConstants.THRESHOLD_LABEL_PARM).get());
+        // Still exceeded, but already triggered
+        evaluate(3000, 15);
+        assertEquals(1, events.size());
+        // No more drops, rearms
+        evaluate(4000, 15);
+        assertEquals(2, events.size());
+        assertEquals(EventConstants.HIGH_THRESHOLD_REARMED_UEI, events.get(1).getUei());
+        assertEquals(4, evaluator.getEvaluations());
+    }
+
+    @Test
+    public void doesNothingWhenDisabled() {
+        evaluator.setEnabled(false);
+        evaluate(0, 0);
+        evaluate(1000, 5);
+        evaluate(2000, 10);
+        assertEquals(0, events.size());
+        assertEquals(0, evaluator.getEvaluations());
+    }
+
+    @Test
+    public void canRetainTriggeredStateWhenEvictingResources() {
+        evaluator.setMaxResourcesPerType(2);
+
+        evaluate(0, 0);
+        evaluate(1000, 5);
+        evaluate(2000, 10);
+        assertEquals(1, events.size());
+
+        // Cycle through more resources than can be tracked
+        for (int i = 2; i < 10; i++) {
+            evaluate("s1_eth" + i, 0, 0);
+            evaluate("s1_eth" + i, 1000, 0);
+        }
+
+        // The triggered threshold was not evicted and can still be rearmed
+        evaluate(3000, 10);
+        assertEquals(2, events.size());
+        assertEquals(EventConstants.HIGH_THRESHOLD_REARMED_UEI, events.get(1).getUei());
+    }
+
+    private void evaluate(long time, double transmitDrops) {
+        evaluate("s1_eth1", time, transmitDrops);
+    }
+
+    private void evaluate(String instance, long time, double transmitDrops) {
+        now.set(time);
+        final IpInterfaceResource resource = ImmutableIpInterfaceResource.newInstance(nodeResource, instance);
+        final CollectionSet collectionSet = ImmutableCollectionSet.newBuilder()
+                .setStatus(CollectionSet.Status.SUCCEEDED)
+                .addCollectionSetResource(ImmutableCollectionSetResource.newBuilder(IpInterfaceResource.class)
+                        .setResource(resource)
+                        .addStringAttribute(ImmutableStringAttribute.newBuilder()
+                                .setName("ifName")
+                                .setGroup("test")
+                                .setValue("s1-eth1")
+                                .build())
+                        .addNumericAttribute(ImmutableNumericAttribute.newBuilder()
+                                .setName("transmitDrops")
+                                .setGroup("test")
+                                .setType(NumericAttribute.Type.COUNTER)
+                                .setValue(transmitDrops)
+                                .build())
+                        .build())
+                .build();
+        evaluator.evaluate(onmsNode, collectionSet);
+    }
+}
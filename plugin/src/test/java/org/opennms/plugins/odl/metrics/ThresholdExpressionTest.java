@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ThresholdExpressionTest {
+
+    private final Map<String, Integer> variables = new HashMap<>();
+
+    @Test
+    public void canEvaluateExpressions() {
+        final ThresholdExpression expression = compile("(ifHCInOctets + ifHCOutOctets) * 8 / ifHighSpeed - -1");
+        final double[] values = new double[]{100, 150, 1000};
+        assertEquals(3d, expression.evaluate(values, new double[expression.getMaxDepth()]), 0.001d);
+        assertEquals(3, variables.size());
+
+        assertEquals(7d, evaluate("1 + 2 * 3"), 0.001d);
+        assertEquals(9d, evaluate("(1 + 2) * 3"), 0.001d);
+        assertEquals(-0.5d, evaluate("-1 / 2"), 0.001d);
+    }
+
+    @Test
+    public void missingValuesYieldNaN() {
+        final ThresholdExpression expression = compile("transmitDrops * 2");
+        assertEquals(Double.NaN, expression.evaluate(new double[]{Double.NaN}, new double[expression.getMaxDepth()]), 0d);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void failsOnInvalidExpressions() {
+        compile("transmitDrops > 1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void failsOnUnbalancedParentheses() {
+        compile("(transmitDrops + 1");
+    }
+
+    private ThresholdExpression compile(String text) {
+        return ThresholdExpression.compile(text, v -> variables.computeIfAbsent(v, k -> variables.size()));
+    }
+
+    private double evaluate(String text) {
+        final ThresholdExpression expression = compile(text);
+        return expression.evaluate(new double[0], new double[expression.getMaxDepth()]);
+    }
+}
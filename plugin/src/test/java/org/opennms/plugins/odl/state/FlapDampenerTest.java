@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class FlapDampenerTest {
+
+    private final AtomicLong now = new AtomicLong(0);
+
+    private final FlapDampener dampener = new FlapDampener(1000, 2000, 750, 6000, 60000, now::get);
+
+    @Test
+    public void canSuppressFlappingNodeAndReleaseItOnceStable() {
+        // The first change is forwarded
+        assertEquals(FlapDampener.Outcome.FORWARD, dampener.onStatusChange(1));
+        // The second change reaches the suppress threshold
+        assertEquals(FlapDampener.Outcome.START_SUPPRESSING, dampener.onStatusChange(1));
+        assertEquals(FlapDampener.Outcome.SUPPRESS, dampener.onStatusChange(1));
+        assertEquals(FlapDampener.Outcome.SUPPRESS, dampener.onStatusChange(1));
+        assertTrue(dampener.isSuppressed(1));
+        assertEquals(4000, dampener.getPenalty(1), 0.1);
+
+        // Not yet decayed below the reuse threshold
+        final Map<Integer, Integer> released = new HashMap<>();
+        now.set(60000);
+        assertEquals(0, dampener.release(released::put));
+        assertEquals(2000, dampener.getPenalty(1), 0.1);
+
+        // 4000 -> 500 after three half-lives
+        now.set(180000);
+        assertEquals(1, dampener.release(released::put));
+        assertEquals(Integer.valueOf(3), released.get(1));
+        assertFalse(dampener.isSuppressed(1));
+        assertEquals(1, dampener.getTotalReleased());
+        assertEquals(3, dampener.getTotalSuppressed());
+    }
+
+    @Test
+    public void canDecayInfrequentChanges() {
+        assertEquals(FlapDampener.Outcome.FORWARD, dampener.onStatusChange(1));
+        now.set(120000);
+        // 1000 decayed to 250, plus 1000 is still below the suppress threshold
+        assertEquals(FlapDampener.Outcome.FORWARD, dampener.onStatusChange(1));
+        assertEquals(1250, dampener.getPenalty(1), 0.1);
+    }
+
+    @Test
+    public void canCapPenalty() {
+        for (int i = 0; i < 20; i++) {
+            dampener.onStatusChange(1);
+        }
+        assertEquals(6000, dampener.getPenalty(1), 0.1);
+    }
+
+    @Test
+    public void canForgetNodesWithNegligiblePenalty() {
+        for (int nodeId = 1; nodeId <= 100; nodeId++) {
+            dampener.onStatusChange(nodeId);
+        }
+        assertEquals(100, dampener.size());
+
+        now.set(300000);
+        assertEquals(0, dampener.release((nodeId, count) -> {}));
+        assertEquals(0, dampener.size());
+    }
+
+    @Test
+    public void canRetainOnlyGivenNodes() {
+        dampener.onStatusChange(1);
+        dampener.onStatusChange(2);
+        dampener.onStatusChange(2);
+        assertEquals(1, dampener.retainAll(nodeId -> nodeId == 1));
+        assertEquals(1, dampener.size());
+        assertFalse(dampener.isSuppressed(2));
+    }
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.state;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class NodeStatusCacheTest {
+
+    private final AtomicLong now = new AtomicLong(0);
+
+    @Test
+    public void canPutAndGetStatus() {
+        final NodeStatusCache cache = new NodeStatusCache(0, 10, now::get);
+        assertEquals(NodeStatusCache.UNKNOWN, cache.get(1));
+
+        cache.put(1, true);
+        cache.put(2, false);
+        assertEquals(NodeStatusCache.ONLINE, cache.get(1));
+        assertEquals(NodeStatusCache.OFFLINE, cache.get(2));
+        assertEquals(2, cache.size());
+
+        cache.put(1, false);
+        assertEquals(NodeStatusCache.OFFLINE, cache.get(1));
+        assertEquals(2, cache.size());
+
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.75d, cache.getHitRatio(), 0.001d);
+    }
+
+    @Test
+    public void canExpireEntries() {
+        final NodeStatusCache cache = new NodeStatusCache(60000, 10, now::get);
+        cache.put(1, true);
+        now.set(30000);
+        cache.put(2, true);
+
+        now.set(61000);
+        assertEquals(NodeStatusCache.UNKNOWN, cache.get(1));
+        assertEquals(NodeStatusCache.ONLINE, cache.get(2));
+
+        assertEquals(1, cache.evictExpired());
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void canEvictOldestEntryWhenFull() {
+        final NodeStatusCache cache = new NodeStatusCache(0, 3, now::get);
+        for (int nodeId = 1; nodeId <= 3; nodeId++) {
+            now.addAndGet(1000);
+            cache.put(nodeId, true);
+        }
+        // Refresh node 1 so that node 2 becomes the oldest
+        now.addAndGet(1000);
+        cache.put(1, true);
+
+        cache.put(4, true);
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(NodeStatusCache.ONLINE, cache.get(1));
+        assertEquals(NodeStatusCache.UNKNOWN, cache.get(2));
+        assertEquals(NodeStatusCache.ONLINE, cache.get(3));
+        assertEquals(NodeStatusCache.ONLINE, cache.get(4));
+    }
+
+    @Test
+    public void canRetainOnlyGivenNodes() {
+        final NodeStatusCache cache = new NodeStatusCache(0, 100, now::get);
+        for (int nodeId = 1; nodeId <= 50; nodeId++) {
+            cache.put(nodeId, nodeId % 2 == 0);
+        }
+
+        assertEquals(25, cache.retainAll(nodeId -> nodeId % 2 == 0));
+        assertEquals(25, cache.size());
+        for (int nodeId = 1; nodeId <= 50; nodeId++) {
+            assertEquals(nodeId % 2 == 0 ? NodeStatusCache.ONLINE : NodeStatusCache.UNKNOWN, cache.get(nodeId));
+        }
+    }
+
+    @Test
+    public void canMatchReferenceMapUnderRandomOperations() {
+        final NodeStatusCache cache = new NodeStatusCache(0, 10000, now::get);
+        final Map<Integer, Boolean> expected = new HashMap<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // Use a small key space so that probe sequences collide and get shifted around
+            final int nodeId = 1 + random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                cache.remove(nodeId);
+                expected.remove(nodeId);
+            } else {
+                final boolean online = random.nextBoolean();
+                cache.put(nodeId, online);
+                expected.put(nodeId, online);
+            }
+        }
+
+        assertEquals(expected.size(), cache.size());
+        for (int nodeId = 1; nodeId <= 500; nodeId++) {
+            final Boolean status = expected.get(nodeId);
+            final byte expectedStatus = status == null ? NodeStatusCache.UNKNOWN
+                    : status ? NodeStatusCache.ONLINE : NodeStatusCache.OFFLINE;
+            assertEquals("Node " + nodeId, expectedStatus, cache.get(nodeId));
+        }
+    }
+
+    @Test
+    public void canEvictLeastRecentlyUpdatedEntriesUnderRandomOperations() {
+        final int maxSize = 50;
+        final NodeStatusCache cache = new NodeStatusCache(0, maxSize, now::get);
+        // Keys are kept in the order in which they were last updated
+        final LinkedHashMap<Integer, Boolean> expected = new LinkedHashMap<>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            final int nodeId = 1 + random.nextInt(200);
+            if (random.nextInt(5) == 0) {
+                cache.remove(nodeId);
+                expected.remove(nodeId);
+            } else {
+                final boolean online = random.nextBoolean();
+                cache.put(nodeId, online);
+                expected.remove(nodeId);
+                if (expected.size() >= maxSize) {
+                    expected.remove(expected.keySet().iterator().next());
+                }
+                expected.put(nodeId, online);
+            }
+        }
+
+        assertEquals(expected.size(), cache.size());
+        for (int nodeId = 1; nodeId <= 200; nodeId++) {
+            final Boolean status = expected.get(nodeId);
+            final byte expectedStatus = status == null ? NodeStatusCache.UNKNOWN
+                    : status ? NodeStatusCache.ONLINE : NodeStatusCache.OFFLINE;
+            assertEquals("Node " + nodeId, expectedStatus, cache.get(nodeId));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2019 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2019 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.plugins.odl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class NodeStatusStoreTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void canSaveAndLoadNodeStates() throws IOException {
+        final Path file = tempFolder.getRoot().toPath().resolve("data").resolve("node-status.dat");
+        final NodeStatusCache cache = new NodeStatusCache(0, 1000);
+        for (int nodeId = 1; nodeId <= 100; nodeId++) {
+            cache.put(nodeId, nodeId % 3 != 0);
+        }
+
+        final NodeStatusStore store = new NodeStatusStore(file);
+        assertTrue(store.saveIfChanged(cache));
+        // Nothing changed, nothing to save
+        assertFalse(store.saveIfChanged(cache));
+        assertFalse(Files.exists(file.resolveSibling("node-status.dat.tmp")));
+
+        final NodeStatusCache loadedCache = new NodeStatusCache(0, 1000);
+        assertEquals(100, new NodeStatusStore(file).load(loadedCache));
+        assertEquals(100, loadedCache.size());
+        for (int nodeId = 1; nodeId <= 100; nodeId++) {
+            assertEquals(nodeId % 3 != 0 ? NodeStatusCache.ONLINE : NodeStatusCache.OFFLINE, loadedCache.get(nodeId));
+        }
+    }
+
+    @Test
+    public void canSaveAfterChange() throws IOException {
+        final Path file = tempFolder.newFile().toPath();
+        final NodeStatusCache cache = new NodeStatusCache(0, 10);
+        final NodeStatusStore store = new NodeStatusStore(file);
+        cache.put(1, true);
+        assertTrue(store.saveIfChanged(cache));
+
+        // Refreshing an entry with the same status is not a change
+        cache.put(1, true);
+        assertFalse(store.saveIfChanged(cache));
+
+        cache.put(1, false);
+        assertTrue(store.saveIfChanged(cache));
+        cache.remove(1);
+        assertTrue(store.saveIfChanged(cache));
+    }
+
+    @Test
+    public void canIgnoreMissingFile() {
+        final NodeStatusCache cache = new NodeStatusCache(0, 10);
+        assertEquals(0, new NodeStatusStore(tempFolder.getRoot().toPath().resolve("missing.dat")).load(cache));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void canDetectCorruption() throws IOException {
+        final Path file = tempFolder.newFile().toPath();
+        final NodeStatusCache cache = new NodeStatusCache(0, 10);
+        cache.put(1, true);
+        cache.put(2, false);
+        new NodeStatusStore(file).saveIfChanged(cache);
+
+        final byte[] bytes = Files.readAllBytes(file);
+        // Flip the status of the first entry
+        bytes[12 + 4] ^= 1;
+        Files.write(file, bytes);
+
+        final NodeStatusCache loadedCache = new NodeStatusCache(0, 10);
+        assertEquals(0, new NodeStatusStore(file).load(loadedCache));
+        assertEquals(0, loadedCache.size());
+
+        // Truncated
+        Files.write(file, new byte[]{1, 2, 3});
+        assertEquals(0, new NodeStatusStore(file).load(loadedCache));
+    }
+
+    @Test
+    public void canRejectUnsupportedVersion() throws IOException {
+        final Path file = tempFolder.newFile().toPath();
+        final NodeStatusCache cache = new NodeStatusCache(0, 10);
+        cache.put(1, true);
+        final byte[] bytes = NodeStatusStore.encode(cache);
+
+        // Bump the version and recompute the checksum so that only the version check fails
+        ByteBuffer.wrap(bytes).putInt(4, NodeStatusStore.VERSION + 1);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - Long.BYTES);
+        ByteBuffer.wrap(bytes).putLong(bytes.length - Long.BYTES, crc.getValue());
+        Files.write(file, bytes);
+
+        final NodeStatusCache loadedCache = new NodeStatusCache(0, 10);
+        assertEquals(0, new NodeStatusStore(file).load(loadedCache));
+        assertEquals(0, loadedCache.size());
+    }
+}